@@ -0,0 +1,46 @@
+package org.totschnig.myexpenses.export;
+
+import org.junit.Test;
+import org.totschnig.myexpenses.model.Money;
+import org.totschnig.myexpenses.util.Utils;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Formatting amounts in minor units must give the same result as formatting the major amount with
+ * {@link Utils#getDecimalFormat(Currency, char)}, as the Exporter did before
+ */
+public class MinorUnitFormatTest {
+  private static final long[] AMOUNTS = {0, 1, -1, 5, 10, -10, 99, 100, -100, 101, 1000, 12345, -12345,
+      1000000, 123456789, Long.MAX_VALUE, Long.MIN_VALUE + 1};
+
+  private void assertSameAsDecimalFormat(String currencyCode, char decimalSeparator) {
+    Currency currency = Currency.getInstance(currencyCode);
+    DecimalFormat decimalFormat = Utils.getDecimalFormat(currency, decimalSeparator);
+    MinorUnitFormat minorUnitFormat = new MinorUnitFormat(currency, decimalSeparator);
+    for (long amount : AMOUNTS) {
+      BigDecimal amountMajor = new Money(currency, amount).getAmountMajor();
+      assertEquals(currencyCode + " " + amount, decimalFormat.format(amountMajor), minorUnitFormat.format(amount));
+    }
+  }
+
+  @Test
+  public void shouldFormatTwoFractionDigits() {
+    assertSameAsDecimalFormat("EUR", '.');
+    assertSameAsDecimalFormat("EUR", ',');
+  }
+
+  @Test
+  public void shouldFormatWithoutFractionDigits() {
+    assertSameAsDecimalFormat("JPY", '.');
+  }
+
+  @Test
+  public void shouldFormatThreeFractionDigits() {
+    assertSameAsDecimalFormat("BHD", ',');
+  }
+}
@@ -0,0 +1,102 @@
+package org.totschnig.myexpenses.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two devices sharing a folder, as if it was kept in sync between them by a folder syncing tool. Also logs the
+ * time it takes to read a long change log, which is not affected by network latency with this backend.
+ */
+public class LocalFileBackendProviderTest {
+  private static final String ACCOUNT_UUID = "a1b2c3";
+  private static final int CHANGE_SET_COUNT = 500;
+
+  private Context context;
+  private File baseDir;
+  private LocalFileBackendProvider device1, device2;
+
+  @Before
+  public void setup() {
+    context = InstrumentationRegistry.getTargetContext();
+    baseDir = new File(context.getCacheDir(), "LocalFileBackendProviderTest");
+    assertTrue(baseDir.mkdir() || baseDir.isDirectory());
+    device1 = newDevice();
+    device2 = newDevice();
+  }
+
+  private LocalFileBackendProvider newDevice() {
+    LocalFileBackendProvider backend = new LocalFileBackendProvider(context, baseDir.getPath());
+    Account account = new Account();
+    account.uuid = ACCOUNT_UUID;
+    assertTrue(backend.withAccount(account));
+    return backend;
+  }
+
+  @After
+  public void tearDown() {
+    assertTrue(device1.resetAccountData(ACCOUNT_UUID));
+    File accountDir = new File(baseDir, ACCOUNT_UUID);
+    assertTrue(accountDir.delete());
+    assertTrue(baseDir.delete());
+  }
+
+  private TransactionChange buildChange(long sequence) {
+    return TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("uuid" + sequence)
+        .setTimeStamp(sequence)
+        .setAmount(sequence)
+        .build();
+  }
+
+  @Test
+  public void lockShouldBeExclusive() {
+    assertTrue(device1.lock());
+    assertFalse(device2.lock());
+    assertTrue(device1.unlock());
+    assertTrue(device2.lock());
+    assertTrue(device2.unlock());
+  }
+
+  @Test
+  public void changeSetsShouldBeVisibleToOtherDevice() throws Exception {
+    assertEquals(0, device2.getChangeSetSince(0, context).changes.size());
+    long sequence = device1.writeChangeSet(Collections.singletonList(buildChange(1)), context);
+    //the listing device2 has taken before must not hide the new change set
+    ChangeSet changeSet = device2.getChangeSetSince(0, context);
+    assertEquals(sequence, changeSet.sequenceNumber);
+    assertEquals(1, changeSet.changes.size());
+    for (String fileName : new File(baseDir, ACCOUNT_UUID).list()) {
+      assertFalse("Temporary file left behind: " + fileName, fileName.startsWith("."));
+    }
+  }
+
+  @Test
+  public void readLongChangeLog() throws Exception {
+    for (int i = 1; i <= CHANGE_SET_COUNT; i++) {
+      device1.writeChangeSet(Collections.singletonList(buildChange(i)), context);
+    }
+    long start = System.nanoTime();
+    ChangeSet changeSet = device2.getChangeSetSince(0, context);
+    long millis = (System.nanoTime() - start) / 1000000;
+    Log.i("LocalFileBackendProviderTest", String.format("%d change sets read in %d ms",
+        CHANGE_SET_COUNT, millis));
+    assertEquals(CHANGE_SET_COUNT, changeSet.changes.size());
+    assertEquals(CHANGE_SET_COUNT, changeSet.sequenceNumber);
+  }
+}
@@ -0,0 +1,142 @@
+package org.totschnig.myexpenses.test.misc;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.totschnig.myexpenses.export.qif.QifAccount;
+import org.totschnig.myexpenses.export.qif.QifBufferedReader;
+import org.totschnig.myexpenses.export.qif.QifCategory;
+import org.totschnig.myexpenses.export.qif.QifDateFormat;
+import org.totschnig.myexpenses.export.qif.QifParser;
+import org.totschnig.myexpenses.export.qif.QifTransaction;
+import org.totschnig.myexpenses.export.qif.QifTransferMatcher;
+import org.totschnig.myexpenses.test.util.HeapSampler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Currency;
+import java.util.Locale;
+
+/**
+ * Reads a large QIF file with several accounts and transfers between them, handing each record to
+ * {@link QifTransferMatcher} as the import does, and logs the throughput and the peak heap usage
+ */
+public class QifImportBenchmarkTest extends AndroidTestCase {
+  private static final int ACCOUNT_COUNT = 5;
+  private static final int RECORDS_PER_ACCOUNT = 100000;
+  private static final int RECORD_COUNT = ACCOUNT_COUNT * RECORDS_PER_ACCOUNT;
+  /**
+   * every tenth record is a transfer to the next account, its counterpart follows five records later in the
+   * next account
+   */
+  private static final int TRANSFER_INTERVAL = 10;
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = new File(getContext().getCacheDir(), "BENCHMARK.qif");
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      for (int account = 0; account < ACCOUNT_COUNT; account++) {
+        w.write("!Account\nNAccount " + account + "\nTBank\n^\n!Type:Bank\n");
+        for (int n = 0; n < RECORDS_PER_ACCOUNT; n++) {
+          int phase = n % TRANSFER_INTERVAL;
+          if (phase == 0) {
+            writeRecord(w, n, -amount(n), "[Account " + (account + 1) % ACCOUNT_COUNT + "]");
+          } else if (phase == TRANSFER_INTERVAL / 2) {
+            int outgoing = n - TRANSFER_INTERVAL / 2;
+            writeRecord(w, outgoing, amount(outgoing),
+                "[Account " + (account + ACCOUNT_COUNT - 1) % ACCOUNT_COUNT + "]");
+          } else {
+            writeRecord(w, n, -amount(n), "Food:Sub " + n % 20);
+          }
+        }
+      }
+    } finally {
+      w.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    assertTrue(file.delete());
+    super.tearDown();
+  }
+
+  private static int amount(int n) {
+    return n % 10000 + 1;
+  }
+
+  private static void writeRecord(Writer w, int n, int amount, String category) throws IOException {
+    int day = n / 100;
+    w.write(String.format(Locale.US, "D%02d/%02d/%d\nT%s%d.%02d\nPPayee %d\nMMemo %d\nL%s\n^\n",
+        day % 28 + 1, day / 28 % 12 + 1, 2000 + day / 336, amount < 0 ? "-" : "", Math.abs(amount) / 100,
+        Math.abs(amount) % 100, n % 100, n, category));
+  }
+
+  private QifBufferedReader openReader() throws IOException {
+    return new QifBufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+  }
+
+  public void testParseAndPairTransfers() throws Exception {
+    final int[] counts = new int[3];
+    final QifTransferMatcher matcher = new QifTransferMatcher(new QifTransferMatcher.Callback() {
+      @Override
+      public void convert(QifTransaction transfer) {
+        counts[1]++;
+      }
+
+      @Override
+      public void ready(QifAccount account, QifTransaction transaction) {
+        counts[2]++;
+      }
+    });
+    QifBufferedReader r = openReader();
+    benchmark(() -> {
+      new QifParser(r, QifDateFormat.EU, Currency.getInstance("EUR"), new QifParser.Callback() {
+        @Override
+        public void onAccount(QifAccount account) {
+        }
+
+        @Override
+        public void onCategory(QifCategory category) {
+        }
+
+        @Override
+        public void onTransaction(QifAccount account, QifTransaction transaction) {
+          counts[0]++;
+          matcher.add(account, transaction);
+        }
+      }).parse();
+      matcher.finish();
+    });
+    r.close();
+    assertEquals(RECORD_COUNT, counts[0]);
+    assertEquals(0, counts[1]);
+    assertEquals(RECORD_COUNT - RECORD_COUNT / TRANSFER_INTERVAL, counts[2]);
+  }
+
+  private interface Run {
+    void run() throws IOException;
+  }
+
+  private void benchmark(Run run) throws Exception {
+    HeapSampler sampler = HeapSampler.begin();
+    long start = System.nanoTime();
+    run.run();
+    long millis = (System.nanoTime() - start) / 1000000;
+    sampler.end();
+    Log.i("QifImportBenchmarkTest", String.format("%d records (%d KB) in %d ms (%d records/s), " +
+            "peak heap %d KB above %d KB",
+        RECORD_COUNT, file.length() / 1024, millis, RECORD_COUNT * 1000L / Math.max(millis, 1),
+        sampler.getPeakKb(), sampler.getBeforeKb()));
+  }
+}
@@ -0,0 +1,233 @@
+package org.totschnig.myexpenses.test.model;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.R;
+import org.totschnig.myexpenses.export.CategoryInfo;
+import org.totschnig.myexpenses.export.qif.QifDateFormat;
+import org.totschnig.myexpenses.export.qif.QifUtils;
+import org.totschnig.myexpenses.fragment.CsvImportDataFragment;
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Money;
+import org.totschnig.myexpenses.model.Payee;
+import org.totschnig.myexpenses.model.PaymentMethod;
+import org.totschnig.myexpenses.model.SplitPartCategory;
+import org.totschnig.myexpenses.model.SplitTransaction;
+import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.model.Transfer;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.task.CsvImportTask;
+import org.totschnig.myexpenses.task.TaskExecutionFragment;
+import org.totschnig.myexpenses.util.Result;
+import org.totschnig.myexpenses.util.SparseBooleanArrayParcelable;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Imports a large CSV file, once with {@link CsvImportTask} and once saving each row on its own as it was done
+ * before, and logs the throughput of both
+ */
+public class CsvImportBenchmarkTest extends ModelTest {
+  private static final int ROW_COUNT = 100000;
+  /**
+   * every tenth row is a split with two parts, every fifteenth a transfer
+   */
+  private static final int SPLIT_INTERVAL = 10;
+  private static final int TRANSFER_INTERVAL = 15;
+  private static final int[] FIELDS = {R.string.date, R.string.payer_or_payee, R.string.amount, R.string.category,
+      R.string.subcategory, R.string.method, R.string.comment, R.string.split_transaction};
+
+  private Account account, transferAccount;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    account = new Account("Benchmark", 0, "");
+    account.save();
+    transferAccount = new Account("Benchmark transfer", 0, "");
+    transferAccount.save();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    Account.delete(account.getId());
+    Account.delete(transferAccount.getId());
+  }
+
+  /**
+   * @param prefix keeps payees and categories of the runs apart, so that each of them has to create them
+   */
+  private ArrayList<CSVRecord> generate(String prefix) throws Exception {
+    StringBuilder csv = new StringBuilder();
+    String cheque = PaymentMethod.PreDefined.CHEQUE.getLocalizedLabel();
+    int rows = 0;
+    for (int n = 0; rows < ROW_COUNT; n++) {
+      String date = String.format(Locale.US, "%02d/%02d/%d", n % 28 + 1, n / 28 % 12 + 1, 2000 + n / 336 % 20);
+      String amount = String.format(Locale.US, "-%d.%02d", n % 1000, n % 100);
+      if (n % SPLIT_INTERVAL == 0) {
+        appendRow(csv, date, prefix + "Payee " + n % 500, amount, "", "", cheque, "Split " + n,
+            SplitTransaction.CSV_INDICATOR);
+        String half = String.format(Locale.US, "-%d.%02d", n % 1000 / 2, n % 100 / 2);
+        for (int part = 0; part < 2; part++) {
+          appendRow(csv, date, "", part == 0 ? half : amount, prefix + "Main " + n % 50, "Sub " + part, "",
+              "Part " + part, SplitTransaction.CSV_PART_INDICATOR);
+        }
+        rows += 3;
+      } else if (n % TRANSFER_INTERVAL == 0) {
+        appendRow(csv, date, "", amount, "[" + transferAccount.label + "]", "", "", "Transfer " + n, "");
+        rows++;
+      } else {
+        appendRow(csv, date, prefix + "Payee " + n % 500, amount, prefix + "Main " + n % 50, "Sub " + n % 7,
+            cheque, "Comment " + n, "");
+        rows++;
+      }
+    }
+    return new ArrayList<>(CSVFormat.DEFAULT.parse(new StringReader(csv.toString())).getRecords());
+  }
+
+  private static void appendRow(StringBuilder csv, String... values) {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        csv.append(',');
+      }
+      csv.append('"').append(values[i]).append('"');
+    }
+    csv.append('\n');
+  }
+
+  private CsvImportTask buildTask(ArrayList<CSVRecord> data) {
+    Bundle b = new Bundle();
+    b.putSerializable(TaskExecutionFragment.KEY_DATE_FORMAT, QifDateFormat.EU);
+    b.putSerializable(CsvImportDataFragment.KEY_DATASET, data);
+    b.putSerializable(CsvImportDataFragment.KEY_FIELD_TO_COLUMN, FIELDS);
+    b.putParcelable(CsvImportDataFragment.KEY_DISCARDED_ROWS, new SparseBooleanArrayParcelable());
+    b.putLong(DatabaseConstants.KEY_ACCOUNTID, account.getId());
+    b.putString(DatabaseConstants.KEY_CURRENCY, account.currency.getCurrencyCode());
+    b.putSerializable(DatabaseConstants.KEY_TYPE, AccountType.CASH);
+    return new CsvImportTask(new TaskExecutionFragment(), b);
+  }
+
+  public void testBatched() throws Exception {
+    ArrayList<CSVRecord> data = generate("Batched ");
+    CsvImportTask task = buildTask(data);
+    long start = System.nanoTime();
+    Result result = task.execute().get();
+    log("batched", data.size(), start);
+    assertTrue(result.success);
+    assertEquals(0, result.extra[1]);
+  }
+
+  /**
+   * split parts without a parent directly preceding them are not imported as standalone transactions
+   */
+  public void testOrphanedSplitParts() throws Exception {
+    StringBuilder csv = new StringBuilder();
+    appendRow(csv, "01/01/2017", "", "-1.00", "Main", "", "", "Orphan", SplitTransaction.CSV_PART_INDICATOR);
+    appendRow(csv, "01/01/2017", "", "-2.00", "Main", "", "", "Plain", "");
+    appendRow(csv, "01/01/2017", "", "-3.00", "Main", "", "", "Orphan", SplitTransaction.CSV_PART_INDICATOR);
+    appendRow(csv, "01/01/2017", "", "-4.00", "", "", "", "Split", SplitTransaction.CSV_INDICATOR);
+    appendRow(csv, "01/01/2017", "", "-4.00", "Main", "", "", "Part", SplitTransaction.CSV_PART_INDICATOR);
+    ArrayList<CSVRecord> data = new ArrayList<>(CSVFormat.DEFAULT.parse(new StringReader(csv.toString())).getRecords());
+    Result result = buildTask(data).execute().get();
+    assertTrue(result.success);
+    assertEquals(2, result.extra[0]);
+    assertEquals(2, result.extra[1]);
+    assertEquals(-600L, Account.getInstanceFromDb(account.getId()).getTotalBalance().getAmountMinor().longValue());
+  }
+
+  public void testPerRow() throws Exception {
+    ArrayList<CSVRecord> data = generate("Per row ");
+    long start = System.nanoTime();
+    importPerRow(data);
+    log("per row", data.size(), start);
+  }
+
+  private void log(String mode, int rowCount, long start) {
+    long millis = (System.nanoTime() - start) / 1000000;
+    Log.i("CsvImportBenchmarkTest", String.format("%s: %d rows in %d ms (%d rows/s)",
+        mode, rowCount, millis, rowCount * 1000L / Math.max(millis, 1)));
+  }
+
+  /**
+   * the implementation CsvImportTask used before, for the columns of the benchmark
+   */
+  private void importPerRow(ArrayList<CSVRecord> data) {
+    Map<String, Long> payeeToId = new HashMap<>();
+    Map<String, Long> categoryToId = new HashMap<>();
+    String transferLabel = MyApplication.getInstance().getString(R.string.transfer);
+    Long splitParent = null;
+    for (CSVRecord record : data) {
+      boolean isSplitPart = record.get(7).equals(SplitTransaction.CSV_PART_INDICATOR);
+      boolean isSplitParent = record.get(7).equals(SplitTransaction.CSV_INDICATOR);
+      BigDecimal amount = QifUtils.parseMoney(record.get(2), account.currency);
+      Money m = new Money(account.currency, amount);
+      long transferAccountId = -1;
+      String categoryInfo = null;
+      if (!isSplitParent) {
+        String category = record.get(3);
+        if (!category.equals("")) {
+          String subCategory = record.get(4);
+          if (category.equals(transferLabel) && QifUtils.isTransferCategory(subCategory)) {
+            transferAccountId = Account.findAny(subCategory.substring(1, subCategory.length() - 1));
+          } else if (QifUtils.isTransferCategory(category)) {
+            transferAccountId = Account.findAny(category.substring(1, category.length() - 1));
+          }
+          if (transferAccountId == -1) {
+            categoryInfo = subCategory.equals("") ? category : category + ":" + subCategory;
+          }
+        }
+      }
+      Transaction t;
+      if (isSplitPart) {
+        t = new SplitPartCategory(account.getId(), m.getAmountMinor(), splitParent);
+      } else if (isSplitParent) {
+        t = new SplitTransaction(account.getId(), m);
+      } else if (transferAccountId != -1) {
+        t = new Transfer(account.getId(), m);
+        t.transfer_account = transferAccountId;
+      } else {
+        t = new Transaction(account.getId(), m);
+      }
+      if (categoryInfo != null) {
+        new CategoryInfo(categoryInfo).insert(categoryToId, false);
+        t.setCatId(categoryToId.get(categoryInfo));
+      }
+      t.setDate(QifUtils.parseDate(record.get(0), QifDateFormat.EU));
+      String payee = record.get(1);
+      if (!payee.equals("")) {
+        long id = Payee.extractPayeeId(payee, payeeToId);
+        if (id != -1) {
+          t.payeeId = id;
+        }
+      }
+      t.comment = record.get(6);
+      String method = record.get(5);
+      if (!method.equals("")) {
+        for (PaymentMethod.PreDefined preDefined : PaymentMethod.PreDefined.values()) {
+          if (preDefined.getLocalizedLabel().equals(method)) {
+            method = preDefined.name();
+            break;
+          }
+        }
+        long methodId = PaymentMethod.find(method);
+        if (methodId != -1) {
+          t.methodId = methodId;
+        }
+      }
+      if (t.save() != null && isSplitParent) {
+        splitParent = t.getId();
+      }
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package org.totschnig.myexpenses.test.model;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.provider.DocumentFile;
+import android.util.Log;
+
+import org.totschnig.myexpenses.export.Exporter;
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.Category;
+import org.totschnig.myexpenses.model.ExportFormat;
+import org.totschnig.myexpenses.model.Payee;
+import org.totschnig.myexpenses.model.PaymentMethod;
+import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.test.util.HeapSampler;
+import org.totschnig.myexpenses.util.Result;
+
+import java.io.File;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
+
+/**
+ * Exports a large account in both formats and logs the throughput and the peak heap usage while exporting
+ */
+public class ExportBenchmarkTest extends ModelTest {
+  private static final String FILE_NAME = "BENCHMARK";
+  private static final int TRANSACTION_COUNT = 200000;
+  private static final int CHUNK_SIZE = 5000;
+  /**
+   * every tenth transaction is split into two parts
+   */
+  private static final int SPLIT_INTERVAL = 10;
+
+  private Account account;
+  private DocumentFile outDir;
+  private int rowCount;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    outDir = DocumentFile.fromFile(getContext().getCacheDir());
+    account = new Account("Benchmark", 0, "");
+    account.save();
+    long mainId = Category.write(0L, "Main", null);
+    long subId = Category.write(0L, "Sub", mainId);
+    long payeeId = Payee.maybeWrite("N.N.");
+    long methodId = PaymentMethod.find("CHEQUE");
+    long date = System.currentTimeMillis() / 1000 - TRANSACTION_COUNT;
+    for (int start = 0; start < TRANSACTION_COUNT; start += CHUNK_SIZE) {
+      ContentValues[] parents = new ContentValues[CHUNK_SIZE];
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        int n = start + i;
+        ContentValues values = new ContentValues();
+        values.put(KEY_ACCOUNTID, account.getId());
+        values.put(KEY_AMOUNT, -(n % 10000) - 1);
+        values.put(KEY_DATE, date + n);
+        values.put(KEY_COMMENT, "Comment \"" + n + "\"");
+        values.put(KEY_CATID, n % SPLIT_INTERVAL == 0 ? DatabaseConstants.SPLIT_CATID : (n % 2 == 0 ? mainId : subId));
+        values.put(KEY_PAYEEID, payeeId);
+        values.put(KEY_METHODID, methodId);
+        parents[i] = values;
+      }
+      long[] ids = bulkInsert(parents);
+      ContentValues[] parts = new ContentValues[CHUNK_SIZE / SPLIT_INTERVAL * 2];
+      int partIndex = 0;
+      for (int i = 0; i < CHUNK_SIZE; i += SPLIT_INTERVAL) {
+        long amount = parents[i].getAsLong(KEY_AMOUNT);
+        for (long partAmount : new long[]{amount / 2, amount - amount / 2}) {
+          ContentValues values = new ContentValues();
+          values.put(KEY_ACCOUNTID, account.getId());
+          values.put(KEY_AMOUNT, partAmount);
+          values.put(KEY_DATE, parents[i].getAsLong(KEY_DATE));
+          values.put(KEY_CATID, subId);
+          values.put(KEY_PARENTID, ids[i]);
+          parts[partIndex++] = values;
+        }
+      }
+      bulkInsert(parts);
+    }
+    rowCount = TRANSACTION_COUNT + TRANSACTION_COUNT / SPLIT_INTERVAL * 2;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    Account.delete(account.getId());
+  }
+
+  private long[] bulkInsert(ContentValues[] values) {
+    Bundle extras = new Bundle(1);
+    extras.putParcelableArray(TransactionProvider.KEY_VALUES, values);
+    return getMockContentResolver().call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_INSERT,
+        Transaction.CONTENT_URI.toString(), extras).getLongArray(TransactionProvider.KEY_IDS);
+  }
+
+  public void testExportCSV() throws Exception {
+    benchmark(ExportFormat.CSV);
+  }
+
+  public void testExportQIF() throws Exception {
+    benchmark(ExportFormat.QIF);
+  }
+
+  private void benchmark(ExportFormat format) throws Exception {
+    HeapSampler sampler = HeapSampler.begin();
+    long start = System.nanoTime();
+    Result result = new Exporter(account, null, outDir, FILE_NAME, format, false, "dd/MM/yyyy", '.', "UTF-8")
+        .export();
+    long millis = (System.nanoTime() - start) / 1000000;
+    sampler.end();
+    assertTrue(result.success);
+    File file = new File(((Uri) result.extra[0]).getPath());
+    Log.i("ExportBenchmarkTest", String.format("%s: %d rows in %d ms (%d rows/s), %d KB written, " +
+            "peak heap %d KB above %d KB",
+        format, rowCount, millis, rowCount * 1000L / Math.max(millis, 1), file.length() / 1024,
+        sampler.getPeakKb(), sampler.getBeforeKb()));
+    assertTrue(file.delete());
+  }
+}
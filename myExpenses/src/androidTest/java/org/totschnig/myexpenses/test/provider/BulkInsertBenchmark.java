@@ -0,0 +1,109 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.ArrayList;
+
+/**
+ * Compares the throughput of inserting transactions with one {@link ContentProviderOperation} batch per row,
+ * as {@link org.totschnig.myexpenses.model.Transaction#save()} does, with
+ * {@link TransactionProvider#bulkInsert}.
+ */
+public class BulkInsertBenchmark extends ProviderTestCase2<TransactionProvider> {
+  private static final int ROW_COUNT = 5000;
+
+  private MockContentResolver mMockResolver;
+  private long testAccountId;
+  private long payeeId;
+
+  public BulkInsertBenchmark() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    SQLiteDatabase mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+  }
+
+  private ContentValues[] buildValues() {
+    ContentValues[] values = new ContentValues[ROW_COUNT];
+    for (int i = 0; i < ROW_COUNT; i++) {
+      values[i] = new TransactionInfo("Transaction " + i, "2017-01-01", i, testAccountId, payeeId)
+          .getContentValues();
+    }
+    return values;
+  }
+
+  private void logRate(String label, long start) {
+    long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+    Log.i("BulkInsertBenchmark", String.format("%s: %d rows in %d ms, %d rows/s", label, ROW_COUNT, millis,
+        ROW_COUNT * 1000L / millis));
+  }
+
+  private int countTransactions() {
+    Cursor c = mMockResolver.query(TransactionProvider.TRANSACTIONS_URI, new String[]{"count(*)"},
+        null, null, null);
+    assertNotNull(c);
+    c.moveToFirst();
+    int count = c.getInt(0);
+    c.close();
+    return count;
+  }
+
+  public void testApplyBatchPerRow() throws Exception {
+    ContentValues[] values = buildValues();
+    long start = System.nanoTime();
+    for (ContentValues row : values) {
+      ArrayList<ContentProviderOperation> ops = new ArrayList<>(1);
+      ops.add(ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI).withValues(row).build());
+      mMockResolver.applyBatch(TransactionProvider.AUTHORITY, ops);
+    }
+    logRate("applyBatch per row", start);
+    assertEquals(ROW_COUNT, countTransactions());
+  }
+
+  public void testBulkInsert() {
+    ContentValues[] values = buildValues();
+    long start = System.nanoTime();
+    assertEquals(ROW_COUNT, mMockResolver.bulkInsert(TransactionProvider.TRANSACTIONS_URI, values));
+    logRate("bulkInsert", start);
+    assertEquals(ROW_COUNT, countTransactions());
+  }
+
+  public void testBulkInsertReturnsIds() {
+    ContentValues[] values = new ContentValues[3];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new PayeeInfo("Payee " + i).getContentValues();
+    }
+    Bundle extras = new Bundle(1);
+    extras.putParcelableArray(TransactionProvider.KEY_VALUES, values);
+    Bundle result = mMockResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_INSERT,
+        TransactionProvider.PAYEES_URI.toString(), extras);
+    long[] ids = result.getLongArray(TransactionProvider.KEY_IDS);
+    assertEquals(values.length, ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      Cursor c = mMockResolver.query(TransactionProvider.PAYEES_URI, new String[]{DatabaseConstants.KEY_PAYEE_NAME},
+          DatabaseConstants.KEY_ROWID + " = ?", new String[]{String.valueOf(ids[i])}, null);
+      assertNotNull(c);
+      assertTrue(c.moveToFirst());
+      assertEquals("Payee " + i, c.getString(0));
+      c.close();
+    }
+  }
+}
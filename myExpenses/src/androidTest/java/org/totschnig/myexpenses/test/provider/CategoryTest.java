@@ -601,4 +601,38 @@ public class CategoryTest extends ProviderTestCase2<TransactionProvider> {
       // succeeded, so do nothing
     }
   }
+
+  /*
+   * Tests that the category paths follow renaming and moving of categories.
+   */
+  public void testCategoryPaths() {
+    insertData();
+    assertCategoryPath(testIds[2], "Main 1", "Sub 1", "Main 1 : Sub 1");
+    assertCategoryPath(testIds[1], "Main 2", null, "Main 2");
+
+    ContentValues args = new ContentValues();
+    args.put(KEY_LABEL, "Main renamed");
+    mMockResolver.update(
+        TransactionProvider.CATEGORIES_URI.buildUpon().appendPath(String.valueOf(testIds[0])).build(),
+        args, null, null);
+    assertCategoryPath(testIds[0], "Main renamed", null, "Main renamed");
+    assertCategoryPath(testIds[3], "Main renamed", "Sub 2", "Main renamed : Sub 2");
+
+    args = new ContentValues();
+    args.put(DatabaseConstants.KEY_PARENTID, testIds[1]);
+    mDb.update(DatabaseConstants.TABLE_CATEGORIES, args, DatabaseConstants.KEY_ROWID + " = ?",
+        new String[]{String.valueOf(testIds[3])});
+    assertCategoryPath(testIds[3], "Main 2", "Sub 2", "Main 2 : Sub 2");
+  }
+
+  private void assertCategoryPath(long id, String main, String sub, String full) {
+    Cursor c = mDb.query(DatabaseConstants.TABLE_CATEGORY_PATHS,
+        new String[]{DatabaseConstants.KEY_PATH_MAIN, DatabaseConstants.KEY_PATH_SUB, DatabaseConstants.KEY_PATH_FULL},
+        DatabaseConstants.KEY_ROWID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+    assertTrue(c.moveToFirst());
+    assertEquals(main, c.getString(0));
+    assertEquals(sub, c.getString(1));
+    assertEquals(full, c.getString(2));
+    c.close();
+  }
 }
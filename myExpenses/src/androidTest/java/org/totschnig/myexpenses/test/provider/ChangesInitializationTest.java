@@ -0,0 +1,116 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+/**
+ * Runs the chunked initialization of the change log of an account, also with changes made while it is in
+ * progress.
+ */
+public class ChangesInitializationTest extends ProviderTestCase2<TransactionProvider> {
+  private static final int ROW_COUNT = 1200;
+
+  private MockContentResolver mMockResolver;
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public ChangesInitializationTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    ContentValues account = new AccountInfo("Test account", AccountType.CASH, 0).getContentValues();
+    account.put(DatabaseConstants.KEY_SYNC_ACCOUNT_NAME, "Test sync");
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null, account);
+    mDb.beginTransaction();
+    try {
+      SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + DatabaseConstants.TABLE_TRANSACTIONS + " ("
+          + DatabaseConstants.KEY_COMMENT + ", " + DatabaseConstants.KEY_DATE + ", "
+          + DatabaseConstants.KEY_AMOUNT + ", " + DatabaseConstants.KEY_ACCOUNTID + ") VALUES (?, ?, ?, ?)");
+      for (int i = 0; i < ROW_COUNT; i++) {
+        insert.bindString(1, "Transaction " + i);
+        insert.bindLong(2, i);
+        insert.bindLong(3, i);
+        insert.bindLong(4, testAccountId);
+        insert.executeInsert();
+      }
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  private Uri initializationUri() {
+    return TransactionProvider.CHANGES_URI.buildUpon()
+        .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(testAccountId))
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_INIT, "1")
+        .build();
+  }
+
+  private long queryLong(String sql) {
+    Cursor c = mDb.rawQuery(sql, null);
+    c.moveToFirst();
+    long result = c.getLong(0);
+    c.close();
+    return result;
+  }
+
+  public void testChunkedInitialization() {
+    long start = System.nanoTime();
+    //first chunk assigns UUIDs
+    assertTrue(mMockResolver.update(initializationUri(), new ContentValues(0), null, null) > 0);
+    int count;
+    do {
+      //a new initializer is created for each chunk, as it would be after process death
+      count = mMockResolver.update(initializationUri(), new ContentValues(0), null, null);
+    } while (count > 0);
+    Log.i("ChangesInitialization", String.format("%d transactions in %d ms", ROW_COUNT,
+        (System.nanoTime() - start) / 1000000));
+    assertEquals(0, queryLong("SELECT count(*) FROM " + DatabaseConstants.TABLE_TRANSACTIONS + " WHERE "
+        + DatabaseConstants.KEY_UUID + " IS NULL"));
+    assertEquals(ROW_COUNT, queryLong("SELECT count(*) FROM " + DatabaseConstants.TABLE_CHANGES));
+    assertEquals(ROW_COUNT, queryLong("SELECT count(DISTINCT " + DatabaseConstants.KEY_UUID + ") FROM "
+        + DatabaseConstants.TABLE_CHANGES));
+    //each chunk has its own sequence number, the account continues with the following one
+    long chunks = queryLong("SELECT count(DISTINCT " + DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL + ") FROM "
+        + DatabaseConstants.TABLE_CHANGES);
+    assertTrue(chunks > 1);
+    assertEquals(chunks + 1, queryLong("SELECT " + DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL + " FROM "
+        + DatabaseConstants.TABLE_ACCOUNTS + " WHERE " + DatabaseConstants.KEY_ROWID + " = " + testAccountId));
+    assertEquals(0, queryLong("SELECT count(*) FROM " + DatabaseConstants.TABLE_SYNC_INIT_PROGRESS));
+  }
+
+  public void testChangesDuringInitializationAreKept() {
+    int count;
+    //assign UUIDs and copy the first chunk
+    do {
+      count = mMockResolver.update(initializationUri(), new ContentValues(0), null, null);
+    } while (count > 0 && queryLong("SELECT count(*) FROM " + DatabaseConstants.TABLE_CHANGES) == 0);
+    //one transaction that has been copied, one that has not
+    mDb.execSQL("UPDATE " + DatabaseConstants.TABLE_TRANSACTIONS + " SET " + DatabaseConstants.KEY_COMMENT
+        + " = 'changed' WHERE " + DatabaseConstants.KEY_ROWID + " IN (SELECT min(" + DatabaseConstants.KEY_ROWID
+        + ") FROM " + DatabaseConstants.TABLE_TRANSACTIONS + " UNION SELECT max(" + DatabaseConstants.KEY_ROWID
+        + ") FROM " + DatabaseConstants.TABLE_TRANSACTIONS + ")");
+    do {
+      count = mMockResolver.update(initializationUri(), new ContentValues(0), null, null);
+    } while (count > 0);
+    //the first one has been created and updated, the update of the last one is superseded by its creation
+    assertEquals(ROW_COUNT + 1, queryLong("SELECT count(*) FROM " + DatabaseConstants.TABLE_CHANGES));
+    assertEquals(2, queryLong("SELECT count(*) FROM " + DatabaseConstants.TABLE_CHANGES + " WHERE "
+        + DatabaseConstants.KEY_COMMENT + " = 'changed'"));
+  }
+}
@@ -0,0 +1,100 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+/**
+ * Reads the change log through {@link TransactionProvider#CHANGES_URI} with its default projection, as the
+ * sync adapter does
+ */
+public class ChangesTest extends ProviderTestCase2<TransactionProvider> {
+  private MockContentResolver mMockResolver;
+  private SQLiteDatabase mDb;
+  private long testAccountId, transferAccountId, subCategoryId;
+
+  public ChangesTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    ContentValues account = new AccountInfo("Test account", AccountType.CASH, 0).getContentValues();
+    account.put(DatabaseConstants.KEY_SYNC_ACCOUNT_NAME, "Test sync");
+    account.put(DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL, 1);
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null, account);
+    transferAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Transfer account", AccountType.BANK, 0).getContentValues());
+    long mainCategoryId = mDb.insertOrThrow(DatabaseConstants.TABLE_CATEGORIES, null,
+        new CategoryInfo("Main", null).getContentValues());
+    subCategoryId = mDb.insertOrThrow(DatabaseConstants.TABLE_CATEGORIES, null,
+        new CategoryInfo("Sub", mainCategoryId).getContentValues());
+  }
+
+  private void insertTransaction(String uuid, Long catId, Long transferAccount) {
+    ContentValues values = new ContentValues();
+    values.put(DatabaseConstants.KEY_UUID, uuid);
+    values.put(DatabaseConstants.KEY_ACCOUNTID, testAccountId);
+    values.put(DatabaseConstants.KEY_AMOUNT, -100);
+    values.put(DatabaseConstants.KEY_DATE, 1);
+    values.put(DatabaseConstants.KEY_CATID, catId);
+    values.put(DatabaseConstants.KEY_TRANSFER_ACCOUNT, transferAccount);
+    mDb.insertOrThrow(DatabaseConstants.TABLE_TRANSACTIONS, null, values);
+  }
+
+  private TransactionChange readChange(String uuid) {
+    Cursor c = mMockResolver.query(TransactionProvider.CHANGES_URI.buildUpon()
+            .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(testAccountId))
+            .appendQueryParameter(DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL, "1")
+            .build(), null, null, null, null);
+    assertNotNull(c);
+    try {
+      assertEquals(1, c.getCount());
+      assertTrue(c.moveToFirst());
+      TransactionChange change = TransactionChange.create(c);
+      assertEquals(uuid, change.uuid());
+      return change;
+    } finally {
+      c.close();
+    }
+  }
+
+  private String queryString(String sql) {
+    Cursor c = mDb.rawQuery(sql, null);
+    try {
+      assertTrue(c.moveToFirst());
+      return c.getString(0);
+    } finally {
+      c.close();
+    }
+  }
+
+  public void testCategoryLabel() {
+    insertTransaction("category", subCategoryId, null);
+    TransactionChange change = readChange("category");
+    assertEquals(TransactionChange.Type.created, change.type());
+    assertEquals(queryString("SELECT " + DatabaseConstants.KEY_PATH_FULL + " FROM "
+        + DatabaseConstants.TABLE_CATEGORY_PATHS + " WHERE " + DatabaseConstants.KEY_ROWID + " = " + subCategoryId),
+        change.label());
+  }
+
+  public void testTransferLabel() {
+    insertTransaction("transfer", null, transferAccountId);
+    assertEquals("Transfer account", readChange("transfer").label());
+  }
+
+  public void testNoLabel() {
+    insertTransaction("none", null, null);
+    assertNull(readChange("none").label());
+  }
+}
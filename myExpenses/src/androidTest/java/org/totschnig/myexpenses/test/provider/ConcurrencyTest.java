@@ -0,0 +1,103 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies that with write-ahead logging, queries of the provider complete while an import holds a long
+ * running write transaction, and see the data as it was before the transaction.
+ */
+public class ConcurrencyTest extends ProviderTestCase2<TransactionProvider> {
+  private static final int ROW_COUNT = 20000;
+
+  private MockContentResolver mMockResolver;
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public ConcurrencyTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+  }
+
+  private int countTransactions() {
+    Cursor c = mMockResolver.query(TransactionProvider.TRANSACTIONS_URI, new String[]{"count(*)"},
+        null, null, null);
+    assertNotNull(c);
+    c.moveToFirst();
+    int count = c.getInt(0);
+    c.close();
+    return count;
+  }
+
+  public void testReadersProgressWhileImportIsWriting() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      return;
+    }
+    assertTrue(mDb.isWriteAheadLoggingEnabled());
+    final CountDownLatch written = new CountDownLatch(1);
+    final CountDownLatch read = new CountDownLatch(1);
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        mDb.beginTransaction();
+        try {
+          for (int i = 0; i < ROW_COUNT; i++) {
+            ContentValues values = new TransactionInfo("Transaction " + i, "2017-01-01", i, testAccountId, 0)
+                .getContentValues();
+            values.remove(DatabaseConstants.KEY_PAYEEID);
+            mDb.insertOrThrow(DatabaseConstants.TABLE_TRANSACTIONS, null, values);
+          }
+          written.countDown();
+          //the transaction stays open until the reader is done
+          read.await(30, TimeUnit.SECONDS);
+          mDb.setTransactionSuccessful();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        } finally {
+          mDb.endTransaction();
+        }
+      }
+    });
+    writer.start();
+    assertTrue(written.await(60, TimeUnit.SECONDS));
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> countDuringImport = reader.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          return countTransactions();
+        }
+      });
+      //without write-ahead logging, the query would block until the writer commits
+      assertEquals(0, countDuringImport.get(5, TimeUnit.SECONDS).intValue());
+    } finally {
+      read.countDown();
+      reader.shutdown();
+    }
+    writer.join();
+    assertEquals(ROW_COUNT, countTransactions());
+  }
+}
@@ -0,0 +1,79 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.provider.filter.WhereFilter;
+
+/**
+ * Compares the search for a word in comments through the full text index with the search with LIKE on
+ * 250k transactions.
+ */
+public class FullTextSearchBenchmark extends ProviderTestCase2<TransactionProvider> {
+  private static final int ROW_COUNT = 250000;
+  private static final String[] WORDS = {"rent", "groceries", "fuel", "insurance", "dinner", "books", "repair"};
+
+  private MockContentResolver mMockResolver;
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+
+  public FullTextSearchBenchmark() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    long now = System.currentTimeMillis() / 1000;
+    mDb.beginTransaction();
+    try {
+      SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + DatabaseConstants.TABLE_TRANSACTIONS + " ("
+          + DatabaseConstants.KEY_COMMENT + ", " + DatabaseConstants.KEY_DATE + ", "
+          + DatabaseConstants.KEY_AMOUNT + ", " + DatabaseConstants.KEY_ACCOUNTID + ") VALUES (?, ?, ?, ?)");
+      for (int i = 0; i < ROW_COUNT; i++) {
+        insert.bindString(1, WORDS[i % WORDS.length] + " " + WORDS[(i / WORDS.length) % WORDS.length] + " " + i);
+        insert.bindLong(2, now - i * 600);
+        insert.bindLong(3, -i);
+        insert.bindLong(4, testAccountId);
+        insert.executeInsert();
+      }
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  private int timedCount(String label, String selection, String argument) {
+    long start = System.nanoTime();
+    Cursor c = mMockResolver.query(TransactionProvider.TRANSACTIONS_URI, new String[]{DatabaseConstants.KEY_ROWID},
+        selection, new String[]{argument}, null);
+    assertNotNull(c);
+    int count = c.getCount();
+    c.close();
+    Log.i("FullTextSearchBenchmark", String.format("%s: %d rows in %d ms", label, count,
+        (System.nanoTime() - start) / 1000000));
+    return count;
+  }
+
+  public void testMatchAgainstLike() {
+    for (String word : WORDS) {
+      int like = timedCount("LIKE " + word,
+          DatabaseConstants.KEY_COMMENT + " " + WhereFilter.Operation.LIKE.op, "%" + word + "%");
+      int match = timedCount("MATCH " + word,
+          DatabaseConstants.KEY_ROWID + " " + WhereFilter.Operation.MATCH.op,
+          DatabaseConstants.KEY_COMMENT + ":" + word + "*");
+      assertEquals(like, match);
+    }
+  }
+}
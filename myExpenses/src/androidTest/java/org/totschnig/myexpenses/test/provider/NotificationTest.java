@@ -0,0 +1,104 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentProviderOperation;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.ArrayList;
+
+/**
+ * Counts the change notifications dispatched by {@link TransactionProvider} for a number of inserts,
+ * which should be one per URI, for batches, bulk sessions and debounced single operations.
+ */
+public class NotificationTest extends ProviderTestCase2<TransactionProvider> {
+  private static final int OPERATION_COUNT = 50;
+  /**
+   * an insert of a transaction notifies transactions, accounts and uncommitted transactions
+   */
+  private static final int URIS_PER_INSERT = 3;
+
+  private MockContentResolver mMockResolver;
+  private long testAccountId;
+  private long payeeId;
+
+  public NotificationTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    SQLiteDatabase mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+  }
+
+  private TransactionInfo transactionInfo(int i) {
+    return new TransactionInfo("Transaction " + i, "2017-01-01", i, testAccountId, payeeId);
+  }
+
+  private Bundle stats() {
+    return mMockResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_STATS, null, null);
+  }
+
+  private void assertCounts(Bundle before, int expectedRequested, int expectedDispatched) {
+    Bundle after = stats();
+    assertEquals(expectedRequested, after.getInt(TransactionProvider.KEY_NOTIFICATIONS_REQUESTED)
+        - before.getInt(TransactionProvider.KEY_NOTIFICATIONS_REQUESTED));
+    assertEquals(expectedDispatched, after.getInt(TransactionProvider.KEY_NOTIFICATIONS_DISPATCHED)
+        - before.getInt(TransactionProvider.KEY_NOTIFICATIONS_DISPATCHED));
+  }
+
+  private void applyBatch() throws Exception {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    for (int i = 0; i < OPERATION_COUNT; i++) {
+      ops.add(ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+          .withValues(transactionInfo(i).getContentValues()).build());
+    }
+    mMockResolver.applyBatch(TransactionProvider.AUTHORITY, ops);
+  }
+
+  private void insertSingly() {
+    for (int i = 0; i < OPERATION_COUNT; i++) {
+      mMockResolver.insert(TransactionProvider.TRANSACTIONS_URI, transactionInfo(i).getContentValues());
+    }
+  }
+
+  public void testApplyBatch() throws Exception {
+    Bundle before = stats();
+    applyBatch();
+    assertCounts(before, OPERATION_COUNT * URIS_PER_INSERT, URIS_PER_INSERT);
+  }
+
+  public void testBulkSession() throws Exception {
+    Bundle before = stats();
+    mMockResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_START, null, null);
+    insertSingly();
+    applyBatch();
+    assertCounts(before, 2 * OPERATION_COUNT * URIS_PER_INSERT, 0);
+    mMockResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null);
+    assertCounts(before, 2 * OPERATION_COUNT * URIS_PER_INSERT, URIS_PER_INSERT);
+  }
+
+  public void testDebounce() throws Exception {
+    Bundle before = stats();
+    insertSingly();
+    //dispatch happens on the main thread after the debounce delay, the inserts might span more than one
+    Thread.sleep(1000);
+    Bundle after = stats();
+    assertEquals(OPERATION_COUNT * URIS_PER_INSERT, after.getInt(TransactionProvider.KEY_NOTIFICATIONS_REQUESTED)
+        - before.getInt(TransactionProvider.KEY_NOTIFICATIONS_REQUESTED));
+    int dispatched = after.getInt(TransactionProvider.KEY_NOTIFICATIONS_DISPATCHED)
+        - before.getInt(TransactionProvider.KEY_NOTIFICATIONS_DISPATCHED);
+    assertTrue(dispatched >= URIS_PER_INSERT);
+    assertTrue(dispatched < OPERATION_COUNT * URIS_PER_INSERT);
+  }
+}
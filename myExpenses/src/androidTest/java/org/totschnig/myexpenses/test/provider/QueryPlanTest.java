@@ -0,0 +1,207 @@
+package org.totschnig.myexpenses.test.provider;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Grouping;
+import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.regex.Pattern;
+
+/**
+ * Runs EXPLAIN QUERY PLAN for every route of {@link TransactionProvider} that can be queried on a generated
+ * database and fails if any of them needs a full scan of the transactions table. Routes that only support
+ * insert, update or delete (move, toggleCrStatus, undelete, increaseUsage, changeFractionDigits,
+ * swapSortKey, payees/#) are not covered.
+ */
+public class QueryPlanTest extends ProviderTestCase2<TransactionProvider> {
+  private static final int ROW_COUNT = 100000;
+  private static final Pattern FULL_SCAN = Pattern.compile(
+      "^SCAN (TABLE )?" + DatabaseConstants.TABLE_TRANSACTIONS + "\\b(?!.*COVERING INDEX).*");
+
+  private MockContentResolver mMockResolver;
+  private SQLiteDatabase mDb;
+  private long testAccountId;
+  private long payeeId;
+
+  public QueryPlanTest() {
+    super(TransactionProvider.class, TransactionProvider.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mMockResolver = getMockContentResolver();
+    mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    testAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Test account", AccountType.CASH, 0).getContentValues());
+    long otherAccountId = mDb.insertOrThrow(DatabaseConstants.TABLE_ACCOUNTS, null,
+        new AccountInfo("Other account", AccountType.BANK, 0).getContentValues());
+    payeeId = mDb.insertOrThrow(DatabaseConstants.TABLE_PAYEES, null, new PayeeInfo("N.N").getContentValues());
+    insertData(otherAccountId);
+  }
+
+  private void insertData(long otherAccountId) {
+    long now = System.currentTimeMillis() / 1000;
+    mDb.beginTransaction();
+    try {
+      SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + DatabaseConstants.TABLE_TRANSACTIONS + " ("
+          + DatabaseConstants.KEY_COMMENT + ", " + DatabaseConstants.KEY_DATE + ", "
+          + DatabaseConstants.KEY_AMOUNT + ", " + DatabaseConstants.KEY_ACCOUNTID + ", "
+          + DatabaseConstants.KEY_PAYEEID + ") VALUES (?, ?, ?, ?, ?)");
+      for (int i = 0; i < ROW_COUNT; i++) {
+        insert.bindString(1, "Transaction " + i);
+        insert.bindLong(2, now - i * 3600);
+        insert.bindLong(3, i % 2 == 0 ? i : -i);
+        insert.bindLong(4, i % 10 == 0 ? otherAccountId : testAccountId);
+        if (i % 3 == 0) {
+          insert.bindNull(5);
+        } else {
+          insert.bindLong(5, payeeId);
+        }
+        insert.executeInsert();
+      }
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+    }
+  }
+
+  private static Uri explain(Uri uri) {
+    return uri.buildUpon().appendQueryParameter(TransactionProvider.QUERY_PARAMETER_EXPLAIN, "1").build();
+  }
+
+  private void assertNoFullScan(Uri uri, String selection, String[] selectionArgs) {
+    Cursor cursor = mMockResolver.query(explain(uri), null, selection, selectionArgs, null);
+    assertNotNull(cursor);
+    StringBuilder plan = new StringBuilder();
+    boolean fullScan = false;
+    int columnIndexDetail = cursor.getColumnIndex("detail");
+    while (cursor.moveToNext()) {
+      String detail = cursor.getString(columnIndexDetail);
+      plan.append(detail).append('\n');
+      if (FULL_SCAN.matcher(detail).matches()) {
+        fullScan = true;
+      }
+    }
+    cursor.close();
+    assertFalse("Full scan for " + uri + ":\n" + plan, fullScan);
+  }
+
+  private String[] accountArg() {
+    return new String[]{String.valueOf(testAccountId)};
+  }
+
+  public void testTransactionList() {
+    assertNoFullScan(TransactionProvider.TRANSACTIONS_URI.buildUpon()
+            .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_EXTENDED, "1").build(),
+        DatabaseConstants.KEY_ACCOUNTID + " = ? AND " + DatabaseConstants.KEY_PARENTID + " is null",
+        accountArg());
+  }
+
+  public void testDependent() {
+    assertNoFullScan(TransactionProvider.TRANSACTIONS_URI, DatabaseConstants.WHERE_DEPENDENT,
+        new String[]{"1", "1"});
+    assertNoFullScan(TransactionProvider.TRANSACTIONS_URI, DatabaseConstants.WHERE_RELATED,
+        new String[]{"1", "1", "1"});
+    assertNoFullScan(TransactionProvider.UNCOMMITTED_URI, DatabaseConstants.KEY_PARENTID + " = ?",
+        new String[]{"1"});
+  }
+
+  public void testTransactionId() {
+    assertNoFullScan(TransactionProvider.TRANSACTIONS_URI.buildUpon().appendPath("1").build(), null, null);
+  }
+
+  public void testGroups() {
+    for (Grouping grouping : Grouping.values()) {
+      assertNoFullScan(TransactionProvider.TRANSACTIONS_URI.buildUpon()
+          .appendPath(TransactionProvider.URI_SEGMENT_GROUPS)
+          .appendPath(grouping.name())
+          .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(testAccountId))
+          .build(), null, null);
+    }
+  }
+
+  public void testSums() {
+    assertNoFullScan(TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon()
+        .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(testAccountId))
+        .build(), null, null);
+  }
+
+  public void testAccounts() {
+    assertNoFullScan(TransactionProvider.ACCOUNTS_URI, null, null);
+    assertNoFullScan(TransactionProvider.ACCOUNTS_URI.buildUpon()
+        .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES, "1")
+        .build(), null, null);
+  }
+
+  public void testMapped() {
+    assertNoFullScan(TransactionProvider.PAYEES_URI, null, null);
+    assertNoFullScan(TransactionProvider.METHODS_URI, null, null);
+    String selection = DatabaseConstants.KEY_ACCOUNTID + " = ?";
+    assertNoFullScan(TransactionProvider.MAPPED_PAYEES_URI, selection, accountArg());
+    assertNoFullScan(TransactionProvider.MAPPED_METHODS_URI, selection, accountArg());
+    assertNoFullScan(TransactionProvider.MAPPED_TRANSFER_ACCOUNTS_URI, selection, accountArg());
+  }
+
+  public void testLastExchange() {
+    assertNoFullScan(TransactionProvider.TRANSACTIONS_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_LAST_EXCHANGE)
+        .appendPath("EUR")
+        .appendPath("USD")
+        .build(), null, null);
+  }
+
+  public void testChanges() {
+    assertNoFullScan(TransactionProvider.CHANGES_URI.buildUpon()
+        .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(testAccountId))
+        .appendQueryParameter(DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL, "1")
+        .build(), null, null);
+  }
+
+  public void testAccountRoutes() {
+    assertNoFullScan(TransactionProvider.ACCOUNTS_BASE_URI, null, null);
+    assertNoFullScan(ContentUris.withAppendedId(TransactionProvider.ACCOUNTS_URI, testAccountId), null, null);
+    assertNoFullScan(ContentUris.withAppendedId(TransactionProvider.ACCOUNTS_AGGREGATE_URI, 1), null, null);
+    assertNoFullScan(TransactionProvider.AGGREGATES_COUNT_URI, null, null);
+    assertNoFullScan(TransactionProvider.ACCOUNT_BALANCES_CHECK_URI, null, null);
+  }
+
+  public void testCategories() {
+    assertNoFullScan(TransactionProvider.CATEGORIES_URI, null, null);
+    assertNoFullScan(ContentUris.withAppendedId(TransactionProvider.CATEGORIES_URI, 1), null, null);
+  }
+
+  public void testMethodRoutes() {
+    assertNoFullScan(ContentUris.withAppendedId(TransactionProvider.METHODS_URI, 1), null, null);
+    assertNoFullScan(TransactionProvider.METHODS_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_TYPE_FILTER)
+        .appendPath("-1")
+        .appendPath(AccountType.CASH.name())
+        .build(), null, null);
+    assertNoFullScan(TransactionProvider.ACCOUNTTYPES_METHODS_URI, null, null);
+  }
+
+  public void testTemplates() {
+    assertNoFullScan(TransactionProvider.TEMPLATES_URI, null, null);
+    assertNoFullScan(ContentUris.withAppendedId(TransactionProvider.TEMPLATES_URI, 1), null, null);
+  }
+
+  public void testMiscellaneous() {
+    assertNoFullScan(TransactionProvider.SQLITE_SEQUENCE_TRANSACTIONS_URI, null, null);
+    assertNoFullScan(TransactionProvider.PLAN_INSTANCE_STATUS_URI, null, null);
+    assertNoFullScan(TransactionProvider.CURRENCIES_URI, null, null);
+    assertNoFullScan(TransactionProvider.DUAL_URI, null, null);
+    assertNoFullScan(TransactionProvider.EVENT_CACHE_URI, null, null);
+    assertNoFullScan(TransactionProvider.DEBUG_SCHEMA_URI, null, null);
+    assertNoFullScan(TransactionProvider.STALE_IMAGES_URI, null, null);
+    assertNoFullScan(ContentUris.withAppendedId(TransactionProvider.STALE_IMAGES_URI, 1), null, null);
+  }
+}
@@ -26,10 +26,12 @@ import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
 import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Grouping;
 import org.totschnig.myexpenses.model.Transaction.CrStatus;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionDatabase;
 import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.PagingCursor;
 
 import java.util.Date;
 
@@ -561,4 +563,196 @@ public class TransactionTest extends ProviderTestCase2<TransactionProvider> {
     assertEquals(CrStatus.UNRECONCILED, CrStatus.valueOf(cursor.getString(2)));
     cursor.close();
   }
+
+  /*
+   * Tests that the interim balances of the groups are calculated as running sum, independent of sort order.
+   */
+  public void testGroupsInterimBalance() {
+    long[] amounts = {100, -50, 200};
+    long now = System.currentTimeMillis() / 1000;
+    for (int i = 0; i < amounts.length; i++) {
+      ContentValues values = new TransactionInfo("Transaction " + i, null, amounts[i], testAccountId, payeeId)
+          .getContentValues();
+      //one transaction per day
+      values.put(DatabaseConstants.KEY_DATE, now - (amounts.length - i) * 86400 * 2);
+      mMockResolver.insert(TransactionProvider.TRANSACTIONS_URI, values);
+    }
+    Uri groupsUri = TransactionProvider.TRANSACTIONS_URI.buildUpon()
+        .appendPath(TransactionProvider.URI_SEGMENT_GROUPS)
+        .appendPath(Grouping.DAY.name())
+        .appendQueryParameter(DatabaseConstants.KEY_ACCOUNTID, String.valueOf(testAccountId))
+        .build();
+    long[] expected = {100, 50, 250};
+    Cursor cursor = mMockResolver.query(groupsUri, null, null, null,
+        DatabaseConstants.KEY_YEAR + " ASC," + DatabaseConstants.KEY_SECOND_GROUP + " ASC");
+    assert cursor != null;
+    assertEquals(expected.length, cursor.getCount());
+    int columnIndexInterimBalance = cursor.getColumnIndex(DatabaseConstants.KEY_INTERIM_BALANCE);
+    for (long balance : expected) {
+      assertTrue(cursor.moveToNext());
+      assertEquals(balance, cursor.getLong(columnIndexInterimBalance));
+    }
+    cursor.close();
+    cursor = mMockResolver.query(groupsUri, null, null, null, null);
+    assert cursor != null;
+    assertEquals(expected.length, cursor.getCount());
+    for (int i = expected.length - 1; i >= 0; i--) {
+      assertTrue(cursor.moveToNext());
+      assertEquals(expected[i], cursor.getLong(columnIndexInterimBalance));
+    }
+    cursor.close();
+  }
+
+  /*
+   * Tests that the paging cursor returns the same rows in the same order as a single query, also when
+   * moving backwards to pages that have been evicted.
+   */
+  public void testPagingCursor() {
+    long now = System.currentTimeMillis() / 1000;
+    for (int i = 0; i < 11; i++) {
+      ContentValues values = new TransactionInfo("Transaction " + i, null, i, testAccountId, payeeId)
+          .getContentValues();
+      //several transactions share the same date
+      values.put(DatabaseConstants.KEY_DATE, now - (i / 3) * 86400);
+      mMockResolver.insert(TransactionProvider.TRANSACTIONS_URI, values);
+    }
+    String[] projection = {DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_DATE};
+    String selection = DatabaseConstants.KEY_ACCOUNTID + " = ?";
+    String[] selectionArgs = {String.valueOf(testAccountId)};
+    Cursor expected = mMockResolver.query(TransactionProvider.TRANSACTIONS_URI, projection, selection,
+        selectionArgs, DatabaseConstants.KEY_DATE + " DESC, " + DatabaseConstants.KEY_ROWID + " DESC");
+    assert expected != null;
+    Cursor paged = new PagingCursor(mMockResolver, TransactionProvider.TRANSACTIONS_URI, projection, selection,
+        selectionArgs, 2);
+    assertEquals(expected.getCount(), paged.getCount());
+    while (expected.moveToNext()) {
+      assertTrue(paged.moveToNext());
+      assertEquals(expected.getLong(0), paged.getLong(0));
+    }
+    assertFalse(paged.moveToNext());
+    while (expected.moveToPrevious()) {
+      assertTrue(paged.moveToPrevious());
+      assertEquals(expected.getLong(0), paged.getLong(0));
+    }
+    assertTrue(paged.moveToPosition(7));
+    assertTrue(expected.moveToPosition(7));
+    assertEquals(expected.getLong(0), paged.getLong(0));
+    paged.close();
+
+    //a jump on a fresh cursor fetches the target page only
+    paged = new PagingCursor(mMockResolver, TransactionProvider.TRANSACTIONS_URI, projection, selection,
+        selectionArgs, 2);
+    int queriesBefore = getQueryCount();
+    assertTrue(paged.moveToPosition(9));
+    assertEquals(1, getQueryCount() - queriesBefore);
+    assertTrue(expected.moveToPosition(9));
+    assertEquals(expected.getLong(0), paged.getLong(0));
+    assertTrue(paged.moveToNext());
+    assertTrue(expected.moveToNext());
+    assertEquals(expected.getLong(0), paged.getLong(0));
+    assertTrue(paged.moveToPosition(4));
+    assertTrue(expected.moveToPosition(4));
+    assertEquals(expected.getLong(0), paged.getLong(0));
+    expected.close();
+    paged.close();
+  }
+
+  /**
+   * Tests that positions stay valid, when rows are deleted between the count and the fetch of their page
+   */
+  public void testPagingCursorWithDeletedRows() {
+    long now = System.currentTimeMillis() / 1000;
+    for (int i = 0; i < 6; i++) {
+      ContentValues values = new TransactionInfo("Transaction " + i, null, i, testAccountId, payeeId)
+          .getContentValues();
+      //ordered by id descending
+      values.put(DatabaseConstants.KEY_DATE, now);
+      mMockResolver.insert(TransactionProvider.TRANSACTIONS_URI, values);
+    }
+    String[] projection = {DatabaseConstants.KEY_ROWID, DatabaseConstants.KEY_DATE};
+    String selection = DatabaseConstants.KEY_ACCOUNTID + " = ?";
+    String[] selectionArgs = {String.valueOf(testAccountId)};
+    Cursor paged = new PagingCursor(mMockResolver, TransactionProvider.TRANSACTIONS_URI, projection, selection,
+        selectionArgs, 2);
+    assertEquals(6, paged.getCount());
+    mDb.delete(DatabaseConstants.TABLE_TRANSACTIONS, DatabaseConstants.KEY_COMMENT + " IN (?, ?, ?)",
+        new String[]{"Transaction 0", "Transaction 1", "Transaction 2"});
+    //the second page only holds one of its rows, the third one none
+    assertTrue(paged.moveToPosition(2));
+    assertFalse(paged.isNull(0));
+    assertTrue(paged.moveToPosition(3));
+    assertTrue(paged.isNull(0));
+    assertTrue(paged.moveToPosition(5));
+    assertTrue(paged.isNull(0));
+    assertNull(paged.getString(0));
+    assertEquals(0, paged.getLong(0));
+    int rows = 0;
+    paged.moveToPosition(-1);
+    while (paged.moveToNext()) {
+      if (!paged.isNull(0)) {
+        rows++;
+      }
+    }
+    assertEquals(6, paged.getPosition());
+    assertEquals(3, rows);
+    paged.close();
+  }
+
+  private int getQueryCount() {
+    return mMockResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_STATS, null, null)
+        .getInt(TransactionProvider.KEY_QUERIES);
+  }
+
+  /*
+   * Tests that the aggregates in the account_balances table follow inserts, updates and deletes,
+   * and that the check URI detects and repairs a deviation.
+   */
+  public void testAccountBalances() {
+    insertData();
+    assertAccountBalancesConsistent();
+    assertEquals(0, getStoredTotal());
+
+    ContentValues values = new ContentValues();
+    values.put(DatabaseConstants.KEY_AMOUNT, 500);
+    mMockResolver.update(TransactionProvider.TRANSACTIONS_URI, values,
+        DatabaseConstants.KEY_COMMENT + " = ?", new String[]{"Transaction 1"});
+    assertAccountBalancesConsistent();
+    assertEquals(400, getStoredTotal());
+
+    mMockResolver.delete(TransactionProvider.TRANSACTIONS_URI,
+        DatabaseConstants.KEY_COMMENT + " = ?", new String[]{"Transaction 2"});
+    assertAccountBalancesConsistent();
+    assertEquals(500, getStoredTotal());
+
+    mDb.execSQL("UPDATE " + DatabaseConstants.TABLE_ACCOUNT_BALANCES + " SET " + DatabaseConstants.KEY_TOTAL + " = 0");
+    Cursor cursor = mMockResolver.query(TransactionProvider.ACCOUNT_BALANCES_CHECK_URI, null, null, null, null);
+    assert cursor != null;
+    assertEquals(1, cursor.getCount());
+    cursor.close();
+    assertEquals(1, mMockResolver.update(TransactionProvider.ACCOUNT_BALANCES_CHECK_URI, null, null, null));
+    assertAccountBalancesConsistent();
+    assertEquals(500, getStoredTotal());
+  }
+
+  public void testRefreshPeriodsOnlyAfterChangedSettings() {
+    //the first refresh depends on the signature left by earlier runs
+    mMockResolver.update(TransactionProvider.TRANSACTIONS_REFRESH_PERIODS_URI, null, null, null);
+    assertEquals(0, mMockResolver.update(TransactionProvider.TRANSACTIONS_REFRESH_PERIODS_URI, null, null, null));
+  }
+
+  private void assertAccountBalancesConsistent() {
+    Cursor cursor = mMockResolver.query(TransactionProvider.ACCOUNT_BALANCES_CHECK_URI, null, null, null, null);
+    assert cursor != null;
+    assertEquals(0, cursor.getCount());
+    cursor.close();
+  }
+
+  private long getStoredTotal() {
+    Cursor cursor = mDb.query(DatabaseConstants.TABLE_ACCOUNT_BALANCES, new String[]{DatabaseConstants.KEY_TOTAL},
+        DatabaseConstants.KEY_ACCOUNTID + " = ?", new String[]{String.valueOf(testAccountId)}, null, null, null);
+    assertTrue(cursor.moveToFirst());
+    long result = cursor.getLong(0);
+    cursor.close();
+    return result;
+  }
 }
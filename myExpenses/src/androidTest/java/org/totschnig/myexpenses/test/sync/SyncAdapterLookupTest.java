@@ -0,0 +1,141 @@
+package org.totschnig.myexpenses.test.sync;
+
+import android.content.ContentProviderOperation;
+import android.os.Build;
+import android.test.mock.MockContext;
+import android.util.Log;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.model.Category;
+import org.totschnig.myexpenses.model.Payee;
+import org.totschnig.myexpenses.model.Transaction;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.sync.SyncAdapter;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.test.model.ModelTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+/**
+ * Counts the queries {@link SyncAdapter} runs for collecting the operations of a batch of remote changes
+ * against a seeded database, once resolving the references of each change on its own, and once with the
+ * references of the batch preloaded.
+ */
+public class SyncAdapterLookupTest extends ModelTest {
+  private static final int CHANGE_COUNT = 200;
+  private static final int CATEGORY_COUNT = 10;
+  private static final int PAYEE_COUNT = 20;
+  /**
+   * transactions, main and sub categories, payees, methods, and one more for the method that is created
+   */
+  private static final int MAX_PRELOADED_QUERIES = 10;
+
+  private Account account;
+  private final List<String> existingUuids = new ArrayList<>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    account = new Account("Test account", 0, "");
+    account.save();
+    //half of the referenced categories, payees and transactions exist
+    for (int i = 0; i < CATEGORY_COUNT / 2; i++) {
+      long mainId = Category.write(0L, "Main " + i, null);
+      Category.write(0L, "Sub " + i, mainId);
+    }
+    for (int i = 0; i < PAYEE_COUNT / 2; i++) {
+      Payee.maybeWrite("Payee " + i);
+    }
+    for (int i = 0; i < CHANGE_COUNT / 2; i++) {
+      Transaction transaction = new Transaction(account, 100L);
+      transaction.save();
+      existingUuids.add(transaction.uuid);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    Account.delete(account.getId());
+  }
+
+  private List<TransactionChange> buildChanges() {
+    List<TransactionChange> changes = new ArrayList<>(CHANGE_COUNT);
+    for (int i = 0; i < CHANGE_COUNT; i++) {
+      int category = i % CATEGORY_COUNT;
+      TransactionChange.Builder builder = TransactionChange.builder()
+          .setCurrentTimeStamp()
+          .setAmount((long) i)
+          .setLabel("Main " + category + ":Sub " + category)
+          .setPayeeName("Payee " + (i % PAYEE_COUNT))
+          .setMethodLabel("Remote method");
+      if (i % 2 == 0) {
+        builder.setType(TransactionChange.Type.updated).setUuid(existingUuids.get(i / 2));
+      } else {
+        builder.setType(TransactionChange.Type.created).setUuid("remote" + i);
+      }
+      changes.add(builder.build());
+    }
+    return changes;
+  }
+
+  private SyncAdapter newSyncAdapter() {
+    SyncAdapter syncAdapter = spy(new SyncAdapter(new MockContext(), true, true));
+    when(syncAdapter.getAccount()).thenReturn(account);
+    return syncAdapter;
+  }
+
+  private int queryCount() {
+    return getMockContentResolver().call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_STATS, null, null)
+        .getInt(TransactionProvider.KEY_QUERIES);
+  }
+
+  private void log(String label, int queries, int opsSize) {
+    Log.i("SyncAdapterLookupTest", String.format("%s: %d queries for %d changes (%.2f per change), %d operations",
+        label, queries, CHANGE_COUNT, (float) queries / CHANGE_COUNT, opsSize));
+  }
+
+  public void testPerChangeLookups() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return;
+    }
+    SyncAdapter syncAdapter = newSyncAdapter();
+    List<TransactionChange> changes = buildChanges();
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    int before = queryCount();
+    //as the adapter did before it preloaded the references of a batch
+    for (TransactionChange change : changes) {
+      if (!(change.isCreate() && Transaction.countPerUuid(change.uuid()) > 0)) {
+        syncAdapter.collectOperations(change, account.getId(), ops, -1);
+      }
+    }
+    int queries = queryCount() - before;
+    log("Per change", queries, ops.size());
+    assertTrue(queries >= CHANGE_COUNT / 2);
+  }
+
+  public void testPreloadedLookups() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return;
+    }
+    SyncAdapter syncAdapter = newSyncAdapter();
+    List<TransactionChange> changes = buildChanges();
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    int before = queryCount();
+    syncAdapter.collectOperations(changes, account.getId(), ops);
+    int queries = queryCount() - before;
+    log("Preloaded", queries, ops.size());
+    assertTrue(queries <= MAX_PRELOADED_QUERIES);
+    assertTrue(ops.size() >= CHANGE_COUNT);
+    for (int i = 0; i < CATEGORY_COUNT; i++) {
+      assertTrue(Category.find("Sub " + i, Category.find("Main " + i, null)) != -1);
+    }
+    for (int i = 0; i < PAYEE_COUNT; i++) {
+      assertTrue(Payee.find("Payee " + i) != -1);
+    }
+  }
+}
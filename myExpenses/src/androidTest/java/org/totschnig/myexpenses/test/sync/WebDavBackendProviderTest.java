@@ -0,0 +1,312 @@
+package org.totschnig.myexpenses.test.sync;
+
+import android.accounts.AccountManager;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.sync.GenericAccountService;
+import org.totschnig.myexpenses.sync.WebDavBackendProvider;
+import org.totschnig.myexpenses.sync.json.AccountMetaData;
+import org.totschnig.myexpenses.sync.json.AdapterFactory;
+import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Syncs down change sets from a {@link MockWebServer} that stands in for a WebDAV server with latency, and
+ * logs the time it takes, also for bootstrapping a new device from a snapshot. Also counts the requests of a
+ * sync that finds nothing new.
+ */
+public class WebDavBackendProviderTest {
+  private static final String ACCOUNT_UUID = "a1b2c3";
+  private static final int CHANGE_SET_COUNT = 20;
+  private static final long LATENCY_MILLIS = 200;
+  /**
+   * an account synced daily for five years
+   */
+  private static final int LONG_HISTORY_CHANGE_SET_COUNT = 5 * 365;
+  private static final long LONG_HISTORY_LATENCY_MILLIS = 20;
+  private static final String LOCK_TOKEN = "opaquelocktoken:a1b2c3";
+
+  private MockWebServer server;
+  private WebDavBackendProvider backend;
+  private final AtomicInteger propfindCount = new AtomicInteger();
+  private final AtomicInteger requestCount = new AtomicInteger();
+  /**
+   * user data of the sync account, shared by the devices created with {@link #newDevice()}, as if they were
+   * consecutive syncs on the same device
+   */
+  private final Map<String, String> userData = new ConcurrentHashMap<>();
+  /**
+   * content of the account folder by file name
+   */
+  private final Map<String, String> files = new ConcurrentHashMap<>();
+  private volatile long latencyMillis = LATENCY_MILLIS;
+  private final Gson gson = new GsonBuilder().registerTypeAdapterFactory(AdapterFactory.create()).create();
+  /**
+   * served for the metadata of the account, without being part of {@link #files}
+   */
+  private final String metadata = gson.toJson(AccountMetaData.builder()
+      .setLabel("Test")
+      .setCurrency("EUR")
+      .setColor(0)
+      .setUuid(ACCOUNT_UUID)
+      .setOpeningBalance(0)
+      .setDescription("")
+      .setType("CASH")
+      .build());
+
+  @Before
+  public void setup() throws Exception {
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        requestCount.incrementAndGet();
+        switch (request.getMethod()) {
+          case "HEAD":
+            return new MockResponse();
+          case "PROPFIND":
+            propfindCount.incrementAndGet();
+            return new MockResponse().setResponseCode(207)
+                .setHeader("Content-Type", "application/xml; charset=utf-8")
+                .setBody(buildFolderListing());
+          case "GET":
+            String content = fileName(request).equals("metadata.json") ? metadata : files.get(fileName(request));
+            if (content == null) {
+              return new MockResponse().setResponseCode(404);
+            }
+            String eTag = "\"" + content.hashCode() + "\"";
+            if (eTag.equals(request.getHeader("If-None-Match"))) {
+              return new MockResponse().setResponseCode(304);
+            }
+            return new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setHeader("ETag", eTag)
+                .setBody(content)
+                .setBodyDelay(latencyMillis, TimeUnit.MILLISECONDS);
+          case "PUT":
+            files.put(fileName(request), request.getBody().readUtf8());
+            return new MockResponse().setResponseCode(201);
+          case "DELETE":
+            files.remove(fileName(request));
+            return new MockResponse().setResponseCode(204);
+          case "LOCK":
+            if (request.getHeader("If") != null) {
+              //refresh
+              return new MockResponse().setResponseCode(request.getHeader("If").contains(LOCK_TOKEN) ? 200 : 412);
+            }
+            return new MockResponse()
+                .setHeader("Content-Type", "application/xml; charset=utf-8")
+                .setBody("<?xml version=\"1.0\" encoding=\"utf-8\"?><d:prop xmlns:d=\"DAV:\"><d:lockdiscovery>" +
+                    "<d:activelock><d:locktoken><d:href>" + LOCK_TOKEN + "</d:href></d:locktoken>" +
+                    "</d:activelock></d:lockdiscovery></d:prop>");
+          case "UNLOCK":
+            return new MockResponse().setResponseCode(204);
+          default:
+            return new MockResponse().setResponseCode(405);
+        }
+      }
+    });
+    addChangeSets(CHANGE_SET_COUNT);
+    server.start();
+    backend = newDevice();
+  }
+
+  private WebDavBackendProvider newDevice() throws Exception {
+    android.accounts.Account syncAccount = new android.accounts.Account("Test", GenericAccountService.ACCOUNT_TYPE);
+    AccountManager accountManager = mock(AccountManager.class);
+    userData.put(GenericAccountService.KEY_SYNC_PROVIDER_URL, server.url("/").toString());
+    when(accountManager.getUserData(any(android.accounts.Account.class), anyString()))
+        .thenAnswer(invocation -> userData.get(invocation.getArgumentAt(1, String.class)));
+    doAnswer(invocation -> {
+      String key = invocation.getArgumentAt(1, String.class);
+      String value = invocation.getArgumentAt(2, String.class);
+      if (value == null) {
+        userData.remove(key);
+      } else {
+        userData.put(key, value);
+      }
+      return null;
+    }).when(accountManager).setUserData(any(android.accounts.Account.class), anyString(), anyString());
+    WebDavBackendProvider backend = new WebDavBackendProvider(InstrumentationRegistry.getTargetContext(),
+        syncAccount, accountManager);
+    Account account = new Account();
+    account.uuid = ACCOUNT_UUID;
+    assertTrue(backend.withAccount(account));
+    return backend;
+  }
+
+  private void addChangeSets(int count) {
+    files.clear();
+    for (int i = 1; i <= count; i++) {
+      files.put("_" + i + ".json", gson.toJson(Collections.singletonList(buildChange(i))));
+    }
+  }
+
+  private String fileName(RecordedRequest request) {
+    String path = request.getPath();
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    backend.tearDown();
+    server.shutdown();
+  }
+
+  private String buildFolderListing() {
+    StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>")
+        .append("<d:multistatus xmlns:d=\"DAV:\">")
+        .append("<d:response><d:href>/").append(ACCOUNT_UUID).append("/</d:href><d:propstat><d:prop>")
+        .append("<d:resourcetype><d:collection/></d:resourcetype></d:prop>")
+        .append("<d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+    for (String fileName : files.keySet()) {
+      builder.append("<d:response><d:href>/").append(ACCOUNT_UUID).append("/").append(fileName)
+          .append("</d:href><d:propstat><d:prop><d:resourcetype/></d:prop>")
+          .append("<d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+    }
+    return builder.append("</d:multistatus>").toString();
+  }
+
+  private TransactionChange buildChange(long sequence) {
+    return TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("uuid" + sequence)
+        .setTimeStamp(sequence)
+        .setAmount(sequence)
+        .build();
+  }
+
+  @Test
+  public void changeSetsShouldBeMergedInSequenceOrder() throws Exception {
+    long start = System.nanoTime();
+    ChangeSet changeSet = backend.getChangeSetSince(0, InstrumentationRegistry.getTargetContext());
+    long millis = (System.nanoTime() - start) / 1000000;
+    Log.i("WebDavBackendProviderTest", String.format("%d change sets with %d ms latency each in %d ms",
+        CHANGE_SET_COUNT, LATENCY_MILLIS, millis));
+    assertFalse(changeSet.isFailed());
+    assertEquals(CHANGE_SET_COUNT, changeSet.sequenceNumber);
+    assertEquals(CHANGE_SET_COUNT, changeSet.changes.size());
+    for (int i = 0; i < CHANGE_SET_COUNT; i++) {
+      assertEquals("uuid" + (i + 1), changeSet.changes.get(i).uuid());
+    }
+    //sequential download would take at least CHANGE_SET_COUNT * LATENCY_MILLIS
+    assertTrue(millis < CHANGE_SET_COUNT * LATENCY_MILLIS);
+  }
+
+  @Test
+  public void changeSetsSinceSequenceShouldBeFiltered() throws Exception {
+    ChangeSet changeSet = backend.getChangeSetSince(CHANGE_SET_COUNT - 2, InstrumentationRegistry.getTargetContext());
+    assertEquals(2, changeSet.changes.size());
+    assertEquals(CHANGE_SET_COUNT, changeSet.sequenceNumber);
+  }
+
+  @Test
+  public void folderShouldBeListedOncePerSync() throws Exception {
+    backend.getChangeSetSince(0, InstrumentationRegistry.getTargetContext());
+    backend.getChangeSetSince(CHANGE_SET_COUNT, InstrumentationRegistry.getTargetContext());
+    assertEquals(1, propfindCount.get());
+  }
+
+  @Test
+  public void newDeviceShouldBootstrapFromSnapshot() throws Exception {
+    addChangeSets(LONG_HISTORY_CHANGE_SET_COUNT);
+    latencyMillis = LONG_HISTORY_LATENCY_MILLIS;
+    long start = System.nanoTime();
+    ChangeSet changeLog = backend.getChangeLogForCompaction();
+    long fullReplayMillis = (System.nanoTime() - start) / 1000000;
+    assertEquals(LONG_HISTORY_CHANGE_SET_COUNT, changeLog.changes.size());
+    backend.writeSnapshot(changeLog.sequenceNumber, changeLog.changes);
+    //one more change set after the snapshot
+    files.put("_" + (LONG_HISTORY_CHANGE_SET_COUNT + 1) + ".json",
+        gson.toJson(Collections.singletonList(buildChange(LONG_HISTORY_CHANGE_SET_COUNT + 1))));
+
+    WebDavBackendProvider newDevice = newDevice();
+    try {
+      start = System.nanoTime();
+      ChangeSet bootstrap = newDevice.getChangeSetSince(0, InstrumentationRegistry.getTargetContext());
+      long snapshotMillis = (System.nanoTime() - start) / 1000000;
+      Log.i("WebDavBackendProviderTest", String.format("Bootstrap of %d change sets with %d ms latency each: " +
+              "%d ms replaying all, %d ms from snapshot", LONG_HISTORY_CHANGE_SET_COUNT,
+          LONG_HISTORY_LATENCY_MILLIS, fullReplayMillis, snapshotMillis));
+      assertFalse(bootstrap.isFailed());
+      assertEquals(LONG_HISTORY_CHANGE_SET_COUNT + 1, bootstrap.sequenceNumber);
+      assertEquals(LONG_HISTORY_CHANGE_SET_COUNT + 1, bootstrap.changes.size());
+      assertEquals(LONG_HISTORY_CHANGE_SET_COUNT, newDevice.getSnapshotSequence());
+      assertTrue(snapshotMillis < fullReplayMillis);
+    } finally {
+      newDevice.tearDown();
+    }
+  }
+
+  @Test
+  public void prunedChangeLogShouldFailForOutdatedDevice() throws Exception {
+    ChangeSet changeLog = backend.getChangeLogForCompaction();
+    backend.writeSnapshot(changeLog.sequenceNumber, changeLog.changes);
+    //the device that wrote the snapshot is the last one with a sequence covered by it
+    backend.pruneChangeLog(CHANGE_SET_COUNT - 1);
+    assertEquals(2, files.size());
+    WebDavBackendProvider newDevice = newDevice();
+    try {
+      assertTrue(newDevice.getChangeSetSince(1, InstrumentationRegistry.getTargetContext()).isPruned());
+      assertFalse(newDevice.getChangeSetSince(0, InstrumentationRegistry.getTargetContext()).isFailed());
+    } finally {
+      newDevice.tearDown();
+    }
+  }
+
+  @Test
+  public void syncWithoutChangesShouldCostAtMostTwoRequests() throws Exception {
+    backend.getChangeSetSince(0, InstrumentationRegistry.getTargetContext());
+    backend.tearDown();
+    requestCount.set(0);
+    //the next sync: metadata answered with 304, and the folder listing
+    backend = newDevice();
+    ChangeSet changeSet = backend.getChangeSetSince(CHANGE_SET_COUNT, InstrumentationRegistry.getTargetContext());
+    assertEquals(0, changeSet.changes.size());
+    Log.i("WebDavBackendProviderTest", String.format("Sync without changes: %d requests", requestCount.get()));
+    assertTrue(requestCount.get() <= 2);
+  }
+
+  @Test
+  public void lockNotReleasedShouldBeRefreshed() throws Exception {
+    assertTrue(backend.lock());
+    assertEquals(LOCK_TOKEN, userData.get("webdav_lock_token_" + ACCOUNT_UUID));
+    //the sync ends without unlocking, e.g. because the connection was lost
+    backend.tearDown();
+    backend = newDevice();
+    requestCount.set(0);
+    assertTrue(backend.lock());
+    assertEquals(1, requestCount.get());
+    assertTrue(backend.unlock());
+    assertFalse(userData.containsKey("webdav_lock_token_" + ACCOUNT_UUID));
+  }
+}
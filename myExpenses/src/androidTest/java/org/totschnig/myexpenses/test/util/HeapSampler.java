@@ -0,0 +1,59 @@
+package org.totschnig.myexpenses.test.util;
+
+/**
+ * Samples the used heap while a benchmark runs, in order to report its peak above the heap used before
+ */
+public class HeapSampler extends Thread {
+  private final long before;
+  private volatile long peak;
+
+  /**
+   * collects garbage, records the heap used before the benchmark and starts sampling
+   */
+  public static HeapSampler begin() {
+    System.gc();
+    HeapSampler sampler = new HeapSampler(usedHeap());
+    sampler.start();
+    return sampler;
+  }
+
+  private HeapSampler(long before) {
+    this.before = before;
+  }
+
+  public void end() throws InterruptedException {
+    interrupt();
+    join();
+  }
+
+  /**
+   * @return the heap used before the benchmark in KB
+   */
+  public long getBeforeKb() {
+    return before / 1024;
+  }
+
+  /**
+   * @return the peak of the heap used during the benchmark above the heap used before in KB
+   */
+  public long getPeakKb() {
+    return (peak - before) / 1024;
+  }
+
+  @Override
+  public void run() {
+    while (!isInterrupted()) {
+      peak = Math.max(peak, usedHeap());
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
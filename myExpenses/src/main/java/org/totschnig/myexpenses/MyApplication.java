@@ -54,6 +54,7 @@ import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.service.DailyAutoBackupScheduler;
 import org.totschnig.myexpenses.service.PlanExecutor;
+import org.totschnig.myexpenses.sync.LocalFileSyncObserver;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.LicenceHandler;
 import org.totschnig.myexpenses.util.Result;
@@ -155,6 +156,7 @@ public class MyApplication extends MultiDexApplication implements
       initPlannerInternal(60000);
       registerWidgetObservers();
       licenceHandler.init();
+      LocalFileSyncObserver.refresh(this);
     }
   }
 
@@ -21,6 +21,7 @@ import org.totschnig.myexpenses.model.ContribFeature;
 import org.totschnig.myexpenses.model.Model;
 import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.sync.LocalFileSyncObserver;
 import org.totschnig.myexpenses.sync.ServiceLoader;
 import org.totschnig.myexpenses.sync.SyncBackendProviderFactory;
 import org.totschnig.myexpenses.sync.WebDavBackendProviderFactory;
@@ -204,6 +205,7 @@ public class ManageSyncBackends extends ProtectedFragmentActivity implements
       case TASK_CREATE_SYNC_ACCOUNT: {
         if (result.success) {
           getListFragment().reloadAccountList();
+          LocalFileSyncObserver.refresh(this);
           if (result.extra != null) {
             showSelectUnsyncedAccount((String) result.extra[0]);
           }
@@ -213,6 +215,7 @@ public class ManageSyncBackends extends ProtectedFragmentActivity implements
       case TASK_SYNC_REMOVE_BACKEND: {
         if (result.success) {
           getListFragment().reloadAccountList();
+          LocalFileSyncObserver.refresh(this);
         }
         break;
       }
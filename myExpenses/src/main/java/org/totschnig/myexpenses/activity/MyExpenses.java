@@ -964,7 +964,8 @@ public class MyExpenses extends LaunchActivity implements
         finishActionMode();
         break;
       case FILTER_COMMENT_REQUEST:
-        addFilterCriteria(R.id.FILTER_COMMENT_COMMAND, new CommentCriteria(result));
+        addFilterCriteria(R.id.FILTER_COMMENT_COMMAND, new CommentCriteria(result,
+            args.getBoolean(EditTextDialog.KEY_CHECKBOX_CHECKED)));
         break;
     }
   }
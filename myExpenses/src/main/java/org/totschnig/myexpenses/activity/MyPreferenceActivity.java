@@ -48,6 +48,7 @@ import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.service.DailyAutoBackupScheduler;
 import org.totschnig.myexpenses.sync.GenericAccountService;
+import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.util.DistribHelper;
 import org.totschnig.myexpenses.util.Utils;
 import org.totschnig.myexpenses.widget.AbstractWidget;
@@ -182,6 +183,7 @@ public class MyPreferenceActivity extends ProtectedFragmentActivity implements
         key.equals(GROUP_WEEK_STARTS.getKey())) {
       DatabaseConstants.buildLocalized(Locale.getDefault());
       Transaction.buildProjection();
+      startTaskExecution(TaskExecutionFragment.TASK_REFRESH_PERIODS, null, null, 0);
     }
     if (key.equals(PERFORM_PROTECTION.getKey())) {
       getFragment().setProtectionDependentsState();
@@ -203,7 +203,8 @@ public class TransactionAdapter extends SimpleCursorAdapter {
     CrStatus status;
     try {
       status = CrStatus.valueOf(c.getString(c.getColumnIndex(KEY_CR_STATUS)));
-    } catch (IllegalArgumentException ex) {
+    } catch (IllegalArgumentException | NullPointerException ex) {
+      //null for the placeholder rows of PagingCursor
       status = CrStatus.UNRECONCILED;
     }
     
@@ -31,6 +31,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.inputmethod.EditorInfo;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
@@ -44,6 +45,11 @@ public class EditTextDialog extends CommitSafeDialogFragment implements OnEditor
   public static final String KEY_REQUEST_CODE = "requestCode";
   public static final String KEY_INPUT_TYPE = "inputType";
   public static final String KEY_MAX_LENGTH = "maxLenght";
+  /**
+   * if passed, a checkbox with this label is shown, its state is returned in {@link #KEY_CHECKBOX_CHECKED}
+   */
+  public static final String KEY_CHECKBOX_LABEL = "checkboxLabel";
+  public static final String KEY_CHECKBOX_CHECKED = "checkboxChecked";
 
   public interface EditTextDialogListener {
     void onFinishEditDialog(Bundle args);
@@ -52,6 +58,7 @@ public class EditTextDialog extends CommitSafeDialogFragment implements OnEditor
   }
 
   private EditText mEditText;
+  private CheckBox mCheckBox;
 
   public static final EditTextDialog newInstance(Bundle args) {
     EditTextDialog dialogFragment = new EditTextDialog();
@@ -76,6 +83,13 @@ public class EditTextDialog extends CommitSafeDialogFragment implements OnEditor
     if (maxLength != 0) {
       mEditText.setFilters(new InputFilter[]{new InputFilter.LengthFilter(maxLength)});
     }
+    String checkboxLabel = args.getString(KEY_CHECKBOX_LABEL);
+    if (checkboxLabel != null) {
+      mCheckBox = ((CheckBox) view.findViewById(R.id.EditTextDialogCheckBox));
+      mCheckBox.setText(checkboxLabel);
+      mCheckBox.setChecked(args.getBoolean(KEY_CHECKBOX_CHECKED));
+      mCheckBox.setVisibility(View.VISIBLE);
+    }
     AlertDialog dialog = builder.setView(view)
         .setTitle(args.getString(KEY_DIALOG_TITLE))
         .create();
@@ -105,6 +119,9 @@ public class EditTextDialog extends CommitSafeDialogFragment implements OnEditor
           Toast.makeText(getActivity(), getString(R.string.no_title_given), Toast.LENGTH_LONG).show();
         } else {
           args.putString(KEY_RESULT, result);
+          if (mCheckBox != null) {
+            args.putBoolean(KEY_CHECKBOX_CHECKED, mCheckBox.isChecked());
+          }
           activity.onFinishEditDialog(args);
           this.dismiss();
           return true;
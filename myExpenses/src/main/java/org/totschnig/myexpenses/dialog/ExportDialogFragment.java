@@ -70,7 +70,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 public class ExportDialogFragment extends CommitSafeDialogFragment implements android.content.DialogInterface.OnClickListener, OnCheckedChangeListener {
   private static final String KEY_IS_FILTERED = "is_filtered";
   RadioGroup handleDeletedGroup;
-  CheckBox notYetExportedCB, deleteCB;
+  CheckBox notYetExportedCB, deleteCB, zipCB;
   RadioButton formatRBCSV, separatorRBComma;
   TextView warningTV;
   EditText dateFormatET, fileNameET;
@@ -208,6 +208,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
 
     notYetExportedCB = (CheckBox) view.findViewById(R.id.export_not_yet_exported);
     deleteCB = (CheckBox) view.findViewById(R.id.export_delete);
+    zipCB = (CheckBox) view.findViewById(R.id.export_zip);
     warningTV = (TextView) view.findViewById(R.id.warning_reset);
 
     String encoding = MyApplication.getInstance().getSettings()
@@ -268,6 +269,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
     warningTV.setText(warningText);
     if (allP) {
       ((TextView) view.findViewById(R.id.file_name_label)).setText(R.string.folder_name);
+      zipCB.setVisibility(View.VISIBLE);
     }
 
     final View helpIcon = view.findViewById(R.id.date_format_help);
@@ -386,6 +388,7 @@ public class ExportDialogFragment extends CommitSafeDialogFragment implements an
       b.putString(TaskExecutionFragment.KEY_FORMAT, format);
       b.putBoolean(ExportTask.KEY_DELETE_P, deleteP);
       b.putBoolean(ExportTask.KEY_NOT_YET_EXPORTED_P, notYetExportedP);
+      b.putBoolean(ExportTask.KEY_ZIP_P, zipCB.isChecked());
       b.putString(TaskExecutionFragment.KEY_DATE_FORMAT, dateFormat);
       b.putChar(ExportTask.KEY_DECIMAL_SEPARATOR, decimalSeparator);
       b.putString(TaskExecutionFragment.KEY_ENCODING, encoding);
@@ -12,7 +12,13 @@ package org.totschnig.myexpenses.export;
 import org.apache.commons.lang3.StringUtils;
 import org.totschnig.myexpenses.model.Category;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by IntelliJ IDEA.
@@ -91,7 +97,93 @@ public class CategoryInfo {
         return name;
     }
 
-    private String reduceToTwoLevels(String name) {
+    /**
+     * same as {@link #insert(Map, boolean)} for each of names without stripping the category class, but looks
+     * up existing categories with one query per level and creates the missing ones in bulk. Names that can not
+     * be resolved this way are left out of categoryToId, so that {@link #insert(Map, boolean)} handles them.
+     */
+    public static void insertAll(Collection<String> names, Map<String, Long> categoryToId) {
+        Set<String> mains = new LinkedHashSet<>();
+        Set<String> children = new LinkedHashSet<>();
+        for (String name : names) {
+            String reduced = reduceToTwoLevels(name);
+            if (categoryToId.containsKey(reduced)) {
+                continue;
+            }
+            int i = reduced.lastIndexOf(':');
+            if (i == -1) {
+                mains.add(reduced);
+            } else {
+                children.add(reduced);
+                String main = reduced.substring(0, i);
+                if (!categoryToId.containsKey(main)) {
+                    mains.add(main);
+                }
+            }
+        }
+        if (!mains.isEmpty()) {
+            Set<String> labels = new HashSet<>();
+            for (String main : mains) {
+                labels.add(StringUtils.strip(main));
+            }
+            Map<String, Long> existing = Category.findMainByLabels(labels);
+            List<String> missing = new ArrayList<>();
+            List<Category> toWrite = new ArrayList<>();
+            for (String main : mains) {
+                Long id = existing.get(StringUtils.strip(main));
+                if (id != null) {
+                    categoryToId.put(main, id);
+                } else {
+                    missing.add(main);
+                    toWrite.add(new Category(0L, main, null));
+                }
+            }
+            putWritten(missing, toWrite, categoryToId);
+        }
+        if (!children.isEmpty()) {
+            Set<Long> parentIds = new HashSet<>();
+            for (String child : children) {
+                Long parentId = categoryToId.get(child.substring(0, child.lastIndexOf(':')));
+                if (parentId != null) {
+                    parentIds.add(parentId);
+                }
+            }
+            Map<Long, Map<String, Long>> existing = Category.findSubByParents(parentIds);
+            List<String> missing = new ArrayList<>();
+            List<Category> toWrite = new ArrayList<>();
+            for (String child : children) {
+                int i = child.lastIndexOf(':');
+                Long parentId = categoryToId.get(child.substring(0, i));
+                if (parentId == null) {
+                    continue;
+                }
+                Category category = new Category(0L, child.substring(i + 1), parentId);
+                Map<String, Long> siblings = existing.get(parentId);
+                Long id = siblings != null ? siblings.get(category.label) : null;
+                if (id != null) {
+                    categoryToId.put(child, id);
+                } else {
+                    missing.add(child);
+                    toWrite.add(category);
+                }
+            }
+            putWritten(missing, toWrite, categoryToId);
+        }
+    }
+
+    private static void putWritten(List<String> names, List<Category> categories, Map<String, Long> categoryToId) {
+        if (categories.isEmpty()) {
+            return;
+        }
+        long[] ids = Category.bulkWrite(categories);
+        if (ids != null) {
+            for (int i = 0; i < ids.length; i++) {
+                categoryToId.put(names.get(i), ids[i]);
+            }
+        }
+    }
+
+    private static String reduceToTwoLevels(String name) {
         if (StringUtils.countMatches(name, ':') > 1) {
             String parts[] = name.split(":");
             return parts[0]+":"+parts[1];
@@ -9,11 +9,9 @@ import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.Category;
 import org.totschnig.myexpenses.model.ExportFormat;
 import org.totschnig.myexpenses.model.Model;
-import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.PaymentMethod;
 import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
-import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.util.AppDirHelper;
@@ -21,10 +19,10 @@ import org.totschnig.myexpenses.util.FileUtils;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.math.BigDecimal;
-import java.text.DecimalFormat;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -39,17 +37,28 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_MAIN;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_SUB;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.LABEL_MAIN;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.LABEL_SUB;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_NONE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
 
 public class Exporter {
+  /**
+   * parents by date, each of them followed by its split parts, which are sorted by the date of their parent
+   */
+  private static final String SORT_ORDER = "CASE WHEN " + KEY_PARENTID + " IS NULL THEN " + KEY_DATE +
+      " ELSE (SELECT " + KEY_DATE + " FROM " + TABLE_TRANSACTIONS + " parents WHERE parents." + KEY_ROWID + " = " +
+      VIEW_EXTENDED + "." + KEY_PARENTID + ") END, coalesce(" + KEY_PARENTID + ", " + KEY_ROWID + "), " +
+      KEY_PARENTID + " IS NOT NULL, " + KEY_ROWID;
   private Account account;
   WhereFilter filter;
   DocumentFile destDir;
@@ -88,20 +97,39 @@ public class Exporter {
 
   public Result export() throws IOException {
     MyApplication ctx = MyApplication.getInstance();
-    DecimalFormat nfFormat = Utils.getDecimalFormat(account.currency, decimalSeparator);
+    MinorUnitFormat amountFormat = new MinorUnitFormat(account.currency, decimalSeparator);
     Timber.i("now starting export");
     //first we check if there are any exportable transactions
-    String selection = KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " is null";
-    String[] selectionArgs = new String[]{String.valueOf(account.getId())};
+    String parentSelection = KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " is null";
+    String[] parentSelectionArgs = new String[]{String.valueOf(account.getId())};
     if (notYetExportedP)
-      selection += " AND " + KEY_STATUS + " = " + STATUS_NONE;
+      parentSelection += " AND " + KEY_STATUS + " = " + STATUS_NONE;
     if (filter != null && !filter.isEmpty()) {
-      selection += " AND " + filter.getSelectionForParents(DatabaseConstants.VIEW_EXTENDED);
-      selectionArgs = Utils.joinArrays(selectionArgs, filter.getSelectionArgs(false));
+      parentSelection += " AND " + filter.getSelectionForParents(VIEW_EXTENDED);
+      parentSelectionArgs = Utils.joinArrays(parentSelectionArgs, filter.getSelectionArgs(false));
     }
+    //split parts are read with the same query and sorted right after their parent
+    String selection = "(" + parentSelection + ") OR " + KEY_PARENTID + " IN (SELECT " + KEY_ROWID +
+        " FROM " + VIEW_EXTENDED + " WHERE " + parentSelection + ")";
+    String[] selectionArgs = Utils.joinArrays(parentSelectionArgs, parentSelectionArgs);
+    String[] projection = new String[]{
+        KEY_ROWID,
+        KEY_PARENTID,
+        KEY_DATE,
+        KEY_AMOUNT,
+        KEY_COMMENT,
+        KEY_CATID,
+        LABEL_MAIN,
+        LABEL_SUB,
+        KEY_PAYEE_NAME,
+        KEY_TRANSFER_PEER,
+        KEY_CR_STATUS,
+        KEY_REFERENCE_NUMBER,
+        PaymentMethod.localizedLabelSqlColumn(ctx, KEY_METHOD_LABEL) + " AS " + KEY_METHOD_LABEL
+    };
     Cursor c = Model.cr().query(
         Transaction.EXTENDED_URI,
-        null, selection, selectionArgs, KEY_DATE);
+        projection, selection, selectionArgs, SORT_ORDER);
     if (c.getCount() == 0) {
       c.close();
       return new Result(false, R.string.no_exportable_expenses);
@@ -119,167 +147,88 @@ public class Exporter {
           fileName,
           FileUtils.getPath(MyApplication.getInstance(), destDir.getUri()));
     }
-    c.moveToFirst();
     Utils.StringBuilderWrapper sb = new Utils.StringBuilderWrapper();
     SimpleDateFormat formatter = new SimpleDateFormat(dateFormat, Locale.US);
-    OutputStreamWriter out = new OutputStreamWriter(
+    Writer out = new BufferedWriter(new OutputStreamWriter(
         Model.cr().openOutputStream(outputFile.getUri()),
-        encoding);
-    switch (format) {
-      case CSV:
-        int[] columns = {R.string.split_transaction, R.string.date, R.string.payee, R.string.income, R.string.expense,
-            R.string.category, R.string.subcategory, R.string.comment, R.string.method, R.string.status, R.string.reference_number};
-        for (int column : columns) {
-          sb.append("\"")
-              .appendQ(ctx.getString(column))
-              .append("\";");
-        }
-        break;
-      //QIF
-      default:
-        sb.append("!Account\nN")
-            .append(account.label)
-            .append("\nT")
-            .append(account.type.toQifName())
-            .append("\n^\n!Type:")
-            .append(account.type.toQifName());
-    }
-    //Write header
-    out.write(sb.toString());
-    while (c.getPosition() < c.getCount()) {
-      String comment = DbUtils.getString(c, KEY_COMMENT);
-      String full_label = "", label_sub = "", label_main;
-      Transaction.CrStatus status;
-      Long catId = DbUtils.getLongOrNull(c, KEY_CATID);
-      Cursor splits = null, readCat;
-      if (SPLIT_CATID.equals(catId)) {
-        //split transactions take their full_label from the first split part
-        splits = Model.cr().query(Transaction.CONTENT_URI, null,
-            KEY_PARENTID + " = " + c.getLong(c.getColumnIndex(KEY_ROWID)), null, null);
-        if (splits != null && splits.moveToFirst()) {
-          readCat = splits;
-        } else {
-          readCat = c;
-        }
-      } else {
-        readCat = c;
-      }
-      Long transfer_peer = DbUtils.getLongOrNull(readCat, KEY_TRANSFER_PEER);
-      label_main = DbUtils.getString(readCat, KEY_LABEL_MAIN);
-      if (label_main.length() > 0) {
-        if (transfer_peer != null) {
-          full_label = "[" + label_main + "]";
-          label_main = ctx.getString(R.string.transfer);
-          label_sub = full_label;
-        } else {
-          full_label = label_main;
-          label_sub = DbUtils.getString(readCat, KEY_LABEL_SUB);
-          if (label_sub.length() > 0)
-            full_label += ":" + label_sub;
-        }
-      }
-      String payee = DbUtils.getString(c, KEY_PAYEE_NAME);
-      String dateStr = formatter.format(new Date(c.getLong(
-          c.getColumnIndexOrThrow(KEY_DATE)) * 1000));
-      long amount = c.getLong(
-          c.getColumnIndexOrThrow(KEY_AMOUNT));
-      BigDecimal bdAmount = new Money(account.currency, amount).getAmountMajor();
-      String amountQIF = nfFormat.format(bdAmount);
-      String amountAbsCSV = nfFormat.format(bdAmount.abs());
-      try {
-        status = Transaction.CrStatus.valueOf(c.getString(c.getColumnIndexOrThrow(KEY_CR_STATUS)));
-      } catch (IllegalArgumentException ex) {
-        status = Transaction.CrStatus.UNRECONCILED;
-      }
-      String referenceNumber = DbUtils.getString(c, KEY_REFERENCE_NUMBER);
-      String splitIndicator = SPLIT_CATID.equals(catId) ? SplitTransaction.CSV_INDICATOR : "";
-      sb.clear();
+        encoding));
+    try {
       switch (format) {
         case CSV:
-          //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method,R.string.status,R.string.reference_number};
-          Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
-          PaymentMethod method = methodId == null ? null : PaymentMethod.getInstanceFromDb(methodId);
-          sb.append("\n\"")
-              .append(splitIndicator)
-              .append("\";\"")
-              .append(dateStr)
-              .append("\";\"")
-              .appendQ(payee)
-              .append("\";")
-              .append(amount > 0 ? amountAbsCSV : "0")
-              .append(";")
-              .append(amount < 0 ? amountAbsCSV : "0")
-              .append(";\"")
-              .appendQ(label_main)
-              .append("\";\"")
-              .appendQ(label_sub)
-              .append("\";\"")
-              .appendQ(comment)
-              .append("\";\"")
-              .appendQ(method == null ? "" : method.getLabel())
-              .append("\";\"")
-              .append(status.symbol)
-              .append("\";\"")
-              .append(referenceNumber)
-              .append("\"");
+          int[] columns = {R.string.split_transaction, R.string.date, R.string.payee, R.string.income, R.string.expense,
+              R.string.category, R.string.subcategory, R.string.comment, R.string.method, R.string.status, R.string.reference_number};
+          for (int column : columns) {
+            sb.append("\"")
+                .appendQ(ctx.getString(column))
+                .append("\";");
+          }
           break;
+        //QIF
         default:
-          sb.append("\nD")
-              .append(dateStr)
+          sb.append("!Account\nN")
+              .append(account.label)
               .append("\nT")
-              .append(amountQIF);
-          if (comment.length() > 0) {
-            sb.append("\nM")
-                .append(comment);
-          }
-          if (full_label.length() > 0) {
-            sb.append("\nL")
-                .append(full_label);
-          }
-          if (payee.length() > 0) {
-            sb.append("\nP")
-                .append(payee);
-          }
-          if (!status.equals(Transaction.CrStatus.UNRECONCILED))
-            sb.append("\nC")
-                .append(status.symbol);
-          if (referenceNumber.length() > 0) {
-            sb.append("\nN")
-                .append(referenceNumber);
-          }
+              .append(account.type.toQifName())
+              .append("\n^\n!Type:")
+              .append(account.type.toQifName());
       }
+      //Write header
       out.write(sb.toString());
-      if (SPLIT_CATID.equals(catId) && splits != null) {
-        while (splits.getPosition() < splits.getCount()) {
-          transfer_peer = DbUtils.getLongOrNull(splits, KEY_TRANSFER_PEER);
-          comment = DbUtils.getString(splits, KEY_COMMENT);
-          label_main = DbUtils.getString(splits, KEY_LABEL_MAIN);
-          if (label_main.length() > 0) {
-            if (transfer_peer != null) {
-              full_label = "[" + label_main + "]";
-              label_main = ctx.getString(R.string.transfer);
-              label_sub = full_label;
-            } else {
-              full_label = label_main;
-              label_sub = DbUtils.getString(splits, KEY_LABEL_SUB);
-              if (label_sub.length() > 0)
-                full_label += ":" + label_sub;
-            }
+      int columnRowId = c.getColumnIndex(KEY_ROWID);
+      int columnParentId = c.getColumnIndex(KEY_PARENTID);
+      int columnDate = c.getColumnIndex(KEY_DATE);
+      int columnAmount = c.getColumnIndex(KEY_AMOUNT);
+      int columnComment = c.getColumnIndex(KEY_COMMENT);
+      int columnCatId = c.getColumnIndex(KEY_CATID);
+      int columnLabelMain = c.getColumnIndex(KEY_LABEL_MAIN);
+      int columnLabelSub = c.getColumnIndex(KEY_LABEL_SUB);
+      int columnPayee = c.getColumnIndex(KEY_PAYEE_NAME);
+      int columnTransferPeer = c.getColumnIndex(KEY_TRANSFER_PEER);
+      int columnCrStatus = c.getColumnIndex(KEY_CR_STATUS);
+      int columnReferenceNumber = c.getColumnIndex(KEY_REFERENCE_NUMBER);
+      int columnMethodLabel = c.getColumnIndex(KEY_METHOD_LABEL);
+      String transferLabel = ctx.getString(R.string.transfer);
+      Date date = new Date();
+      //split parts are exported with the date, payee and method of their parent
+      String dateStr = "", payee = "", methodLabel = "";
+      boolean isFirst = true;
+      while (c.moveToNext()) {
+        boolean isPart = !c.isNull(columnParentId);
+        String comment = DbUtils.getString(c, columnComment);
+        long amount = c.getLong(columnAmount);
+        String amountQIF = amountFormat.format(amount);
+        String amountAbsCSV = amountFormat.format(Math.abs(amount));
+        boolean isSplit = !isPart && SPLIT_CATID.equals(DbUtils.getLongOrNull(c, columnCatId));
+        int position = c.getPosition();
+        if (isSplit) {
+          //split transactions take their full_label from the first split part
+          long rowId = c.getLong(columnRowId);
+          if (!(c.moveToNext() && !c.isNull(columnParentId) && c.getLong(columnParentId) == rowId)) {
+            c.moveToPosition(position);
+          }
+        }
+        boolean isTransfer = !c.isNull(columnTransferPeer);
+        String label_main = DbUtils.getString(c, columnLabelMain);
+        String label_sub = "", full_label = "";
+        if (label_main.length() > 0) {
+          if (isTransfer) {
+            full_label = "[" + label_main + "]";
+            label_main = transferLabel;
+            label_sub = full_label;
           } else {
-            label_main = full_label = Category.NO_CATEGORY_ASSIGNED_LABEL;
-            label_sub = "";
+            full_label = label_main;
+            label_sub = DbUtils.getString(c, columnLabelSub);
+            if (label_sub.length() > 0)
+              full_label += ":" + label_sub;
           }
-          amount = splits.getLong(
-              splits.getColumnIndexOrThrow(KEY_AMOUNT));
-          bdAmount = new Money(account.currency, amount).getAmountMajor();
-          amountQIF = nfFormat.format(bdAmount);
-          amountAbsCSV = nfFormat.format(bdAmount.abs());
-          sb.clear();
+        } else if (isPart) {
+          label_main = full_label = Category.NO_CATEGORY_ASSIGNED_LABEL;
+        }
+        c.moveToPosition(position);
+        sb.clear();
+        if (isPart) {
           switch (format) {
             case CSV:
-              //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method};
-              Long methodId = DbUtils.getLongOrNull(c, KEY_METHODID);
-              PaymentMethod method = methodId == null ? null : PaymentMethod.getInstanceFromDb(methodId);
               sb.append("\n\"")
                   .append(SplitTransaction.CSV_PART_INDICATOR)
                   .append("\";\"")
@@ -297,7 +246,7 @@ public class Exporter {
                   .append("\";\"")
                   .appendQ(comment)
                   .append("\";\"")
-                  .appendQ(method == null ? "" : method.getLabel())
+                  .appendQ(methodLabel)
                   .append("\";\"\";\"\"");
               break;
             //QIF
@@ -312,17 +261,86 @@ public class Exporter {
                   .append(amountQIF);
           }
           out.write(sb.toString());
-          splits.moveToNext();
+          continue;
         }
-        splits.close();
+        if (format.equals(ExportFormat.QIF) && !isFirst) {
+          //close the previous transaction together with its split parts
+          out.write("\n^");
+        }
+        isFirst = false;
+        payee = DbUtils.getString(c, columnPayee);
+        methodLabel = DbUtils.getString(c, columnMethodLabel);
+        date.setTime(c.getLong(columnDate) * 1000);
+        dateStr = formatter.format(date);
+        Transaction.CrStatus status;
+        try {
+          status = Transaction.CrStatus.valueOf(c.getString(columnCrStatus));
+        } catch (IllegalArgumentException ex) {
+          status = Transaction.CrStatus.UNRECONCILED;
+        }
+        String referenceNumber = DbUtils.getString(c, columnReferenceNumber);
+        String splitIndicator = isSplit ? SplitTransaction.CSV_INDICATOR : "";
+        switch (format) {
+          case CSV:
+            //{R.string.split_transaction,R.string.date,R.string.payee,R.string.income,R.string.expense,R.string.category,R.string.subcategory,R.string.comment,R.string.method,R.string.status,R.string.reference_number};
+            sb.append("\n\"")
+                .append(splitIndicator)
+                .append("\";\"")
+                .append(dateStr)
+                .append("\";\"")
+                .appendQ(payee)
+                .append("\";")
+                .append(amount > 0 ? amountAbsCSV : "0")
+                .append(";")
+                .append(amount < 0 ? amountAbsCSV : "0")
+                .append(";\"")
+                .appendQ(label_main)
+                .append("\";\"")
+                .appendQ(label_sub)
+                .append("\";\"")
+                .appendQ(comment)
+                .append("\";\"")
+                .appendQ(methodLabel)
+                .append("\";\"")
+                .append(status.symbol)
+                .append("\";\"")
+                .append(referenceNumber)
+                .append("\"");
+            break;
+          default:
+            sb.append("\nD")
+                .append(dateStr)
+                .append("\nT")
+                .append(amountQIF);
+            if (comment.length() > 0) {
+              sb.append("\nM")
+                  .append(comment);
+            }
+            if (full_label.length() > 0) {
+              sb.append("\nL")
+                  .append(full_label);
+            }
+            if (payee.length() > 0) {
+              sb.append("\nP")
+                  .append(payee);
+            }
+            if (!status.equals(Transaction.CrStatus.UNRECONCILED))
+              sb.append("\nC")
+                  .append(status.symbol);
+            if (referenceNumber.length() > 0) {
+              sb.append("\nN")
+                  .append(referenceNumber);
+            }
+        }
+        out.write(sb.toString());
       }
       if (format.equals(ExportFormat.QIF)) {
         out.write("\n^");
       }
-      c.moveToNext();
+    } finally {
+      out.close();
+      c.close();
     }
-    out.close();
-    c.close();
     return new Result(true, R.string.export_sdcard_success, outputFile.getUri());
   }
 }
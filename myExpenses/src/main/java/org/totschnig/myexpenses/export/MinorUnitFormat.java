@@ -0,0 +1,86 @@
+package org.totschnig.myexpenses.export;
+
+import org.totschnig.myexpenses.model.Money;
+import org.totschnig.myexpenses.util.Utils;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Currency;
+
+/**
+ * Formats amounts stored in minor units the same way as the {@link DecimalFormat} from
+ * {@link Utils#getDecimalFormat(Currency, char)} formats them once converted with {@link Money#getAmountMajor()},
+ * but without allocating a {@link BigDecimal} for each amount.
+ */
+class MinorUnitFormat {
+  private final int fractionDigits;
+  private final int minFractionDigits, maxFractionDigits;
+  private final char decimalSeparator;
+  private final long divisor;
+  private final DecimalFormat fallback;
+  /**
+   * true if amounts can not be formatted by simply placing the decimal separator, e.g. because they would need
+   * to be rounded, or the locale uses other digits
+   */
+  private final boolean useFallback;
+  private final StringBuilder builder = new StringBuilder(24);
+
+  MinorUnitFormat(Currency currency, char decimalSeparator) {
+    this(Money.getFractionDigits(currency), currency, decimalSeparator);
+  }
+
+  /**
+   * @param fractionDigits the number of fraction digits of the stored amounts, which might be customized
+   */
+  MinorUnitFormat(int fractionDigits, Currency currency, char decimalSeparator) {
+    this.fractionDigits = fractionDigits;
+    this.decimalSeparator = decimalSeparator;
+    fallback = Utils.getDecimalFormat(currency, decimalSeparator);
+    minFractionDigits = fallback.getMinimumFractionDigits();
+    maxFractionDigits = fallback.getMaximumFractionDigits();
+    long divisor = 1;
+    for (int i = 0; i < fractionDigits; i++) {
+      divisor *= 10;
+    }
+    this.divisor = divisor;
+    useFallback = fractionDigits > maxFractionDigits || fractionDigits > 18 ||
+        fallback.getDecimalFormatSymbols().getZeroDigit() != '0' ||
+        fallback.getDecimalFormatSymbols().getMinusSign() != '-';
+  }
+
+  String format(long amountMinor) {
+    if (useFallback) {
+      return fallback.format(BigDecimal.valueOf(amountMinor, fractionDigits));
+    }
+    builder.setLength(0);
+    if (amountMinor < 0) {
+      builder.append('-');
+    }
+    long abs = Math.abs(amountMinor);
+    builder.append(abs / divisor);
+    int integerLength = builder.length();
+    builder.append(decimalSeparator);
+    if (fractionDigits > 0) {
+      String fraction = Long.toString(abs % divisor);
+      for (int i = fraction.length(); i < fractionDigits; i++) {
+        builder.append('0');
+      }
+      builder.append(fraction);
+    }
+    for (int i = fractionDigits; i < minFractionDigits; i++) {
+      builder.append('0');
+    }
+    //DecimalFormat drops trailing zeros beyond the minimum number of fraction digits
+    int length = builder.length();
+    int minLength = integerLength + 1 + minFractionDigits;
+    while (length > minLength && builder.charAt(length - 1) == '0') {
+      length--;
+    }
+    if (length == integerLength + 1) {
+      //no fraction digits left
+      length--;
+    }
+    builder.setLength(length);
+    return builder.toString();
+  }
+}
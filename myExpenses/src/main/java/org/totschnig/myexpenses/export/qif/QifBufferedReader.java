@@ -9,8 +9,8 @@
 
 package org.totschnig.myexpenses.export.qif;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 
 /**
  * Created by IntelliJ IDEA.
@@ -19,32 +19,120 @@ import java.io.IOException;
  */
 public class QifBufferedReader {
 
-    private final BufferedReader r;
+    private final Reader r;
+    /**
+     * lines are split and trimmed inside this buffer, so that only non empty lines are turned into strings. It
+     * grows if a line does not fit.
+     */
+    private char[] buffer = new char[8192];
+    private int position, limit;
+    /**
+     * the last line ended with '\r', a '\n' directly following it does not start a new line
+     */
+    private boolean skipLineFeed;
+    private String peeked;
+    private boolean hasPeeked;
 
-    public QifBufferedReader(BufferedReader r) {
+    public QifBufferedReader(Reader r) {
         this.r = r;
     }
 
     public String readLine() throws IOException {
-        while (true) {
-            String line = r.readLine();
-            if (line == null) {
-                return null;
-            }
-            line = line.trim();
-            if (line.length() > 0) {
-                return line;
-            }
+        if (hasPeeked) {
+            hasPeeked = false;
+            String line = peeked;
+            peeked = null;
+            return line;
         }
+        return nextLine();
     }
 
     public String peekLine() throws IOException {
-        r.mark(256);
-        String peek = readLine();
-        r.reset();
-        return peek;
+        if (!hasPeeked) {
+            peeked = nextLine();
+            hasPeeked = true;
+        }
+        return peeked;
     }
+
     public void close() throws IOException {
       r.close();
     }
+
+    private String nextLine() throws IOException {
+        while (true) {
+            if (skipLineFeed) {
+                if (position == limit && !fill()) {
+                    return null;
+                }
+                if (buffer[position] == '\n') {
+                    position++;
+                }
+                skipLineFeed = false;
+            }
+            int end = -1;
+            int scan = position;
+            while (end == -1) {
+                for (; scan < limit; scan++) {
+                    char c = buffer[scan];
+                    if (c == '\n' || c == '\r') {
+                        end = scan;
+                        break;
+                    }
+                }
+                if (end == -1) {
+                    int scanned = scan - position;
+                    if (!fill()) {
+                        if (scanned == 0) {
+                            return null;
+                        }
+                        //last line without line terminator
+                        end = limit;
+                    } else {
+                        scan = position + scanned;
+                    }
+                }
+            }
+            int start = position;
+            if (end < limit) {
+                skipLineFeed = buffer[end] == '\r';
+                position = end + 1;
+            } else {
+                position = end;
+            }
+            //same as String.trim
+            while (start < end && buffer[start] <= ' ') {
+                start++;
+            }
+            while (end > start && buffer[end - 1] <= ' ') {
+                end--;
+            }
+            if (end > start) {
+                return new String(buffer, start, end - start);
+            }
+        }
+    }
+
+    /**
+     * moves the unread characters to the start of the buffer and reads more characters after them
+     * @return false if the end of the input has been reached
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            char[] grown = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        int read = r.read(buffer, limit, buffer.length - limit);
+        if (read <= 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
 }
@@ -25,9 +25,27 @@ import android.text.TextUtils;
  */
 public class QifParser {
 
+  /**
+   * receives the content of the file while it is parsed
+   */
+  public interface Callback {
+    /**
+     * called before the transactions of the account, once its opening balance has been read
+     */
+    void onAccount(QifAccount account);
+
+    void onCategory(QifCategory category);
+
+    void onTransaction(QifAccount account, QifTransaction transaction);
+  }
+
   private final QifBufferedReader r;
   private final QifDateFormat dateFormat;
+  private final Callback callback;
 
+  /**
+   * only filled if the parser has been constructed without a {@link Callback}
+   */
   public final List<QifAccount> accounts = new ArrayList<>();
   public final Set<QifCategory> categories = new HashSet<>();
   public final Set<QifCategory> categoriesFromTransactions = new HashSet<>();
@@ -35,10 +53,22 @@ public class QifParser {
   public final Set<String> classes = new HashSet<>();
   private final Currency currency;
 
+  /**
+   * collects the whole content of the file in {@link #accounts}, {@link #categories}, {@link #payees} and
+   * {@link #classes}
+   */
   public QifParser(QifBufferedReader r, QifDateFormat dateFormat, Currency currency) {
+    this(r, dateFormat, currency, null);
+  }
+
+  /**
+   * hands each record to callback as soon as it has been read, without keeping it
+   */
+  public QifParser(QifBufferedReader r, QifDateFormat dateFormat, Currency currency, Callback callback) {
     this.r = r;
     this.dateFormat = dateFormat;
     this.currency = currency;
+    this.callback = callback != null ? callback : new Collector();
   }
 
   public void parse() throws IOException {
@@ -63,8 +93,7 @@ public class QifParser {
                 r.readLine();
                 break outer;
               }
-              QifAccount a = parseAccount();
-              accounts.add(a);
+              callback.onAccount(parseAccount());
             }
           }
         }
@@ -88,7 +117,7 @@ public class QifParser {
       QifCategory category = new QifCategory();
       category.readFrom(r);
       if (category.getName() != null) {
-        categories.add(category);
+        callback.onCategory(category);
       }
       if (shouldBreakCurrentBlock()) {
         break;
@@ -97,7 +126,8 @@ public class QifParser {
   }
 
   private void parseTransactions(QifAccount account) throws IOException {
-    accounts.add(account);
+    //the opening balance might rename the account, hence we only hand it out with its first transaction
+    boolean accountHandedOut = false;
     String peek = r.peekLine();
     if (peek != null && peek.startsWith("!Type:")) {
       applyAccountType(account, peek);
@@ -110,15 +140,20 @@ public class QifParser {
           if (!TextUtils.isEmpty(t.toAccount))
             account.memo = t.toAccount;
         } else {
-          addPayeeFromTransaction(t);
-          addCategoryFromTransaction(t);
-          account.transactions.add(t);
+          if (!accountHandedOut) {
+            callback.onAccount(account);
+            accountHandedOut = true;
+          }
+          callback.onTransaction(account, t);
         }
         if (shouldBreakCurrentBlock()) {
           break;
         }
       }
     }
+    if (!accountHandedOut) {
+      callback.onAccount(account);
+    }
   }
 
   private QifAccount parseAccount() throws IOException {
@@ -133,31 +168,49 @@ public class QifParser {
     }
   }
 
-  private void addPayeeFromTransaction(QifTransaction t) {
-    if (!TextUtils.isEmpty(t.payee)) {
-      payees.add(t.payee);
-    }
+  private boolean shouldBreakCurrentBlock() throws IOException {
+    String peek = r.peekLine();
+    return peek == null || peek.startsWith("!");
   }
 
-  private void addCategoryFromTransaction(QifTransaction t) {
-    if (t.isSplit()) {
-      for (QifTransaction split : t.splits) {
-        addCategoryFromTransaction(split);
-      }
-    } else {
-      if (!TextUtils.isEmpty(t.category)) {
-        QifCategory c = new QifCategory(t.category, false);
-        categoriesFromTransactions.add(c);
-      }
-      if (!TextUtils.isEmpty(t.categoryClass)) {
-        classes.add(t.categoryClass);
+  private class Collector implements Callback {
+    @Override
+    public void onAccount(QifAccount account) {
+      accounts.add(account);
+    }
+
+    @Override
+    public void onCategory(QifCategory category) {
+      categories.add(category);
+    }
+
+    @Override
+    public void onTransaction(QifAccount account, QifTransaction transaction) {
+      addPayeeFromTransaction(transaction);
+      addCategoryFromTransaction(transaction);
+      account.transactions.add(transaction);
+    }
+
+    private void addPayeeFromTransaction(QifTransaction t) {
+      if (!TextUtils.isEmpty(t.payee)) {
+        payees.add(t.payee);
       }
     }
-  }
 
-  private boolean shouldBreakCurrentBlock() throws IOException {
-    String peek = r.peekLine();
-    return peek == null || peek.startsWith("!");
+    private void addCategoryFromTransaction(QifTransaction t) {
+      if (t.isSplit()) {
+        for (QifTransaction split : t.splits) {
+          addCategoryFromTransaction(split);
+        }
+      } else {
+        if (!TextUtils.isEmpty(t.category)) {
+          QifCategory c = new QifCategory(t.category, false);
+          categoriesFromTransactions.add(c);
+        }
+        if (!TextUtils.isEmpty(t.categoryClass)) {
+          classes.add(t.categoryClass);
+        }
+      }
+    }
   }
-
 }
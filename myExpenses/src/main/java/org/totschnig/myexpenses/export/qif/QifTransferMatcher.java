@@ -0,0 +1,243 @@
+package org.totschnig.myexpenses.export.qif;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pairs the two sides of transfers between the accounts of a QIF file while the file is read. An outgoing
+ * transfer is paired with the first incoming transfer in the other account for which
+ * {@link QifUtils#twoSidesOfTheSameTransfer} holds, like it was done on the fully parsed file before. Only
+ * incoming transfers that are not part of a split can be paired, the second side of a pair is dropped.
+ * <p>
+ * A transfer that can not be paired yet is kept until its counterpart arrives, or until the other account
+ * has been read completely, each account is expected to be listed in one block. Transactions that do not
+ * contain such a transfer are handed back immediately.
+ */
+public class QifTransferMatcher {
+  public interface Callback {
+    /**
+     * called for each transfer that has no counterpart, it must be imported as a regular transaction
+     */
+    void convert(QifTransaction transfer);
+
+    /**
+     * called once it is known for each transfer in transaction, if it has a counterpart
+     */
+    void ready(QifAccount account, QifTransaction transaction);
+  }
+
+  private final Callback callback;
+  /**
+   * outgoing transfers waiting for their counterpart
+   */
+  private final Map<TransferKey, ArrayDeque<QifTransaction>> outgoing = new HashMap<>();
+  /**
+   * incoming transfers that are waiting for their counterpart, they are held back as a whole
+   */
+  private final Map<TransferKey, ArrayDeque<Pending>> incoming = new HashMap<>();
+  private final Map<QifTransaction, Pending> owners = new IdentityHashMap<>();
+  /**
+   * transactions that are held back, in the order of the file
+   */
+  private final Map<QifTransaction, Pending> pending = new LinkedHashMap<>();
+  private final Set<QifTransaction> deferred = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Set<String> completedAccounts = new HashSet<>();
+  private QifAccount currentAccount;
+
+  public QifTransferMatcher(Callback callback) {
+    this.callback = callback;
+  }
+
+  /**
+   * @param transaction is expected in the order of the file
+   */
+  public void add(QifAccount account, QifTransaction transaction) {
+    if (account != currentAccount) {
+      if (currentAccount != null) {
+        completedAccounts.add(currentAccount.memo);
+      }
+      currentAccount = account;
+    }
+    Pending holder = new Pending(account, transaction);
+    if (transaction.isTransfer() && transaction.amount.signum() == 1 && !transaction.isSplit() &&
+        !transaction.toAccount.equals(account.memo)) {
+      if (pairWithOutgoing(account, transaction)) {
+        return;
+      }
+      if (!completedAccounts.contains(transaction.toAccount)) {
+        add(incoming, new TransferKey(transaction.toAccount, account.memo, transaction.date, transaction.amount),
+            holder);
+        defer(holder, transaction);
+      } else {
+        callback.convert(transaction);
+      }
+    } else {
+      addOutgoing(holder, transaction);
+    }
+    if (transaction.splits != null) {
+      for (QifTransaction split : transaction.splits) {
+        addOutgoing(holder, split);
+      }
+    }
+    if (holder.unresolved == 0) {
+      callback.ready(account, transaction);
+    } else {
+      pending.put(transaction, holder);
+    }
+  }
+
+  /**
+   * converts all transfers that are still waiting for their counterpart, and hands back the transactions that
+   * contain them
+   */
+  public void finish() {
+    for (Pending holder : pending.values()) {
+      convertDeferred(holder.transaction);
+      if (holder.transaction.splits != null) {
+        for (QifTransaction split : holder.transaction.splits) {
+          convertDeferred(split);
+        }
+      }
+      callback.ready(holder.account, holder.transaction);
+    }
+    pending.clear();
+    outgoing.clear();
+    incoming.clear();
+    owners.clear();
+    deferred.clear();
+    completedAccounts.clear();
+    currentAccount = null;
+  }
+
+  private void convertDeferred(QifTransaction transfer) {
+    if (deferred.contains(transfer)) {
+      callback.convert(transfer);
+    }
+  }
+
+  private boolean pairWithOutgoing(QifAccount account, QifTransaction transaction) {
+    QifTransaction counterpart = poll(outgoing,
+        new TransferKey(transaction.toAccount, account.memo, transaction.date, transaction.amount));
+    if (counterpart == null) {
+      return false;
+    }
+    deferred.remove(counterpart);
+    Pending holder = owners.remove(counterpart);
+    holder.unresolved--;
+    if (holder.unresolved == 0) {
+      pending.remove(holder.transaction);
+      callback.ready(holder.account, holder.transaction);
+    }
+    return true;
+  }
+
+  private void addOutgoing(Pending holder, QifTransaction transfer) {
+    if (!transfer.isTransfer() || transfer.amount.signum() != -1 ||
+        transfer.toAccount.equals(holder.account.memo)) {
+      if (transfer.isTransfer()) {
+        callback.convert(transfer);
+      }
+      return;
+    }
+    TransferKey key = new TransferKey(holder.account.memo, transfer.toAccount, transfer.date,
+        transfer.amount.negate());
+    Pending counterpart = poll(incoming, key);
+    if (counterpart != null) {
+      deferred.remove(counterpart.transaction);
+      pending.remove(counterpart.transaction);
+    } else if (!completedAccounts.contains(transfer.toAccount)) {
+      add(outgoing, key, transfer);
+      owners.put(transfer, holder);
+      defer(holder, transfer);
+    } else {
+      callback.convert(transfer);
+    }
+  }
+
+  private void defer(Pending holder, QifTransaction transfer) {
+    deferred.add(transfer);
+    holder.unresolved++;
+  }
+
+  private static <T> void add(Map<TransferKey, ArrayDeque<T>> index, TransferKey key, T value) {
+    ArrayDeque<T> queue = index.get(key);
+    if (queue == null) {
+      queue = new ArrayDeque<>(1);
+      index.put(key, queue);
+    }
+    queue.addLast(value);
+  }
+
+  private static <T> T poll(Map<TransferKey, ArrayDeque<T>> index, TransferKey key) {
+    ArrayDeque<T> queue = index.get(key);
+    if (queue == null) {
+      return null;
+    }
+    T value = queue.pollFirst();
+    if (queue.isEmpty()) {
+      index.remove(key);
+    }
+    return value;
+  }
+
+  private static class Pending {
+    private final QifAccount account;
+    private final QifTransaction transaction;
+    /**
+     * number of transfers in transaction that wait for their counterpart
+     */
+    private int unresolved;
+
+    Pending(QifAccount account, QifTransaction transaction) {
+      this.account = account;
+      this.transaction = transaction;
+    }
+  }
+
+  /**
+   * the properties compared by {@link QifUtils#twoSidesOfTheSameTransfer}, from the point of view of the
+   * outgoing side. Amounts are compared with {@link BigDecimal#equals(Object)} as there, hence their scale needs
+   * to match.
+   */
+  private static class TransferKey {
+    private final String fromAccount;
+    private final String toAccount;
+    private final Date date;
+    private final BigDecimal amount;
+
+    TransferKey(String fromAccount, String toAccount, Date date, BigDecimal amount) {
+      this.fromAccount = fromAccount;
+      this.toAccount = toAccount;
+      this.date = date;
+      this.amount = amount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      TransferKey that = (TransferKey) o;
+      return fromAccount.equals(that.fromAccount) &&
+          toAccount.equals(that.toAccount) &&
+          (date != null ? date.equals(that.date) : that.date == null) &&
+          amount.equals(that.amount);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = fromAccount.hashCode();
+      result = 31 * result + toAccount.hashCode();
+      result = 31 * result + (date != null ? date.hashCode() : 0);
+      result = 31 * result + amount.hashCode();
+      return result;
+    }
+  }
+}
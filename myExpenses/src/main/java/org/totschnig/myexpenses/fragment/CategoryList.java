@@ -87,15 +87,16 @@ import java.util.Locale;
 import timber.log.Timber;
 
 import static org.totschnig.myexpenses.activity.AmountActivity.EXPENSE;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MAX_VALUE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM;
@@ -105,6 +106,10 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_THIS_WEEK;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_THIS_YEAR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_THIS_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
@@ -113,14 +118,9 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.THIS_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.THIS_YEAR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_VOID;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisMonth;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisWeek;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisYearOfWeekStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
 
 public class CategoryList extends SortableListFragment implements
     OnChildClickListener, OnGroupClickListener, LoaderManager.LoaderCallbacks<Cursor> {
@@ -614,16 +614,16 @@ public class CategoryList extends SortableListFragment implements
   }
 
   private String buildGroupingClause() {
-    String year = YEAR + " = " + mGroupingYear;
+    String year = KEY_YEAR + " = " + mGroupingYear;
     switch (mGrouping) {
       case YEAR:
         return year;
       case DAY:
-        return year + " AND " + DAY + " = " + mGroupingSecond;
+        return year + " AND " + KEY_DAY + " = " + mGroupingSecond;
       case WEEK:
-        return getYearOfWeekStart() + " = " + mGroupingYear + " AND " + getWeek() + " = " + mGroupingSecond;
+        return KEY_YEAR_OF_WEEK_START + " = " + mGroupingYear + " AND " + KEY_WEEK + " = " + mGroupingSecond;
       case MONTH:
-        return getYearOfMonthStart() + " = " + mGroupingYear + " AND " + getMonth() + " = " + mGroupingSecond;
+        return KEY_YEAR_OF_MONTH_START + " = " + mGroupingYear + " AND " + KEY_MONTH + " = " + mGroupingSecond;
       default:
         return null;
     }
@@ -98,6 +98,7 @@ import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.ui.SimpleCursorAdapter;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.AppDirHelper;
+import org.totschnig.myexpenses.util.PagingCursorLoader;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
@@ -158,6 +159,10 @@ public class TransactionList extends ContextualActionBarFragment implements
   private static final int TRANSACTION_CURSOR = 0;
   private static final int SUM_CURSOR = 1;
   private static final int GROUPING_CURSOR = 2;
+  /**
+   * number of transactions fetched at once while the list is scrolled
+   */
+  private static final int PAGE_SIZE = 200;
 
   public static final String KEY_FILTER = "filter";
   public static final String CATEGORY_SEPARATOR = " : ",
@@ -456,11 +461,11 @@ public class TransactionList extends ContextualActionBarFragment implements
             selectionArgs = Utils.joinArrays(selectionArgs, mFilter.getSelectionArgs(false));
           }
         }
-        cursorLoader = new CursorLoader(getActivity(),
+        cursorLoader = new PagingCursorLoader(getActivity(),
             mAccount.getExtendedUriForTransactionList(),
             mAccount.getExtendedProjectionForTransactionList(),
             selection + " AND " + KEY_PARENTID + " is null",
-            selectionArgs, null);
+            selectionArgs, PAGE_SIZE);
         break;
       //TODO: probably we can get rid of SUM_CURSOR, if we also aggregate unmapped transactions
       case SUM_CURSOR:
@@ -993,6 +998,8 @@ public class TransactionList extends ContextualActionBarFragment implements
           Bundle args = new Bundle();
           args.putInt(EditTextDialog.KEY_REQUEST_CODE, ProtectedFragmentActivity.FILTER_COMMENT_REQUEST);
           args.putString(EditTextDialog.KEY_DIALOG_TITLE, getString(R.string.search_comment));
+          args.putString(EditTextDialog.KEY_CHECKBOX_LABEL, getString(R.string.search_comment_word_prefix));
+          args.putBoolean(EditTextDialog.KEY_CHECKBOX_CHECKED, true);
           EditTextDialog.newInstance(args).show(getActivity().getSupportFragmentManager(), "COMMENT_FILTER");
         }
         return true;
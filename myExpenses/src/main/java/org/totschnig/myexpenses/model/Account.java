@@ -82,16 +82,13 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_P
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_AMOUNT_SUM;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_FUTURE_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_HELPER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_EXPENSE;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_INCOME;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_IN_PAST;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT_PART;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_TRANSFER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.selectFromAccountBalances;
 
 /**
  * Account represents an account stored in the database.
@@ -129,8 +126,8 @@ public class Account extends Model {
 
 
   public static final String[] PROJECTION_BASE, PROJECTION_EXTENDED, PROJECTION_FULL;
-  public static final String CURRENT_BALANCE_EXPR = KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART
-      + " AND " + WHERE_IN_PAST + " )";
+  public static final String CURRENT_BALANCE_EXPR = KEY_OPENING_BALANCE + " + "
+      + selectFromAccountBalances(KEY_TOTAL) + " - " + SELECT_FUTURE_SUM;
 
   static {
     PROJECTION_BASE = new String[]{
@@ -154,23 +151,15 @@ public class Account extends Model {
     PROJECTION_EXTENDED[baseLength] = CURRENT_BALANCE_EXPR + " AS " + KEY_CURRENT_BALANCE;
     PROJECTION_FULL = new String[baseLength + 13];
     System.arraycopy(PROJECTION_EXTENDED, 0, PROJECTION_FULL, 0, baseLength + 1);
-    PROJECTION_FULL[baseLength + 1] = "(" + SELECT_AMOUNT_SUM +
-        " AND " + WHERE_INCOME + ") AS " + KEY_SUM_INCOME;
-    PROJECTION_FULL[baseLength + 2] = "(" + SELECT_AMOUNT_SUM +
-        " AND " + WHERE_EXPENSE + ") AS " + KEY_SUM_EXPENSES;
-    PROJECTION_FULL[baseLength + 3] = "(" + SELECT_AMOUNT_SUM +
-        " AND " + WHERE_TRANSFER + ") AS " + KEY_SUM_TRANSFERS;
+    PROJECTION_FULL[baseLength + 1] = selectFromAccountBalances(KEY_SUM_INCOME) + " AS " + KEY_SUM_INCOME;
+    PROJECTION_FULL[baseLength + 2] = selectFromAccountBalances(KEY_SUM_EXPENSES) + " AS " + KEY_SUM_EXPENSES;
+    PROJECTION_FULL[baseLength + 3] = selectFromAccountBalances(KEY_SUM_TRANSFERS) + " AS " + KEY_SUM_TRANSFERS;
     PROJECTION_FULL[baseLength + 4] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " ) AS " + KEY_TOTAL;
+        KEY_OPENING_BALANCE + " + " + selectFromAccountBalances(KEY_TOTAL) + " AS " + KEY_TOTAL;
     PROJECTION_FULL[baseLength + 5] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " AND " + KEY_CR_STATUS + " IN " +
-            "('" + CrStatus.RECONCILED.name() + "','" + CrStatus.CLEARED.name() + "')" +
-            " ) AS " + KEY_CLEARED_TOTAL;
+        KEY_OPENING_BALANCE + " + " + selectFromAccountBalances(KEY_CLEARED_TOTAL) + " AS " + KEY_CLEARED_TOTAL;
     PROJECTION_FULL[baseLength + 6] =
-        KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM + " AND " + WHERE_NOT_SPLIT_PART +
-            " AND " + KEY_CR_STATUS + " = '" + CrStatus.RECONCILED.name() + "'  ) AS " + KEY_RECONCILED_TOTAL;
+        KEY_OPENING_BALANCE + " + " + selectFromAccountBalances(KEY_RECONCILED_TOTAL) + " AS " + KEY_RECONCILED_TOTAL;
     PROJECTION_FULL[baseLength + 7] = KEY_USAGES;
     PROJECTION_FULL[baseLength + 8] = "0 AS " + KEY_IS_AGGREGATE;//this is needed in the union with the aggregates to sort real accounts first
     PROJECTION_FULL[baseLength + 9] = HAS_FUTURE;
@@ -271,6 +260,9 @@ public class Account extends Model {
       android.accounts.Account syncAccount = GenericAccountService.GetAccount(account.getSyncAccountName());
       accountManager.setUserData(syncAccount, SyncAdapter.KEY_LAST_SYNCED_LOCAL(account.getId()), null);
       accountManager.setUserData(syncAccount, SyncAdapter.KEY_LAST_SYNCED_REMOTE(account.getId()), null);
+      accountManager.setUserData(syncAccount, SyncAdapter.KEY_BACKOFF_UNTIL(account.getId()), null);
+      accountManager.setUserData(syncAccount, SyncAdapter.KEY_FAILURES(account.getId()), null);
+      accountManager.setUserData(syncAccount, SyncAdapter.KEY_PRUNED(account.getId()), null);
     }
     ArrayList<ContentProviderOperation> ops = new ArrayList<>();
     ops.add(account.updateTransferPeersForTransactionDelete(
@@ -26,6 +26,12 @@ import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
@@ -97,6 +103,60 @@ public class Category extends Model {
       return result;
     }
   }
+
+  /**
+   * Looks for main categories with one of labels
+   * @return ids of the categories found, by label
+   */
+  public static Map<String, Long> findMainByLabels(Collection<String> labels) {
+    Map<String, Long> result = new HashMap<>();
+    queryIn(CONTENT_URI, new String[]{KEY_LABEL, KEY_ROWID}, KEY_PARENTID + " is null", KEY_LABEL, labels,
+        c -> result.put(c.getString(0), c.getLong(1)));
+    return result;
+  }
+
+  /**
+   * Looks for the subcategories of parents
+   * @return ids of the subcategories, by parent id and label
+   */
+  public static Map<Long, Map<String, Long>> findSubByParents(Collection<Long> parentIds) {
+    List<String> parentIdStrings = new ArrayList<>(parentIds.size());
+    for (Long parentId : parentIds) {
+      parentIdStrings.add(String.valueOf(parentId));
+    }
+    Map<Long, Map<String, Long>> result = new HashMap<>();
+    queryIn(CONTENT_URI, new String[]{KEY_PARENTID, KEY_LABEL, KEY_ROWID}, null, KEY_PARENTID, parentIdStrings,
+        c -> {
+          Map<String, Long> children = result.get(c.getLong(0));
+          if (children == null) {
+            children = new HashMap<>();
+            result.put(c.getLong(0), children);
+          }
+          children.put(c.getString(1), c.getLong(2));
+        });
+    return result;
+  }
+
+  /**
+   * creates all categories in one transaction, the parents must be main categories
+   * @return ids of the new records, or null if one of them already exists
+   */
+  public static long[] bulkWrite(List<Category> categories) {
+    ContentValues[] values = new ContentValues[categories.size()];
+    for (int i = 0; i < values.length; i++) {
+      Category category = categories.get(i);
+      values[i] = new ContentValues();
+      values[i].put(KEY_LABEL, category.label);
+      values[i].put(KEY_LABEL_NORMALIZED, Utils.normalize(category.label));
+      values[i].put(KEY_PARENTID, category.parentId);
+    }
+    try {
+      return bulkInsert(CONTENT_URI, values);
+    } catch (SQLiteConstraintException e) {
+      return null;
+    }
+  }
+
   public static boolean delete(long id) {
     return cr().delete(CONTENT_URI,
         KEY_PARENTID + " =  ?  OR " + KEY_ROWID + " = ?",
@@ -15,16 +15,37 @@
 
 package org.totschnig.myexpenses.model;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import com.annimon.stream.function.Consumer;
+
 import org.totschnig.myexpenses.MyApplication;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 public abstract class Model implements Serializable {
+  /**
+   * number of values bound in one IN clause, well below SQLite's limit of 999 parameters
+   */
+  private static final int IN_CHUNK_SIZE = 500;
   public String uuid;
   private Long id = 0L;
   private static ContentResolver cr;
@@ -57,5 +78,74 @@ public abstract class Model implements Serializable {
     return uuid;
   }
 
+  /**
+   * queries the rows where column matches one of values, with one query per chunk of {@link #IN_CHUNK_SIZE}
+   * values, and passes each row to consumer
+   *
+   * @param selection without parameters, combined with the IN clause by AND
+   */
+  static void queryIn(Uri uri, String[] projection, @Nullable String selection, String column,
+                      Collection<String> values, Consumer<Cursor> consumer) {
+    List<String> valueList = new ArrayList<>(values);
+    for (int start = 0; start < valueList.size(); start += IN_CHUNK_SIZE) {
+      List<String> chunk = valueList.subList(start, Math.min(start + IN_CHUNK_SIZE, valueList.size()));
+      StringBuilder in = new StringBuilder(column).append(" IN (");
+      for (int i = 0; i < chunk.size(); i++) {
+        in.append(i == 0 ? "?" : ",?");
+      }
+      in.append(")");
+      Cursor c = cr().query(uri, projection, selection == null ? in.toString() : selection + " AND " + in,
+          chunk.toArray(new String[chunk.size()]), null);
+      if (c == null) {
+        continue;
+      }
+      try {
+        while (c.moveToNext()) {
+          consumer.accept(c);
+        }
+      } finally {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * inserts all rows in one transaction through {@link TransactionProvider#METHOD_BULK_INSERT}, on Gingerbread,
+   * where {@link ContentResolver#call} is not available, through a batch of inserts
+   *
+   * @return the ids of the inserted rows
+   */
+  static long[] bulkInsert(Uri uri, ContentValues[] values) {
+    if (values.length == 0) {
+      return new long[0];
+    }
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+      return batchInsert(uri, values);
+    }
+    Bundle extras = new Bundle(1);
+    extras.putParcelableArray(TransactionProvider.KEY_VALUES, values);
+    Bundle result = cr().call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_INSERT,
+        uri.toString(), extras);
+    return result.getLongArray(TransactionProvider.KEY_IDS);
+  }
+
+  private static long[] batchInsert(Uri uri, ContentValues[] values) {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>(values.length);
+    for (ContentValues value : values) {
+      ops.add(ContentProviderOperation.newInsert(uri).withValues(value).build());
+    }
+    ContentProviderResult[] results;
+    try {
+      results = cr().applyBatch(TransactionProvider.AUTHORITY, ops);
+    } catch (RemoteException | OperationApplicationException e) {
+      throw new SQLiteException(e.getMessage());
+    }
+    long[] ids = new long[results.length];
+    for (int i = 0; i < results.length; i++) {
+      ids[i] = ContentUris.parseId(results[i].uri);
+    }
+    return ids;
+  }
+
   public abstract Uri save();
 }
@@ -23,6 +23,9 @@ import android.net.Uri;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.Utils;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import timber.log.Timber;
@@ -92,6 +95,35 @@ public class Payee extends Model {
       return result;
     }
   }
+  /**
+   * Looks for parties with one of names
+   * @return ids of the parties found, by name
+   */
+  public static Map<String, Long> findByNames(Collection<String> names) {
+    Map<String, Long> result = new HashMap<>();
+    queryIn(CONTENT_URI, new String[]{KEY_PAYEE_NAME, KEY_ROWID}, null, KEY_PAYEE_NAME, names,
+        c -> result.put(c.getString(0), c.getLong(1)));
+    return result;
+  }
+
+  /**
+   * creates parties for all names in one transaction
+   * @return ids of the new records, or null if one of them already exists
+   */
+  public static long[] bulkWrite(List<String> names) {
+    ContentValues[] values = new ContentValues[names.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new ContentValues();
+      values[i].put(KEY_PAYEE_NAME, names.get(i));
+      values[i].put(KEY_PAYEE_NAME_NORMALIZED, Utils.normalize(names.get(i)));
+    }
+    try {
+      return bulkInsert(CONTENT_URI, values);
+    } catch (SQLiteConstraintException e) {
+      return null;
+    }
+  }
+
   /**
    * @param name
    * @return id of new record, or -1, if it already exists
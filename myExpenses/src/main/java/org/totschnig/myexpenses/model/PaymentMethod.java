@@ -27,6 +27,7 @@ import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -90,13 +91,20 @@ public class PaymentMethod extends Model {
     }
   }
   public static String localizedLabelSqlColumn(Context ctx) {
+    return localizedLabelSqlColumn(ctx, KEY_LABEL);
+  }
+
+  /**
+   * @param column holding the label of a method, e.g. in a view joining the methods table
+   */
+  public static String localizedLabelSqlColumn(Context ctx, String column) {
     StringBuilder sb = new StringBuilder();
-    sb.append("CASE " + KEY_LABEL);
+    sb.append("CASE " + column);
     for (PreDefined method: PreDefined.values()) {
       sb.append(" WHEN '"+method.name()+"' THEN ");
       DatabaseUtils.appendEscapedSQLString(sb, ctx.getString(method.resId));
     }
-    sb.append(" ELSE " + KEY_LABEL + " END");
+    sb.append(" ELSE " + column + " END");
     return sb.toString();
   }
   public static String preDefinedName() {
@@ -287,4 +295,15 @@ public class PaymentMethod extends Model {
       return result;
     }
   }
+
+  /**
+   * Looks for methods with one of labels
+   * @return ids of the methods found, by label
+   */
+  public static Map<String, Long> findByLabels(Collection<String> labels) {
+    Map<String, Long> result = new HashMap<>();
+    queryIn(CONTENT_URI, new String[]{KEY_LABEL, KEY_ROWID}, null, KEY_LABEL, labels,
+        c -> result.put(c.getString(0), c.getLong(1)));
+    return result;
+  }
 }
@@ -43,14 +43,16 @@ import org.totschnig.myexpenses.util.TextUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
 import hirondelle.date4j.DateTime;
 import timber.log.Timber;
 
-import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.FULL_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.IS_SAME_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
@@ -97,15 +99,10 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.THIS_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.THIS_YEAR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TRANSFER_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TRANSFER_PEER_PARENT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisWeek;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getThisYearOfWeekStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeekEnd;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeekStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
 import static org.totschnig.myexpenses.provider.DbUtils.getLongOrNull;
 
 /**
@@ -166,12 +163,12 @@ public class Transaction extends Model {
         KEY_CR_STATUS,
         KEY_REFERENCE_NUMBER,
         KEY_PICTURE_URI,
-        getYearOfWeekStart() + " AS " + KEY_YEAR_OF_WEEK_START,
-        getYearOfMonthStart() + " AS " + KEY_YEAR_OF_MONTH_START,
-        YEAR + " AS " + KEY_YEAR,
-        getMonth() + " AS " + KEY_MONTH,
-        getWeek() + " AS " + KEY_WEEK,
-        DAY + " AS " + KEY_DAY,
+        KEY_YEAR_OF_WEEK_START,
+        KEY_YEAR_OF_MONTH_START,
+        KEY_YEAR,
+        KEY_MONTH,
+        KEY_WEEK,
+        KEY_DAY,
         getThisYearOfWeekStart() + " AS " + KEY_THIS_YEAR_OF_WEEK_START,
         THIS_YEAR + " AS " + KEY_THIS_YEAR,
         getThisWeek() + " AS " + KEY_THIS_WEEK,
@@ -884,4 +881,14 @@ public class Transaction extends Model {
       return result;
     }
   }
+
+  /**
+   * @return ids of the transactions found, by uuid
+   */
+  public static Map<String, Long> findByUuids(Collection<String> uuids) {
+    Map<String, Long> result = new HashMap<>();
+    queryIn(CONTENT_URI, new String[]{KEY_UUID, KEY_ROWID}, null, KEY_UUID, uuids,
+        c -> result.put(c.getString(0), c.getLong(1)));
+    return result;
+  }
 }
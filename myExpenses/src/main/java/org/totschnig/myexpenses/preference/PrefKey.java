@@ -78,7 +78,12 @@ public enum PrefKey {
   NEW_ACCOUNT_ENABLED("new_account_enabled"),
   SYNC_FREQUCENCY(R.string.pref_sync_frequency_key),
   SYNC_UPSELL_NOTIFICATION_SHOWN("sync_upsell_notification_shown"),
-  MANAGE_SYNC_BACKENDS(R.string.pref_manage_sync_backends_key);
+  MANAGE_SYNC_BACKENDS(R.string.pref_manage_sync_backends_key),
+  SYNC_COMPRESS_CHANGE_SETS(R.string.pref_sync_compress_change_sets_key),
+  SYNC_PRUNE_CHANGE_LOG(R.string.pref_sync_prune_change_log_key),
+  SYNC_PARALLEL_ACCOUNTS(R.string.pref_sync_parallel_accounts_key),
+  PERIODS_SIGNATURE("periods_signature"),
+  DB_SYNCHRONOUS("db_synchronous");
 
   private int resId = 0;
   private String key = null;
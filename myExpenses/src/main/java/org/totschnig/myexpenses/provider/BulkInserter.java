@@ -0,0 +1,78 @@
+package org.totschnig.myexpenses.provider;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inserts rows into one table, with one statement compiled per set of columns, instead of one per row as
+ * {@link SQLiteDatabase#insertOrThrow(String, String, ContentValues)} does. Must be closed after use.
+ */
+class BulkInserter {
+  private final SQLiteDatabase db;
+  private final String table;
+  private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+  BulkInserter(SQLiteDatabase db, String table) {
+    this.db = db;
+    this.table = table;
+  }
+
+  /**
+   * @return the id of the inserted row
+   * @throws SQLException if the row could not be inserted
+   */
+  long insert(ContentValues values) {
+    List<String> columns = new ArrayList<>(values.size());
+    for (Map.Entry<String, Object> entry : values.valueSet()) {
+      columns.add(entry.getKey());
+    }
+    Collections.sort(columns);
+    String key = TextUtils.join(",", columns);
+    SQLiteStatement statement = statements.get(key);
+    if (statement == null) {
+      statement = db.compileStatement("INSERT INTO " + table + " (" + key + ") VALUES ("
+          + TextUtils.join(",", Collections.nCopies(columns.size(), "?")) + ")");
+      statements.put(key, statement);
+    }
+    for (int i = 0; i < columns.size(); i++) {
+      bind(statement, i + 1, values.get(columns.get(i)));
+    }
+    long id = statement.executeInsert();
+    if (id == -1) {
+      throw new SQLException("Failed to insert row into " + table);
+    }
+    return id;
+  }
+
+  static void bind(SQLiteStatement statement, int index, Object value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else if (value instanceof Double || value instanceof Float) {
+      statement.bindDouble(index, ((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      statement.bindLong(index, ((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      statement.bindLong(index, (Boolean) value ? 1 : 0);
+    } else if (value instanceof byte[]) {
+      statement.bindBlob(index, (byte[]) value);
+    } else {
+      statement.bindString(index, value.toString());
+    }
+  }
+
+  void close() {
+    for (SQLiteStatement statement : statements.values()) {
+      statement.close();
+    }
+    statements.clear();
+  }
+}
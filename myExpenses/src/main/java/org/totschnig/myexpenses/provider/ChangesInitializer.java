@@ -0,0 +1,205 @@
+package org.totschnig.myexpenses.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_ID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PICTURE_URI;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CHANGES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_INIT_PROGRESS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+
+/**
+ * Initializes the change log of an account for sync in chunks, each in its own transaction, so that the write
+ * lock is released in between. First, UUIDs are assigned to transactions that do not have one yet. Then the
+ * transactions of the account are copied into {@link DatabaseConstants#TABLE_CHANGES}, each chunk with its own
+ * sync sequence number, so that it can be sent as a change set of bounded size. Split parts are copied together
+ * with their parent.
+ * <p>
+ * Progress is recorded in {@link DatabaseConstants#TABLE_SYNC_INIT_PROGRESS}, so that an initialization
+ * interrupted by process death is resumed. The sync sequence of the account is set when copying starts, hence
+ * changes made in between are logged by the triggers. Changes logged for transactions that have not been
+ * copied yet are superseded by the copy.
+ */
+class ChangesInitializer {
+  static final int CHUNK_SIZE = 500;
+  /**
+   * a random (version 4) UUID in the format of {@link java.util.UUID#toString()}
+   */
+  static final String UUID_EXPRESSION = "lower(hex(randomblob(4))) || '-' || lower(hex(randomblob(2))) || '-4' || "
+      + "substr(lower(hex(randomblob(2))), 2) || '-' || substr('89ab', 1 + (random() & 3), 1) || "
+      + "substr(lower(hex(randomblob(2))), 2) || '-' || lower(hex(randomblob(6)))";
+
+  private final SQLiteDatabase db;
+  private final String[] accountIdBindArgs;
+
+  ChangesInitializer(SQLiteDatabase db, long accountId) {
+    this.db = db;
+    this.accountIdBindArgs = new String[]{String.valueOf(accountId)};
+  }
+
+  /**
+   * @return the number of transactions processed, 0 once the initialization is complete
+   */
+  int runChunk() {
+    int count = assignUuids();
+    if (count > 0) {
+      return count;
+    }
+    db.beginTransaction();
+    try {
+      long[] ids = selectIds("SELECT " + KEY_ROWID + " FROM " + TABLE_TRANSACTIONS + " WHERE "
+          + KEY_ACCOUNTID + " = ? AND " + KEY_PARENTID + " IS NULL AND " + KEY_ROWID + " > " + getOrStartProgress()
+          + " ORDER BY " + KEY_ROWID + " LIMIT " + CHUNK_SIZE, accountIdBindArgs);
+      if (ids.length == 0) {
+        db.delete(TABLE_SYNC_INIT_PROGRESS, KEY_ACCOUNTID + " = ?", accountIdBindArgs);
+      } else {
+        String idList = join(ids);
+        String chunk = KEY_ROWID + " IN (" + idList + ") OR " + KEY_PARENTID + " IN (" + idList + ")";
+        db.execSQL("DELETE FROM " + TABLE_CHANGES + " WHERE " + KEY_ACCOUNTID + " = ? AND " + KEY_UUID
+            + " IN (SELECT " + KEY_UUID + " FROM " + TABLE_TRANSACTIONS + " WHERE " + chunk + ")", accountIdBindArgs);
+        copy(chunk);
+        db.execSQL("UPDATE " + TABLE_SYNC_INIT_PROGRESS + " SET " + KEY_LAST_ID + " = " + ids[ids.length - 1]
+            + " WHERE " + KEY_ACCOUNTID + " = ?", accountIdBindArgs);
+        db.execSQL("UPDATE " + TABLE_ACCOUNTS + " SET " + KEY_SYNC_SEQUENCE_LOCAL + " = "
+            + KEY_SYNC_SEQUENCE_LOCAL + " + 1 WHERE " + KEY_ROWID + " = ?", accountIdBindArgs);
+        count = ids.length;
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return count;
+  }
+
+  /**
+   * transfer peers share their UUID, it is generated for the peer with the lower id
+   */
+  private int assignUuids() {
+    db.beginTransaction();
+    try {
+      long[] ids = selectIds("SELECT " + KEY_ROWID + " FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_UUID
+          + " IS NULL AND (" + KEY_TRANSFER_PEER + " IS NULL OR " + KEY_ROWID + " < " + KEY_TRANSFER_PEER
+          + ") LIMIT " + CHUNK_SIZE, null);
+      if (ids.length > 0) {
+        String idList = join(ids);
+        db.execSQL("UPDATE " + TABLE_TRANSACTIONS + " SET " + KEY_UUID + " = " + UUID_EXPRESSION
+            + " WHERE " + KEY_ROWID + " IN (" + idList + ")");
+        db.execSQL("UPDATE " + TABLE_TRANSACTIONS + " SET " + KEY_UUID + " = (SELECT " + KEY_UUID + " FROM "
+            + TABLE_TRANSACTIONS + " peer WHERE peer." + KEY_ROWID + " = " + TABLE_TRANSACTIONS + "."
+            + KEY_TRANSFER_PEER + ") WHERE " + KEY_TRANSFER_PEER + " IN (" + idList + ")");
+      }
+      db.setTransactionSuccessful();
+      return ids.length;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * a previous initialization is resumed only if the account has not been unlinked from sync in between,
+   * which resets its sync sequence
+   *
+   * @return the id of the last transaction already copied
+   */
+  private long getOrStartProgress() {
+    Cursor c = db.rawQuery("SELECT " + KEY_LAST_ID + " FROM " + TABLE_SYNC_INIT_PROGRESS + " WHERE "
+        + KEY_ACCOUNTID + " = ? AND (SELECT " + KEY_SYNC_SEQUENCE_LOCAL + " FROM " + TABLE_ACCOUNTS + " WHERE "
+        + KEY_ROWID + " = " + KEY_ACCOUNTID + ") > 0", accountIdBindArgs);
+    try {
+      if (c.moveToFirst()) {
+        return c.getLong(0);
+      }
+    } finally {
+      c.close();
+    }
+    db.delete(TABLE_CHANGES, KEY_ACCOUNTID + " = ?", accountIdBindArgs);
+    db.execSQL("INSERT OR REPLACE INTO " + TABLE_SYNC_INIT_PROGRESS + " (" + KEY_ACCOUNTID + ", " + KEY_LAST_ID
+        + ") VALUES (?, 0)", accountIdBindArgs);
+    db.execSQL("UPDATE " + TABLE_ACCOUNTS + " SET " + KEY_SYNC_SEQUENCE_LOCAL + " = 1 WHERE " + KEY_ROWID + " = ?",
+        accountIdBindArgs);
+    return 0;
+  }
+
+  private void copy(String chunk) {
+    db.execSQL("INSERT INTO " + TABLE_CHANGES + "("
+        + KEY_TYPE + ", "
+        + KEY_SYNC_SEQUENCE_LOCAL + ", "
+        + KEY_UUID + ", "
+        + KEY_PARENT_UUID + ", "
+        + KEY_COMMENT + ", "
+        + KEY_DATE + ", "
+        + KEY_AMOUNT + ", "
+        + KEY_CATID + ", "
+        + KEY_ACCOUNTID + ","
+        + KEY_PAYEEID + ", "
+        + KEY_TRANSFER_ACCOUNT + ", "
+        + KEY_METHODID + ","
+        + KEY_CR_STATUS + ", "
+        + KEY_REFERENCE_NUMBER + ", "
+        + KEY_PICTURE_URI
+        + ") SELECT "
+        + "'" + TransactionChange.Type.created.name() + "', "
+        + "(SELECT " + KEY_SYNC_SEQUENCE_LOCAL + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = ?), "
+        + KEY_UUID + ", "
+        + "CASE WHEN " + KEY_PARENTID + " IS NULL THEN NULL ELSE " +
+        "(SELECT " + KEY_UUID + " FROM " + TABLE_TRANSACTIONS + " parent where "
+        + KEY_ROWID + " = " + TABLE_TRANSACTIONS + "." + KEY_PARENTID + ") END, "
+        + KEY_COMMENT + ", "
+        + KEY_DATE + ", "
+        + KEY_AMOUNT + ", "
+        + KEY_CATID + ", "
+        + KEY_ACCOUNTID + ", "
+        + KEY_PAYEEID + ", "
+        + KEY_TRANSFER_ACCOUNT + ", "
+        + KEY_METHODID + ","
+        + KEY_CR_STATUS + ", "
+        + KEY_REFERENCE_NUMBER + ", "
+        + KEY_PICTURE_URI
+        + " FROM " + TABLE_TRANSACTIONS + " WHERE " + chunk, accountIdBindArgs);
+  }
+
+  private long[] selectIds(String sql, String[] selectionArgs) {
+    Cursor c = db.rawQuery(sql, selectionArgs);
+    try {
+      long[] ids = new long[c.getCount()];
+      for (int i = 0; c.moveToNext(); i++) {
+        ids[i] = c.getLong(0);
+      }
+      return ids;
+    } finally {
+      c.close();
+    }
+  }
+
+  private static String join(long[] ids) {
+    StringBuilder builder = new StringBuilder();
+    for (long id : ids) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(id);
+    }
+    return builder.toString();
+  }
+}
@@ -15,7 +15,6 @@
 
 package org.totschnig.myexpenses.provider;
 
-import org.totschnig.myexpenses.fragment.TransactionList;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transaction.CrStatus;
@@ -24,6 +23,7 @@ import org.totschnig.myexpenses.util.Utils;
 
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * @author Michael Totschnig
@@ -141,6 +141,7 @@ public class DatabaseConstants {
   public static final String KEY_SUM_INCOME = "sum_income";
   public static final String KEY_SUM_TRANSFERS = "sum_transfers";
   public static final String KEY_INTERIM_BALANCE = "interim_balance";
+  public static final String KEY_DELTA = "delta";
   public static final String KEY_MAPPED_CATEGORIES = "mapped_categories";
   public static final String KEY_MAPPED_PAYEES = "mapped_payees";
   public static final String KEY_MAPPED_METHODS = "mapped_methods";
@@ -168,6 +169,12 @@ public class DatabaseConstants {
   public static final String KEY_ACCOUNT_LABEL = "account_label";
   public static final String KEY_IS_SAME_CURRENCY = "is_same_currency";
   public static final String KEY_TIMESTAMP = "timestamp";
+  public static final String KEY_CLEARED_COUNT = "cleared_count";
+  public static final String KEY_EXPORTED_COUNT = "exported_count";
+  public static final String KEY_PATH_MAIN = "path_main";
+  public static final String KEY_PATH_SUB = "path_sub";
+  public static final String KEY_PATH_FULL = "path_full";
+  public static final String KEY_PATH_NORMALIZED = "path_normalized";
 
   /**
    * column alias for the second group (month or week)
@@ -213,6 +220,27 @@ public class DatabaseConstants {
   public static final String TABLE_PLAN_INSTANCE_STATUS = "planinstance_transaction";
   public static final String TABLE_STALE_URIS = "stale_uris";
   public static final String TABLE_CHANGES = "changes";
+  /**
+   * per account aggregates over transactions, maintained by triggers
+   */
+  public static final String TABLE_ACCOUNT_BALANCES = "account_balances";
+  /**
+   * main, sub and full label for each category, maintained by triggers and joined into the transaction
+   * and template views
+   */
+  public static final String TABLE_CATEGORY_PATHS = "category_paths";
+  /**
+   * full text index over comment, payee, reference number and category of transactions, with the id of the
+   * transaction as docid, maintained by triggers
+   */
+  public static final String TABLE_TRANSACTIONS_FTS = "transactions_fts";
+  public static final String KEY_DOCID = "docid";
+  /**
+   * per account, the id of the last transaction copied into {@link #TABLE_CHANGES} while the change log of the
+   * account is initialized for sync
+   */
+  public static final String TABLE_SYNC_INIT_PROGRESS = "sync_init_progress";
+  public static final String KEY_LAST_ID = "last_id";
   /**
    * used on backup and restore
    */
@@ -221,7 +249,8 @@ public class DatabaseConstants {
   /**
    * an SQL CASE expression for transactions
    * that gives either the category for normal transactions
-   * or the account for transfers
+   * or the account for transfers, category labels are read from
+   * {@link #TABLE_CATEGORY_PATHS} joined into the view
    */
   public static final String LABEL_MAIN =
     "CASE WHEN " +
@@ -230,24 +259,13 @@ public class DatabaseConstants {
     "  (SELECT " + KEY_LABEL + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = " + KEY_TRANSFER_ACCOUNT + ") " +
     "WHEN " +
     KEY_CATID +
-    " THEN " +
-    "  CASE WHEN " +
-    "    (SELECT " + KEY_PARENTID + " FROM " + TABLE_CATEGORIES + " WHERE " + KEY_ROWID  + " = " + KEY_CATID + ") " +
-    "  THEN " +
-    "    (SELECT " + KEY_LABEL + " FROM " + TABLE_CATEGORIES
-        + " WHERE  " + KEY_ROWID + " = (SELECT " + KEY_PARENTID + " FROM " + TABLE_CATEGORIES
-             + " WHERE " + KEY_ROWID  + " = " + KEY_CATID + ")) " +
-    "  ELSE " +
-    "    (SELECT " + KEY_LABEL + " FROM " + TABLE_CATEGORIES + " WHERE " + KEY_ROWID  + " = " + KEY_CATID + ") " +
-    "  END " +
+    " THEN " + KEY_PATH_MAIN + " " +
     "END AS " + KEY_LABEL_MAIN;
 
  public static final String LABEL_SUB =
     "CASE WHEN " +
-    "  " + KEY_TRANSFER_PEER + " is null AND cat_id AND (SELECT " + KEY_PARENTID + " FROM " + TABLE_CATEGORIES
-        + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ") " +
-    "THEN " +
-    "  (SELECT " + KEY_LABEL + " FROM " + TABLE_CATEGORIES  + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ") " +
+    "  " + KEY_TRANSFER_PEER + " is null AND cat_id " +
+    "THEN " + KEY_PATH_SUB + " " +
     "END AS " + KEY_LABEL_SUB;
 
   /**
@@ -255,24 +273,10 @@ public class DatabaseConstants {
    */
   public static final String LABEL_SUB_TEMPLATE =
       "CASE WHEN " +
-          "  " + KEY_TRANSFER_PEER + " = 0 AND cat_id AND (SELECT " + KEY_PARENTID + " FROM " + TABLE_CATEGORIES
-          + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ") " +
-          "THEN " +
-          "  (SELECT " + KEY_LABEL + " FROM " + TABLE_CATEGORIES  + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ") " +
+          "  " + KEY_TRANSFER_PEER + " = 0 AND cat_id " +
+          "THEN " + KEY_PATH_SUB + " " +
           "END AS " + KEY_LABEL_SUB;
 
-  private static final String FULL_CAT_CASE =
-      " CASE WHEN " +
-      " (SELECT " + KEY_PARENTID + " FROM " + TABLE_CATEGORIES + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ") " +
-      " THEN " +
-      " (SELECT " + KEY_LABEL + " FROM " + TABLE_CATEGORIES + " WHERE " + KEY_ROWID + " = " +
-      " (SELECT " + KEY_PARENTID + " FROM " + TABLE_CATEGORIES + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ")) " +
-      " || '" + TransactionList.CATEGORY_SEPARATOR +
-      "' ELSE '' END || " +
-      " (SELECT " + KEY_LABEL + " FROM " + TABLE_CATEGORIES + " WHERE " + KEY_ROWID + " = " + KEY_CATID + ")";
-
-  //public static final String CAT_AS_LABEL = FULL_CAT_CASE + " AS " + KEY_LABEL;
-
   public static final String TRANSFER_ACCOUNT_UUUID = "(SELECT " + KEY_UUID + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = " + KEY_TRANSFER_ACCOUNT + ") AS " + KEY_TRANSFER_ACCOUNT;
 
   /**
@@ -285,7 +289,19 @@ public class DatabaseConstants {
       " THEN " +
         "  (SELECT " + KEY_LABEL + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = " + KEY_TRANSFER_ACCOUNT + ") " +
       " ELSE " +
-        FULL_CAT_CASE +
+        KEY_PATH_FULL +
+      " END AS  " + KEY_LABEL;
+
+  /**
+   * {@link #FULL_LABEL} for {@link #VIEW_CHANGES_EXTENDED}, which does not join {@link #TABLE_CATEGORY_PATHS}
+   */
+  public static final String FULL_LABEL_CHANGES =
+      "CASE WHEN " +
+          "  " + KEY_TRANSFER_ACCOUNT + " " +
+      " THEN " +
+        "  (SELECT " + KEY_LABEL + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = " + KEY_TRANSFER_ACCOUNT + ") " +
+      " ELSE " +
+        "  (SELECT " + KEY_PATH_FULL + " FROM " + TABLE_CATEGORY_PATHS + " WHERE " + KEY_ROWID + " = " + VIEW_CHANGES_EXTENDED + "." + KEY_CATID + ") " +
       " END AS  " + KEY_LABEL;
 
 
@@ -327,19 +343,32 @@ public class DatabaseConstants {
       "abs(sum(CASE WHEN " + WHERE_EXPENSE + " THEN " + KEY_AMOUNT + " ELSE 0 END)) AS " + KEY_SUM_EXPENSES;
   public static final String TRANSFER_SUM =
       "sum(CASE WHEN " + WHERE_TRANSFER + " THEN " + KEY_AMOUNT + " ELSE 0 END) AS " + KEY_SUM_TRANSFERS;
+  /**
+   * @param column one of the aggregate columns of {@link #TABLE_ACCOUNT_BALANCES}
+   * @return subquery that looks up the column for the account in the outer query
+   */
+  public static String selectFromAccountBalances(String column) {
+    return "(SELECT " + column + " FROM " + TABLE_ACCOUNT_BALANCES + " WHERE " + TABLE_ACCOUNT_BALANCES + "."
+        + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + ")";
+  }
   public static final String HAS_CLEARED =
-      "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
-          + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_CR_STATUS + " = '" + CrStatus.CLEARED.name() + "' LIMIT 1)) AS " + KEY_HAS_CLEARED;
+      "(" + selectFromAccountBalances(KEY_CLEARED_COUNT) + " > 0) AS " + KEY_HAS_CLEARED;
   public static final String HAS_EXPORTED =
-      "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
-          + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_STATUS + " = " + STATUS_EXPORTED + " LIMIT 1)) AS " + KEY_HAS_EXPORTED;
+      "(" + selectFromAccountBalances(KEY_EXPORTED_COUNT) + " > 0) AS " + KEY_HAS_EXPORTED;
   public static final String HAS_FUTURE =
       "(SELECT EXISTS(SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE "
           + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + " AND " + KEY_DATE + " > strftime('%s','now')  LIMIT 1)) AS " + KEY_HAS_FUTURE;
-  public static final String SELECT_AMOUNT_SUM = "SELECT coalesce(sum(" + KEY_AMOUNT + "),0) FROM "
-      + VIEW_COMMITTED
+  /**
+   * the sum of transactions with future dates can not be maintained by triggers, it is
+   * subtracted from {@link #KEY_TOTAL} stored in {@link #TABLE_ACCOUNT_BALANCES} when calculating the current balance
+   */
+  public static final String SELECT_FUTURE_SUM = "(SELECT coalesce(sum(" + KEY_AMOUNT + "),0) FROM "
+      + TABLE_TRANSACTIONS
       + " WHERE " + KEY_ACCOUNTID + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID
-      + " AND " + WHERE_NOT_VOID;
+      + " AND " + KEY_DATE + " > strftime('%s','now')"
+      + " AND " + KEY_STATUS + " != " + STATUS_UNCOMMITTED
+      + " AND " + WHERE_NOT_VOID
+      + " AND " + WHERE_NOT_SPLIT_PART + ")";
   //exclude split_catid
   public static final String MAPPED_CATEGORIES =
       "count(CASE WHEN  " + KEY_CATID + ">0 AND " + WHERE_NOT_VOID + " THEN 1 ELSE null END) as " + KEY_MAPPED_CATEGORIES;
@@ -407,6 +436,15 @@ public class DatabaseConstants {
     return WEEK_END;
   }
 
+  /**
+   * identifies the settings the stored period columns of {@link #TABLE_TRANSACTIONS} are calculated with,
+   * they need to be recalculated if week start, month start or time zone change
+   */
+  public static String getPeriodsSignature() {
+    ensureLocalized();
+    return weekStartsOn + ":" + monthStartsOn + ":" + TimeZone.getDefault().getID();
+  }
+
   /**
    * we want to find out the week range when we are given a week number
    * we find out the first day in the year, that is the firstdayofweek of the locale and is
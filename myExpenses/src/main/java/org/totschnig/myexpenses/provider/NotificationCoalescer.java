@@ -0,0 +1,112 @@
+package org.totschnig.myexpenses.provider;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Collects the change notifications of {@link TransactionProvider}. Inside a batch, they are dispatched once
+ * per URI when the outermost batch of the thread ends. Outside of batches, they are debounced per URI.
+ */
+class NotificationCoalescer {
+  static final long DEBOUNCE_MILLIS = 100;
+
+  private final Context context;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final ThreadLocal<Batch> batch = new ThreadLocal<>();
+  /**
+   * notifications waiting for the debounce delay, mapped to their syncToNetwork flag, guarded by this
+   */
+  private final Map<Uri, Boolean> debounced = new HashMap<>();
+  private final AtomicInteger requestedCount = new AtomicInteger();
+  private final AtomicInteger dispatchedCount = new AtomicInteger();
+
+  private static class Batch {
+    int depth;
+    final Map<Uri, Boolean> pending = new LinkedHashMap<>();
+  }
+
+  NotificationCoalescer(Context context) {
+    this.context = context;
+  }
+
+  private static void merge(Map<Uri, Boolean> map, Uri uri, boolean syncToNetwork) {
+    Boolean previous = map.get(uri);
+    map.put(uri, syncToNetwork || (previous != null && previous));
+  }
+
+  void notifyChange(final Uri uri, boolean syncToNetwork) {
+    requestedCount.incrementAndGet();
+    Batch current = batch.get();
+    if (current != null) {
+      merge(current.pending, uri, syncToNetwork);
+      return;
+    }
+    synchronized (this) {
+      boolean scheduled = debounced.containsKey(uri);
+      merge(debounced, uri, syncToNetwork);
+      if (scheduled) {
+        return;
+      }
+    }
+    handler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        Boolean syncToNetwork;
+        synchronized (NotificationCoalescer.this) {
+          syncToNetwork = debounced.remove(uri);
+        }
+        if (syncToNetwork != null) {
+          dispatch(uri, syncToNetwork);
+        }
+      }
+    }, DEBOUNCE_MILLIS);
+  }
+
+  /**
+   * batches can be nested, each call must be followed by a call to {@link #endBatch()} on the same thread
+   */
+  void beginBatch() {
+    Batch current = batch.get();
+    if (current == null) {
+      current = new Batch();
+      batch.set(current);
+    }
+    current.depth++;
+  }
+
+  void endBatch() {
+    Batch current = batch.get();
+    if (current == null) {
+      throw new IllegalStateException("No batch in progress");
+    }
+    if (--current.depth == 0) {
+      batch.remove();
+      for (Map.Entry<Uri, Boolean> entry : current.pending.entrySet()) {
+        dispatch(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void dispatch(Uri uri, boolean syncToNetwork) {
+    dispatchedCount.incrementAndGet();
+    Timber.d("Notifying %s  syncToNetwork %s", uri.toString(), syncToNetwork ? "true" : "false");
+    context.getContentResolver().notifyChange(uri, null, syncToNetwork);
+  }
+
+  int getRequestedCount() {
+    return requestedCount.get();
+  }
+
+  int getDispatchedCount() {
+    return dispatchedCount.get();
+  }
+}
@@ -31,11 +31,13 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.support.v4.content.ContextCompat;
+import android.text.TextUtils;
 
 import com.android.calendar.CalendarContractCompat.Events;
 
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
+import org.totschnig.myexpenses.fragment.TransactionList;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.AccountType;
 import org.totschnig.myexpenses.model.CurrencyEnum;
@@ -54,60 +56,85 @@ import org.totschnig.myexpenses.util.Utils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Currency;
 import java.util.Locale;
 
 import timber.log.Timber;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNT_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_COUNT;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CODE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DOCID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXPORTED_COUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_NUMBERED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL_NORMALIZED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_ID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_LABEL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH_FULL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH_MAIN;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH_NORMALIZED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH_SUB;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PICTURE_URI;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLAN_EXECUTION;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_KEY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_INCOME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_TRANSFERS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TEMPLATEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TIMESTAMP;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTTYES_METHODS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_BALANCES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORY_PATHS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CHANGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CURRENCIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_EVENT_CACHE;
@@ -115,9 +142,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_STALE_URIS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_INIT_PROGRESS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_ALL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_CHANGES_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED;
@@ -125,9 +154,15 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITTED;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
 
 public class TransactionDatabase extends SQLiteOpenHelper {
-  public static final int DATABASE_VERSION = 63;
+  public static final int DATABASE_VERSION = 70;
+  private static final String DEFAULT_SYNCHRONOUS = "NORMAL";
   private static final String DATABASE_NAME = "data";
   private Context mCtx;
 
@@ -141,6 +176,8 @@ public class TransactionDatabase extends SQLiteOpenHelper {
    * KEY_STATUS has STATUS_EXPORTED if transaction is exported, and
    * STATUS_UNCOMMITTED for transactions that are created during editing of splits
    * KEY_CR_STATUS stores cleared/reconciled
+   * KEY_YEAR, KEY_YEAR_OF_WEEK_START, KEY_WEEK, KEY_YEAR_OF_MONTH_START, KEY_MONTH and KEY_DAY store the periods
+   * the transaction falls into, they are maintained by triggers, see {@link #refreshPeriods(SQLiteDatabase)}
    */
   private static final String DATABASE_CREATE =
       "CREATE TABLE " + TABLE_TRANSACTIONS + "( "
@@ -159,7 +196,13 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           + KEY_CR_STATUS + " text not null check (" + KEY_CR_STATUS + " in (" + Transaction.CrStatus.JOIN + ")) default '" + Transaction.CrStatus.RECONCILED.name() + "',"
           + KEY_REFERENCE_NUMBER + " text, "
           + KEY_PICTURE_URI + " text, "
-          + KEY_UUID + " text);";
+          + KEY_UUID + " text, "
+          + KEY_YEAR + " integer, "
+          + KEY_YEAR_OF_WEEK_START + " integer, "
+          + KEY_WEEK + " integer, "
+          + KEY_YEAR_OF_MONTH_START + " integer, "
+          + KEY_MONTH + " integer, "
+          + KEY_DAY + " integer);";
 
   private static final String TRANSACTIONS_UUID_INDEX_CREATE = "CREATE UNIQUE INDEX transactions_account_uuid ON "
       + TABLE_TRANSACTIONS + "(" + KEY_ACCOUNTID + "," + KEY_UUID + "," + KEY_STATUS + ")";
@@ -173,12 +216,21 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     if (tableName.equals(TABLE_TRANSACTIONS)) {
       stringBuilder.append(", ").append(TABLE_PLAN_INSTANCE_STATUS).append(".").append(KEY_TEMPLATEID);
     }
+    if (!tableName.equals(TABLE_CHANGES)) {
+      stringBuilder.append(", ").append(KEY_PATH_MAIN).append(", ").append(KEY_PATH_SUB).append(", ")
+          .append(KEY_PATH_FULL).append(", ").append(KEY_PATH_NORMALIZED);
+    }
 
     stringBuilder.append(" FROM ").append(tableName).append(" LEFT JOIN ").append(TABLE_PAYEES).append(" ON ")
         .append(KEY_PAYEEID).append(" = ").append(TABLE_PAYEES).append(".").append(KEY_ROWID).append(" LEFT JOIN ")
         .append(TABLE_METHODS).append(" ON ").append(KEY_METHODID).append(" = ").append(TABLE_METHODS)
         .append(".").append(KEY_ROWID);
 
+    if (!tableName.equals(TABLE_CHANGES)) {
+      stringBuilder.append(" LEFT JOIN ").append(TABLE_CATEGORY_PATHS).append(" ON ").append(KEY_CATID)
+          .append(" = ").append(TABLE_CATEGORY_PATHS).append(".").append(KEY_ROWID);
+    }
+
     if (tableName.equals(TABLE_TRANSACTIONS)) {
       stringBuilder.append(" LEFT JOIN ").append(TABLE_PLAN_INSTANCE_STATUS)
           .append(" ON ").append(tableName).append(".").append(KEY_ROWID).append(" = ")
@@ -205,6 +257,10 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     if (tableName.equals(TABLE_TRANSACTIONS)) {
       stringBuilder.append(", ").append(TABLE_PLAN_INSTANCE_STATUS).append(".").append(KEY_TEMPLATEID);
     }
+    if (!tableName.equals(TABLE_CHANGES)) {
+      stringBuilder.append(", ").append(KEY_PATH_MAIN).append(", ").append(KEY_PATH_SUB).append(", ")
+          .append(KEY_PATH_FULL).append(", ").append(KEY_PATH_NORMALIZED);
+    }
 
     stringBuilder.append(" FROM ").append(tableName).append(" LEFT JOIN ").append(TABLE_PAYEES).append(" ON ")
         .append(KEY_PAYEEID).append(" = ").append(TABLE_PAYEES).append(".").append(KEY_ROWID)
@@ -212,6 +268,11 @@ public class TransactionDatabase extends SQLiteOpenHelper {
         .append(TABLE_METHODS).append(" ON ").append(KEY_METHODID).append(" = ").append(TABLE_METHODS)
         .append(".").append(KEY_ROWID);
 
+    if (!tableName.equals(TABLE_CHANGES)) {
+      stringBuilder.append(" LEFT JOIN ").append(TABLE_CATEGORY_PATHS).append(" ON ").append(KEY_CATID)
+          .append(" = ").append(TABLE_CATEGORY_PATHS).append(".").append(KEY_ROWID);
+    }
+
     if (!tableName.equals(TABLE_CHANGES)) {
       stringBuilder.append(" LEFT JOIN ").append(TABLE_ACCOUNTS).append(" ON ").append(KEY_ACCOUNTID)
           .append(" = ").append(TABLE_ACCOUNTS).append(".").append(KEY_ROWID);
@@ -480,6 +541,7 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           + " AND new." + KEY_STATUS + " != " + STATUS_UNCOMMITTED
           + " AND new." + KEY_ACCOUNTID + " = old." + KEY_ACCOUNTID //if account is changed, we need to delete transaction from one account, and add it to the other
           + " AND new." + KEY_TRANSFER_PEER + " IS old." + KEY_TRANSFER_PEER //if a new transfer is inserted, the first peer is updated, after second one is added, and we can skip this update here
+          + " AND " + buildPeriodsUnchanged() //updates of the period columns are not relevant for sync
           + " BEGIN INSERT INTO " + TABLE_CHANGES + "("
           + KEY_TYPE + ","
           + KEY_SYNC_SEQUENCE_LOCAL + ", "
@@ -512,6 +574,76 @@ public class TransactionDatabase extends SQLiteOpenHelper {
           + buildChangeTriggerDefinitionForColumn(KEY_PICTURE_URI) + "); END;";
 
 
+  private static final String[] PERIOD_COLUMNS = {
+      KEY_YEAR, KEY_YEAR_OF_WEEK_START, KEY_WEEK, KEY_YEAR_OF_MONTH_START, KEY_MONTH, KEY_DAY
+  };
+
+  /**
+   * the expressions depend on the localized settings in {@link DatabaseConstants}, they are in the same order as
+   * {@link #PERIOD_COLUMNS}
+   */
+  private static String[] buildPeriodExpressions() {
+    return new String[]{YEAR, getYearOfWeekStart(), getWeek(), getYearOfMonthStart(), getMonth(), DAY};
+  }
+
+  private static String buildPeriodsUnchanged() {
+    StringBuilder stringBuilder = new StringBuilder("(");
+    for (int i = 0; i < PERIOD_COLUMNS.length; i++) {
+      if (i > 0) {
+        stringBuilder.append(" AND ");
+      }
+      stringBuilder.append("new.").append(PERIOD_COLUMNS[i]).append(" IS old.").append(PERIOD_COLUMNS[i]);
+    }
+    return stringBuilder.append(")").toString();
+  }
+
+  /**
+   * @param where restricts the rows to update, or null for all
+   * @return statement that calculates the period columns, rows whose columns are already up to date are left alone
+   */
+  private static String buildPeriodsUpdate(String where) {
+    String[] expressions = buildPeriodExpressions();
+    StringBuilder set = new StringBuilder();
+    StringBuilder changed = new StringBuilder();
+    for (int i = 0; i < PERIOD_COLUMNS.length; i++) {
+      if (i > 0) {
+        set.append(", ");
+        changed.append(" OR ");
+      }
+      set.append(PERIOD_COLUMNS[i]).append(" = ").append(expressions[i]);
+      changed.append(PERIOD_COLUMNS[i]).append(" IS NOT ").append(expressions[i]);
+    }
+    return "UPDATE " + TABLE_TRANSACTIONS + " SET " + set + " WHERE "
+        + (where == null ? "" : where + " AND ") + "(" + changed + ")";
+  }
+
+  /**
+   * (Re)creates the triggers that fill in the period columns of {@link DatabaseConstants#TABLE_TRANSACTIONS} at
+   * write time, and recalculates them for all existing rows. Needs to be called when the settings returned by
+   * {@link DatabaseConstants#getPeriodsSignature()} change.
+   */
+  static void refreshPeriods(SQLiteDatabase db) {
+    db.execSQL("DROP TRIGGER IF EXISTS insert_periods");
+    db.execSQL("DROP TRIGGER IF EXISTS update_periods");
+    String updateNew = buildPeriodsUpdate(KEY_ROWID + " = new." + KEY_ROWID);
+    db.execSQL("CREATE TRIGGER insert_periods AFTER INSERT ON " + TABLE_TRANSACTIONS
+        + " BEGIN " + updateNew + "; END");
+    db.execSQL("CREATE TRIGGER update_periods AFTER UPDATE OF " + KEY_DATE + " ON " + TABLE_TRANSACTIONS
+        + " WHEN new." + KEY_DATE + " IS NOT old." + KEY_DATE + " BEGIN " + updateNew + "; END");
+    db.execSQL(buildPeriodsUpdate(null));
+  }
+
+  private void createPeriods(SQLiteDatabase db) {
+    db.execSQL("CREATE INDEX transactions_periods_day ON " + TABLE_TRANSACTIONS
+        + "(" + KEY_ACCOUNTID + "," + KEY_YEAR + "," + KEY_DAY + ")");
+    db.execSQL("CREATE INDEX transactions_periods_week ON " + TABLE_TRANSACTIONS
+        + "(" + KEY_ACCOUNTID + "," + KEY_YEAR_OF_WEEK_START + "," + KEY_WEEK + ")");
+    db.execSQL("CREATE INDEX transactions_periods_month ON " + TABLE_TRANSACTIONS
+        + "(" + KEY_ACCOUNTID + "," + KEY_YEAR_OF_MONTH_START + "," + KEY_MONTH + ")");
+    refreshPeriods(db);
+    PrefKey.PERIODS_SIGNATURE.putString(DatabaseConstants.getPeriodsSignature());
+  }
+
   private static final String INCREASE_CATEGORY_USAGE_ACTION = " BEGIN UPDATE " + TABLE_CATEGORIES + " SET " + KEY_USAGES + " = " +
       KEY_USAGES + " + 1, " + KEY_LAST_USED + " = strftime('%s', 'now')  WHERE " + KEY_ROWID +
       " IN (new." + KEY_CATID + " , (SELECT " + KEY_PARENTID +
@@ -550,21 +682,259 @@ public class TransactionDatabase extends SQLiteOpenHelper {
       + "DELETE FROM " + TABLE_CHANGES + " WHERE " + KEY_ACCOUNTID + " = old." + KEY_ROWID + "; "
       + "END;";
 
+  /**
+   * aggregates stored in {@link DatabaseConstants#TABLE_ACCOUNT_BALANCES}, amounts do not include the opening balance
+   */
+  static final String[] ACCOUNT_BALANCE_COLUMNS = {
+      KEY_TOTAL, KEY_CLEARED_TOTAL, KEY_RECONCILED_TOTAL, KEY_SUM_INCOME, KEY_SUM_EXPENSES, KEY_SUM_TRANSFERS,
+      KEY_CLEARED_COUNT, KEY_EXPORTED_COUNT
+  };
+
+  private static final String CATEGORY_PATHS_CREATE =
+      "CREATE TABLE " + TABLE_CATEGORY_PATHS + " ("
+          + KEY_ROWID + " integer primary key references " + TABLE_CATEGORIES + "(" + KEY_ROWID + ") ON DELETE CASCADE, "
+          + KEY_PATH_MAIN + " text, "
+          + KEY_PATH_SUB + " text, "
+          + KEY_PATH_FULL + " text, "
+          + KEY_PATH_NORMALIZED + " text);";
+
+  /**
+   * computes the paths for the categories matching where, a subcategory is shown with its parent's label
+   */
+  private static String buildCategoryPaths(String where) {
+    String hasParent = "CASE WHEN category." + KEY_PARENTID + " THEN ";
+    String separator = " || '" + TransactionList.CATEGORY_SEPARATOR + "' || ";
+    return "INSERT OR REPLACE INTO " + TABLE_CATEGORY_PATHS + " (" + KEY_ROWID + ", " + KEY_PATH_MAIN + ", "
+        + KEY_PATH_SUB + ", " + KEY_PATH_FULL + ", " + KEY_PATH_NORMALIZED + ") SELECT category." + KEY_ROWID + ", "
+        + hasParent + "parent." + KEY_LABEL + " ELSE category." + KEY_LABEL + " END, "
+        + hasParent + "category." + KEY_LABEL + " END, "
+        + hasParent + "parent." + KEY_LABEL + separator + "category." + KEY_LABEL + " ELSE category." + KEY_LABEL + " END, "
+        + hasParent + "parent." + KEY_LABEL_NORMALIZED + separator + "category." + KEY_LABEL_NORMALIZED
+        + " ELSE category." + KEY_LABEL_NORMALIZED + " END"
+        + " FROM " + TABLE_CATEGORIES + " category LEFT JOIN " + TABLE_CATEGORIES + " parent ON parent."
+        + KEY_ROWID + " = category." + KEY_PARENTID
+        + (where == null ? "" : " WHERE " + where);
+  }
+
+  static final String CATEGORY_PATHS_REBUILD = buildCategoryPaths(null);
+
+  private static final String CATEGORY_PATHS_INSERT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_category_path AFTER INSERT ON " + TABLE_CATEGORIES + " BEGIN "
+          + buildCategoryPaths("category." + KEY_ROWID + " = new." + KEY_ROWID) + "; END";
+
+  /**
+   * a change of the label of a main category also changes the paths of its subcategories
+   */
+  private static final String CATEGORY_PATHS_UPDATE_TRIGGER_CREATE =
+      "CREATE TRIGGER update_category_path AFTER UPDATE OF " + KEY_LABEL + ", " + KEY_LABEL_NORMALIZED + ", "
+          + KEY_PARENTID + " ON " + TABLE_CATEGORIES + " BEGIN "
+          + buildCategoryPaths("category." + KEY_ROWID + " = new." + KEY_ROWID
+          + " OR category." + KEY_PARENTID + " = new." + KEY_ROWID) + "; END";
+
+  /**
+   * FTS4 is available from Honeycomb on, before we fall back to FTS3, which supports the same queries.
+   * Only the comment is indexed, since it is the only column searched through the index (CommentCriteria)
+   */
+  private static final String TRANSACTIONS_FTS_CREATE =
+      "CREATE VIRTUAL TABLE " + TABLE_TRANSACTIONS_FTS + " USING "
+          + (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? "fts4" : "fts3") + " (" + KEY_COMMENT + ")";
+
+  private static String buildTransactionsFtsInsert(String select) {
+    return "INSERT INTO " + TABLE_TRANSACTIONS_FTS + " (" + KEY_DOCID + ", " + KEY_COMMENT + ") " + select;
+  }
+
+  private static String buildTransactionsFtsValues(String row) {
+    return "SELECT " + row + KEY_ROWID + ", " + row + KEY_COMMENT;
+  }
+
+  static final String TRANSACTIONS_FTS_REBUILD = buildTransactionsFtsInsert(
+      buildTransactionsFtsValues(TABLE_TRANSACTIONS + ".") + " FROM " + TABLE_TRANSACTIONS);
+
+  private static final String TRANSACTIONS_FTS_INSERT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_transactions_fts AFTER INSERT ON " + TABLE_TRANSACTIONS + " BEGIN "
+          + buildTransactionsFtsInsert(buildTransactionsFtsValues("new.")) + "; END";
+
+  private static final String TRANSACTIONS_FTS_UPDATE_TRIGGER_CREATE =
+      "CREATE TRIGGER update_transactions_fts AFTER UPDATE OF " + KEY_COMMENT + " ON " + TABLE_TRANSACTIONS + " BEGIN "
+          + "DELETE FROM " + TABLE_TRANSACTIONS_FTS + " WHERE " + KEY_DOCID + " = old." + KEY_ROWID + "; "
+          + buildTransactionsFtsInsert(buildTransactionsFtsValues("new.")) + "; END";
+
+  private static final String TRANSACTIONS_FTS_DELETE_TRIGGER_CREATE =
+      "CREATE TRIGGER delete_transactions_fts AFTER DELETE ON " + TABLE_TRANSACTIONS + " BEGIN "
+          + "DELETE FROM " + TABLE_TRANSACTIONS_FTS + " WHERE " + KEY_DOCID + " = old." + KEY_ROWID + "; END";
+
+  private static final String SYNC_INIT_PROGRESS_CREATE =
+      "CREATE TABLE " + TABLE_SYNC_INIT_PROGRESS + " ("
+          + KEY_ACCOUNTID + " integer primary key references " + TABLE_ACCOUNTS + "(" + KEY_ROWID + ") ON DELETE CASCADE, "
+          + KEY_LAST_ID + " integer not null default 0);";
+
+  private static final String ACCOUNT_BALANCES_CREATE =
+      "CREATE TABLE " + TABLE_ACCOUNT_BALANCES + " ("
+          + KEY_ACCOUNTID + " integer primary key references " + TABLE_ACCOUNTS + "(" + KEY_ROWID + ") ON DELETE CASCADE, "
+          + KEY_TOTAL + " integer not null default 0, "
+          + KEY_CLEARED_TOTAL + " integer not null default 0, "
+          + KEY_RECONCILED_TOTAL + " integer not null default 0, "
+          + KEY_SUM_INCOME + " integer not null default 0, "
+          + KEY_SUM_EXPENSES + " integer not null default 0, "
+          + KEY_SUM_TRANSFERS + " integer not null default 0, "
+          + KEY_CLEARED_COUNT + " integer not null default 0, "
+          + KEY_EXPORTED_COUNT + " integer not null default 0);";
+
+  /**
+   * @param column one of {@link #ACCOUNT_BALANCE_COLUMNS}
+   * @param row    qualifier for the transaction row, "new.", "old." or the table name followed by "."
+   * @return expression for the amount (or count) the row contributes to the column
+   */
+  static String buildAccountBalanceContribution(String column, String row) {
+    String committed = row + KEY_STATUS + " != " + STATUS_UNCOMMITTED + " AND " + row + KEY_CR_STATUS + " != '" +
+        Transaction.CrStatus.VOID.name() + "'";
+    String notSplitPart = committed + " AND " + row + KEY_PARENTID + " IS NULL";
+    String notSplit = committed + " AND (" + row + KEY_CATID + " IS NULL OR " + row + KEY_CATID + " != " + SPLIT_CATID + ")";
+    String condition;
+    String value = row + KEY_AMOUNT;
+    switch (column) {
+      case KEY_TOTAL:
+        condition = notSplitPart;
+        break;
+      case KEY_CLEARED_TOTAL:
+        condition = notSplitPart + " AND " + row + KEY_CR_STATUS + " IN ('" + Transaction.CrStatus.RECONCILED.name() +
+            "','" + Transaction.CrStatus.CLEARED.name() + "')";
+        break;
+      case KEY_RECONCILED_TOTAL:
+        condition = notSplitPart + " AND " + row + KEY_CR_STATUS + " = '" + Transaction.CrStatus.RECONCILED.name() + "'";
+        break;
+      case KEY_SUM_INCOME:
+        condition = notSplit + " AND " + row + KEY_TRANSFER_PEER + " IS NULL AND " + row + KEY_AMOUNT + " > 0";
+        break;
+      case KEY_SUM_EXPENSES:
+        condition = notSplit + " AND " + row + KEY_TRANSFER_PEER + " IS NULL AND " + row + KEY_AMOUNT + " < 0";
+        break;
+      case KEY_SUM_TRANSFERS:
+        condition = notSplit + " AND " + row + KEY_TRANSFER_PEER + " IS NOT NULL";
+        break;
+      case KEY_CLEARED_COUNT:
+        condition = row + KEY_CR_STATUS + " = '" + Transaction.CrStatus.CLEARED.name() + "'";
+        value = "1";
+        break;
+      case KEY_EXPORTED_COUNT:
+        condition = row + KEY_STATUS + " = " + STATUS_EXPORTED;
+        value = "1";
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+    return "CASE WHEN " + condition + " THEN " + value + " ELSE 0 END";
+  }
+
+  private static String buildAccountBalanceUpdate(String row, String operator) {
+    StringBuilder stringBuilder = new StringBuilder("UPDATE ").append(TABLE_ACCOUNT_BALANCES).append(" SET ");
+    for (int i = 0; i < ACCOUNT_BALANCE_COLUMNS.length; i++) {
+      String column = ACCOUNT_BALANCE_COLUMNS[i];
+      if (i > 0) {
+        stringBuilder.append(", ");
+      }
+      stringBuilder.append(column).append(" = ").append(column).append(operator).append("(")
+          .append(buildAccountBalanceContribution(column, row)).append(")");
+    }
+    return stringBuilder.append(" WHERE ").append(KEY_ACCOUNTID).append(" = ").append(row).append(KEY_ACCOUNTID)
+        .append(";").toString();
+  }
+
+  /**
+   * recomputes the aggregates for all accounts from scratch, with one row per account
+   */
+  static String buildAccountBalancesFromScratch() {
+    StringBuilder stringBuilder = new StringBuilder("SELECT ").append(TABLE_ACCOUNTS).append(".").append(KEY_ROWID)
+        .append(" AS ").append(KEY_ACCOUNTID);
+    for (String column : ACCOUNT_BALANCE_COLUMNS) {
+      stringBuilder.append(", coalesce(sum(").append(buildAccountBalanceContribution(column, TABLE_TRANSACTIONS + "."))
+          .append("),0) AS ").append(column);
+    }
+    return stringBuilder.append(" FROM ").append(TABLE_ACCOUNTS).append(" LEFT JOIN ").append(TABLE_TRANSACTIONS)
+        .append(" ON ").append(TABLE_TRANSACTIONS).append(".").append(KEY_ACCOUNTID).append(" = ")
+        .append(TABLE_ACCOUNTS).append(".").append(KEY_ROWID)
+        .append(" GROUP BY ").append(TABLE_ACCOUNTS).append(".").append(KEY_ROWID).toString();
+  }
+
+  static final String ACCOUNT_BALANCES_REBUILD = "INSERT OR REPLACE INTO " + TABLE_ACCOUNT_BALANCES + " ("
+      + KEY_ACCOUNTID + ", " + TextUtils.join(", ", ACCOUNT_BALANCE_COLUMNS) + ") "
+      + buildAccountBalancesFromScratch();
+
+  static final String SUFFIX_EXPECTED = "_expected";
+
+  /**
+   * compares the stored aggregates with a recalculation from scratch, returns one row for each account
+   * where they differ, with the stored value in the column named after the aggregate, and the recalculated
+   * one in a column with the suffix {@link #SUFFIX_EXPECTED}
+   */
+  static String buildAccountBalancesCheck() {
+    StringBuilder projection = new StringBuilder("expected.").append(KEY_ACCOUNTID);
+    StringBuilder where = new StringBuilder();
+    for (String column : ACCOUNT_BALANCE_COLUMNS) {
+      projection.append(", stored.").append(column).append(", expected.").append(column).append(" AS ")
+          .append(column).append(SUFFIX_EXPECTED);
+      if (where.length() > 0) {
+        where.append(" OR ");
+      }
+      where.append("stored.").append(column).append(" IS NOT expected.").append(column);
+    }
+    return "SELECT " + projection + " FROM (" + buildAccountBalancesFromScratch() + ") AS expected LEFT JOIN "
+        + TABLE_ACCOUNT_BALANCES + " stored ON stored." + KEY_ACCOUNTID + " = expected." + KEY_ACCOUNTID
+        + " WHERE " + where;
+  }
+
+  private static final String ACCOUNT_BALANCES_INSERT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_account_balances "
+          + "AFTER INSERT ON " + TABLE_TRANSACTIONS
+          + " BEGIN " + buildAccountBalanceUpdate("new.", " + ") + " END;";
+
+  private static final String ACCOUNT_BALANCES_DELETE_TRIGGER_CREATE =
+      "CREATE TRIGGER delete_account_balances "
+          + "AFTER DELETE ON " + TABLE_TRANSACTIONS
+          + " BEGIN " + buildAccountBalanceUpdate("old.", " - ") + " END;";
+
+  private static final String ACCOUNT_BALANCES_UPDATE_TRIGGER_CREATE =
+      "CREATE TRIGGER update_account_balances "
+          + "AFTER UPDATE ON " + TABLE_TRANSACTIONS
+          + " WHEN old." + KEY_AMOUNT + " IS NOT new." + KEY_AMOUNT
+          + " OR old." + KEY_ACCOUNTID + " IS NOT new." + KEY_ACCOUNTID
+          + " OR old." + KEY_STATUS + " IS NOT new." + KEY_STATUS
+          + " OR old." + KEY_CR_STATUS + " IS NOT new." + KEY_CR_STATUS
+          + " OR old." + KEY_PARENTID + " IS NOT new." + KEY_PARENTID
+          + " OR old." + KEY_CATID + " IS NOT new." + KEY_CATID
+          + " OR old." + KEY_TRANSFER_PEER + " IS NOT new." + KEY_TRANSFER_PEER
+          + " BEGIN " + buildAccountBalanceUpdate("old.", " - ") + " "
+          + buildAccountBalanceUpdate("new.", " + ") + " END;";
+
+  private static final String ACCOUNT_BALANCES_ACCOUNT_TRIGGER_CREATE =
+      "CREATE TRIGGER insert_account_balances_row "
+          + "AFTER INSERT ON " + TABLE_ACCOUNTS
+          + " BEGIN INSERT INTO " + TABLE_ACCOUNT_BALANCES + " (" + KEY_ACCOUNTID + ") VALUES (new." + KEY_ROWID + "); END;";
+
   public static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
   public static final SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
 
   TransactionDatabase(Context context) {
     super(context, getDbName(), null, DATABASE_VERSION);
     mCtx = context;
-    /*if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+    //with write-ahead logging, readers are not blocked by a long running write transaction
+    //backup and restore take care of the log file, see checkpoint
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
       setWriteAheadLoggingEnabled(true);
-    }*/
+    }
   }
 
   public static String getDbName() {
     return MyApplication.isInstrumentationTest() ? MyApplication.getTestId() : DATABASE_NAME;
   }
 
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    super.onConfigure(db);
+    applyTuning(db);
+  }
+
   @Override
   public void onOpen(SQLiteDatabase db) {
     super.onOpen(db);
@@ -576,6 +946,9 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     //to take care of ensuring consistency during upgrades
     if (!db.isReadOnly()) {
       db.execSQL("PRAGMA foreign_keys=ON;");
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+        applyTuning(db);
+      }
     }
     try {
       db.delete(TABLE_TRANSACTIONS, KEY_STATUS + " = " + STATUS_UNCOMMITTED, null);
@@ -589,6 +962,47 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * applies the synchronous mode, which can be overridden through {@link PrefKey#DB_SYNCHRONOUS}. NORMAL
+   * synchronous mode is safe with write-ahead logging: a crash can lose the last transactions, but not corrupt
+   * the database. Pragmas executed here only reach the primary connection, which is the one all writes go
+   * through, and the synchronous mode only affects writes. Settings that would also matter for the reader
+   * connections of write-ahead logging, like cache_size or mmap_size, can not be applied here.
+   */
+  private static void applyTuning(SQLiteDatabase db) {
+    String synchronous = PrefKey.DB_SYNCHRONOUS.getString(DEFAULT_SYNCHRONOUS).toUpperCase(Locale.US);
+    if (!Arrays.asList("OFF", "NORMAL", "FULL").contains(synchronous)) {
+      Timber.w("Ignoring invalid synchronous mode %s", synchronous);
+      synchronous = DEFAULT_SYNCHRONOUS;
+    }
+    db.execSQL("PRAGMA synchronous=" + synchronous);
+  }
+
+  /**
+   * Moves the content of the write-ahead log into the database file, so that the file can be copied on its own.
+   * The caller must close the database right afterwards, so that no new transaction is appended to the log.
+   */
+  static void checkpoint(SQLiteDatabase db) {
+    Cursor c = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+    if (c.moveToFirst() && c.getInt(0) != 0) {
+      Timber.w("Checkpoint could not complete, since database is busy");
+    }
+    c.close();
+  }
+
+  /**
+   * deletes the write-ahead log and the shared memory file of a closed database, which must not be applied to
+   * a database file that is replaced
+   */
+  static void deleteLogFiles(File database) {
+    for (String suffix : new String[]{"-wal", "-shm", "-journal"}) {
+      File file = new File(database.getPath() + suffix);
+      if (file.exists() && !file.delete()) {
+        Timber.w("Could not delete %s", file.getPath());
+      }
+    }
+  }
+
   @Override
   public void onCreate(SQLiteDatabase db) {
     db.execSQL(DATABASE_CREATE);
@@ -597,18 +1011,21 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(PAYMENT_METHODS_CREATE);
     db.execSQL(TEMPLATE_CREATE);
     db.execSQL(PLAN_INSTANCE_STATUS_CREATE);
+    db.execSQL(CATEGORIES_CREATE);
+    createCategoryPaths(db);
     String viewTransactions = buildViewDefinition(TABLE_TRANSACTIONS);
     db.execSQL("CREATE VIEW " + VIEW_COMMITTED + viewTransactions + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
     db.execSQL("CREATE VIEW " + VIEW_UNCOMMITTED + viewTransactions + " WHERE " + KEY_STATUS + " = " + STATUS_UNCOMMITTED + ";");
     db.execSQL("CREATE VIEW " + VIEW_ALL + viewTransactions);
     db.execSQL("CREATE VIEW " + VIEW_TEMPLATES + buildViewDefinition(TABLE_TEMPLATES));
-    db.execSQL(CATEGORIES_CREATE);
     db.execSQL(ACCOUNTS_CREATE);
     db.execSQL(ACCOUNTS_UUID_INDEX_CREATE);
     db.execSQL(SYNC_STATE_CREATE);
+    db.execSQL(SYNC_INIT_PROGRESS_CREATE);
     db.execSQL("CREATE VIEW " + VIEW_EXTENDED + buildViewDefinitionExtended(TABLE_TRANSACTIONS) + " WHERE " + KEY_STATUS + " != " + STATUS_UNCOMMITTED + ";");
     db.execSQL("CREATE VIEW " + VIEW_TEMPLATES_EXTENDED + buildViewDefinitionExtended(TABLE_TEMPLATES));
     db.execSQL(ACCOUNTS_TRIGGER_CREATE);
+    createAccountBalances(db);
     insertDefaultAccount(db);
     db.execSQL(ACCOUNTTYE_METHOD_CREATE);
     insertDefaultPaymentMethods(db);
@@ -637,6 +1054,9 @@ public class TransactionDatabase extends SQLiteOpenHelper {
     db.execSQL(INCREASE_ACCOUNT_USAGE_INSERT_TRIGGER);
     db.execSQL(INCREASE_ACCOUNT_USAGE_UPDATE_TRIGGER);
     db.execSQL(UPDATE_ACCOUNT_SYNC_NULL_TRIGGER);
+    createPeriods(db);
+    createForeignKeyIndexes(db);
+    createTransactionsFts(db);
   }
 
   private void insertCurrencies(SQLiteDatabase db) {
@@ -1494,6 +1914,85 @@ public class TransactionDatabase extends SQLiteOpenHelper {
       db.execSQL("CREATE TABLE _sync_state (status integer)");
       createOrRefreshChangelogTriggers(db);
     }
+
+    if (oldVersion < 64) {
+      createAccountBalances(db);
+      db.execSQL(ACCOUNT_BALANCES_REBUILD);
+    }
+
+    if (oldVersion < 65) {
+      for (String column : PERIOD_COLUMNS) {
+        db.execSQL("ALTER TABLE " + TABLE_TRANSACTIONS + " add column " + column + " integer");
+      }
+      createOrRefreshChangelogTriggers(db);
+      createPeriods(db);
+    }
+
+    if (oldVersion < 66) {
+      createForeignKeyIndexes(db);
+    }
+
+    if (oldVersion < 67) {
+      createCategoryPaths(db);
+      db.execSQL(CATEGORY_PATHS_REBUILD);
+      refreshViews1(db);
+    }
+
+    if (oldVersion < 68) {
+      createTransactionsFts(db);
+      db.execSQL(TRANSACTIONS_FTS_REBUILD);
+    }
+    if (oldVersion < 69) {
+      db.execSQL(SYNC_INIT_PROGRESS_CREATE);
+    }
+    if (oldVersion < 70) {
+      //full text index is reduced to the comment column
+      db.execSQL("DROP TRIGGER IF EXISTS insert_transactions_fts");
+      db.execSQL("DROP TRIGGER IF EXISTS update_transactions_fts");
+      db.execSQL("DROP TRIGGER IF EXISTS delete_transactions_fts");
+      db.execSQL("DROP TRIGGER IF EXISTS update_payee_transactions_fts");
+      db.execSQL("DROP TRIGGER IF EXISTS update_category_transactions_fts");
+      db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRANSACTIONS_FTS);
+      createTransactionsFts(db);
+      db.execSQL(TRANSACTIONS_FTS_REBUILD);
+    }
+  }
+
+  /**
+   * Indexes for the columns through which transactions are looked up from related rows: split parts and
+   * transfer peers (WHERE_DEPENDENT, WHERE_RELATED), payees, methods and transfer accounts (mapped counts and
+   * the MAPPED_* routes), also used by SQLite for enforcing the foreign keys when the referenced row is deleted.
+   * The change log is read per account and sequence.
+   */
+  private void createForeignKeyIndexes(SQLiteDatabase db) {
+    db.execSQL("CREATE INDEX transactions_parent_id ON " + TABLE_TRANSACTIONS + "(" + KEY_PARENTID + ")");
+    db.execSQL("CREATE INDEX transactions_transfer_peer ON " + TABLE_TRANSACTIONS + "(" + KEY_TRANSFER_PEER + ")");
+    db.execSQL("CREATE INDEX transactions_payee_id ON " + TABLE_TRANSACTIONS + "(" + KEY_PAYEEID + ")");
+    db.execSQL("CREATE INDEX transactions_method_id ON " + TABLE_TRANSACTIONS + "(" + KEY_METHODID + ")");
+    db.execSQL("CREATE INDEX transactions_transfer_account ON " + TABLE_TRANSACTIONS + "(" + KEY_TRANSFER_ACCOUNT + ")");
+    db.execSQL("CREATE INDEX changes_account_sequence ON " + TABLE_CHANGES + "(" + KEY_ACCOUNTID + "," + KEY_SYNC_SEQUENCE_LOCAL + ")");
+  }
+
+  private void createAccountBalances(SQLiteDatabase db) {
+    db.execSQL(ACCOUNT_BALANCES_CREATE);
+    db.execSQL(ACCOUNT_BALANCES_INSERT_TRIGGER_CREATE);
+    db.execSQL(ACCOUNT_BALANCES_DELETE_TRIGGER_CREATE);
+    db.execSQL(ACCOUNT_BALANCES_UPDATE_TRIGGER_CREATE);
+    db.execSQL(ACCOUNT_BALANCES_ACCOUNT_TRIGGER_CREATE);
+    db.execSQL("CREATE INDEX transactions_account_date ON " + TABLE_TRANSACTIONS + "(" + KEY_ACCOUNTID + "," + KEY_DATE + ")");
+  }
+
+  private void createTransactionsFts(SQLiteDatabase db) {
+    db.execSQL(TRANSACTIONS_FTS_CREATE);
+    db.execSQL(TRANSACTIONS_FTS_INSERT_TRIGGER_CREATE);
+    db.execSQL(TRANSACTIONS_FTS_UPDATE_TRIGGER_CREATE);
+    db.execSQL(TRANSACTIONS_FTS_DELETE_TRIGGER_CREATE);
+  }
+
+  private void createCategoryPaths(SQLiteDatabase db) {
+    db.execSQL(CATEGORY_PATHS_CREATE);
+    db.execSQL(CATEGORY_PATHS_INSERT_TRIGGER_CREATE);
+    db.execSQL(CATEGORY_PATHS_UPDATE_TRIGGER_CREATE);
   }
 
   private void createOrRefreshChangelogTriggers(SQLiteDatabase db) {
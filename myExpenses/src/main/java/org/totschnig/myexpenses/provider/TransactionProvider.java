@@ -25,8 +25,10 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
@@ -41,7 +43,6 @@ import org.totschnig.myexpenses.model.AccountGrouping;
 import org.totschnig.myexpenses.model.AccountType;
 import org.totschnig.myexpenses.model.Category;
 import org.totschnig.myexpenses.model.Grouping;
-import org.totschnig.myexpenses.model.Model;
 import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.Payee;
 import org.totschnig.myexpenses.model.PaymentMethod;
@@ -52,6 +53,7 @@ import org.totschnig.myexpenses.sync.json.TransactionChange;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.BackupUtils;
 import org.totschnig.myexpenses.util.FileCopyUtils;
+import org.totschnig.myexpenses.util.InterimBalanceCursorWrapper;
 import org.totschnig.myexpenses.util.PlanInfoCursorWrapper;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
@@ -61,10 +63,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
-import static org.totschnig.myexpenses.provider.DatabaseConstants.DAY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.EXPENSE_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_EXPORTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.HAS_FUTURE;
@@ -72,7 +74,6 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.INCOME_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.IS_SAME_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CODE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR;
@@ -81,6 +82,8 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DAY;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DELTA;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
@@ -94,14 +97,13 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MAPPED_CATEGORIES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PICTURE_URI;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SORT_KEY;
@@ -120,9 +122,11 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_P
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_WEEK;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_MONTH_START;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR_OF_WEEK_START;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.MAPPED_CATEGORIES;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.SELECT_AMOUNT_SUM;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTTYES_METHODS;
@@ -145,19 +149,12 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES_EXTENDED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_DEPENDENT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_EXPENSE;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_INCOME;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_IN_PAST;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_VOID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_DEPENDENT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_PEER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_TRANSACTION;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.YEAR;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getMonth;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getWeek;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.selectFromAccountBalances;
 
 public class TransactionProvider extends ContentProvider {
 
@@ -176,6 +173,12 @@ public class TransactionProvider extends ContentProvider {
       Uri.parse("content://" + AUTHORITY + "/transactions");
   public static final Uri UNCOMMITTED_URI =
       Uri.parse("content://" + AUTHORITY + "/transactions/uncommitted");
+  /**
+   * an update recalculates the stored period columns of transactions, if week start, month start or time zone
+   * have changed since they were last calculated, the returned count is 1 if they have been recalculated
+   */
+  public static final Uri TRANSACTIONS_REFRESH_PERIODS_URI =
+      Uri.parse("content://" + AUTHORITY + "/transactions/refreshPeriods");
   public static final Uri TEMPLATES_URI =
       Uri.parse("content://" + AUTHORITY + "/templates");
   public static final Uri CATEGORIES_URI =
@@ -209,6 +212,12 @@ public class TransactionProvider extends ContentProvider {
   public static final Uri MAPPED_TRANSFER_ACCOUNTS_URI =
       Uri.parse("content://" + AUTHORITY + "/transfer_account_transactions");
   public static final Uri CHANGES_URI = Uri.parse("content://" + AUTHORITY + "/changes");
+  /**
+   * query returns accounts where the aggregates maintained in {@link DatabaseConstants#TABLE_ACCOUNT_BALANCES}
+   * differ from a recalculation, update rebuilds them from scratch
+   */
+  public static final Uri ACCOUNT_BALANCES_CHECK_URI =
+      Uri.parse("content://" + AUTHORITY + "/account_balances/check");
   /**
    * select info from DB without table, e.g. CategoryList#DATEINFO_CURSOR
    * or set control flags like sync_state
@@ -230,12 +239,53 @@ public class TransactionProvider extends ContentProvider {
   public static final String QUERY_PARAMETER_DISTINCT = "distinct";
   public static final String QUERY_PARAMETER_MARK_VOID = "markVoid";
   public static final String QUERY_PARAMETER_WITH_PLAN_INFO = "withPlanInfo";
+  /**
+   * if set on an update of {@link #CHANGES_URI}, one chunk of the initialization of the change log of the account
+   * is run, the returned count is the number of transactions processed, 0 once the initialization is complete
+   */
   public static final String QUERY_PARAMETER_INIT = "init";
   public static final String QUERY_PARAMETER_CALLER_IS_SYNCADAPTER = "caller_is_syncadapter";
   public static final String QUERY_PARAMETER_MERGE_TRANSFERS = "mergeTransfers";
   public static final String QUERY_PARAMETER_SYNC_BEGIN = "syncBegin";
   public static final String QUERY_PARAMETER_SYNC_END = "syncEnd";
+  /**
+   * if set on a query, the provider returns the output of EXPLAIN QUERY PLAN for the statement instead of
+   * executing it, used for verifying that routes are served by indexes. Only honored in debug builds.
+   */
+  public static final String QUERY_PARAMETER_EXPLAIN = "explain";
+  /**
+   * if set on a query of {@link #TRANSACTIONS_URI}, at most this number of rows is returned, ordered by date and id
+   * descending, rows following the ones identified by {@link #QUERY_PARAMETER_AFTER_DATE} and
+   * {@link #QUERY_PARAMETER_AFTER_ID} if present, or else skipping {@link #QUERY_PARAMETER_OFFSET} rows
+   */
+  public static final String QUERY_PARAMETER_PAGE_SIZE = "pageSize";
+  public static final String QUERY_PARAMETER_AFTER_DATE = "afterDate";
+  public static final String QUERY_PARAMETER_AFTER_ID = "afterId";
+  public static final String QUERY_PARAMETER_OFFSET = "offset";
   public static final String METHOD_INIT = "init";
+  /**
+   * starts a bulk session on the calling thread, during which change notifications are collected and
+   * dispatched once per URI by the matching {@link #METHOD_BULK_END}
+   */
+  public static final String METHOD_BULK_START = "bulkStart";
+  public static final String METHOD_BULK_END = "bulkEnd";
+  /**
+   * returns the number of requested and dispatched change notifications and of executed queries since the
+   * provider was created, under {@link #KEY_NOTIFICATIONS_REQUESTED}, {@link #KEY_NOTIFICATIONS_DISPATCHED}
+   * and {@link #KEY_QUERIES}
+   */
+  public static final String METHOD_STATS = "stats";
+  /**
+   * same as {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])} for the uri passed as arg
+   * and the rows passed under {@link #KEY_VALUES}, but returns the ids of the inserted rows under
+   * {@link #KEY_IDS}
+   */
+  public static final String METHOD_BULK_INSERT = "bulkInsert";
+  public static final String KEY_VALUES = "values";
+  public static final String KEY_IDS = "ids";
+  public static final String KEY_NOTIFICATIONS_REQUESTED = "notificationsRequested";
+  public static final String KEY_NOTIFICATIONS_DISPATCHED = "notificationsDispatched";
+  public static final String KEY_QUERIES = "queries";
 
   static final String TAG = "TransactionProvider";
 
@@ -280,13 +330,18 @@ public class TransactionProvider extends ContentProvider {
   private static final int ACCOUNTS_SWAP_SORT_KEY = 40;
   private static final int MAPPED_TRANSFER_ACCOUNTS = 41;
   private static final int CHANGES = 42;
+  private static final int ACCOUNT_BALANCES_CHECK = 43;
+  private static final int TRANSACTIONS_REFRESH_PERIODS = 44;
 
 
   private boolean mDirty = false;
+  private NotificationCoalescer mNotificationCoalescer;
+  private final AtomicInteger mQueryCount = new AtomicInteger();
 
   @Override
   public boolean onCreate() {
     initOpenHelper();
+    mNotificationCoalescer = new NotificationCoalescer(getContext());
     return true;
   }
 
@@ -294,6 +349,38 @@ public class TransactionProvider extends ContentProvider {
     mOpenHelper = new TransactionDatabase(getContext());
   }
 
+  /**
+   * recalculates the stored period columns, if the settings they depend on have changed
+   *
+   * @return true if the columns have been recalculated
+   */
+  private synchronized boolean refreshPeriods() {
+    String signature = DatabaseConstants.getPeriodsSignature();
+    if (signature.equals(PrefKey.PERIODS_SIGNATURE.getString(null))) {
+      return false;
+    }
+    Timber.d("Recalculating periods for %s", signature);
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      TransactionDatabase.refreshPeriods(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    PrefKey.PERIODS_SIGNATURE.putString(signature);
+    return true;
+  }
+
+  /**
+   * @param selection restricts the transactions that are taken into account, its arguments are bound as
+   *                  selection arguments of the query
+   */
+  private static String buildExistsTransactionFor(String column, String table, String selection) {
+    return "EXISTS (SELECT 1 FROM " + TABLE_TRANSACTIONS + " WHERE " + column + " = " + table + "." + KEY_ROWID
+        + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")") + ")";
+  }
+
   private void setDirty() {
     if (!mDirty) {
       mDirty = true;
@@ -310,6 +397,7 @@ public class TransactionProvider extends ContentProvider {
 
     Cursor c;
 
+    mQueryCount.incrementAndGet();
     Timber.d("Query for URL: " + uri);
     String defaultOrderBy = null;
     String groupBy = null;
@@ -318,6 +406,8 @@ public class TransactionProvider extends ContentProvider {
 
     String accountSelectionQuery;
     String accountSelector;
+    Long openingBalance = null;
+    boolean explain = BuildConfig.DEBUG && uri.getQueryParameter(QUERY_PARAMETER_EXPLAIN) != null;
     int uriMatch = URI_MATCHER.match(uri);
     switch (uriMatch) {
     case TRANSACTIONS:
@@ -336,6 +426,20 @@ public class TransactionProvider extends ContentProvider {
         selection = selection == null ? mergeTransferSelection :
             selection + " AND (" + mergeTransferSelection + ")";
       }
+      String pageSize = uri.getQueryParameter(QUERY_PARAMETER_PAGE_SIZE);
+      if (pageSize != null) {
+        String afterDate = uri.getQueryParameter(QUERY_PARAMETER_AFTER_DATE);
+        if (afterDate != null) {
+          //the first condition allows a range lookup on the index on (account_id, date)
+          String keysetSelection = KEY_DATE + " <= ? AND (" + KEY_DATE + " < ? OR " + KEY_ROWID + " < ?)";
+          selection = selection == null ? keysetSelection : "(" + selection + ") AND " + keysetSelection;
+          selectionArgs = Utils.joinArrays(selectionArgs,
+              new String[]{afterDate, afterDate, uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID)});
+        }
+        sortOrder = KEY_DATE + " DESC, " + KEY_ROWID + " DESC";
+        String offset = uri.getQueryParameter(QUERY_PARAMETER_OFFSET);
+        limit = afterDate == null && offset != null ? offset + "," + pageSize : pageSize;
+      }
       break;
     case UNCOMMITTED:
       qb.setTables(VIEW_UNCOMMITTED);
@@ -383,101 +487,67 @@ public class TransactionProvider extends ContentProvider {
       } catch (IllegalArgumentException e) {
         group = Grouping.NONE;
       }
+      //the period columns are stored in the transactions table, see TransactionDatabase#refreshPeriods
       String yearExpression;
+      String secondDef;
       switch (group) {
-        case WEEK:
-          yearExpression = getYearOfWeekStart();
-          break;
-        case MONTH:
-          yearExpression = getYearOfMonthStart();
-          break;
-        default:
-          yearExpression = YEAR;
-      }
-//      String secondColumnAlias = " AS " + KEY_SECOND_GROUP;
-//      if (group.equals(Grouping.NONE)) {
-//        qb.setTables(VIEW_COMMITTED);
-//        selection = accountSelection;
-//        //the second accountId is used in openingBalanceSubquery
-//        selectionArgs = new String[]{accountSelector,accountSelector};
-//        projection = new String[] {
-//            "1 AS " + KEY_YEAR,
-//            "1"+secondColumnAlias,
-//            INCOME_SUM,
-//            EXPENSE_SUM,
-//            TRANSFER_SUM,
-//            MAPPED_CATEGORIES,
-//            openingBalanceSubQuery
-//                + " + coalesce(sum(CASE WHEN " + WHERE_NOT_SPLIT + " THEN " + KEY_AMOUNT + " ELSE 0 END),0) AS " + KEY_INTERIM_BALANCE
-//        };
-//      } else {
-        String subGroupBy = KEY_YEAR + "," + KEY_SECOND_GROUP;
-        String secondDef ="";
-
-        switch(group) {
-        case NONE:
-          yearExpression = "1";
-          secondDef = "1";
-          break;
         case DAY:
-          secondDef = DAY;
+          yearExpression = KEY_YEAR;
+          secondDef = KEY_DAY;
           break;
         case WEEK:
-          secondDef = getWeek();
+          yearExpression = KEY_YEAR_OF_WEEK_START;
+          secondDef = KEY_WEEK;
           break;
         case MONTH:
-          secondDef = getMonth();
+          yearExpression = KEY_YEAR_OF_MONTH_START;
+          secondDef = KEY_MONTH;
           break;
         case YEAR:
+          yearExpression = KEY_YEAR;
           secondDef = "1";
-          subGroupBy = KEY_YEAR;
           break;
-        }
-        qb.setTables("(SELECT "
-            + yearExpression + " AS " + KEY_YEAR + ","
-            + secondDef + " AS " + KEY_SECOND_GROUP + ","
-            + INCOME_SUM + ","
-            + EXPENSE_SUM + ","
-            + TRANSFER_SUM + ","
-            + MAPPED_CATEGORIES
-            + " FROM " + VIEW_EXTENDED
-            + " WHERE " + accountSelectionQuery
-            + (selection!=null ? " AND " + selection : "")
-            + " GROUP BY " + subGroupBy + ") AS t");
-      projection = new String[7];
+        default:
+          yearExpression = "1";
+          secondDef = "1";
+      }
+      //we group by the underlying columns, since the alias year would resolve to the column of the same name,
+      //for Grouping.NONE, this resolves to the constant first column
+      String subGroupBy = group == Grouping.YEAR ? yearExpression : yearExpression + "," + secondDef;
+      qb.setTables("(SELECT "
+          + yearExpression + " AS " + KEY_YEAR + ","
+          + secondDef + " AS " + KEY_SECOND_GROUP + ","
+          + INCOME_SUM + ","
+          + EXPENSE_SUM + ","
+          + TRANSFER_SUM + ","
+          + MAPPED_CATEGORIES
+          + (isFiltered ? "" : ", sum(CASE WHEN " + WHERE_NOT_SPLIT + " AND " + WHERE_NOT_VOID + " THEN "
+          + KEY_AMOUNT + " ELSE 0 END) AS " + KEY_DELTA)
+          + " FROM " + VIEW_EXTENDED
+          + " WHERE " + accountSelectionQuery
+          + (selection != null ? " AND " + selection : "")
+          + " GROUP BY " + subGroupBy + ") AS t");
+      projection = new String[isFiltered ? 7 : 8];
       projection[0] = KEY_YEAR;
       projection[1] = KEY_SECOND_GROUP;
       projection[2] = KEY_SUM_INCOME;
       projection[3] = KEY_SUM_EXPENSES;
       projection[4] = KEY_SUM_TRANSFERS;
       projection[5] = KEY_MAPPED_CATEGORIES;
-      String[] accountArgs;
+      //interim balances are calculated as running sum over the deltas, see InterimBalanceCursorWrapper
+      projection[6] = "0 AS " + KEY_INTERIM_BALANCE;
       if (!isFiltered) {
-        String openingBalanceSubQuery =
-            "(SELECT sum(" + KEY_OPENING_BALANCE + ") FROM " + TABLE_ACCOUNTS + " WHERE " + accountSelectionQueryOpeningBalance + ")";
-        String deltaExpr = "(SELECT sum(amount) FROM "
-            + VIEW_EXTENDED
-            + " WHERE " + accountSelectionQuery + " AND " + WHERE_NOT_SPLIT + " AND " + WHERE_NOT_VOID
-            + " AND (" + yearExpression + " < " + KEY_YEAR + " OR "
-            + "(" + yearExpression + " = " + KEY_YEAR + " AND "
-            + secondDef + " <= " + KEY_SECOND_GROUP + ")))";
-        projection[6] = openingBalanceSubQuery + " + " + deltaExpr + " AS " + KEY_INTERIM_BALANCE;
-        accountArgs = new String[]{accountSelector,accountSelector,accountSelector};
-      } else {
-        projection[6] = "0 AS " + KEY_INTERIM_BALANCE;//ignored
-        accountArgs = new String[]{accountSelector};
+        projection[7] = KEY_DELTA;
+        Cursor openingBalanceCursor = db.rawQuery("SELECT sum(" + KEY_OPENING_BALANCE + ") FROM " + TABLE_ACCOUNTS
+            + " WHERE " + accountSelectionQueryOpeningBalance, new String[]{accountSelector});
+        openingBalance = openingBalanceCursor.moveToFirst() ? openingBalanceCursor.getLong(0) : 0L;
+        openingBalanceCursor.close();
       }
-        defaultOrderBy = KEY_YEAR + " DESC," + KEY_SECOND_GROUP + " DESC";
-        //CAST(strftime('%Y',date) AS integer)
-        //the accountId is used three times , once in the table subquery, twice in the KEY_INTERIM_BALANCE subquery
-        //(first in the where clause, second in the subselect for the opening balance),
+      defaultOrderBy = KEY_YEAR + " DESC," + KEY_SECOND_GROUP + " DESC";
       Timber.d("SelectionArgs before join : " + Arrays.toString(selectionArgs));
-      selectionArgs = Utils.joinArrays(
-            accountArgs,
-            selectionArgs);
-        //selection is used in the inner table, needs to be set to null for outer query
-        selection=null;
-      //}
+      selectionArgs = Utils.joinArrays(new String[]{accountSelector}, selectionArgs);
+      //selection is used in the inner table, needs to be set to null for outer query
+      selection = null;
       break;
     case CATEGORIES:
       qb.setTables(TABLE_CATEGORIES);
@@ -507,13 +577,10 @@ public class TransactionProvider extends ContentProvider {
             KEY_ROWID + "," +
             KEY_CURRENCY + "," +
             KEY_OPENING_BALANCE + "," +
-            KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM +
-              " AND " + WHERE_NOT_SPLIT +
-              " AND " + WHERE_IN_PAST + " ) AS " + KEY_CURRENT_BALANCE + ", " +
-            KEY_OPENING_BALANCE + " + (" + SELECT_AMOUNT_SUM +
-              " AND " + WHERE_NOT_SPLIT + " ) AS " + KEY_TOTAL + ", " +
-            "(" + SELECT_AMOUNT_SUM + " AND " + WHERE_EXPENSE + ") AS " + KEY_SUM_EXPENSES + "," +
-            "(" + SELECT_AMOUNT_SUM + " AND " + WHERE_INCOME + ") AS " + KEY_SUM_INCOME + ", " +
+            Account.CURRENT_BALANCE_EXPR + " AS " + KEY_CURRENT_BALANCE + ", " +
+            KEY_OPENING_BALANCE + " + " + selectFromAccountBalances(KEY_TOTAL) + " AS " + KEY_TOTAL + ", " +
+            selectFromAccountBalances(KEY_SUM_EXPENSES) + " AS " + KEY_SUM_EXPENSES + "," +
+            selectFromAccountBalances(KEY_SUM_INCOME) + " AS " + KEY_SUM_INCOME + ", " +
               HAS_EXPORTED + ", " +
               HAS_FUTURE +
             " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_EXCLUDE_FROM_TOTALS + " = 0) as t");
@@ -573,6 +640,9 @@ public class TransactionProvider extends ContentProvider {
             new String[] {accountSubquery,currencySubquery},
             sortOrder,
             null);
+        if (explain) {
+          return db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        }
         c = db.rawQuery(sql, null);
         Timber.d("Query : " + sql);
 
@@ -641,13 +711,17 @@ public class TransactionProvider extends ContentProvider {
         projection = Payee.PROJECTION;
       break;
     case MAPPED_PAYEES:
-      qb.setTables(TABLE_PAYEES  + " JOIN " + TABLE_TRANSACTIONS+ " ON (" + KEY_PAYEEID + " = " + TABLE_PAYEES + "." + KEY_ROWID + ")");
-      projection = new String[] {"DISTINCT " + TABLE_PAYEES + "." + KEY_ROWID,KEY_PAYEE_NAME + " AS " + KEY_LABEL};
+      qb.setTables(TABLE_PAYEES);
+      qb.appendWhere(buildExistsTransactionFor(KEY_PAYEEID, TABLE_PAYEES, selection));
+      selection = null;
+      projection = new String[] {KEY_ROWID, KEY_PAYEE_NAME + " AS " + KEY_LABEL};
       defaultOrderBy = KEY_PAYEE_NAME;
       break;
     case MAPPED_TRANSFER_ACCOUNTS:
-      qb.setTables(TABLE_ACCOUNTS  + " JOIN " + TABLE_TRANSACTIONS+ " ON (" + KEY_TRANSFER_ACCOUNT + " = " + TABLE_ACCOUNTS + "." + KEY_ROWID + ")");
-      projection = new String[] {"DISTINCT " + TABLE_ACCOUNTS + "." + KEY_ROWID, KEY_LABEL};
+      qb.setTables(TABLE_ACCOUNTS);
+      qb.appendWhere(buildExistsTransactionFor(KEY_TRANSFER_ACCOUNT, TABLE_ACCOUNTS, selection));
+      selection = null;
+      projection = new String[] {KEY_ROWID, KEY_LABEL};
       defaultOrderBy = KEY_LABEL;
       break;
     case METHODS:
@@ -659,8 +733,10 @@ public class TransactionProvider extends ContentProvider {
       break;
     case MAPPED_METHODS:
       String localizedLabel = PaymentMethod.localizedLabelSqlColumn(getContext());
-      qb.setTables(TABLE_METHODS  + " JOIN " + TABLE_TRANSACTIONS+ " ON (" + KEY_METHODID + " = " + TABLE_METHODS + "." + KEY_ROWID + ")");
-      projection = new String[] {"DISTINCT " + TABLE_METHODS + "." + KEY_ROWID,localizedLabel+ " AS "+KEY_LABEL};
+      qb.setTables(TABLE_METHODS);
+      qb.appendWhere(buildExistsTransactionFor(KEY_METHODID, TABLE_METHODS, selection));
+      selection = null;
+      projection = new String[] {KEY_ROWID, localizedLabel + " AS " + KEY_LABEL};
       defaultOrderBy = localizedLabel + " COLLATE LOCALIZED";
       break;
     case METHOD_ID:
@@ -721,6 +797,11 @@ public class TransactionProvider extends ContentProvider {
       break;
     case DUAL:
       qb.setTables("sqlite_master");
+      if (explain) {
+        @SuppressWarnings("deprecation")
+        String qs = qb.buildQuery(projection, selection, null, null, null, null, "1");
+        return db.rawQuery("EXPLAIN QUERY PLAN " + qs, selectionArgs);
+      }
       return qb.query(db, projection, selection, selectionArgs, null,
           null, null,"1");
     case EVENT_CACHE:
@@ -728,6 +809,11 @@ public class TransactionProvider extends ContentProvider {
       break;
     case DEBUG_SCHEMA:
       qb.setTables("sqlite_master");
+      if (explain) {
+        @SuppressWarnings("deprecation")
+        String qs = qb.buildQuery(new String[]{"name","sql"}, "type = 'table'", null, null, null, null, null);
+        return db.rawQuery("EXPLAIN QUERY PLAN " + qs, null);
+      }
       return qb.query(
           db,
           new String[]{"name","sql"},
@@ -746,11 +832,11 @@ public class TransactionProvider extends ContentProvider {
     case TRANSACTIONS_LASTEXCHANGE:
       String currency1 = uri.getPathSegments().get(2);
       String currency2 = uri.getPathSegments().get(3);
-      selection = "(SELECT " + KEY_CURRENCY + " FROM " + TABLE_ACCOUNTS +
-          " WHERE " + KEY_ROWID + " = " + KEY_ACCOUNTID + ") = ? AND " +
-          "(SELECT " + KEY_CURRENCY + " FROM " + TABLE_ACCOUNTS + " WHERE " + KEY_ROWID + " = " +
-              "(SELECT " + KEY_ACCOUNTID + " FROM " + TABLE_TRANSACTIONS + " WHERE " +  KEY_ROWID +
-              " = " + VIEW_COMMITTED + "." + KEY_TRANSFER_PEER + ")) = ?";
+      //the transfer account is the account of the peer, selecting on it allows lookup through index
+      selection = KEY_ACCOUNTID + " IN (SELECT " + KEY_ROWID + " FROM " + TABLE_ACCOUNTS +
+          " WHERE " + KEY_CURRENCY + " = ?) AND " +
+          KEY_TRANSFER_ACCOUNT + " IN (SELECT " + KEY_ROWID + " FROM " + TABLE_ACCOUNTS +
+          " WHERE " + KEY_CURRENCY + " = ?)";
       selectionArgs = new String[] {currency1, currency2};
       projection = new String[] {
           "'" + currency1 + "'", // we pass the currency codes back so that the receiver
@@ -772,6 +858,13 @@ public class TransactionProvider extends ContentProvider {
           projection = TransactionChange.PROJECTION;
         }
         break;
+    case ACCOUNT_BALANCES_CHECK:
+      if (explain) {
+        return db.rawQuery("EXPLAIN QUERY PLAN " + TransactionDatabase.buildAccountBalancesCheck(), null);
+      }
+      c = db.rawQuery(TransactionDatabase.buildAccountBalancesCheck(), null);
+      c.setNotificationUri(getContext().getContentResolver(), uri);
+      return c;
     default:
       throw unknownUri(uri);
     }
@@ -789,6 +882,11 @@ public class TransactionProvider extends ContentProvider {
       Timber.d("Query : " + qs);
       Timber.d("SelectionArgs : " + Arrays.toString(selectionArgs));
     }
+    if (explain) {
+      @SuppressWarnings("deprecation")
+      String qs = qb.buildQuery(projection, selection, null, groupBy, having, orderBy, limit);
+      return db.rawQuery("EXPLAIN QUERY PLAN " + qs, selectionArgs);
+    }
     //long startTime = System.nanoTime();
     c = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy, limit);
     //long endTime = System.nanoTime();
@@ -797,6 +895,9 @@ public class TransactionProvider extends ContentProvider {
     if (uriMatch == TEMPLATES && uri.getQueryParameter(QUERY_PARAMETER_WITH_PLAN_INFO) != null) {
       c = new PlanInfoCursorWrapper(getContext(), c, defaultOrderBy == null);
     }
+    if (openingBalance != null) {
+      c = new InterimBalanceCursorWrapper(c, openingBalance);
+    }
     c.setNotificationUri(getContext().getContentResolver(), uri);
     return c;
   }
@@ -895,6 +996,11 @@ public class TransactionProvider extends ContentProvider {
     default:
       throw unknownUri(uri);
     }
+    notifyInsert(uri, uriMatch);
+    return id > 0 ? Uri.parse(newUri) : null;
+  }
+
+  private void notifyInsert(Uri uri, int uriMatch) {
     notifyChange(uri, callerIsNotSyncAdatper(uri));
     //the accounts cursor contains aggregates about transactions
     //we need to notify it when transactions change
@@ -904,7 +1010,76 @@ public class TransactionProvider extends ContentProvider {
     } else if (uriMatch == ACCOUNTS) {
       notifyChange(ACCOUNTS_BASE_URI, false);
     }
-    return id > 0 ? Uri.parse(newUri) : null;
+  }
+
+  /**
+   * Rows for {@link #TRANSACTIONS_URI}, {@link #PAYEES_URI}, {@link #CATEGORIES_URI} and {@link #METHODS_URI}
+   * are inserted in one transaction with statements compiled once, other URIs fall back to one insert per row.
+   * In both cases, change notifications are dispatched once.
+   */
+  @Override
+  public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+    mNotificationCoalescer.beginBatch();
+    try {
+      long[] ids = bulkInsertCompiled(uri, values);
+      return ids != null ? ids.length : super.bulkInsert(uri, values);
+    } finally {
+      mNotificationCoalescer.endBatch();
+    }
+  }
+
+  /**
+   * @return the ids of the inserted rows, or null if uri is not supported
+   */
+  @Nullable
+  private long[] bulkInsertCompiled(Uri uri, ContentValues[] values) {
+    String table;
+    int uriMatch = URI_MATCHER.match(uri);
+    switch (uriMatch) {
+      case TRANSACTIONS:
+        table = TABLE_TRANSACTIONS;
+        break;
+      case PAYEES:
+        table = TABLE_PAYEES;
+        break;
+      case CATEGORIES:
+        table = TABLE_CATEGORIES;
+        break;
+      case METHODS:
+        table = TABLE_METHODS;
+        break;
+      default:
+        return null;
+    }
+    setDirty();
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    long[] ids = new long[values.length];
+    BulkInserter inserter = new BulkInserter(db, table);
+    //same check as in insert, since the unique constraint does not work for parent_id is null
+    SQLiteStatement categoryExists = uriMatch == CATEGORIES ? db.compileStatement("SELECT count(*) FROM "
+        + TABLE_CATEGORIES + " WHERE " + KEY_PARENTID + " IS ? AND " + KEY_LABEL + " = ?") : null;
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < values.length; i++) {
+        if (categoryExists != null) {
+          BulkInserter.bind(categoryExists, 1, values[i].get(KEY_PARENTID));
+          BulkInserter.bind(categoryExists, 2, values[i].get(KEY_LABEL));
+          if (categoryExists.simpleQueryForLong() > 0) {
+            throw new SQLiteConstraintException();
+          }
+        }
+        ids[i] = inserter.insert(values[i]);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      inserter.close();
+      if (categoryExists != null) {
+        categoryExists.close();
+      }
+    }
+    notifyInsert(uri, uriMatch);
+    return ids;
   }
 
   @Override
@@ -1068,12 +1243,15 @@ public class TransactionProvider extends ContentProvider {
   @Override
   public int update(@NonNull Uri uri, ContentValues values, String where,
                     String[] whereArgs) {
-    setDirty();
+    int uriMatch = URI_MATCHER.match(uri);
+    //the period columns are derived from the other ones, refreshing them does not call for a backup
+    if (uriMatch != TRANSACTIONS_REFRESH_PERIODS) {
+      setDirty();
+    }
     SQLiteDatabase db = mOpenHelper.getWritableDatabase();
     String segment; // contains rowId
     int count;
     String whereString;
-    int uriMatch = URI_MATCHER.match(uri);
     Cursor c;
     switch (uriMatch) {
     case TRANSACTIONS:
@@ -1315,69 +1493,34 @@ public class TransactionProvider extends ContentProvider {
       break;
     case CHANGES:
       if ("1".equals(uri.getQueryParameter(QUERY_PARAMETER_INIT))) {
-        String[] accountIdBindArgs = {uri.getQueryParameter(KEY_ACCOUNTID)};
-        db.beginTransaction();
-        try {
-          db.delete(TABLE_CHANGES, KEY_ACCOUNTID + " = ?", accountIdBindArgs);
-          c = db.query(TABLE_TRANSACTIONS, new String[]{KEY_ROWID}, KEY_UUID + " IS NULL AND ("
-              + KEY_TRANSFER_PEER + " IS NULL OR " + KEY_ROWID + " < " + KEY_TRANSFER_PEER + ")", null, null, null, null);
-          if (c.moveToFirst()) {
-            while (!c.isAfterLast()) {
-              String idString = c.getString(0);
-              db.execSQL("UPDATE " + TABLE_TRANSACTIONS + " SET " + KEY_UUID + " = ? WHERE " + KEY_ROWID + " = ? OR " + KEY_TRANSFER_PEER + " = ?",
-                new String[] {Model.generateUuid(), idString, idString});
-              c.moveToNext();
-            }
-          }
-          c.close();
-          db.execSQL("INSERT INTO " + TABLE_CHANGES + "("
-              + KEY_TYPE + ", "
-              + KEY_SYNC_SEQUENCE_LOCAL + ", "
-              + KEY_UUID + ", "
-              + KEY_PARENT_UUID + ", "
-              + KEY_COMMENT + ", "
-              + KEY_DATE + ", "
-              + KEY_AMOUNT + ", "
-              + KEY_CATID + ", "
-              + KEY_ACCOUNTID + ","
-              + KEY_PAYEEID + ", "
-              + KEY_TRANSFER_ACCOUNT + ", "
-              + KEY_METHODID + ","
-              + KEY_CR_STATUS + ", "
-              + KEY_REFERENCE_NUMBER + ", "
-              + KEY_PICTURE_URI
-              + ") SELECT "
-              + "'" + TransactionChange.Type.created.name() + "', "
-              + " 1, "
-              + KEY_UUID  + ", "
-              + "CASE WHEN " + KEY_PARENTID + " IS NULL THEN NULL ELSE " +
-                      "(SELECT " + KEY_UUID + " FROM " + TABLE_TRANSACTIONS + " parent where "
-                      + KEY_ROWID + " = " + TABLE_TRANSACTIONS + "." + KEY_PARENTID + ") END, "
-              + KEY_COMMENT + ", "
-              + KEY_DATE + ", "
-              + KEY_AMOUNT + ", "
-              + KEY_CATID + ", "
-              + KEY_ACCOUNTID + ", "
-              + KEY_PAYEEID + ", "
-              + KEY_TRANSFER_ACCOUNT + ", "
-              + KEY_METHODID + ","
-              + KEY_CR_STATUS + ", "
-              + KEY_REFERENCE_NUMBER + ", "
-              + KEY_PICTURE_URI
-              + " FROM " + TABLE_TRANSACTIONS + " WHERE " + KEY_ACCOUNTID + " = ?",
-              accountIdBindArgs);
-          ContentValues currentSyncIncrease = new ContentValues(1);
-          currentSyncIncrease.put(KEY_SYNC_SEQUENCE_LOCAL, 1);
-          db.update(TABLE_ACCOUNTS, currentSyncIncrease, KEY_ROWID + " = ?", accountIdBindArgs);
-          db.setTransactionSuccessful();
-        } finally {
-          db.endTransaction();
-        }
-        count = 1;
+        count = new ChangesInitializer(db, Long.parseLong(uri.getQueryParameter(KEY_ACCOUNTID))).runChunk();
       } else {
         throw unknownUri(uri);
       }
       break;
+    case TRANSACTIONS_REFRESH_PERIODS:
+      count = refreshPeriods() ? 1 : 0;
+      if (count > 0) {
+        notifyChange(TRANSACTIONS_URI, false);
+      }
+      break;
+    case ACCOUNT_BALANCES_CHECK:
+      db.beginTransaction();
+      try {
+        c = db.rawQuery(TransactionDatabase.buildAccountBalancesCheck(), null);
+        count = c.getCount();
+        c.close();
+        if (count > 0) {
+          db.execSQL(TransactionDatabase.ACCOUNT_BALANCES_REBUILD);
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      if (count > 0) {
+        notifyChange(ACCOUNTS_URI, false);
+      }
+      break;
     default:
       throw unknownUri(uri);
     }
@@ -1400,8 +1543,7 @@ public class TransactionProvider extends ContentProvider {
   }
 
   private void notifyChange(Uri uri, boolean syncToNetwork) {
-    Timber.d("Notifying %s  syncToNetwork %s", uri.toString(), syncToNetwork ? "true" : "false");
-    getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
+    mNotificationCoalescer.notifyChange(uri, syncToNetwork);
   }
 
   private boolean callerIsNotSyncAdatper(Uri uri) {
@@ -1411,13 +1553,15 @@ public class TransactionProvider extends ContentProvider {
   /**
   * Apply the given set of {@link ContentProviderOperation}, executing inside
   * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
-  * any single one fails.
+  * any single one fails. Change notifications are dispatched once per URI after
+  * the transaction has ended.
   */
   @NonNull
   @Override
   public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
       throws OperationApplicationException {
     final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    mNotificationCoalescer.beginBatch();
     db.beginTransaction();
     try {
       final int numOperations = operations.size();
@@ -1429,14 +1573,48 @@ public class TransactionProvider extends ContentProvider {
       return results;
     } finally {
       db.endTransaction();
+      mNotificationCoalescer.endBatch();
     }
   }
 
   @Nullable
   @Override
   public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
-    if (method.equals(METHOD_INIT)) {
-      mOpenHelper.getReadableDatabase();
+    switch (method) {
+      case METHOD_INIT:
+        mOpenHelper.getReadableDatabase();
+        break;
+      case METHOD_BULK_START:
+        mNotificationCoalescer.beginBatch();
+        break;
+      case METHOD_BULK_END:
+        mNotificationCoalescer.endBatch();
+        break;
+      case METHOD_BULK_INSERT: {
+        Uri uri = Uri.parse(arg);
+        Parcelable[] parcelables = extras.getParcelableArray(KEY_VALUES);
+        ContentValues[] values = new ContentValues[parcelables.length];
+        System.arraycopy(parcelables, 0, values, 0, parcelables.length);
+        long[] ids;
+        mNotificationCoalescer.beginBatch();
+        try {
+          ids = bulkInsertCompiled(uri, values);
+        } finally {
+          mNotificationCoalescer.endBatch();
+        }
+        if (ids == null) {
+          throw unknownUri(uri);
+        }
+        Bundle result = new Bundle(1);
+        result.putLongArray(KEY_IDS, ids);
+        return result;
+      }
+      case METHOD_STATS:
+        Bundle result = new Bundle(3);
+        result.putInt(KEY_NOTIFICATIONS_REQUESTED, mNotificationCoalescer.getRequestedCount());
+        result.putInt(KEY_NOTIFICATIONS_DISPATCHED, mNotificationCoalescer.getDispatchedCount());
+        result.putInt(KEY_QUERIES, mQueryCount.get());
+        return result;
     }
     return null;
   }
@@ -1445,6 +1623,7 @@ public class TransactionProvider extends ContentProvider {
     URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
     URI_MATCHER.addURI(AUTHORITY, "transactions", TRANSACTIONS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/uncommitted", UNCOMMITTED);
+    URI_MATCHER.addURI(AUTHORITY, "transactions/refreshPeriods", TRANSACTIONS_REFRESH_PERIODS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/" + URI_SEGMENT_GROUPS + "/*", TRANSACTIONS_GROUPS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/sumsForAccountsGroupedByType", TRANSACTIONS_SUMS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/" + URI_SEGMENT_LAST_EXCHANGE + "/*/*", TRANSACTIONS_LASTEXCHANGE);
@@ -1485,6 +1664,7 @@ public class TransactionProvider extends ContentProvider {
     URI_MATCHER.addURI(AUTHORITY, "accounts/"+ URI_SEGMENT_SWAP_SORT_KEY + "/#/#", ACCOUNTS_SWAP_SORT_KEY);
     URI_MATCHER.addURI(AUTHORITY, "transfer_account_transactions", MAPPED_TRANSFER_ACCOUNTS);
     URI_MATCHER.addURI(AUTHORITY, "changes", CHANGES);
+    URI_MATCHER.addURI(AUTHORITY, "account_balances/check", ACCOUNT_BALANCES_CHECK);
   }
 
   /**
@@ -1501,7 +1681,9 @@ public class TransactionProvider extends ContentProvider {
   }
 
   public Result backup(File backupDir) {
-    File currentDb = new File(mOpenHelper.getReadableDatabase().getPath());
+    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    TransactionDatabase.checkpoint(db);
+    File currentDb = new File(db.getPath());
     mOpenHelper.close();
     try {
       File backupPrefFile, sharedPrefFile;
@@ -1559,6 +1741,7 @@ public class TransactionProvider extends ContentProvider {
     boolean result = false;
     mOpenHelper.close();
     try {
+      TransactionDatabase.deleteLogFiles(currentDb);
       result = FileCopyUtils.copy(backupFile, currentDb);
     } finally {
       initOpenHelper();
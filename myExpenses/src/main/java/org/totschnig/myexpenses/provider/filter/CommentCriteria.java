@@ -31,8 +31,8 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 public class CommentCriteria extends TextCriteria {
-  public CommentCriteria(String searchString) {
-    super(MyApplication.getInstance().getString(R.string.comment),DatabaseConstants.KEY_COMMENT,searchString);
+  public CommentCriteria(String searchString, boolean wordPrefix) {
+    super(MyApplication.getInstance().getString(R.string.comment),DatabaseConstants.KEY_COMMENT,searchString, wordPrefix);
   }
   public CommentCriteria(Parcel in) {
    super(in);
@@ -47,6 +47,6 @@ public class CommentCriteria extends TextCriteria {
     }
   };
   public static CommentCriteria fromStringExtra(String extra) {
-    return new CommentCriteria(extra);
+    return new CommentCriteria(searchStringFromExtra(extra), isWordPrefixExtra(extra));
   }
 }
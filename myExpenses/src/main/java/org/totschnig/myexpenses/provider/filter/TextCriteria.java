@@ -22,17 +22,59 @@ import org.totschnig.myexpenses.util.Utils;
 
 import android.os.Parcel;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+
 public abstract class TextCriteria extends Criteria {
+  private static final String WORD_PREFIX_EXTRA = "wordPrefix";
   private String searchString;
+  private boolean wordPrefix;
   public TextCriteria(String title, String columnName, String searchString) {
-    super(columnName, WhereFilter.Operation.LIKE,
-        "%" + Utils.esacapeSqlLikeExpression(searchString) + "%");
+    this(title, columnName, searchString, false);
+  }
+
+  /**
+   * @param wordPrefix if false, the column is searched for the search string as substring with LIKE. If true
+   *                   and the search string contains at least one word, transactions where each word is the
+   *                   prefix of a word in the column are matched through the full text index
+   */
+  protected TextCriteria(String title, String columnName, String searchString, boolean wordPrefix) {
+    this(title, columnName, searchString, wordPrefix ? buildMatchQuery(columnName, searchString) : null);
+  }
+
+  private TextCriteria(String title, String columnName, String searchString, String matchQuery) {
+    super(matchQuery == null ? columnName : KEY_ROWID,
+        matchQuery == null ? WhereFilter.Operation.LIKE : WhereFilter.Operation.MATCH,
+        matchQuery == null ? "%" + Utils.esacapeSqlLikeExpression(searchString) + "%" : matchQuery);
     this.searchString = searchString;
+    this.wordPrefix = matchQuery != null;
     this.title = title;
   }
+
+  /**
+   * @return a query restricted to columnName, where each word of searchString is searched as prefix, or null
+   * if searchString does not contain any word. Since the tokenizer only folds ASCII characters, we do the same.
+   */
+  static String buildMatchQuery(String columnName, String searchString) {
+    StringBuilder query = new StringBuilder();
+    for (String word : searchString.split("[^\\p{L}\\p{N}]+")) {
+      if (word.length() == 0) {
+        continue;
+      }
+      if (query.length() > 0) {
+        query.append(' ');
+      }
+      query.append(columnName).append(':');
+      for (char c : word.toCharArray()) {
+        query.append(c < 128 ? Character.toLowerCase(c) : c);
+      }
+      query.append('*');
+    }
+    return query.length() == 0 ? null : query.toString();
+  }
   public TextCriteria(Parcel in) {
    super(in);
    searchString = in.readString();
+   wordPrefix = in.readInt() == 1;
   }
   @Override
   public String prettyPrint() {
@@ -42,10 +84,29 @@ public abstract class TextCriteria extends Criteria {
   public void writeToParcel(Parcel dest, int flags) {
     super.writeToParcel(dest, flags);
     dest.writeString(searchString);
+    dest.writeInt(wordPrefix ? 1 : 0);
   }
   
+  /**
+   * the search string is stored as is for substring search, which keeps filters stored before word prefix
+   * search was introduced readable
+   */
   @Override
   public String toStringExtra() {
-    return searchString;
-  };
+    return wordPrefix ? escapeSeparator(searchString) + EXTRA_SEPARATOR + WORD_PREFIX_EXTRA : searchString;
+  }
+
+  static boolean isWordPrefixExtra(String extra) {
+    String[] extraParts = extra.split(EXTRA_SEPARATOR_ESCAPE_SAVE_REGEXP);
+    return extraParts.length == 2 && extraParts[1].equals(WORD_PREFIX_EXTRA);
+  }
+
+  /**
+   * @return the search string stored in extra by {@link #toStringExtra()}
+   */
+  static String searchStringFromExtra(String extra) {
+    return isWordPrefixExtra(extra) ?
+        unescapeSeparator(extra.substring(0, extra.length() - WORD_PREFIX_EXTRA.length() - EXTRA_SEPARATOR.length())) :
+        extra;
+  }
 }
@@ -27,6 +27,9 @@ import org.totschnig.myexpenses.util.Utils;
 import java.util.ArrayList;
 import java.util.LinkedList;
 
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DOCID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_FTS;
+
 
 public class WhereFilter {
 
@@ -151,7 +154,12 @@ public class WhereFilter {
   public enum Operation {
     NOPE(""), EQ("=?"), NEQ("!=?"), GT(">?"), GTE(">=?"), LT("<?"), LTE("<=?"), BTW(
         "BETWEEN ? AND ?"), ISNULL("is NULL"), LIKE("LIKE ? ESCAPE '" + LIKE_ESCAPE_CHAR + "'"),
-    IN(null);
+    IN(null),
+    /**
+     * to be applied to the id of transactions, matches them through the full text index
+     */
+    MATCH("IN (SELECT " + KEY_DOCID + " FROM " + TABLE_TRANSACTIONS_FTS + " WHERE " + TABLE_TRANSACTIONS_FTS
+        + " MATCH ?)");
 
     public final String op;
 
@@ -11,6 +11,7 @@
 package org.totschnig.myexpenses.service;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -30,6 +31,7 @@ public class GenericAlarmReceiver extends BroadcastReceiver {
   static final String BOOT_COMPLETED = "android.intent.action.BOOT_COMPLETED";
   static final String SCHEDULED_BACKUP = "org.totschnig.myexpenses.SCHEDULED_BACKUP";
   static final String ACCOUNT_CHANGED = "android.accounts.LOGIN_ACCOUNTS_CHANGED";
+  static final String TIMEZONE_CHANGED = "android.intent.action.TIMEZONE_CHANGED";
 
   @Override
   public void onReceive(Context context, Intent intent) {
@@ -59,6 +61,11 @@ public class GenericAlarmReceiver extends BroadcastReceiver {
           null;
       context.getContentResolver().update(TransactionProvider.ACCOUNTS_URI, values,
           where, accounts);
+    } else if (TIMEZONE_CHANGED.equals(action)) {
+      //the stored period columns of transactions depend on the time zone
+      ContentResolver cr = context.getContentResolver();
+      new Thread(() -> cr.update(TransactionProvider.TRANSACTIONS_REFRESH_PERIODS_URI, null, null, null))
+          .start();
     }
   }
 
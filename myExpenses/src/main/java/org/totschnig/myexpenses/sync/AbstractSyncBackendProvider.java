@@ -10,27 +10,44 @@ import com.annimon.stream.Optional;
 import com.annimon.stream.Stream;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import org.totschnig.myexpenses.BuildConfig;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.sync.json.AdapterFactory;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.ChangeSetEncoding;
 import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.sync.json.TransactionChangeReader;
 import org.totschnig.myexpenses.sync.json.Utils;
 import org.totschnig.myexpenses.util.AcraHelper;
+import org.totschnig.myexpenses.util.AppDirHelper;
 import org.totschnig.myexpenses.util.FileCopyUtils;
 import org.totschnig.myexpenses.util.PictureDirHelper;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import dagger.internal.Preconditions;
@@ -40,11 +57,32 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
   static final String BACKUP_FOLDER_NAME = "BACKUPS";
   static final String MIMETYPE_JSON = "application/json";
   static final String ACCOUNT_METADATA_FILENAME = "metadata.json";
+  static final String CHARSET = "UTF-8";
+  static final String SNAPSHOT_PREFIX = "snapshot";
   private static final Pattern FILE_PATTERN = Pattern.compile("_\\d+");
+  private static final Pattern SNAPSHOT_PATTERN = Pattern.compile(SNAPSHOT_PREFIX + "_\\d+");
+  /**
+   * pictures are stored under the SHA-256 of their content, hence a picture is uploaded and downloaded only once,
+   * however often the changes referencing it are synced
+   */
+  private static final Pattern PICTURE_HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  /**
+   * version of metadata that older versions of the app must not read, see
+   * {@link #serializeMetadata(Gson, AccountMetaData)}
+   */
+  static final int METADATA_FORMAT_VERSION = 2;
+  private static final String KEY_FORMAT_VERSION = "formatVersion";
+  private static final String KEY_ACCOUNT = "account";
   private Gson gson;
   private Context context;
   @Nullable
   private String appInstance;
+  private ChangeSetEncoding encoding = ChangeSetEncoding.json;
+  /**
+   * names under which the local pictures of the change set currently written are stored in the backend
+   */
+  private Map<String, String> remotePictureNames = new HashMap<>();
 
   AbstractSyncBackendProvider(Context context) {
     gson = new GsonBuilder()
@@ -66,69 +104,236 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
 
   ChangeSet getChangeSetFromInputStream(long sequenceNumber, InputStream inputStream)
       throws IOException {
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-    List<TransactionChange> changes = Utils.getChanges(gson, reader);
-    if (changes == null || changes.size() == 0) {
-      return ChangeSet.failed;
-    }
+    return getChangeSetFromInputStream(sequenceNumber, inputStream, true);
+  }
+
+  /**
+   * @param ingestPictures if false, pictures are not downloaded, and referenced as they are stored in the backend
+   */
+  ChangeSet getChangeSetFromInputStream(long sequenceNumber, InputStream inputStream, boolean ingestPictures)
+      throws IOException {
     List<TransactionChange> changeSetRead = new ArrayList<>();
-    for (TransactionChange transactionChange : changes) {
-      if (transactionChange.isEmpty()) {
-        Timber.w("found empty transaction change in json");
-        continue;
-      }
-      if (transactionChange.pictureUri() != null) {
-        changeSetRead.add(transactionChange.toBuilder()
-            .setPictureUri(ingestPictureUri(transactionChange.pictureUri())).build());
-      } else {
-        changeSetRead.add(transactionChange);
+    int count = 0;
+    Reader reader = new BufferedReader(new InputStreamReader(ChangeSetEncoding.decode(inputStream), CHARSET));
+    try {
+      TransactionChangeReader changeReader = new TransactionChangeReader(gson, reader);
+      TransactionChange transactionChange;
+      while ((transactionChange = changeReader.next()) != null) {
+        count++;
+        if (transactionChange.isEmpty()) {
+          Timber.w("found empty transaction change in json");
+          continue;
+        }
+        if (ingestPictures && transactionChange.pictureUri() != null) {
+          changeSetRead.add(transactionChange.toBuilder()
+              .setPictureUri(ingestPictureUri(transactionChange.pictureUri())).build());
+        } else {
+          changeSetRead.add(transactionChange);
+        }
       }
+    } catch (IllegalStateException e) {
+      throw new IOException(e);
+    } finally {
+      reader.close();
+    }
+    if (count == 0) {
+      return ChangeSet.failed;
     }
     return ChangeSet.create(sequenceNumber, changeSetRead);
   }
 
   private String ingestPictureUri(String relativeUri) throws IOException {
+    if (isPictureHashName(relativeUri)) {
+      return ingestPictureByHash(relativeUri);
+    }
+    //pictures written by older versions are named after the transaction
     Uri homeUri = PictureDirHelper.getOutputMediaUri(false);
     if (homeUri == null) {
       throw new IOException("Unable to write picture");
     }
-    FileCopyUtils.copy(getInputStreamForPicture(relativeUri),
-        MyApplication.getInstance().getContentResolver()
-        .openOutputStream(homeUri));
+    OutputStream out = MyApplication.getInstance().getContentResolver().openOutputStream(homeUri);
+    if (out == null) {
+      throw new IOException("Unable to write picture");
+    }
+    copyPicture(relativeUri, out);
     return homeUri.toString();
   }
 
+  /**
+   * the local copy keeps the name of the remote file, if it is already there, it has been ingested before
+   */
+  private String ingestPictureByHash(String fileName) throws IOException {
+    File pictureDir = PictureDirHelper.getPictureDir(MyApplication.getInstance().isProtected());
+    if (pictureDir == null) {
+      throw new IOException("Unable to write picture");
+    }
+    File picture = new File(pictureDir, fileName);
+    if (!picture.exists()) {
+      ingestVerified(getInputStreamForPicture(fileName), picture, getNameWithoutExtension(fileName));
+    }
+    return AppDirHelper.getContentUriForFile(picture).toString();
+  }
+
+  /**
+   * Copies the stream to the target, unless its content does not match the hash. Accounts of one backend are
+   * synced concurrently, hence each copy is written to its own temporary file, and if the target appears
+   * meanwhile, another thread has ingested the same picture.
+   */
+  static void ingestVerified(InputStream in, File target, String hash) throws IOException {
+    File temp = null;
+    try {
+      temp = File.createTempFile(hash, ".tmp", target.getParentFile());
+      DigestInputStream digestIn = new DigestInputStream(in, getSha256Digest());
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        FileCopyUtils.copy(digestIn, out);
+      } finally {
+        out.close();
+      }
+      String actualHash = toHex(digestIn.getMessageDigest().digest());
+      if (!actualHash.equals(hash)) {
+        throw new IOException(String.format("Picture %s has hash %s", target.getName(), actualHash));
+      }
+      if (!temp.renameTo(target) && !target.exists()) {
+        throw new IOException("Unable to write picture");
+      }
+    } finally {
+      in.close();
+      if (temp != null && temp.exists()) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+  }
+
+  private void copyPicture(String relativeUri, OutputStream out) throws IOException {
+    try {
+      InputStream in = getInputStreamForPicture(relativeUri);
+      try {
+        FileCopyUtils.copy(in, out);
+      } finally {
+        in.close();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static boolean isPictureHashName(String fileName) {
+    return PICTURE_HASH_PATTERN.matcher(getNameWithoutExtension(fileName)).matches();
+  }
+
   @NonNull
   protected abstract InputStream getInputStreamForPicture(String relativeUri) throws IOException;
 
   Optional<AccountMetaData> getAccountMetaDataFromInputStream(InputStream inputStream) {
     try {
-      return Optional.of(gson.fromJson(
-          new BufferedReader(new InputStreamReader(inputStream)), AccountMetaData.class));
+      return parseMetadata(gson, new BufferedReader(new InputStreamReader(inputStream)));
     } catch (Exception e) {
       AcraHelper.report(e);
       return Optional.empty();
     }
   }
 
-  boolean isNewerJsonFile(long sequenceNumber, String name) {
-    String fileName = getNameWithoutExtension(name);
-    String fileExtension = getFileExtension(name);
-    return fileExtension.equals("json") && FILE_PATTERN.matcher(fileName).matches() &&
+  /**
+   * Metadata of accounts with an encoding other than {@link ChangeSetEncoding#json} is wrapped in an object
+   * together with {@link #METADATA_FORMAT_VERSION}. Older versions read the metadata straight into
+   * {@link AccountMetaData}, they fail on the wrapped form and hence do not offer these accounts for linking.
+   * Otherwise they would ignore the change sets they can not read, and write their own under sequence numbers
+   * already taken.
+   */
+  static String serializeMetadata(Gson gson, AccountMetaData accountMetaData) {
+    if (ChangeSetEncoding.fromName(accountMetaData.encoding()) == ChangeSetEncoding.json) {
+      return gson.toJson(accountMetaData);
+    }
+    JsonObject wrapped = new JsonObject();
+    wrapped.addProperty(KEY_FORMAT_VERSION, METADATA_FORMAT_VERSION);
+    wrapped.add(KEY_ACCOUNT, gson.toJsonTree(accountMetaData));
+    return gson.toJson(wrapped);
+  }
+
+  /**
+   * @return empty if the metadata has been written in a format newer than {@link #METADATA_FORMAT_VERSION}
+   */
+  static Optional<AccountMetaData> parseMetadata(Gson gson, Reader reader) {
+    JsonObject jsonObject = new JsonParser().parse(reader).getAsJsonObject();
+    if (!jsonObject.has(KEY_FORMAT_VERSION)) {
+      return Optional.of(gson.fromJson(jsonObject, AccountMetaData.class));
+    }
+    int formatVersion = jsonObject.get(KEY_FORMAT_VERSION).getAsInt();
+    if (formatVersion > METADATA_FORMAT_VERSION) {
+      Timber.w("Ignoring account with metadata format %d", formatVersion);
+      return Optional.empty();
+    }
+    return Optional.of(gson.fromJson(jsonObject.get(KEY_ACCOUNT), AccountMetaData.class));
+  }
+
+  /**
+   * the encoding for writing change sets is set up when the account metadata is written or read
+   */
+  void readEncoding(AccountMetaData accountMetaData) {
+    encoding = ChangeSetEncoding.fromName(accountMetaData.encoding());
+  }
+
+  void setEncoding(ChangeSetEncoding encoding) {
+    this.encoding = encoding;
+  }
+
+  ChangeSetEncoding getEncoding() {
+    return encoding;
+  }
+
+  static boolean isNewerJsonFile(long sequenceNumber, String name) {
+    String fileName = getChangeSetBaseName(name);
+    return fileName != null && FILE_PATTERN.matcher(fileName).matches() &&
         Long.parseLong(fileName.substring(1)) > sequenceNumber;
   }
 
+  static boolean isSnapshotFile(String name) {
+    String fileName = getChangeSetBaseName(name);
+    return fileName != null && SNAPSHOT_PATTERN.matcher(fileName).matches();
+  }
+
+  /**
+   * change sets up to a snapshot may have been pruned, devices that have not synced since can no longer catch up
+   *
+   * @param firstSequence the lowest sequence number of the change sets after sequenceNumber
+   */
+  boolean isPruned(long sequenceNumber, long firstSequence) {
+    return sequenceNumber > 0 && firstSequence > sequenceNumber + 1;
+  }
+
+  /**
+   * @return the name without the extension of one of the {@link ChangeSetEncoding}s, null if it has none of them
+   */
+  @Nullable
+  private static String getChangeSetBaseName(String name) {
+    Preconditions.checkNotNull(name);
+    String fileName = new File(name).getName();
+    for (ChangeSetEncoding changeSetEncoding : ChangeSetEncoding.values()) {
+      String extension = "." + changeSetEncoding.fileExtension;
+      if (fileName.endsWith(extension)) {
+        return fileName.substring(0, fileName.length() - extension.length());
+      }
+    }
+    return null;
+  }
+
   protected Optional<ChangeSet> merge(Stream<ChangeSet> changeSetStream) {
     return changeSetStream.reduce(ChangeSet::merge);
   }
 
   @NonNull
   Long getSequenceFromFileName(String fileName) {
-    return Long.parseLong(getNameWithoutExtension(fileName).substring(1));
+    String baseName = getChangeSetBaseName(fileName);
+    if (baseName == null) {
+      baseName = getNameWithoutExtension(fileName);
+    }
+    return Long.parseLong(baseName.substring(baseName.lastIndexOf('_') + 1));
   }
 
   //from Guava
-  private String getNameWithoutExtension(String file) {
+  private static String getNameWithoutExtension(String file) {
     Preconditions.checkNotNull(file);
     String fileName = new File(file).getName();
     int dotIndex = fileName.lastIndexOf('.');
@@ -146,30 +351,132 @@ abstract class AbstractSyncBackendProvider implements SyncBackendProvider {
   @Override
   public long writeChangeSet(List<TransactionChange> changeSet, Context context) throws IOException {
     long nextSequence = getLastSequence() + 1;
-    List<TransactionChange> changeSetToWrite = new ArrayList<>();
+    remotePictureNames.clear();
     for (TransactionChange transactionChange : changeSet) {
-      TransactionChange mappedChange;
-      if (transactionChange.pictureUri() != null) {
-        String newUri = transactionChange.uuid() + "_" +
-            Uri.parse(transactionChange.pictureUri()).getLastPathSegment();
-        saveUriToAccountDir(newUri, Uri.parse(transactionChange.pictureUri()));
-        mappedChange = transactionChange.toBuilder().setPictureUri(newUri).build();
-      } else {
-        mappedChange = transactionChange;
-      }
-      if (appInstance != null) {
-        mappedChange = mappedChange.toBuilder().setAppInstance(appInstance).build();
+      if (isLocalPicture(transactionChange) && !remotePictureNames.containsKey(transactionChange.pictureUri())) {
+        Uri pictureUri = Uri.parse(transactionChange.pictureUri());
+        String remotePictureName = getRemotePictureName(pictureUri);
+        if (!fileExists(remotePictureName)) {
+          saveUriToAccountDir(remotePictureName, pictureUri);
+        }
+        remotePictureNames.put(transactionChange.pictureUri(), remotePictureName);
       }
-      changeSetToWrite.add(mappedChange);
     }
-    saveFileContents("_" + nextSequence + ".json", gson.toJson(changeSetToWrite), MIMETYPE_JSON);
+    saveChangeSet("_" + nextSequence + "." + encoding.fileExtension, changeSet);
     return nextSequence;
   }
 
+  /**
+   * pictures of changes read without ingesting pictures, e.g. for a snapshot, are referenced by their name in the
+   * backend, local pictures by uri
+   */
+  private boolean isLocalPicture(TransactionChange transactionChange) {
+    return transactionChange.pictureUri() != null && Uri.parse(transactionChange.pictureUri()).getScheme() != null;
+  }
+
+  @Override
+  public void writeSnapshot(long sequenceNumber, List<TransactionChange> changes) throws IOException {
+    saveChangeSet(SNAPSHOT_PREFIX + "_" + sequenceNumber + "." + encoding.fileExtension, changes);
+  }
+
+  /**
+   * pictures ingested from the backend already carry the hash in their name, others are read once for hashing
+   */
+  private String getRemotePictureName(Uri pictureUri) throws IOException {
+    String fileName = pictureUri.getLastPathSegment();
+    String extension = getFileExtension(fileName);
+    String hash;
+    if (isPictureHashName(fileName)) {
+      hash = getNameWithoutExtension(fileName);
+    } else {
+      InputStream in = MyApplication.getInstance().getContentResolver().openInputStream(pictureUri);
+      if (in == null) {
+        throw new IOException("Could not read " + pictureUri);
+      }
+      try {
+        hash = sha256(in);
+      } finally {
+        in.close();
+      }
+    }
+    return extension.isEmpty() ? hash : hash + "." + extension;
+  }
+
+  static String sha256(InputStream in) throws IOException {
+    MessageDigest digest = getSha256Digest();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest getSha256Digest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+  private TransactionChange mapForWrite(TransactionChange transactionChange) {
+    TransactionChange mappedChange = transactionChange;
+    if (isLocalPicture(transactionChange)) {
+      String remotePictureName = remotePictureNames.get(transactionChange.pictureUri());
+      if (remotePictureName == null) {
+        throw new IllegalStateException("Picture has not been stored in backend: " + transactionChange.pictureUri());
+      }
+      mappedChange = mappedChange.toBuilder().setPictureUri(remotePictureName).build();
+    }
+    if (appInstance != null) {
+      mappedChange = mappedChange.toBuilder().setAppInstance(appInstance).build();
+    }
+    return mappedChange;
+  }
+
+  /**
+   * Serializes the change set change by change, mapping each one for the remote side as it goes, hence neither
+   * a mapped copy of the change set nor its JSON representation are held in memory. Can be called more than once
+   * for the same change set, e.g. when a request body is retried.
+   */
+  void writeChangeSet(List<TransactionChange> changeSet, OutputStream outputStream) throws IOException {
+    OutputStream encoded = encoding.wrap(outputStream);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(encoded, CHARSET));
+    Utils.writeChanges(gson, writer, Stream.of(changeSet).map(this::mapForWrite).getIterator());
+    encoding.finish(encoded);
+  }
+
+  /**
+   * store the change set under fileName, implementations stream it with
+   * {@link #writeChangeSet(List, OutputStream)}
+   */
+  abstract void saveChangeSet(String fileName, List<TransactionChange> changeSet) throws IOException;
+
   protected abstract void saveUriToAccountDir(String fileName, Uri uri) throws IOException;
 
+  /**
+   * @return true if the folder of the account holds a file with this name
+   */
+  abstract boolean fileExists(String fileName) throws IOException;
+
+  /**
+   * the encoding of change sets is decided when the metadata for the account is first written, based on the
+   * preference of the user
+   */
   String buildMetadata(Account account) {
-    return gson.toJson(AccountMetaData.from(account));
+    encoding = PrefKey.SYNC_COMPRESS_CHANGE_SETS.getBoolean(false) ? ChangeSetEncoding.gzip :
+        ChangeSetEncoding.json;
+    return serializeMetadata(gson, AccountMetaData.from(account, encoding));
   }
 
   protected abstract long getLastSequence() throws IOException;
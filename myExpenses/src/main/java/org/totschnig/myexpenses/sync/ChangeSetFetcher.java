@@ -0,0 +1,72 @@
+package org.totschnig.myexpenses.sync;
+
+import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
+/**
+ * Fetches change sets with bounded concurrency and merges them in the order in which their sources are passed in.
+ * At most maxInFlight fetches are pending at any time, the next one is only submitted once the oldest one has been
+ * merged, so that the number of change sets that have been parsed, but not yet merged, stays bounded.
+ */
+class ChangeSetFetcher<T> {
+  interface Fetch<T> {
+    /**
+     * @return {@link ChangeSet#failed} if the change set could not be fetched
+     */
+    ChangeSet fetch(T source);
+  }
+
+  private final ExecutorService executor;
+  private final int maxInFlight;
+
+  ChangeSetFetcher(ExecutorService executor, int maxInFlight) {
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * @param sequenceNumber returned as sequence number of the empty change set if there are no sources
+   * @return {@link ChangeSet#failed} as soon as one of the fetches fails, pending fetches are cancelled
+   */
+  ChangeSet fetchAndMerge(List<T> sources, Fetch<T> fetch, long sequenceNumber) {
+    Deque<Future<ChangeSet>> inFlight = new ArrayDeque<>(maxInFlight);
+    Iterator<T> iterator = sources.iterator();
+    List<TransactionChange> changes = new ArrayList<>();
+    try {
+      while (iterator.hasNext() || !inFlight.isEmpty()) {
+        while (iterator.hasNext() && inFlight.size() < maxInFlight) {
+          T source = iterator.next();
+          inFlight.add(executor.submit(() -> fetch.fetch(source)));
+        }
+        ChangeSet changeSet = inFlight.poll().get();
+        if (changeSet.isFailed()) {
+          return ChangeSet.failed;
+        }
+        changes.addAll(changeSet.changes);
+        sequenceNumber = Math.max(sequenceNumber, changeSet.sequenceNumber);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return ChangeSet.failed;
+    } catch (ExecutionException e) {
+      Timber.e(e, "Error while fetching change set");
+      return ChangeSet.failed;
+    } finally {
+      for (Future<ChangeSet> future : inFlight) {
+        future.cancel(true);
+      }
+    }
+    return ChangeSet.create(sequenceNumber, changes);
+  }
+}
@@ -0,0 +1,346 @@
+package org.totschnig.myexpenses.sync;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.annimon.stream.Collectors;
+import com.annimon.stream.Optional;
+import com.annimon.stream.Stream;
+
+import org.totschnig.myexpenses.model.Account;
+import org.totschnig.myexpenses.sync.json.AccountMetaData;
+import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.util.FileCopyUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import dagger.internal.Preconditions;
+import timber.log.Timber;
+
+/**
+ * Stores the data of synced accounts in a folder on the device, which can be kept in sync between devices
+ * with any folder syncing tool. Files are written to a hidden temporary file first and renamed once complete,
+ * so that neither the syncing tool nor {@link LocalFileSyncObserver} ever picks up a partially written file.
+ */
+class LocalFileBackendProvider extends AbstractSyncBackendProvider {
+  static final String LOCK_FILENAME = ".lock";
+  private static final String TEMP_SUFFIX = ".tmp";
+  /**
+   * a lock older than this has been left behind by a sync that did not finish and is taken over
+   */
+  private static final long LOCK_TIMEOUT_MILLIS = 30 * 60 * 1000;
+  /**
+   * the resolution of the modification time of directories is as coarse as two seconds on some file systems,
+   * a listing taken within this interval after the last modification might miss a file added in the same interval
+   */
+  private static final long MTIME_RESOLUTION_MILLIS = 2000;
+
+  private final Context context;
+  private File baseDir, accountDir;
+  /**
+   * listing of {@link #accountDir}, reused as long as the directory has not been modified since it was taken
+   */
+  private File[] listing;
+  private long listingModified, listingTaken;
+
+  private interface ContentWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  LocalFileBackendProvider(Context context, String filePath) {
+    super(context);
+    this.context = context.getApplicationContext();
+    baseDir = new File(filePath);
+    if (!baseDir.isDirectory()) {
+      throw new RuntimeException("No directory " + filePath);
+    }
+  }
+
+  @Override
+  public boolean withAccount(Account account) {
+    accountDir = new File(baseDir, account.uuid);
+    invalidateListing();
+    //noinspection ResultOfMethodCallIgnored
+    accountDir.mkdir();
+    if (accountDir.isDirectory()) {
+      File metaData = new File(accountDir, ACCOUNT_METADATA_FILENAME);
+      if (metaData.exists()) {
+        getAccountMetaDataFromFile(metaData).ifPresent(this::readEncoding);
+      } else {
+        try {
+          saveFileContents(metaData, buildMetadata(account));
+          createWarningFile();
+        } catch (IOException e) {
+          return false;
+        }
+      }
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean resetAccountData(String uuid) {
+    //we do not set the member, this needs to be done through withAccount
+    File accountDir = new File(baseDir, uuid);
+    if (accountDir.isDirectory()) {
+      for (String file : accountDir.list()) {
+        if (!(new File(accountDir, file).delete())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @NonNull
+  @Override
+  protected InputStream getInputStreamForPicture(String relativeUri) throws IOException {
+    return new FileInputStream(new File(accountDir, relativeUri));
+  }
+
+  @Override
+  protected void saveUriToAccountDir(String fileName, Uri uri) throws IOException {
+    saveUriToFolder(fileName, uri, accountDir);
+  }
+
+  @Override
+  boolean fileExists(String fileName) {
+    Preconditions.checkNotNull(accountDir);
+    return new File(accountDir, fileName).exists();
+  }
+
+  private void saveUriToFolder(String fileName, Uri uri, File folder) throws IOException {
+    writeAtomically(new File(folder, fileName), out -> {
+      InputStream in = context.getContentResolver().openInputStream(uri);
+      if (in == null) {
+        throw new IOException("Could not open " + uri);
+      }
+      try {
+        FileCopyUtils.copy(in, out);
+      } finally {
+        in.close();
+      }
+    });
+  }
+
+  @Override
+  public void storeBackup(Uri uri) throws IOException {
+    File backupDir = new File(baseDir, BACKUP_FOLDER_NAME);
+    //noinspection ResultOfMethodCallIgnored
+    backupDir.mkdir();
+    if (!backupDir.isDirectory()) {
+      throw new IOException("Unable to create directory for backups");
+    }
+    saveUriToFolder(uri.getLastPathSegment(), uri, backupDir);
+  }
+
+  @Override
+  protected long getLastSequence() {
+    //change sets covered by a snapshot might have been pruned
+    return Math.max(getSnapshotSequence(), Stream.of(filterFiles(0))
+        .map(file -> getSequenceFromFileName(file.getName()))
+        .max(this::compareInt)
+        .orElse(0L));
+  }
+
+  private List<File> filterFiles(long sequenceNumber) {
+    return Stream.of(listAccountDir())
+        .filter(file -> isNewerJsonFile(sequenceNumber, file.getName()))
+        .collect(Collectors.toList());
+  }
+
+  private File[] listAccountDir() {
+    Preconditions.checkNotNull(accountDir);
+    long modified = accountDir.lastModified();
+    if (listing == null || modified != listingModified || listingTaken - modified < MTIME_RESOLUTION_MILLIS) {
+      listingTaken = System.currentTimeMillis();
+      listingModified = modified;
+      listing = accountDir.listFiles();
+      if (listing == null) {
+        listing = new File[0];
+      }
+    }
+    return listing;
+  }
+
+  private void invalidateListing() {
+    listing = null;
+  }
+
+  private File getLockFile() {
+    Preconditions.checkNotNull(accountDir);
+    return new File(accountDir, LOCK_FILENAME);
+  }
+
+  @Override
+  public boolean lock() {
+    File lockFile = getLockFile();
+    try {
+      if (lockFile.createNewFile()) {
+        return true;
+      }
+      if (System.currentTimeMillis() - lockFile.lastModified() > LOCK_TIMEOUT_MILLIS) {
+        Timber.w("Taking over stale lock %s", lockFile);
+        return lockFile.delete() && lockFile.createNewFile();
+      }
+    } catch (IOException e) {
+      Timber.e(e);
+    }
+    return false;
+  }
+
+  @NonNull
+  @Override
+  public ChangeSet getChangeSetSince(long sequenceNumber, Context context) throws IOException {
+    return getChangeLog(sequenceNumber, true);
+  }
+
+  @NonNull
+  @Override
+  public ChangeSet getChangeLogForCompaction() throws IOException {
+    return getChangeLog(0, false);
+  }
+
+  private ChangeSet getChangeLog(long sequenceNumber, boolean ingestPictures) throws IOException {
+    List<File> files = new ArrayList<>();
+    if (sequenceNumber == 0) {
+      Optional<File> snapshot = getLatestSnapshot();
+      if (snapshot.isPresent()) {
+        files.add(snapshot.get());
+        sequenceNumber = getSequenceFromFileName(snapshot.get().getName());
+      }
+    }
+    List<File> changeSets = Stream.of(filterFiles(sequenceNumber))
+        .sortBy(file -> getSequenceFromFileName(file.getName()))
+        .collect(Collectors.toList());
+    if (changeSets.size() > 0 && isPruned(sequenceNumber, getSequenceFromFileName(changeSets.get(0).getName()))) {
+      return ChangeSet.pruned;
+    }
+    files.addAll(changeSets);
+    List<ChangeSet> result = new ArrayList<>();
+    for (File file: files) {
+      result.add(getChangeSetFromFile(file, ingestPictures));
+    }
+    return merge(Stream.of(result)).orElse(ChangeSet.empty(sequenceNumber));
+  }
+
+  private Optional<File> getLatestSnapshot() {
+    return Stream.of(listAccountDir())
+        .filter(file -> isSnapshotFile(file.getName()))
+        .max((f1, f2) -> compareInt(getSequenceFromFileName(f1.getName()), getSequenceFromFileName(f2.getName())));
+  }
+
+  @Override
+  public long getSnapshotSequence() {
+    return getLatestSnapshot().map(file -> getSequenceFromFileName(file.getName())).orElse(0L);
+  }
+
+  @Override
+  public void pruneChangeLog(long sequenceNumber) throws IOException {
+    List<File> files = Stream.of(listAccountDir())
+        .filter(file -> (isNewerJsonFile(0, file.getName()) || isSnapshotFile(file.getName())) &&
+            getSequenceFromFileName(file.getName()) <= sequenceNumber)
+        .collect(Collectors.toList());
+    invalidateListing();
+    for (File file : files) {
+      if (!file.delete()) {
+        throw new IOException("Unable to delete " + file);
+      }
+    }
+  }
+
+  private ChangeSet getChangeSetFromFile(File file, boolean ingestPictures) throws IOException {
+    return getChangeSetFromInputStream(getSequenceFromFileName(file.getName()), new FileInputStream(file),
+        ingestPictures);
+  }
+
+  private Optional<AccountMetaData> getAccountMetaDataFromFile(File file) {
+    try {
+      return getAccountMetaDataFromInputStream(new FileInputStream(file));
+    } catch (FileNotFoundException e) {
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public boolean unlock() {
+    File lockFile = getLockFile();
+    return !lockFile.exists() || lockFile.delete();
+  }
+
+  @Override
+  public String toString() {
+    return baseDir.toString();
+  }
+
+  @Override
+  void saveFileContents(String fileName, String fileContents, String mimeType) throws IOException {
+    Preconditions.checkNotNull(accountDir);
+    saveFileContents(new File(accountDir, fileName), fileContents);
+  }
+
+  @Override
+  void saveChangeSet(String fileName, List<TransactionChange> changeSet) throws IOException {
+    Preconditions.checkNotNull(accountDir);
+    writeAtomically(new File(accountDir, fileName), out -> writeChangeSet(changeSet, out));
+  }
+
+  private void saveFileContents(File file, String fileContents) throws IOException {
+    writeAtomically(file, out -> {
+      OutputStreamWriter writer = new OutputStreamWriter(out, CHARSET);
+      writer.write(fileContents);
+      writer.flush();
+    });
+  }
+
+  /**
+   * writes to a hidden temporary file in the same folder, which replaces file once it is complete
+   */
+  private void writeAtomically(File file, ContentWriter contentWriter) throws IOException {
+    File temp = new File(file.getParentFile(), "." + file.getName() + TEMP_SUFFIX);
+    FileOutputStream out = new FileOutputStream(temp);
+    boolean written = false;
+    try {
+      contentWriter.writeTo(out);
+      out.flush();
+      out.getFD().sync();
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+    invalidateListing();
+    if (!temp.renameTo(file)) {
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      throw new IOException("Unable to rename " + temp + " to " + file);
+    }
+  }
+
+  @Override
+  public List<AccountMetaData> getRemoteAccountList() {
+    return Stream.of(baseDir.listFiles(File::isDirectory))
+        .map(directory -> new File(directory, ACCOUNT_METADATA_FILENAME))
+        .filter(File::exists)
+        .map(this::getAccountMetaDataFromFile)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .collect(Collectors.toList());
+  }
+}
@@ -6,6 +6,7 @@ import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 
+import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.activity.ManageSyncBackends;
 import org.totschnig.myexpenses.dialog.EditTextDialog;
 
@@ -13,6 +14,8 @@ import static org.totschnig.myexpenses.util.PermissionHelper.hasExternalReadPerm
 
 public class LocalFileBackendProviderFactory extends SyncBackendProviderFactory {
 
+  public static final String LABEL = "Local";
+
   @NonNull
   @Override
   protected LocalFileBackendProvider _fromAccount(Context context, Account account, AccountManager accountManager) {
@@ -25,17 +28,15 @@ public class LocalFileBackendProviderFactory extends SyncBackendProviderFactory
 
   @Override
   public String getLabel() {
-    return "Local";
+    return LABEL;
   }
 
   @Override
   public void startSetup(ManageSyncBackends context) {
     Bundle args = new Bundle();
-    args.putString(EditTextDialog.KEY_DIALOG_TITLE, "Local backend: Directory path");
+    args.putString(EditTextDialog.KEY_DIALOG_TITLE, context.getString(R.string.dialog_title_local_backend_path));
     args.putString(GenericAccountService.KEY_SYNC_PROVIDER_LABEL, getLabel());
     EditTextDialog.newInstance(args)
         .show(context.getSupportFragmentManager(), "LOCAL_BACKEND_DIRECTORY_PATH");
   }
-
-
 }
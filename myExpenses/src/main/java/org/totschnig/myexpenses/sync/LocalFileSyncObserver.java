@@ -0,0 +1,127 @@
+package org.totschnig.myexpenses.sync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static org.totschnig.myexpenses.util.PermissionHelper.hasExternalReadPermission;
+
+/**
+ * Watches the folders of {@link LocalFileBackendProvider}s, so that change sets put there by a folder syncing
+ * tool on behalf of another device are synced right away instead of with the next periodic sync.
+ * Change sets written by this device also trigger a sync, which finds nothing new and does not write anything.
+ */
+public class LocalFileSyncObserver {
+  /**
+   * a folder syncing tool usually delivers several files at once, they are synced together
+   */
+  private static final long DEBOUNCE_MILLIS = 5000;
+  private static final int ACCOUNT_DIR_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+  private static final int BASE_DIR_EVENTS = FileObserver.CREATE | FileObserver.MOVED_TO;
+
+  /**
+   * FileObservers stop watching once they are garbage collected, so we need to hold on to them
+   */
+  private static final List<FileObserver> observers = new ArrayList<>();
+  private static final Set<Account> pendingAccounts = new HashSet<>();
+  private static Handler handler;
+  private static Context context;
+
+  private LocalFileSyncObserver() {
+  }
+
+  /**
+   * Watches the folders of all local file backends currently set up, needs to be called whenever a backend
+   * is added or removed
+   */
+  public static synchronized void refresh(Context context) {
+    LocalFileSyncObserver.context = context.getApplicationContext();
+    if (handler == null) {
+      handler = new Handler(Looper.getMainLooper());
+    }
+    for (FileObserver observer : observers) {
+      observer.stopWatching();
+    }
+    observers.clear();
+    if (!hasExternalReadPermission(context)) {
+      return;
+    }
+    AccountManager accountManager = AccountManager.get(context);
+    for (Account account : GenericAccountService.getAccountsAsArray(context)) {
+      if (account.name.startsWith(LocalFileBackendProviderFactory.LABEL)) {
+        String filePath = accountManager.getUserData(account, GenericAccountService.KEY_SYNC_PROVIDER_URL);
+        if (filePath != null) {
+          watch(account, new File(filePath));
+        }
+      }
+    }
+  }
+
+  private static void watch(Account account, File baseDir) {
+    if (!baseDir.isDirectory()) {
+      return;
+    }
+    //folders of accounts linked later are created by the backend, we then need to watch them as well
+    startWatching(new FileObserver(baseDir.getPath(), BASE_DIR_EVENTS) {
+      @Override
+      public void onEvent(int event, @Nullable String path) {
+        if (path != null && new File(baseDir, path).isDirectory()) {
+          handler.post(() -> refresh(context));
+        }
+      }
+    });
+    File[] accountDirs = baseDir.listFiles(File::isDirectory);
+    if (accountDirs == null) {
+      return;
+    }
+    for (File accountDir : accountDirs) {
+      if (accountDir.getName().equals(AbstractSyncBackendProvider.BACKUP_FOLDER_NAME)) {
+        continue;
+      }
+      startWatching(new FileObserver(accountDir.getPath(), ACCOUNT_DIR_EVENTS) {
+        @Override
+        public void onEvent(int event, @Nullable String path) {
+          if (path != null && (AbstractSyncBackendProvider.isNewerJsonFile(0, path) ||
+              AbstractSyncBackendProvider.isSnapshotFile(path))) {
+            requestSync(account);
+          }
+        }
+      });
+    }
+  }
+
+  private static void startWatching(FileObserver observer) {
+    observer.startWatching();
+    observers.add(observer);
+  }
+
+  private static synchronized void requestSync(Account account) {
+    if (pendingAccounts.add(account)) {
+      handler.postDelayed(() -> {
+        synchronized (LocalFileSyncObserver.class) {
+          pendingAccounts.remove(account);
+        }
+        if (ContentResolver.getSyncAutomatically(account, TransactionProvider.AUTHORITY)) {
+          Timber.d("Requesting sync of %s after change in its folder", account.name);
+          ContentResolver.requestSync(account, TransactionProvider.AUTHORITY, new Bundle());
+        }
+      }, DEBOUNCE_MILLIS);
+    }
+  }
+}
@@ -11,9 +11,9 @@ import java.util.List;
 public class ServiceLoader {
   public static List<SyncBackendProviderFactory> load(Context context) {
     List<SyncBackendProviderFactory> services = new ArrayList<>();
-    tryToInstantiate(services, "org.totschnig.myexpenses.sync.LocalFileBackendProviderFactory", context);
     tryToInstantiate(services, "org.totschnig.myexpenses.sync.GoogleDriveBackendProviderFactory", context);
     services.add(new WebDavBackendProviderFactory());
+    services.add(new LocalFileBackendProviderFactory());
     return services;
   }
 
@@ -26,6 +26,7 @@ import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -56,6 +57,7 @@ import org.totschnig.myexpenses.model.PaymentMethod;
 import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transfer;
+import org.totschnig.myexpenses.preference.PrefKey;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
@@ -67,10 +69,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import timber.log.Timber;
 
@@ -88,9 +97,29 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_ACCOUNT_NAME;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SYNC_SEQUENCE_LOCAL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_INIT_PROGRESS;
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
   public static final int BATCH_SIZE = 100;
+  /**
+   * once this number of local changes is collected, no further sequences are added to the change set
+   */
+  private static final int LOCAL_CHANGES_LIMIT = 1000;
+  /**
+   * number of change sets after which a new snapshot of the change log is written
+   */
+  private static final int SNAPSHOT_INTERVAL = 100;
+  /**
+   * number of accounts of one backend synced concurrently, unless configured in
+   * {@link PrefKey#SYNC_PARALLEL_ACCOUNTS}
+   */
+  private static final int DEFAULT_PARALLEL_ACCOUNTS = 2;
+  private static final long INITIAL_BACKOFF_SECONDS = 300;
+  private static final long MAX_BACKOFF_SECONDS = 6 * 60 * 60;
+  /**
+   * delay before an account that is locked by another device is synced again
+   */
+  private static final long LOCK_RETRY_SECONDS = 60;
 
   public static String KEY_LAST_SYNCED_REMOTE(long accountId) {
     return "last_synced_remote_" + accountId;
@@ -100,13 +129,38 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return "last_synced_local_" + accountId;
   }
 
+  public static String KEY_BACKOFF_UNTIL(long accountId) {
+    return "backoff_until_" + accountId;
+  }
+
+  public static String KEY_FAILURES(long accountId) {
+    return "failures_" + accountId;
+  }
+
+  /**
+   * set once the account has fallen behind the pruned change log of the backend, it is no longer synced until
+   * it is linked again
+   */
+  public static String KEY_PRUNED(long accountId) {
+    return "pruned_" + accountId;
+  }
+
   public static final String KEY_RESET_REMOTE_ACCOUNT = "reset_remote_account";
+  private static final String NOTIFICATION_TAG_PRUNED = "sync_pruned";
   public static final String KEY_UPLOAD_AUTO_BACKUP = "upload_auto_backup";
 
-  private Map<String, Long> categoryToId;
-  private Map<String, Long> payeeToId;
-  private Map<String, Long> methodToId;
-  private Map<String, Long> accountUuidToId;
+  private Map<String, Long> categoryToId = new HashMap<>();
+  private Map<String, Long> payeeToId = new HashMap<>();
+  private Map<String, Long> methodToId = new HashMap<>();
+  private Map<String, Long> accountUuidToId = new HashMap<>();
+  /**
+   * ids of the transactions referenced by the batch of remote changes currently written, -1 if not found
+   */
+  private Map<String, Long> transactionUuidToId = new HashMap<>();
+  /**
+   * guards the lookup maps and writing remote changes to the database, when accounts are synced concurrently
+   */
+  private final Object applyLock = new Object();
 
   private static final ThreadLocal<org.totschnig.myexpenses.model.Account>
       dbAccount = new ThreadLocal<>();
@@ -133,6 +187,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     payeeToId = new HashMap<>();
     methodToId = new HashMap<>();
     accountUuidToId = new HashMap<>();
+    transactionUuidToId = new HashMap<>();
     String uuidFromExtras = extras.getString(KEY_UUID);
     Timber.i("onPerformSync " + extras.toString());
 
@@ -164,7 +219,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
     if (!backend.setUp()) {
       syncResult.stats.numIoExceptions++;
-      syncResult.delayUntil = 300;
+      //SyncManager expects seconds since the epoch
+      syncResult.delayUntil = System.currentTimeMillis() / 1000 + INITIAL_BACKOFF_SECONDS;
       return;
     }
 
@@ -197,8 +253,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
     String[] projection = {KEY_ROWID};
     try {
+      //accounts whose initialization has been interrupted are resumed
       c = provider.query(TransactionProvider.ACCOUNTS_URI, projection,
-          selection + " AND "  + KEY_SYNC_SEQUENCE_LOCAL + " = 0", selectionArgs, null);
+          selection + " AND ("  + KEY_SYNC_SEQUENCE_LOCAL + " = 0 OR " + KEY_ROWID + " IN (SELECT "
+              + KEY_ACCOUNTID + " FROM " + TABLE_SYNC_INIT_PROGRESS + "))", selectionArgs, null);
     } catch (RemoteException e) {
       syncResult.databaseError = true;
       AcraHelper.report(e);
@@ -213,7 +271,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
       do {
         long accountId = c.getLong(0);
         try {
-          provider.update(buildInitializationUri(accountId), new ContentValues(0), null, null);
+          initializeChanges(provider, accountId);
         } catch (RemoteException e) {
           syncResult.databaseError = true;
           AcraHelper.report(e);
@@ -223,6 +281,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
 
+    List<Long> accountIds = new ArrayList<>();
     try {
       c = provider.query(TransactionProvider.ACCOUNTS_URI, projection, selection, selectionArgs,
           null);
@@ -234,113 +293,371 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     if (c != null) {
       if (c.moveToFirst()) {
         do {
-          long accountId = c.getLong(0);
-
-          String lastLocalSyncKey = KEY_LAST_SYNCED_LOCAL(accountId);
-          String lastRemoteSyncKey = KEY_LAST_SYNCED_REMOTE(accountId);
-
-          long lastSyncedLocal = Long.parseLong(getUserDataWithDefault(accountManager, account,
-              lastLocalSyncKey, "0"));
-          long lastSyncedRemote = Long.parseLong(getUserDataWithDefault(accountManager, account,
-              lastRemoteSyncKey, "0"));
-          dbAccount.set(org.totschnig.myexpenses.model.Account.getInstanceFromDb(accountId));
-          Timber.i("now syncing " + dbAccount.get().label);
-          if (uuidFromExtras != null && extras.getBoolean(KEY_RESET_REMOTE_ACCOUNT)) {
-            if (!backend.resetAccountData(uuidFromExtras)) {
-              syncResult.stats.numIoExceptions++;
-              Timber.e("error resetting account data");
-            }
-            continue;
+          accountIds.add(c.getLong(0));
+        } while (c.moveToNext());
+      }
+      c.close();
+    }
+
+    int parallelism = Math.min(accountIds.size(),
+        PrefKey.SYNC_PARALLEL_ACCOUNTS.getInt(DEFAULT_PARALLEL_ACCOUNTS));
+    List<SyncResult> accountResults = new ArrayList<>(accountIds.size());
+    if (parallelism <= 1) {
+      for (long accountId : accountIds) {
+        SyncResult accountResult = new SyncResult();
+        syncAccountWithBackoff(account, accountId, backend, provider, extras, accountResult);
+        accountResults.add(accountResult);
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+      List<Future<SyncResult>> futures = new ArrayList<>(accountIds.size());
+      for (long accountId : accountIds) {
+        futures.add(executor.submit(() -> syncAccountConcurrently(account, accountId, extras)));
+      }
+      try {
+        for (Future<SyncResult> future : futures) {
+          try {
+            accountResults.add(future.get());
+          } catch (ExecutionException e) {
+            //failures are handled by each account, so that they do not affect the others
+            AcraHelper.report(e);
+            SyncResult accountResult = new SyncResult();
+            accountResult.databaseError = true;
+            accountResults.add(accountResult);
           }
-          if (!backend.withAccount(dbAccount.get())) {
-            syncResult.stats.numIoExceptions++;
-            Timber.e("error withAccount");
-            continue;
+        }
+      } catch (InterruptedException e) {
+        //sync has been canceled
+        Thread.currentThread().interrupt();
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    mergeSyncResults(syncResult, accountResults);
+    backend.tearDown();
+  }
+
+  /**
+   * Syncs one account on a thread of the scheduler, with its own backend instance and provider client, since
+   * both are not meant to be shared between threads.
+   */
+  private SyncResult syncAccountConcurrently(Account account, long accountId, Bundle extras) {
+    SyncResult syncResult = new SyncResult();
+    SyncBackendProvider backend;
+    try {
+      backend = SyncBackendProviderFactory.get(getContext(), account).getOrThrow();
+    } catch (Throwable throwable) {
+      Timber.e(throwable, "Error instantiating backend");
+      syncResult.stats.numIoExceptions++;
+      return syncResult;
+    }
+    if (!backend.setUp()) {
+      syncResult.stats.numIoExceptions++;
+      return syncResult;
+    }
+    ContentProviderClient provider = getContext().getContentResolver()
+        .acquireContentProviderClient(TransactionProvider.AUTHORITY);
+    if (provider == null) {
+      syncResult.databaseError = true;
+      backend.tearDown();
+      return syncResult;
+    }
+    try {
+      syncAccountWithBackoff(account, accountId, backend, provider, extras, syncResult);
+    } finally {
+      provider.release();
+      backend.tearDown();
+    }
+    return syncResult;
+  }
+
+  /**
+   * Syncs one account, unless it is backing off after a failure, and updates its backoff from the outcome.
+   * Unexpected failures are caught, so that they do not abort the sync of the other accounts.
+   */
+  private void syncAccountWithBackoff(Account account, long accountId, SyncBackendProvider backend,
+                                      ContentProviderClient provider, Bundle extras, SyncResult syncResult) {
+    AccountManager accountManager = AccountManager.get(getContext());
+    String backoffKey = KEY_BACKOFF_UNTIL(accountId);
+    String failuresKey = KEY_FAILURES(accountId);
+    if (accountManager.getUserData(account, KEY_PRUNED(accountId)) != null) {
+      Timber.i("Account %d has fallen behind the pruned change log", accountId);
+      if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL)) {
+        notifyPruned(org.totschnig.myexpenses.model.Account.getInstanceFromDb(accountId));
+      }
+      return;
+    }
+    long backoffUntil = Long.parseLong(getUserDataWithDefault(accountManager, account, backoffKey, "0"));
+    long now = System.currentTimeMillis();
+    if (backoffUntil > now && !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL)) {
+      Timber.i("Account %d backs off for another %d s", accountId, (backoffUntil - now) / 1000);
+      syncResult.delayUntil = backoffUntil / 1000;
+      return;
+    }
+    boolean lockAcquired = true;
+    try {
+      lockAcquired = syncAccount(account, accountId, backend, provider, extras, syncResult);
+    } catch (RuntimeException e) {
+      Timber.e(e, "Error while syncing ");
+      AcraHelper.report(e);
+      syncResult.databaseError = true;
+    }
+    if (!lockAcquired) {
+      //another device is writing, this is no failure of ours, hence it is retried soon without backing off
+      syncResult.delayUntil = System.currentTimeMillis() / 1000 + LOCK_RETRY_SECONDS;
+    } else if (syncResult.hasError()) {
+      int failures = Integer.parseInt(getUserDataWithDefault(accountManager, account, failuresKey, "0")) + 1;
+      long backoffSeconds = getBackoffSeconds(failures);
+      accountManager.setUserData(account, failuresKey, String.valueOf(failures));
+      accountManager.setUserData(account, backoffKey,
+          String.valueOf(System.currentTimeMillis() + backoffSeconds * 1000));
+      syncResult.delayUntil = System.currentTimeMillis() / 1000 + backoffSeconds;
+    } else if (backoffUntil > 0) {
+      accountManager.setUserData(account, failuresKey, null);
+      accountManager.setUserData(account, backoffKey, null);
+    }
+  }
+
+  /**
+   * @return the delay before an account is synced again after the given number of consecutive failures,
+   * doubling from {@link #INITIAL_BACKOFF_SECONDS} up to {@link #MAX_BACKOFF_SECONDS}
+   */
+  @VisibleForTesting
+  static long getBackoffSeconds(int failures) {
+    if (failures < 1) {
+      return 0;
+    }
+    return Math.min(MAX_BACKOFF_SECONDS, INITIAL_BACKOFF_SECONDS << Math.min(failures - 1, 20));
+  }
+
+  /**
+   * Adds the outcome of the accounts to the result of the sync. The sync as a whole is only delayed, if none
+   * of the accounts is ready to sync again earlier. {@link SyncResult#delayUntil} is in seconds since the epoch.
+   */
+  private static void mergeSyncResults(SyncResult syncResult, List<SyncResult> accountResults) {
+    long delay = Long.MAX_VALUE;
+    for (SyncResult accountResult : accountResults) {
+      syncResult.stats.numIoExceptions += accountResult.stats.numIoExceptions;
+      syncResult.databaseError |= accountResult.databaseError;
+      syncResult.fullSyncRequested |= accountResult.fullSyncRequested;
+      delay = Math.min(delay, accountResult.delayUntil);
+    }
+    if (accountResults.size() > 0 && delay > 0) {
+      syncResult.delayUntil = delay;
+    }
+  }
+
+  /**
+   * @return false if the backend is locked by another device, true otherwise
+   */
+  private boolean syncAccount(Account account, long accountId, SyncBackendProvider backend,
+                              ContentProviderClient provider, Bundle extras, SyncResult syncResult) {
+    AccountManager accountManager = AccountManager.get(getContext());
+    String uuidFromExtras = extras.getString(KEY_UUID);
+    String lastLocalSyncKey = KEY_LAST_SYNCED_LOCAL(accountId);
+    String lastRemoteSyncKey = KEY_LAST_SYNCED_REMOTE(accountId);
+
+    long lastSyncedLocal = Long.parseLong(getUserDataWithDefault(accountManager, account,
+        lastLocalSyncKey, "0"));
+    long lastSyncedRemote = Long.parseLong(getUserDataWithDefault(accountManager, account,
+        lastRemoteSyncKey, "0"));
+    dbAccount.set(org.totschnig.myexpenses.model.Account.getInstanceFromDb(accountId));
+    Timber.i("now syncing " + dbAccount.get().label);
+    if (uuidFromExtras != null && extras.getBoolean(KEY_RESET_REMOTE_ACCOUNT)) {
+      if (!backend.resetAccountData(uuidFromExtras)) {
+        syncResult.stats.numIoExceptions++;
+        Timber.e("error resetting account data");
+      }
+      return true;
+    }
+    if (!backend.withAccount(dbAccount.get())) {
+      syncResult.stats.numIoExceptions++;
+      Timber.e("error withAccount");
+      return true;
+    }
+
+    SyncTimings timings = new SyncTimings();
+    long phaseStart;
+    //the lock guards writing to the backend, hence syncs that only read from it do without
+    boolean locked = false;
+    try {
+      phaseStart = System.currentTimeMillis();
+      List<TransactionChange> localChanges = new ArrayList<>();
+      long sequenceToTest = lastSyncedLocal + 1;
+      while (true) {
+        List<TransactionChange> nextChanges = getLocalChanges(provider, accountId, sequenceToTest);
+        if (nextChanges.size() > 0) {
+          localChanges.addAll(Stream.of(nextChanges).filter(change -> !change.isEmpty()).toList());
+          lastSyncedLocal = sequenceToTest;
+          sequenceToTest++;
+          if (localChanges.size() >= LOCAL_CHANGES_LIMIT) {
+            //the remaining ones, e.g. from the initialization of a large account, go into the next change set
+            syncResult.fullSyncRequested = true;
+            break;
           }
+        } else {
+          break;
+        }
+      }
+      timings.add(SyncTimings.Phase.merge, phaseStart);
+
+      if (localChanges.size() > 0) {
+        phaseStart = System.currentTimeMillis();
+        locked = backend.lock();
+        timings.add(SyncTimings.Phase.lock, phaseStart);
+        if (!locked) {
+          //retried by syncAccountWithBackoff, reported as soft error so that SyncManager schedules it
+          syncResult.stats.numIoExceptions++;
+          Timber.i("Account %d is locked: %s", accountId, timings);
+          return false;
+        }
+      }
+
+      phaseStart = System.currentTimeMillis();
+      ChangeSet changeSetSince = backend.getChangeSetSince(lastSyncedRemote, getContext());
+      timings.add(SyncTimings.Phase.download, phaseStart);
+
+      if (changeSetSince.isFailed()) {
+        syncResult.stats.numIoExceptions++;
+        Timber.e("error getting changeset");
+        return true;
+      }
+
+      if (changeSetSince.isPruned()) {
+        //retrying does not help, the user needs to link the account again
+        accountManager.setUserData(account, KEY_PRUNED(accountId), "1");
+        notifyPruned(dbAccount.get());
+        return true;
+      }
 
-          if (backend.lock()) {
-            try {
-              ChangeSet changeSetSince = backend.getChangeSetSince(lastSyncedRemote, getContext());
-
-              if (changeSetSince.isFailed()) {
-                syncResult.stats.numIoExceptions++;
-                Timber.e("error getting changeset");
-                continue;
-              }
-
-              List<TransactionChange> remoteChanges;
-              lastSyncedRemote = changeSetSince.sequenceNumber;
-              remoteChanges = changeSetSince.changes;
-
-              List<TransactionChange> localChanges = new ArrayList<>();
-              long sequenceToTest = lastSyncedLocal + 1;
-              while (true) {
-                List<TransactionChange> nextChanges = getLocalChanges(provider, accountId, sequenceToTest);
-                if (nextChanges.size() > 0) {
-                  localChanges.addAll(Stream.of(nextChanges).filter(change -> !change.isEmpty()).toList());
-                  lastSyncedLocal = sequenceToTest;
-                  sequenceToTest++;
-                } else {
-                  break;
-                }
-              }
-
-              if (localChanges.size() == 0 && remoteChanges.size() == 0) {
-                continue;
-              }
-
-              if (localChanges.size() > 0) {
-                localChanges = collectSplits(localChanges);
-              }
-
-              Pair<List<TransactionChange>, List<TransactionChange>> mergeResult =
-                  mergeChangeSets(localChanges, remoteChanges);
-              localChanges = mergeResult.first;
-              remoteChanges = mergeResult.second;
-
-              if (remoteChanges.size() > 0) {
-                writeRemoteChangesToDb(provider,
-                    Stream.of(remoteChanges).filter(change -> !(change.isCreate() && uuidExists(change.uuid()))).toList(),
-                    accountId);
-                accountManager.setUserData(account, lastRemoteSyncKey, String.valueOf(lastSyncedRemote));
-              }
-
-
-              if (localChanges.size() > 0) {
-                lastSyncedRemote = backend.writeChangeSet(localChanges, getContext());
-                if (lastSyncedRemote != ChangeSet.FAILED) {
-                  if (!BuildConfig.DEBUG) {
-                    // on debug build for auditing purposes, we keep changes in the table
-                    provider.delete(TransactionProvider.CHANGES_URI,
-                        KEY_ACCOUNTID + " = ? AND " + KEY_SYNC_SEQUENCE_LOCAL + " <= ?",
-                        new String[]{String.valueOf(accountId), String.valueOf(lastSyncedLocal)});
-                  }
-                  accountManager.setUserData(account, lastLocalSyncKey, String.valueOf(lastSyncedLocal));
-                  accountManager.setUserData(account, lastRemoteSyncKey, String.valueOf(lastSyncedRemote));
-                }
-              }
-            } catch (IOException e) {
-              Timber.e(e, "Error while syncing ");
-              syncResult.stats.numIoExceptions++;
-            } catch (RemoteException | OperationApplicationException | SQLiteException e) {
-              Timber.e(e, "Error while syncing ");
-              syncResult.databaseError = true;
-              AcraHelper.report(e);
-            } finally {
-              if (!backend.unlock()) {
-                Timber.e("Unlocking backend failed");
-                syncResult.stats.numIoExceptions++;
-              }
-            }
-          } else {
-            //TODO syncResult.delayUntil = ???
-            syncResult.stats.numIoExceptions++;
+      List<TransactionChange> remoteChanges;
+      lastSyncedRemote = changeSetSince.sequenceNumber;
+      remoteChanges = changeSetSince.changes;
+
+      if (localChanges.size() == 0 && remoteChanges.size() == 0) {
+        return true;
+      }
+
+      phaseStart = System.currentTimeMillis();
+      if (localChanges.size() > 0) {
+        localChanges = collectSplits(localChanges);
+      }
+
+      Pair<List<TransactionChange>, List<TransactionChange>> mergeResult =
+          mergeChangeSets(localChanges, remoteChanges);
+      localChanges = mergeResult.first;
+      remoteChanges = mergeResult.second;
+      timings.add(SyncTimings.Phase.merge, phaseStart);
+
+      if (remoteChanges.size() > 0) {
+        phaseStart = System.currentTimeMillis();
+        //the lookup maps are shared by the accounts, and SQLite serializes writes anyway
+        synchronized (applyLock) {
+          writeRemoteChangesToDb(provider, remoteChanges, accountId);
+        }
+        accountManager.setUserData(account, lastRemoteSyncKey, String.valueOf(lastSyncedRemote));
+        timings.add(SyncTimings.Phase.apply, phaseStart);
+      }
+
+
+      if (localChanges.size() > 0) {
+        phaseStart = System.currentTimeMillis();
+        lastSyncedRemote = backend.writeChangeSet(localChanges, getContext());
+        timings.add(SyncTimings.Phase.upload, phaseStart);
+        if (lastSyncedRemote != ChangeSet.FAILED) {
+          if (!BuildConfig.DEBUG) {
+            // on debug build for auditing purposes, we keep changes in the table
+            provider.delete(TransactionProvider.CHANGES_URI,
+                KEY_ACCOUNTID + " = ? AND " + KEY_SYNC_SEQUENCE_LOCAL + " <= ?",
+                new String[]{String.valueOf(accountId), String.valueOf(lastSyncedLocal)});
           }
-        } while (c.moveToNext());
+          accountManager.setUserData(account, lastLocalSyncKey, String.valueOf(lastSyncedLocal));
+          accountManager.setUserData(account, lastRemoteSyncKey, String.valueOf(lastSyncedRemote));
+        }
       }
-      c.close();
+
+      if (lastSyncedRemote - backend.getSnapshotSequence() >= SNAPSHOT_INTERVAL) {
+        phaseStart = System.currentTimeMillis();
+        if (!locked) {
+          locked = backend.lock();
+          timings.add(SyncTimings.Phase.lock, phaseStart);
+          phaseStart = System.currentTimeMillis();
+        }
+        //otherwise another device is writing, and the snapshot is left to the next sync
+        if (locked) {
+          writeSnapshot(backend);
+          timings.add(SyncTimings.Phase.upload, phaseStart);
+        }
+      }
+    } catch (IOException e) {
+      Timber.e(e, "Error while syncing ");
+      syncResult.stats.numIoExceptions++;
+    } catch (RemoteException | OperationApplicationException | SQLiteException e) {
+      Timber.e(e, "Error while syncing ");
+      syncResult.databaseError = true;
+      AcraHelper.report(e);
+    } finally {
+      if (locked) {
+        phaseStart = System.currentTimeMillis();
+        if (!backend.unlock()) {
+          Timber.e("Unlocking backend failed");
+          syncResult.stats.numIoExceptions++;
+        }
+        timings.add(SyncTimings.Phase.lock, phaseStart);
+      }
+      Timber.i("Synced account %d: %s", accountId, timings);
     }
-    backend.tearDown();
+    return true;
+  }
+
+  private void notifyPruned(org.totschnig.myexpenses.model.Account dbAccount) {
+    Intent manageIntent = new Intent(getContext(), ManageSyncBackends.class);
+    Notification notification = NotificationBuilderWrapper.defaultBigTextStyleBuilder(
+        getContext(), getContext().getString(R.string.sync_pruned_notification_title),
+        getContext().getString(R.string.sync_pruned_notification_text, dbAccount.label))
+        .setContentIntent(PendingIntent.getActivity(
+            getContext(), 0, manageIntent, PendingIntent.FLAG_CANCEL_CURRENT))
+        .build();
+    notification.flags = Notification.FLAG_AUTO_CANCEL;
+    ((NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE))
+        .notify(NOTIFICATION_TAG_PRUNED, (int) dbAccount.getId(), notification);
+  }
+
+  /**
+   * Compacts the change log of the account into a snapshot, from which new devices start, and, if the user has
+   * opted in, prunes the change sets covered by the previous snapshot
+   */
+  private void writeSnapshot(SyncBackendProvider backend) throws IOException {
+    long previousSnapshot = backend.getSnapshotSequence();
+    long start = System.currentTimeMillis();
+    ChangeSet changeLog = backend.getChangeLogForCompaction();
+    if (changeLog.isFailed()) {
+      Timber.e("error getting change log for compaction");
+      return;
+    }
+    List<TransactionChange> snapshot = compactChangeLog(changeLog.changes);
+    if (snapshot.size() == 0) {
+      return;
+    }
+    backend.writeSnapshot(changeLog.sequenceNumber, snapshot);
+    Timber.i("Wrote snapshot at %d: %d changes compacted into %d in %d ms", changeLog.sequenceNumber,
+        changeLog.changes.size(), snapshot.size(), System.currentTimeMillis() - start);
+    if (previousSnapshot > 0 && PrefKey.SYNC_PRUNE_CHANGE_LOG.getBoolean(false)) {
+      backend.pruneChangeLog(previousSnapshot);
+    }
+  }
+
+  private void initializeChanges(ContentProviderClient provider, long accountId) throws RemoteException {
+    Uri initializationUri = buildInitializationUri(accountId);
+    long start = System.currentTimeMillis();
+    int total = 0, count;
+    do {
+      count = provider.update(initializationUri, new ContentValues(0), null, null);
+      total += count;
+    } while (count > 0);
+    long duration = Math.max(1, System.currentTimeMillis() - start);
+    Timber.i("Initialized changes for account %d: %d transactions in %d ms (%d/s)", accountId, total, duration,
+        total * 1000L / duration);
   }
 
   private List<TransactionChange> getLocalChanges(ContentProviderClient provider, long accountId,
@@ -388,8 +705,12 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
     //When a split transaction is changed, we do not necessarily have an entry for the parent, so we
     //create one here
+    Set<String> uuids = new HashSet<>(changeList.size());
+    for (TransactionChange change : changeList) {
+      uuids.add(change.uuid());
+    }
     Stream.of(splitsPerUuid.keySet()).forEach(uuid -> {
-      if (!Stream.of(changeList).anyMatch(change -> change.uuid().equals(uuid))) {
+      if (!uuids.contains(uuid)) {
         changeList.add(TransactionChange.builder().setType(TransactionChange.Type.updated).setTimeStamp(splitsPerUuid.get(uuid).get(0).timeStamp()).setUuid(uuid).build());
         splitsPerUuid.put(uuid, filterDeleted(
             splitsPerUuid.get(uuid), findDeletedUuids(Stream.of(splitsPerUuid.get(uuid)))));
@@ -421,8 +742,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         TransactionProvider.DUAL_URI.buildUpon()
             .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_BEGIN, "1").build())
         .build());
-    Stream.of(remoteChanges).filter(change -> !(change.isCreate() && uuidExists(change.uuid())))
-        .forEach(change -> collectOperations(change, accountId, ops, -1));
+    collectOperations(remoteChanges, accountId, ops);
     ops.add(ContentProviderOperation.newDelete(
         TransactionProvider.DUAL_URI.buildUpon()
             .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_SYNC_END  , "1").build())
@@ -436,8 +756,97 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
   }
 
+  /**
+   * collects the operations for a batch of remote changes, skipping creates of transactions that already exist,
+   * after resolving the references of the batch with {@link #preloadLookups(List)}
+   */
+  @VisibleForTesting
+  public void collectOperations(List<TransactionChange> remoteChanges, long accountId,
+                                ArrayList<ContentProviderOperation> ops) {
+    preloadLookups(remoteChanges);
+    Stream.of(remoteChanges).filter(change -> !(change.isCreate() && uuidExists(change.uuid())))
+        .forEach(change -> collectOperations(change, accountId, ops, -1));
+  }
+
+  /**
+   * Resolves the transaction uuids, category labels, payee names and method labels referenced by a batch of
+   * remote changes with a few IN queries, and creates missing categories and payees in bulk. Whatever is not
+   * resolved here, is looked up for each change.
+   */
+  private void preloadLookups(List<TransactionChange> remoteChanges) {
+    Set<String> uuids = new HashSet<>();
+    Set<String> labels = new HashSet<>();
+    Set<String> payeeNames = new HashSet<>();
+    Set<String> methodLabels = new HashSet<>();
+    for (TransactionChange change : remoteChanges) {
+      if (change.isCreate()) {
+        uuids.add(change.uuid());
+      }
+      collectReferences(change, uuids, labels, payeeNames, methodLabels);
+    }
+    //existence of transactions changes with each batch written
+    transactionUuidToId = Transaction.findByUuids(uuids);
+    for (String uuid : uuids) {
+      if (!transactionUuidToId.containsKey(uuid)) {
+        transactionUuidToId.put(uuid, -1L);
+      }
+    }
+    labels.removeAll(categoryToId.keySet());
+    if (!labels.isEmpty()) {
+      CategoryInfo.insertAll(labels, categoryToId);
+    }
+    payeeNames.removeAll(payeeToId.keySet());
+    if (!payeeNames.isEmpty()) {
+      payeeToId.putAll(Payee.findByNames(payeeNames));
+      List<String> missing = Stream.of(payeeNames).filter(name -> !payeeToId.containsKey(name)).toList();
+      long[] ids = Payee.bulkWrite(missing);
+      if (ids != null) {
+        for (int i = 0; i < ids.length; i++) {
+          payeeToId.put(missing.get(i), ids[i]);
+        }
+      }
+    }
+    methodLabels.removeAll(methodToId.keySet());
+    if (!methodLabels.isEmpty()) {
+      //missing methods are rare, and are created with their account types by extractMethodId
+      methodToId.putAll(PaymentMethod.findByLabels(methodLabels));
+    }
+  }
+
+  private void collectReferences(TransactionChange change, Set<String> uuids, Set<String> labels,
+                                 Set<String> payeeNames, Set<String> methodLabels) {
+    if (change.parentUuid() != null) {
+      uuids.add(change.parentUuid());
+    }
+    //for created transfers and splits, label is not a category
+    if (change.label() != null &&
+        !(change.isCreate() && (change.transferAccount() != null || change.splitParts() != null))) {
+      labels.add(change.label());
+    }
+    if (change.payeeName() != null) {
+      payeeNames.add(change.payeeName());
+    }
+    if (change.methodLabel() != null) {
+      methodLabels.add(change.methodLabel());
+    }
+    if (change.splitParts() != null) {
+      for (TransactionChange splitPart : change.splitParts()) {
+        collectReferences(splitPart, uuids, labels, payeeNames, methodLabels);
+      }
+    }
+  }
+
+  private long findTransactionId(String uuid) {
+    Long id = transactionUuidToId.get(uuid);
+    if (id == null) {
+      id = Transaction.findByUuid(uuid);
+      transactionUuidToId.put(uuid, id);
+    }
+    return id;
+  }
+
   private boolean uuidExists(String uuid) {
-    return Transaction.countPerUuid(uuid) > 0;
+    return findTransactionId(uuid) != -1;
   }
 
   @VisibleForTesting
@@ -484,13 +893,13 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     Transaction t;
     long transferAccount;
     if (change.splitParts() != null) {
-      t = new SplitTransaction(getAccount().getId(), amount);
+      t = new SplitTransaction(getAccount(), amount);
     } else if (change.transferAccount() != null &&
         (transferAccount = extractTransferAccount(change.transferAccount(), change.label())) != -1) {
       t = new Transfer(getAccount().getId(), amount);
       t.transfer_account = transferAccount;
     } else {
-      t = new Transaction(getAccount().getId(), amount);
+      t = new Transaction(getAccount(), amount);
       if (change.label() != null) {
         long catId = extractCatId(change.label());
         if (catId != -1) {
@@ -525,7 +934,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
     t.referenceNumber = change.referenceNumber();
     if (parentOffset == -1 && change.parentUuid() != null) {
-      long parentId = Transaction.findByUuid(change.parentUuid());
+      long parentId = findTransactionId(change.parentUuid());
       if (parentId == -1) {
         return new ArrayList<>(); //if we fail to link a split part to a parent, we need to ignore it
       }
@@ -623,7 +1032,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
       List<TransactionChange> first, List<TransactionChange> second) {
 
     //filter out changes made obsolete by later delete
-    List<String> deletedUuids = findDeletedUuids(Stream.concat(Stream.of(first), Stream.of(second)));
+    Set<String> deletedUuids = findDeletedUuids(Stream.concat(Stream.of(first), Stream.of(second)));
 
     List<TransactionChange> firstResult = filterDeleted(first, deletedUuids);
     List<TransactionChange> secondResult = filterDeleted(second, deletedUuids);
@@ -634,32 +1043,82 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     Stream.concat(Stream.of(firstResult), Stream.of(secondResult))
         .filter(TransactionChange::isCreateOrUpdate)
         .forEach(change -> ensureList(updatesPerUuid, change.uuid()).add(change));
-    List<String> uuidsRequiringMerge = Stream.of(updatesPerUuid.keySet())
-        .filter(uuid -> updatesPerUuid.get(uuid).size() > 1).collect(Collectors.toList());
-    Stream.of(uuidsRequiringMerge)
-        .forEach(uuid -> mergesPerUuid.put(uuid, mergeUpdates(updatesPerUuid.get(uuid))));
+    for (Map.Entry<String, List<TransactionChange>> entry : updatesPerUuid.entrySet()) {
+      if (entry.getValue().size() > 1) {
+        mergesPerUuid.put(entry.getKey(), mergeUpdates(entry.getValue()));
+      }
+    }
     firstResult = replaceByMerged(firstResult, mergesPerUuid);
     secondResult = replaceByMerged(secondResult, mergesPerUuid);
 
     return Pair.create(firstResult, secondResult);
   }
 
-  private List<String> findDeletedUuids(Stream<TransactionChange> stream) {
+  /**
+   * @return one change per transaction that has not been deleted, with its creates and updates merged by
+   * {@link #mergeUpdates(List)}, split parts are compacted recursively. Each of them is a create, independent of
+   * the order of timestamps, since devices starting from the snapshot ignore updates of unknown transactions.
+   */
+  @VisibleForTesting
+  List<TransactionChange> compactChangeLog(List<TransactionChange> changeLog) {
+    LinkedHashMap<String, List<TransactionChange>> changesPerUuid = new LinkedHashMap<>();
+    for (TransactionChange change : changeLog) {
+      if (change.isDelete()) {
+        changesPerUuid.remove(change.uuid());
+      } else if (!change.isEmpty()) {
+        ensureList(changesPerUuid, change.uuid()).add(change);
+      }
+    }
+    return Stream.of(changesPerUuid.values()).map(this::compact).collect(Collectors.toList());
+  }
+
+  private TransactionChange compact(List<TransactionChange> changes) {
+    TransactionChange merged = changes.size() == 1 ? changes.get(0) : mergeUpdates(changes);
+    if (!merged.isCreate()) {
+      merged = merged.toBuilder().setType(TransactionChange.Type.created).build();
+    }
+    List<TransactionChange> splitParts = Stream.of(changes)
+        .filter(change -> change.splitParts() != null)
+        .flatMap(change -> Stream.of(change.splitParts()))
+        .collect(Collectors.toList());
+    return splitParts.size() == 0 ? merged : merged.toBuilder().setSplitParts(compactChangeLog(splitParts)).build();
+  }
+
+  private Set<String> findDeletedUuids(Stream<TransactionChange> stream) {
     return stream.filter(TransactionChange::isDelete)
         .map(TransactionChange::uuid)
-        .collect(Collectors.toList());
+        .collect(Collectors.toSet());
   }
 
-  private List<TransactionChange> filterDeleted(List<TransactionChange> input, List<String> deletedUuids) {
+  private List<TransactionChange> filterDeleted(List<TransactionChange> input, Set<String> deletedUuids) {
+    if (deletedUuids.isEmpty()) {
+      return new ArrayList<>(input);
+    }
     return Stream.of(input).filter(change ->
         change.isDelete() || !deletedUuids.contains(change.uuid()))
         .collect(Collectors.toList());
   }
 
+  /**
+   * Replaces creates and updates by their merge, and removes duplicates. Merged changes are only compared by uuid,
+   * since they are the same instance for each uuid, and cannot be equal to any of the other changes, which would
+   * have been merged, too.
+   */
   private List<TransactionChange> replaceByMerged(List<TransactionChange> input, HashMap<String, TransactionChange> mergedMap) {
-    return Stream.of(input).map(change -> change.isCreateOrUpdate()
-        && mergedMap.containsKey(change.uuid()) ? mergedMap.get(change.uuid()) : change)
-        .distinct().collect(Collectors.toList());
+    List<TransactionChange> result = new ArrayList<>(input.size());
+    Set<String> mergedAdded = new HashSet<>();
+    Set<TransactionChange> othersAdded = new HashSet<>();
+    for (TransactionChange change : input) {
+      TransactionChange merged = change.isCreateOrUpdate() ? mergedMap.get(change.uuid()) : null;
+      if (merged != null) {
+        if (mergedAdded.add(change.uuid())) {
+          result.add(merged);
+        }
+      } else if (othersAdded.add(change)) {
+        result.add(change);
+      }
+    }
+    return result;
   }
 
   @VisibleForTesting
@@ -25,6 +25,26 @@ public interface SyncBackendProvider {
 
   long writeChangeSet(List<TransactionChange> changeSet, Context context) throws IOException;
 
+  /**
+   * @return the sequence number up to which the latest snapshot of the change log of the account covers, 0 if
+   * there is none
+   */
+  long getSnapshotSequence() throws IOException;
+
+  /**
+   * @return the latest snapshot merged with the change sets written after it, with pictures referenced as they
+   * are stored in the backend
+   */
+  @NonNull
+  ChangeSet getChangeLogForCompaction() throws IOException;
+
+  void writeSnapshot(long sequenceNumber, List<TransactionChange> changes) throws IOException;
+
+  /**
+   * deletes change sets and snapshots up to and including sequenceNumber
+   */
+  void pruneChangeLog(long sequenceNumber) throws IOException;
+
   boolean unlock();
 
   List<AccountMetaData> getRemoteAccountList() throws IOException;
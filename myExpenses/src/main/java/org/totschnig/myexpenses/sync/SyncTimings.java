@@ -0,0 +1,35 @@
+package org.totschnig.myexpenses.sync;
+
+import java.util.Locale;
+
+/**
+ * Accumulates the time spent in the phases of syncing one account, for logging
+ */
+class SyncTimings {
+  enum Phase {lock, download, merge, apply, upload}
+
+  private final long[] millis = new long[Phase.values().length];
+
+  /**
+   * @param start as returned by {@link System#currentTimeMillis()} when the phase started
+   */
+  void add(Phase phase, long start) {
+    millis[phase.ordinal()] += System.currentTimeMillis() - start;
+  }
+
+  long get(Phase phase) {
+    return millis[phase.ordinal()];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+      builder.append(String.format(Locale.ROOT, "%s %d ms", phase, get(phase)));
+    }
+    return builder.toString();
+  }
+}
@@ -1,9 +1,13 @@
 package org.totschnig.myexpenses.sync;
 
 import android.accounts.AccountManager;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.webkit.MimeTypeMap;
 
 import com.annimon.stream.Collectors;
@@ -14,24 +18,35 @@ import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.sync.json.AccountMetaData;
 import org.totschnig.myexpenses.sync.json.ChangeSet;
+import org.totschnig.myexpenses.sync.json.ChangeSetEncoding;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
 import org.totschnig.myexpenses.sync.webdav.CertificateHelper;
 import org.totschnig.myexpenses.sync.webdav.HttpException;
 import org.totschnig.myexpenses.sync.webdav.InvalidCertificateException;
 import org.totschnig.myexpenses.sync.webdav.LockableDavResource;
 import org.totschnig.myexpenses.sync.webdav.WebDavClient;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import at.bitfire.dav4android.DavResource;
 import at.bitfire.dav4android.exception.DavException;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
-
-import static org.totschnig.myexpenses.util.FileCopyUtils.toByteArray;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import timber.log.Timber;
 
 public class WebDavBackendProvider extends AbstractSyncBackendProvider {
 
@@ -39,16 +54,52 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   public static final String KEY_WEB_DAV_FALLBACK_TO_CLASS1 = "fallbackToClass1";
   private final MediaType MIME_JSON = MediaType.parse(MIMETYPE_JSON + "; charset=utf-8");
   private static final String FALLBACK_LOCK_FILENAME = ".lock";
+  /**
+   * number of change sets that are downloaded and parsed concurrently
+   */
+  private static final int PARALLEL_DOWNLOADS = 4;
 
+  private final AccountManager accountManager;
+  private final android.accounts.Account syncAccount;
   private WebDavClient webDavClient;
   private boolean fallbackToClass1 = false;
   /**
    * this holds the uuid of the db account which data is currently synced
    */
   private String accountUuid;
+  /**
+   * the members of the folder of the account, listed once per sync of the account, and cleared when we write to
+   * the folder
+   */
+  @Nullable
+  private Set<DavResource> folderMembers;
+  @Nullable
+  private ExecutorService downloadExecutor;
 
-  WebDavBackendProvider(Context context, android.accounts.Account account, AccountManager accountManager) throws SyncParseException {
+  /**
+   * the ETag of the metadata of the account, together with {@link #KEY_ENCODING(String)}, allows us to skip
+   * downloading the metadata as long as it has not changed
+   */
+  private static String KEY_METADATA_ETAG(String accountUuid) {
+    return "webdav_metadata_etag_" + accountUuid;
+  }
+
+  private static String KEY_ENCODING(String accountUuid) {
+    return "webdav_encoding_" + accountUuid;
+  }
+
+  /**
+   * a lock that could not be released, e.g. because the connection was lost, is refreshed by the next sync
+   */
+  private static String KEY_LOCK_TOKEN(String accountUuid) {
+    return "webdav_lock_token_" + accountUuid;
+  }
+
+  @VisibleForTesting
+  public WebDavBackendProvider(Context context, android.accounts.Account account, AccountManager accountManager) throws SyncParseException {
     super(context);
+    this.accountManager = accountManager;
+    this.syncAccount = account;
     String url = accountManager.getUserData(account, GenericAccountService.KEY_SYNC_PROVIDER_URL);
     String userName = accountManager.getUserData(account, GenericAccountService.KEY_SYNC_PROVIDER_USERNAME);
     String password = accountManager.getPassword(account);
@@ -73,13 +124,41 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   @Override
   public boolean withAccount(Account account) {
     accountUuid = account.uuid;
+    folderMembers = null;
+    try {
+      String encoding = accountManager.getUserData(syncAccount, KEY_ENCODING(accountUuid));
+      String eTag = encoding == null ? null :
+          accountManager.getUserData(syncAccount, KEY_METADATA_ETAG(accountUuid));
+      Response response = webDavClient.getIfNoneMatch(accountUuid, ACCOUNT_METADATA_FILENAME, eTag);
+      if (response == null) {
+        setEncoding(ChangeSetEncoding.fromName(encoding));
+      } else {
+        try {
+          Optional<AccountMetaData> accountMetaData = getAccountMetaDataFromInputStream(response.body().byteStream());
+          if (accountMetaData.isPresent()) {
+            readEncoding(accountMetaData.get());
+            accountManager.setUserData(syncAccount, KEY_METADATA_ETAG(accountUuid), response.header("ETag"));
+            accountManager.setUserData(syncAccount, KEY_ENCODING(accountUuid), getEncoding().name());
+          }
+        } finally {
+          response.close();
+        }
+      }
+    } catch (FileNotFoundException e) {
+      return createAccountFolder(account);
+    } catch (IOException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private boolean createAccountFolder(Account account) {
     try {
       webDavClient.mkCol(accountUuid);
       LockableDavResource metaData = webDavClient.getResource(accountUuid, ACCOUNT_METADATA_FILENAME);
-      if (!metaData.exists()) {
-        metaData.put(RequestBody.create(MIME_JSON, buildMetadata(account)), null, false);
-        createWarningFile();
-      }
+      metaData.put(RequestBody.create(MIME_JSON, buildMetadata(account)), null, false);
+      accountManager.setUserData(syncAccount, KEY_ENCODING(accountUuid), null);
+      createWarningFile();
     } catch (at.bitfire.dav4android.exception.HttpException | IOException e) {
       return false;
     }
@@ -113,7 +192,15 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
         return false;
       }
     } else {
-      return webDavClient.lock(accountUuid);
+      String lockToken = accountManager.getUserData(syncAccount, KEY_LOCK_TOKEN(accountUuid));
+      if (lockToken != null && webDavClient.refreshLock(accountUuid, lockToken)) {
+        return true;
+      }
+      if (webDavClient.lock(accountUuid)) {
+        accountManager.setUserData(syncAccount, KEY_LOCK_TOKEN(accountUuid), webDavClient.getCurrentLockToken());
+        return true;
+      }
+      return false;
     }
   }
 
@@ -124,21 +211,99 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
   @NonNull
   @Override
   public ChangeSet getChangeSetSince(long sequenceNumber, Context context) throws IOException {
-    return merge(filterDavResources(sequenceNumber).map(this::getChangeSetFromDavResource))
-        .orElse(ChangeSet.empty(sequenceNumber));
+    return getChangeLog(sequenceNumber, true);
+  }
+
+  @NonNull
+  @Override
+  public ChangeSet getChangeLogForCompaction() throws IOException {
+    return getChangeLog(0, false);
+  }
+
+  /**
+   * when starting from 0, we start from the latest snapshot, if there is one
+   */
+  private ChangeSet getChangeLog(long sequenceNumber, boolean ingestPictures) throws IOException {
+    List<DavResource> davResources = new ArrayList<>();
+    if (sequenceNumber == 0) {
+      Optional<DavResource> snapshot = getLatestSnapshot();
+      if (snapshot.isPresent()) {
+        davResources.add(snapshot.get());
+        sequenceNumber = getSequenceFromFileName(snapshot.get().fileName());
+      }
+    }
+    List<DavResource> changeSets = filterDavResources(sequenceNumber)
+        .sortBy(davResource -> getSequenceFromFileName(davResource.fileName()))
+        .collect(Collectors.toList());
+    if (changeSets.size() > 0 &&
+        isPruned(sequenceNumber, getSequenceFromFileName(changeSets.get(0).fileName()))) {
+      Timber.e("Change sets after %d have been pruned", sequenceNumber);
+      return ChangeSet.pruned;
+    }
+    davResources.addAll(changeSets);
+    return new ChangeSetFetcher<DavResource>(getDownloadExecutor(), PARALLEL_DOWNLOADS)
+        .fetchAndMerge(davResources, davResource -> getChangeSetFromDavResource(davResource, ingestPictures),
+            sequenceNumber);
+  }
+
+  private Optional<DavResource> getLatestSnapshot() throws IOException {
+    return Stream.of(getFolderMembers())
+        .filter(davResource -> isSnapshotFile(davResource.fileName()))
+        .max((d1, d2) -> compareInt(getSequenceFromFileName(d1.fileName()), getSequenceFromFileName(d2.fileName())));
+  }
+
+  @Override
+  public long getSnapshotSequence() throws IOException {
+    return getLatestSnapshot().map(davResource -> getSequenceFromFileName(davResource.fileName())).orElse(0L);
   }
 
-  private ChangeSet getChangeSetFromDavResource(DavResource davResource) {
+  @Override
+  public void pruneChangeLog(long sequenceNumber) throws IOException {
+    List<DavResource> obsolete = Stream.of(getFolderMembers())
+        .filter(davResource -> (isNewerJsonFile(0, davResource.fileName()) || isSnapshotFile(davResource.fileName()))
+            && getSequenceFromFileName(davResource.fileName()) <= sequenceNumber)
+        .collect(Collectors.toList());
+    folderMembers = null;
     try {
-      return getChangeSetFromInputStream(getSequenceFromFileName(davResource.fileName()),
-          davResource.get(MIMETYPE_JSON).byteStream());
+      for (DavResource davResource : obsolete) {
+        webDavClient.delete(accountUuid, davResource.fileName());
+      }
+    } catch (HttpException e) {
+      throw e.getCause() instanceof IOException ? ((IOException) e.getCause()) : new IOException(e);
+    }
+  }
+
+  private ExecutorService getDownloadExecutor() {
+    if (downloadExecutor == null) {
+      downloadExecutor = Executors.newFixedThreadPool(PARALLEL_DOWNLOADS);
+    }
+    return downloadExecutor;
+  }
+
+  private ChangeSet getChangeSetFromDavResource(DavResource davResource, boolean ingestPictures) {
+    ResponseBody body = null;
+    try {
+      body = davResource.get(MIMETYPE_JSON + ", " + ChangeSetEncoding.gzip.mimeType);
+      return getChangeSetFromInputStream(getSequenceFromFileName(davResource.fileName()), body.byteStream(),
+          ingestPictures);
     } catch (IOException | at.bitfire.dav4android.exception.HttpException | DavException e) {
       return ChangeSet.failed;
+    } finally {
+      if (body != null) {
+        body.close();
+      }
+    }
+  }
+
+  private Set<DavResource> getFolderMembers() throws IOException {
+    if (folderMembers == null) {
+      folderMembers = webDavClient.getFolderMembers(accountUuid);
     }
+    return folderMembers;
   }
 
   private Stream<DavResource> filterDavResources(long sequenceNumber) throws IOException {
-    return Stream.of(webDavClient.getFolderMembers(accountUuid))
+    return Stream.of(getFolderMembers())
         .filter(davResource -> isNewerJsonFile(sequenceNumber, davResource.fileName()));
   }
 
@@ -154,18 +319,68 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
 
   @Override
   protected void saveUriToAccountDir(String fileName, Uri uri) throws IOException {
+    folderMembers = null;
     saveUriToFolder(fileName, uri, accountUuid);
   }
 
+  @Override
+  boolean fileExists(String fileName) throws IOException {
+    return Stream.of(getFolderMembers()).anyMatch(davResource -> davResource.fileName().equals(fileName));
+  }
+
+  /**
+   * the content is streamed from uri, it is opened again if the request needs to be repeated, e.g. for
+   * authentication
+   */
   private void saveUriToFolder(String fileName, Uri uri, String folder) throws IOException {
-    InputStream in = MyApplication.getInstance().getContentResolver()
-        .openInputStream(uri);
-    if (in == null) {
-      throw new IOException("Could not read " + uri.toString());
+    ContentResolver contentResolver = MyApplication.getInstance().getContentResolver();
+    MediaType mediaType = MediaType.parse(MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+        getFileExtension(fileName)));
+    long contentLength = getContentLength(contentResolver, uri);
+    webDavClient.upload(folder, fileName, new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return mediaType;
+      }
+
+      @Override
+      public long contentLength() {
+        return contentLength;
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) {
+          throw new IOException("Could not read " + uri.toString());
+        }
+        Source source = Okio.source(in);
+        try {
+          sink.writeAll(source);
+        } finally {
+          source.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return -1 if unknown, the upload is then sent chunked
+   */
+  private long getContentLength(ContentResolver contentResolver, Uri uri) {
+    try {
+      AssetFileDescriptor fileDescriptor = contentResolver.openAssetFileDescriptor(uri, "r");
+      if (fileDescriptor != null) {
+        try {
+          return fileDescriptor.getLength();
+        } finally {
+          fileDescriptor.close();
+        }
+      }
+    } catch (IOException e) {
+      Timber.w(e);
     }
-    webDavClient.upload(folder, fileName, toByteArray(in),
-        MediaType.parse(MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-            getFileExtension(fileName))));
+    return -1;
   }
 
   @Override
@@ -176,14 +391,16 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
 
   @Override
   protected long getLastSequence() throws IOException {
-    return filterDavResources(0)
+    //change sets covered by a snapshot might have been pruned
+    return Math.max(getSnapshotSequence(), filterDavResources(0)
         .map(davResource -> getSequenceFromFileName(davResource.fileName()))
         .max(this::compareInt)
-        .orElse(0L);
+        .orElse(0L));
   }
 
   @Override
   void saveFileContents(String fileName, String fileContents, String mimeType) throws IOException {
+    folderMembers = null;
     try {
       webDavClient.upload(accountUuid, fileName, fileContents,
           MediaType.parse(mimeType + "; charset=utf-8"));
@@ -192,6 +409,26 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
     }
   }
 
+  @Override
+  void saveChangeSet(String fileName, List<TransactionChange> changeSet) throws IOException {
+    folderMembers = null;
+    try {
+      webDavClient.upload(accountUuid, fileName, new RequestBody() {
+        @Override
+        public MediaType contentType() {
+          return getEncoding() == ChangeSetEncoding.json ? MIME_JSON : MediaType.parse(getEncoding().mimeType);
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+          writeChangeSet(changeSet, sink.outputStream());
+        }
+      });
+    } catch (HttpException e) {
+      throw e.getCause() instanceof IOException ? ((IOException) e.getCause()) : new IOException(e);
+    }
+  }
+
   @Override
   public boolean unlock() {
     if (fallbackToClass1) {
@@ -201,8 +438,19 @@ public class WebDavBackendProvider extends AbstractSyncBackendProvider {
       } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
         return false;
       }
+    } else if (webDavClient.unlock(accountUuid)) {
+      accountManager.setUserData(syncAccount, KEY_LOCK_TOKEN(accountUuid), null);
+      return true;
     } else {
-      return webDavClient.unlock(accountUuid);
+      return false;
+    }
+  }
+
+  @Override
+  public void tearDown() {
+    if (downloadExecutor != null) {
+      downloadExecutor.shutdownNow();
+      downloadExecutor = null;
     }
   }
 
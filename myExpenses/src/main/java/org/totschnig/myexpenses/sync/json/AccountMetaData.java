@@ -1,5 +1,7 @@
 package org.totschnig.myexpenses.sync.json;
 
+import android.support.annotation.Nullable;
+
 import com.google.auto.value.AutoValue;
 import com.google.gson.Gson;
 import com.google.gson.TypeAdapter;
@@ -31,6 +33,12 @@ public abstract class AccountMetaData {
 
   public abstract String type();
 
+  /**
+   * name of the {@link ChangeSetEncoding} used for writing change sets, null for {@link ChangeSetEncoding#json}
+   */
+  @Nullable
+  public abstract String encoding();
+
   @Override
   public String toString() {
     return label() + " (" + currency() + ")";
@@ -50,10 +58,11 @@ public abstract class AccountMetaData {
     return account;
   }
 
-  public static AccountMetaData from(Account account) {
+  public static AccountMetaData from(Account account, ChangeSetEncoding encoding) {
     return builder().setCurrency(account.currency.getCurrencyCode()).setColor(account.color)
         .setUuid(account.uuid).setDescription(account.description).setLabel(account.label)
         .setOpeningBalance(account.openingBalance.getAmountMinor()).setType(account.type.name())
+        .setEncoding(encoding == ChangeSetEncoding.json ? null : encoding.name())
         .build();
   }
 
@@ -66,6 +75,7 @@ public abstract class AccountMetaData {
     public abstract Builder setOpeningBalance(long openingBalance);
     public abstract Builder setDescription(String description);
     public abstract Builder setType(String type);
+    public abstract Builder setEncoding(String encoding);
 
     public abstract AccountMetaData build();
   }
@@ -7,6 +7,12 @@ import java.util.List;
 public class ChangeSet {
   public static long FAILED = -1;
   public static final ChangeSet failed = new ChangeSet(FAILED, null);
+  private static final long PRUNED = -2;
+  /**
+   * returned if the change sets following the requested sequence number have been pruned, the device has fallen
+   * behind and can no longer catch up
+   */
+  public static final ChangeSet pruned = new ChangeSet(PRUNED, null);
   public final long sequenceNumber;
   public final List<TransactionChange> changes;
 
@@ -19,6 +25,10 @@ public class ChangeSet {
     return sequenceNumber == -1;
   }
 
+  public boolean isPruned() {
+    return sequenceNumber == PRUNED;
+  }
+
   public static ChangeSet create(long sequenceNumber, List<TransactionChange> changes) {
     return new ChangeSet(sequenceNumber, changes);
   }
@@ -32,6 +42,9 @@ public class ChangeSet {
     if (changeset1.isFailed() || changeset2.isFailed()) {
       return failed;
     }
+    if (changeset1.isPruned() || changeset2.isPruned()) {
+      return pruned;
+    }
     List<TransactionChange> changes = new ArrayList<>();
     changes.addAll(changeset1.changes);
     changes.addAll(changeset2.changes);
@@ -0,0 +1,61 @@
+package org.totschnig.myexpenses.sync.json;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodings of change set files. The encoding used for writing is recorded in {@link AccountMetaData#encoding()},
+ * readers detect it from the content, so that they are not affected by transparent decompression in transport.
+ */
+public enum ChangeSetEncoding {
+  json("json", "application/json"), gzip("json.gz", "application/gzip");
+
+  private static final int GZIP_MAGIC_1 = 0x1f;
+  private static final int GZIP_MAGIC_2 = 0x8b;
+
+  public final String fileExtension;
+  public final String mimeType;
+
+  ChangeSetEncoding(String fileExtension, String mimeType) {
+    this.fileExtension = fileExtension;
+    this.mimeType = mimeType;
+  }
+
+  /**
+   * @param name as stored in {@link AccountMetaData#encoding()}, null for metadata written by older versions
+   */
+  public static ChangeSetEncoding fromName(String name) {
+    return gzip.name().equals(name) ? gzip : json;
+  }
+
+  /**
+   * the returned stream must be passed to {@link #finish(OutputStream)} once everything has been written
+   */
+  public OutputStream wrap(OutputStream outputStream) throws IOException {
+    return this == gzip ? new GZIPOutputStream(outputStream) : outputStream;
+  }
+
+  /**
+   * completes the encoding without closing the underlying stream
+   */
+  public void finish(OutputStream wrapped) throws IOException {
+    if (wrapped instanceof GZIPOutputStream) {
+      ((GZIPOutputStream) wrapped).finish();
+    } else {
+      wrapped.flush();
+    }
+  }
+
+  public static InputStream decode(InputStream inputStream) throws IOException {
+    InputStream in = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+    in.mark(2);
+    int first = in.read();
+    int second = in.read();
+    in.reset();
+    return first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2 ? new GZIPInputStream(in) : in;
+  }
+}
@@ -15,7 +15,7 @@ import org.totschnig.myexpenses.util.TextUtils;
 
 import java.util.List;
 
-import static org.totschnig.myexpenses.provider.DatabaseConstants.FULL_LABEL;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.FULL_LABEL_CHANGES;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS;
@@ -43,7 +43,7 @@ public abstract class TransactionChange {
       "NULLIF(TRIM(" + KEY_COMMENT + "),'') AS " + KEY_COMMENT,
       KEY_DATE,
       KEY_AMOUNT,
-      FULL_LABEL,
+      FULL_LABEL_CHANGES,
       KEY_PAYEE_NAME,
       TRANSFER_ACCOUNT_UUUID,
       KEY_METHOD_LABEL,
@@ -0,0 +1,50 @@
+package org.totschnig.myexpenses.sync.json;
+
+import android.support.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the changes of a change set file one by one, so that the file is never held in memory as a whole.
+ */
+public class TransactionChangeReader implements Closeable {
+  private final JsonReader jsonReader;
+  private final TypeAdapter<TransactionChange> adapter;
+  private boolean done = false;
+
+  /**
+   * @throws IOException if the input does not start with a JSON array
+   */
+  public TransactionChangeReader(Gson gson, Reader reader) throws IOException {
+    this.adapter = gson.getAdapter(TransactionChange.class);
+    this.jsonReader = gson.newJsonReader(reader);
+    jsonReader.beginArray();
+  }
+
+  /**
+   * @return the next change, or null once the end of the array has been reached
+   */
+  @Nullable
+  public TransactionChange next() throws IOException {
+    if (done) {
+      return null;
+    }
+    if (jsonReader.hasNext()) {
+      return adapter.read(jsonReader);
+    }
+    jsonReader.endArray();
+    done = true;
+    return null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    jsonReader.close();
+  }
+}
@@ -1,16 +1,45 @@
 package org.totschnig.myexpenses.sync.json;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.io.Reader;
-import java.lang.reflect.Type;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public class Utils {
   public static List<TransactionChange> getChanges(Gson gson, Reader reader) {
-    Type listType = new TypeToken<ArrayList<TransactionChange>>(){}.getType();
-    return gson.fromJson(reader, listType);
+    List<TransactionChange> changes = new ArrayList<>();
+    try {
+      TransactionChangeReader changeReader = new TransactionChangeReader(gson, reader);
+      TransactionChange change;
+      while ((change = changeReader.next()) != null) {
+        changes.add(change);
+      }
+    } catch (IOException e) {
+      throw new JsonIOException(e);
+    }
+    return changes;
+  }
+
+  /**
+   * Writes the changes as JSON array change by change, the writer is flushed, but not closed
+   */
+  public static void writeChanges(Gson gson, Writer writer, Iterator<? extends TransactionChange> changes)
+      throws IOException {
+    TypeAdapter<TransactionChange> adapter = gson.getAdapter(TransactionChange.class);
+    //like Gson#toJson, does not write null values
+    JsonWriter jsonWriter = gson.newJsonWriter(writer);
+    jsonWriter.beginArray();
+    while (changes.hasNext()) {
+      adapter.write(jsonWriter, changes.next());
+    }
+    jsonWriter.endArray();
+    jsonWriter.flush();
   }
 }
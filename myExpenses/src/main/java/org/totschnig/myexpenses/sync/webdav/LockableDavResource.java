@@ -59,6 +59,27 @@ public class LockableDavResource extends at.bitfire.dav4android.DavResource {
       properties.put(GetETag.NAME, new GetETag(eTag));
   }
 
+  /**
+   * DELETE that, other than {@link #delete(String)}, takes a DAV compliant If header, needed when the
+   * collection is locked
+   */
+  public void remove(@Nullable String ifHeader) throws IOException, HttpException {
+    Request.Builder builder = new Request.Builder()
+        .delete()
+        .url(location);
+
+    if (ifHeader != null) {
+      builder.header("If", ifHeader);
+    }
+
+    Response response = httpClient.newCall(builder.build()).execute();
+
+    checkStatus(response, true);
+    if (response.code() == 207) {
+      throw new HttpException(response);
+    }
+  }
+
   /**
    * Tries to establish if the Dav resource represented by this object exists on the server by sending
    * a HEAD request to it
@@ -70,6 +91,7 @@ public class LockableDavResource extends at.bitfire.dav4android.DavResource {
         .build();
     try {
       Response response = httpClient.newCall(request).execute();
+      response.close();
       return response.isSuccessful();
     } catch (IOException e) {
       throw new org.totschnig.myexpenses.sync.webdav.HttpException(request, e);
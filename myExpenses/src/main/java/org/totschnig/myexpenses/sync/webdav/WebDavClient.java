@@ -28,6 +28,7 @@ import java.security.cert.CertPathValidatorException;
 import java.security.cert.X509Certificate;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
@@ -40,6 +41,7 @@ import at.bitfire.dav4android.exception.DavException;
 import at.bitfire.dav4android.property.DisplayName;
 import at.bitfire.dav4android.property.ResourceType;
 import dagger.internal.Preconditions;
+import okhttp3.ConnectionPool;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -53,6 +55,11 @@ public class WebDavClient {
   private static final String LOCK_TIMEOUT = String.format(Locale.ROOT, "Second-%d",30 * 60);
   private final MediaType MIME_XML = MediaType.parse("application/xml; charset=utf-8");
   private static final String NS_WEBDAV = "DAV:";
+  /**
+   * shared by all clients, so that the accounts synced one after another, or in parallel, reuse the connections,
+   * and their TLS sessions, to the same server
+   */
+  private static final ConnectionPool CONNECTION_POOL = new ConnectionPool(4, 5, TimeUnit.MINUTES);
 
   private OkHttpClient httpClient;
   private HttpUrl mBaseUri;
@@ -66,7 +73,12 @@ public class WebDavClient {
 
     mBaseUri = HttpUrl.parse(baseUrl);
 
-    OkHttpClient.Builder builder = new OkHttpClient.Builder();
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+        .connectionPool(CONNECTION_POOL)
+        .connectTimeout(15, TimeUnit.SECONDS)
+        .readTimeout(30, TimeUnit.SECONDS)
+        .writeTimeout(30, TimeUnit.SECONDS)
+        .retryOnConnectionFailure(true);
 
     if (userName != null && password != null) {
       BasicDigestAuthHandler authHandler = new BasicDigestAuthHandler(
@@ -100,10 +112,19 @@ public class WebDavClient {
     }
   }
 
-  public void upload(String folderName, String fileName, byte[] fileContent, MediaType mediaType) throws HttpException {
+  public void upload(String folderName, String fileName, RequestBody requestBody) throws HttpException {
     try {
       new LockableDavResource(httpClient, buildResourceUri(folderName, fileName))
-          .put(RequestBody.create(mediaType, fileContent), buildIfHeader(folderName));
+          .put(requestBody, buildIfHeader(folderName));
+    } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
+      throw new HttpException(e);
+    }
+  }
+
+  public void delete(String folderName, String fileName) throws HttpException {
+    try {
+      new LockableDavResource(httpClient, buildResourceUri(folderName, fileName))
+          .remove(buildIfHeader(folderName));
     } catch (IOException | at.bitfire.dav4android.exception.HttpException e) {
       throw new HttpException(e);
     }
@@ -143,6 +164,37 @@ public class WebDavClient {
     return folder.members;
   }
 
+  /**
+   * GET that is answered with 304 by the server, if the resource still has the given ETag
+   *
+   * @param eTag if null, the resource is fetched unconditionally
+   * @return null if the resource has not been modified, the response otherwise, which needs to be closed
+   * @throws FileNotFoundException if the resource does not exist
+   */
+  @Nullable
+  public Response getIfNoneMatch(String folderName, String resourceName, @Nullable String eTag) throws IOException {
+    Request.Builder builder = new Request.Builder()
+        .url(buildResourceUri(folderName, resourceName))
+        .get();
+    if (eTag != null) {
+      builder.header("If-None-Match", eTag);
+    }
+    Request request = builder.build();
+    Response response = httpClient.newCall(request).execute();
+    if (response.isSuccessful()) {
+      return response;
+    }
+    cleanUp(response);
+    switch (response.code()) {
+      case 304:
+        return null;
+      case 404:
+        throw new FileNotFoundException(request.url().toString());
+      default:
+        throw new HttpException(response);
+    }
+  }
+
   public LockableDavResource getResource(String folderName, String resourceName) {
     return new LockableDavResource(httpClient, buildResourceUri(folderName, resourceName));
   }
@@ -180,7 +232,6 @@ public class WebDavClient {
               foundTokenNode = true;
             } else if (foundTokenNode &&
                 xpp.getNamespace().equals(NS_WEBDAV) && xpp.getName().equals("href")) {
-              //TODO persist lock token
               currentLockToken = xpp.nextText();
               return true;
             }
@@ -196,6 +247,38 @@ public class WebDavClient {
     return false;
   }
 
+  /**
+   * refreshes a lock acquired by an earlier sync that did not release it, instead of waiting for it to time out
+   *
+   * @return false if the lock is no longer held, e.g. because it has expired
+   */
+  public boolean refreshLock(String folderName, String lockToken) {
+    Request request = new Request.Builder()
+        .url(buildCollectionUri(folderName))
+        .header("If", webDavIfHeaderConditionList(webdavCodedUrl(lockToken)))
+        .header("Timeout", LOCK_TIMEOUT)
+        .method("LOCK", null)
+        .build();
+    Response response = null;
+    try {
+      response = httpClient.newCall(request).execute();
+      if (response.isSuccessful()) {
+        currentLockToken = lockToken;
+        return true;
+      }
+    } catch (IOException e) {
+      Timber.w(e);
+    } finally {
+      cleanUp(response);
+    }
+    return false;
+  }
+
+  @Nullable
+  public String getCurrentLockToken() {
+    return currentLockToken;
+  }
+
   public boolean unlock(String folderName) {
     Preconditions.checkNotNull(currentLockToken);
     Request request = new Request.Builder()
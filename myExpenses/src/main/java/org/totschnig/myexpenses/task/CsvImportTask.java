@@ -16,10 +16,18 @@
 
 package org.totschnig.myexpenses.task;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
+import com.annimon.stream.Stream;
+
 import org.apache.commons.csv.CSVRecord;
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
@@ -29,6 +37,7 @@ import org.totschnig.myexpenses.export.qif.QifUtils;
 import org.totschnig.myexpenses.fragment.CsvImportDataFragment;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.AccountType;
+import org.totschnig.myexpenses.model.Model;
 import org.totschnig.myexpenses.model.Money;
 import org.totschnig.myexpenses.model.Payee;
 import org.totschnig.myexpenses.model.PaymentMethod;
@@ -38,6 +47,8 @@ import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.model.Transfer;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
+import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.SparseBooleanArrayParcelable;
 import org.totschnig.myexpenses.util.Utils;
@@ -46,9 +57,21 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Currency;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Imports the rows in two passes: the first one validates the amounts and collects the payees, categories,
+ * methods and transfer accounts the rows refer to, so that they can be looked up and created in bulk, the second
+ * one writes the transactions in chunks of {@link #CHUNK_SIZE} rows, each in a single database transaction.
+ */
 public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
+  /**
+   * number of rows written in one batch, progress is published after each
+   */
+  private static final int CHUNK_SIZE = 500;
   private final TaskExecutionFragment taskExecutionFragment;
   private QifDateFormat dateFormat;
   ArrayList<CSVRecord> data;
@@ -59,6 +82,13 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
   private AccountType mAccountType;
   private final Map<String, Long> payeeToId = new HashMap<>();
   private final Map<String, Long> categoryToId = new HashMap<>();
+  private final Map<String, Long> methodToId = new HashMap<>();
+  private final Map<String, Long> accountToId = new HashMap<>();
+  private Map<String, String> localizedMethodToName;
+  private String transferLabel;
+  private int columnIndexAmount, columnIndexExpense, columnIndexIncome, columnIndexDate, columnIndexPayee,
+      columnIndexNotes, columnIndexCategory, columnIndexSubcategory, columnIndexMethod, columnIndexStatus,
+      columnIndexNumber, columnIndexSplit;
 
   public CsvImportTask(TaskExecutionFragment taskExecutionFragment, Bundle b) {
     this.taskExecutionFragment = taskExecutionFragment;
@@ -100,152 +130,131 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
     } else {
       a = Account.getInstanceFromDb(accountId);
     }
-    int columnIndexAmount = findColumnIndex(R.string.amount);
-    int columnIndexExpense = findColumnIndex(R.string.expense);
-    int columnIndexIncome = findColumnIndex(R.string.income);
-    int columnIndexDate = findColumnIndex(R.string.date);
-    int columnIndexPayee = findColumnIndex(R.string.payer_or_payee);
-    int columnIndexNotes = findColumnIndex(R.string.comment);
-    int columnIndexCategory = findColumnIndex(R.string.category);
-    int columnIndexSubcategory = findColumnIndex(R.string.subcategory);
-    int columnIndexMethod = findColumnIndex(R.string.method);
-    int columnIndexStatus = findColumnIndex(R.string.status);
-    int columnIndexNumber = findColumnIndex(R.string.reference_number);
-    int columnIndexSplit = findColumnIndex(R.string.split_transaction);
-
-    boolean isSplitParent = false, isSplitPart = false;
-    Transaction t;
-    Long splitParent = null;
+    columnIndexAmount = findColumnIndex(R.string.amount);
+    columnIndexExpense = findColumnIndex(R.string.expense);
+    columnIndexIncome = findColumnIndex(R.string.income);
+    columnIndexDate = findColumnIndex(R.string.date);
+    columnIndexPayee = findColumnIndex(R.string.payer_or_payee);
+    columnIndexNotes = findColumnIndex(R.string.comment);
+    columnIndexCategory = findColumnIndex(R.string.category);
+    columnIndexSubcategory = findColumnIndex(R.string.subcategory);
+    columnIndexMethod = findColumnIndex(R.string.method);
+    columnIndexStatus = findColumnIndex(R.string.status);
+    columnIndexNumber = findColumnIndex(R.string.reference_number);
+    columnIndexSplit = findColumnIndex(R.string.split_transaction);
+    transferLabel = MyApplication.getInstance().getString(R.string.transfer);
+    localizedMethodToName = new HashMap<>();
+    for (PaymentMethod.PreDefined preDefined : PaymentMethod.PreDefined.values()) {
+      String localized = preDefined.getLocalizedLabel();
+      if (!localizedMethodToName.containsKey(localized)) {
+        localizedMethodToName.put(localized, preDefined.name());
+      }
+    }
+
+    long[] amounts = new long[data.size()];
+    Set<String> payees = new LinkedHashSet<>();
+    Set<String> categories = new LinkedHashSet<>();
+    Set<String> methods = new LinkedHashSet<>();
     for (int i = 0; i < data.size(); i++) {
-      long transferAccountId = -1;
       if (discardedRows.get(i, false)) {
-        totalDiscarded++;
-      } else {
-        CSVRecord record = data.get(i);
-        BigDecimal amount;
-        String categoryInfo = null;
-        if (columnIndexSplit != -1) {
-          isSplitPart = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_PART_INDICATOR);
-          isSplitParent = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_INDICATOR);
-        }
-        try {
-          if (columnIndexAmount != -1) {
-            amount = QifUtils.parseMoney(saveGetFromRecord(record, columnIndexAmount), mCurrency);
-          } else {
-            BigDecimal income = columnIndexIncome != -1 ?
-                QifUtils.parseMoney(saveGetFromRecord(record, columnIndexIncome), mCurrency).abs() :
-                new BigDecimal(0);
-            BigDecimal expense = columnIndexExpense != -1 ?
-                QifUtils.parseMoney(saveGetFromRecord(record, columnIndexExpense), mCurrency).abs() :
-                new BigDecimal(0);
-            amount = income.subtract(expense);
-          }
-        } catch (IllegalArgumentException e) {
-          return new Result(false, "Amounts in data exceed storage limit");
-        }
-        Money m = new Money(a.currency, amount);
-
-        if (!isSplitParent && columnIndexCategory != -1) {
-          String category = saveGetFromRecord(record, columnIndexCategory);
-          if (!category.equals("")) {
-            String subCategory = columnIndexSubcategory != -1 ?
-                saveGetFromRecord(record, columnIndexSubcategory)
-                : "";
-            if (category.equals(MyApplication.getInstance().getString(R.string.transfer)) &&
-                !subCategory.equals("") &&
-                QifUtils.isTransferCategory(subCategory)) {
-              transferAccountId = Account.findAny(subCategory.substring(1, subCategory.length() - 1));
-            } else if (QifUtils.isTransferCategory(category)) {
-              transferAccountId = Account.findAny(category.substring(1, category.length() - 1));
-            }
-            if (transferAccountId == -1) {
-              categoryInfo = category;
-              if (!subCategory.equals("")) {
-                categoryInfo += ":" + subCategory;
-              }
-            }
-          }
+        continue;
+      }
+      CSVRecord record = data.get(i);
+      BigDecimal amount;
+      try {
+        amount = readAmount(record);
+      } catch (IllegalArgumentException e) {
+        return new Result(false, "Amounts in data exceed storage limit");
+      }
+      amounts[i] = new Money(a.currency, amount).getAmountMinor();
+      if (!isSplitParent(record) && readTransferAccount(record) == -1) {
+        String categoryInfo = readCategoryInfo(record);
+        if (!TextUtils.isEmpty(categoryInfo)) {
+          categories.add(categoryInfo);
         }
+      }
+      String payee = readPayee(record);
+      if (!payee.equals("")) {
+        payees.add(payee);
+      }
+      String method = readMethod(record);
+      if (!method.equals("")) {
+        methods.add(method);
+      }
+    }
 
-        if (isSplitPart) {
-          if (transferAccountId != -1) {
-            t = SplitPartTransfer.getNewInstance(accountId, m.getAmountMinor(), splitParent);
-            t.transfer_account = transferAccountId;
-          } else {
-            t = new SplitPartCategory(accountId, m.getAmountMinor(), splitParent);
-          }
+    //on Gingerbread, ContentResolver#call is not available, and notifications are dispatched per batch
+    boolean bulkSession = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    if (bulkSession) {
+      Model.cr().call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_START, null, null);
+    }
+    try {
+      insertPayees(payees);
+      insertCategories(categories);
+      if (!methods.isEmpty()) {
+        methodToId.putAll(PaymentMethod.findByLabels(methods));
+      }
+
+      ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+      int chunkRows = 0, chunkImported = 0;
+      //a split parent in the current chunk is referenced by its position in ops, an earlier one by its id
+      int splitParentOffset = -1;
+      Long splitParent = null;
+      for (int i = 0; i < data.size(); i++) {
+        if (discardedRows.get(i, false)) {
+          totalDiscarded++;
         } else {
-          if (isSplitParent) {
-            t = new SplitTransaction(accountId, m);
+          CSVRecord record = data.get(i);
+          boolean isSplitParent = false, isSplitPart = false;
+          if (columnIndexSplit != -1) {
+            isSplitPart = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_PART_INDICATOR);
+            isSplitParent = saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_INDICATOR);
+          }
+          if (isSplitPart && splitParentOffset == -1 && splitParent == null) {
+            //the parent failed to import or is missing, the part must not turn into a standalone transaction
+            totalFailed++;
           } else {
-            if (transferAccountId != -1) {
-              t = new Transfer(accountId, m);
-              t.transfer_account = transferAccountId;
+            Transaction t = buildTransaction(record, amounts[i], isSplitParent, isSplitPart);
+            int offset = ops.size();
+            if (isSplitPart) {
+              if (splitParentOffset != -1) {
+                ops.addAll(t.buildSaveOperations(offset, splitParentOffset, false));
+              } else {
+                t.parentId = splitParent;
+                ops.addAll(t.buildSaveOperations(offset, -1, false));
+              }
             } else {
-              t = new Transaction(accountId, m);
+              //parts only belong to the parent directly preceding them
+              splitParentOffset = isSplitParent ? offset : -1;
+              splitParent = null;
+              ops.addAll(t.buildSaveOperations(offset, -1, false));
+              chunkImported++;
             }
+            chunkRows++;
           }
         }
-        if (!TextUtils.isEmpty(categoryInfo)) {
-          new CategoryInfo(categoryInfo).insert(categoryToId, false);
-          t.setCatId(categoryToId.get(categoryInfo));
-        }
-        if (columnIndexDate != -1) {
-          t.setDate(QifUtils.parseDate(saveGetFromRecord(record, columnIndexDate), dateFormat));
-        }
-
-        if (columnIndexPayee != -1) {
-          String payee = saveGetFromRecord(record, columnIndexPayee);
-          if (!payee.equals("")) {
-            long id = Payee.extractPayeeId(payee, payeeToId);
-            if (id != -1) {
-              payeeToId.put(payee, id);
-              t.payeeId = id;
+        if (chunkRows == CHUNK_SIZE || (i == data.size() - 1 && chunkRows > 0)) {
+          ContentProviderResult[] results = applyBatch(ops);
+          if (results != null) {
+            totalImported += chunkImported;
+            if (splitParentOffset != -1) {
+              splitParent = ContentUris.parseId(results[splitParentOffset].uri);
             }
+          } else {
+            totalFailed += chunkRows;
+            splitParent = null;
           }
-        }
-
-        if (columnIndexNotes != -1) {
-          t.comment = saveGetFromRecord(record, columnIndexNotes);
-        }
-
-        if (columnIndexMethod != -1) {
-          String method = saveGetFromRecord(record, columnIndexMethod);
-          if (!method.equals("")) {
-            for (PaymentMethod.PreDefined preDefined : PaymentMethod.PreDefined.values()) {
-              if (preDefined.getLocalizedLabel().equals(method)) {
-                method = preDefined.name();
-                break;
-              }
-            }
-            long methodId = PaymentMethod.find(method);
-            if (methodId != -1) {
-              t.methodId = methodId;
-            }
-          }
-        }
-
-        if (columnIndexStatus != -1) {
-          t.crStatus = Transaction.CrStatus.fromQifName(saveGetFromRecord(record, columnIndexStatus));
-        }
-
-        if (columnIndexNumber != -1) {
-          t.referenceNumber = saveGetFromRecord(record, columnIndexNumber);
-        }
-        if (t.save() != null) {
-          if (isSplitParent) {
-            splitParent = t.getId();
-          }
-          if (!isSplitPart) {
-            totalImported++;
-          }
-        } else {
-          totalFailed++;
-        }
-        if (totalImported % 10 == 0) {
+          splitParentOffset = -1;
+          ops.clear();
+          chunkRows = 0;
+          chunkImported = 0;
           publishProgress(totalImported);
         }
       }
+    } finally {
+      if (bulkSession) {
+        Model.cr().call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null);
+      }
     }
     return new Result(true,
         0,
@@ -255,6 +264,195 @@ public class CsvImportTask extends AsyncTask<Void, Integer, Result> {
         a.label);
   }
 
+  private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) {
+    try {
+      return Model.cr().applyBatch(TransactionProvider.AUTHORITY, ops);
+    } catch (RemoteException | OperationApplicationException e) {
+      AcraHelper.report(e);
+      return null;
+    }
+  }
+
+  private Transaction buildTransaction(CSVRecord record, long amount, boolean isSplitParent, boolean isSplitPart) {
+    Transaction t;
+    long transferAccountId = -1;
+    String categoryInfo = null;
+    if (!isSplitParent) {
+      transferAccountId = readTransferAccount(record);
+      if (transferAccountId == -1) {
+        categoryInfo = readCategoryInfo(record);
+      }
+    }
+    if (isSplitPart) {
+      if (transferAccountId != -1) {
+        t = new SplitPartTransfer(accountId, amount, 0L);
+        t.transfer_account = transferAccountId;
+      } else {
+        t = new SplitPartCategory(accountId, amount, null);
+      }
+      //set by the caller
+      t.parentId = null;
+    } else {
+      if (isSplitParent) {
+        t = new SplitTransaction(accountId, amount);
+      } else {
+        if (transferAccountId != -1) {
+          t = new Transfer(accountId, amount);
+          t.transfer_account = transferAccountId;
+        } else {
+          t = new Transaction(accountId, amount);
+        }
+      }
+    }
+    if (!TextUtils.isEmpty(categoryInfo)) {
+      t.setCatId(categoryToId.get(categoryInfo));
+    }
+    if (columnIndexDate != -1) {
+      t.setDate(QifUtils.parseDate(saveGetFromRecord(record, columnIndexDate), dateFormat));
+    }
+
+    String payee = readPayee(record);
+    if (!payee.equals("")) {
+      t.payeeId = payeeToId.get(payee);
+    }
+
+    if (columnIndexNotes != -1) {
+      t.comment = saveGetFromRecord(record, columnIndexNotes);
+    }
+
+    String method = readMethod(record);
+    if (!method.equals("")) {
+      t.methodId = methodToId.get(method);
+    }
+
+    if (columnIndexStatus != -1) {
+      t.crStatus = Transaction.CrStatus.fromQifName(saveGetFromRecord(record, columnIndexStatus));
+    }
+
+    if (columnIndexNumber != -1) {
+      t.referenceNumber = saveGetFromRecord(record, columnIndexNumber);
+    }
+    return t;
+  }
+
+  private BigDecimal readAmount(CSVRecord record) {
+    if (columnIndexAmount != -1) {
+      return QifUtils.parseMoney(saveGetFromRecord(record, columnIndexAmount), mCurrency);
+    }
+    BigDecimal income = columnIndexIncome != -1 ?
+        QifUtils.parseMoney(saveGetFromRecord(record, columnIndexIncome), mCurrency).abs() :
+        new BigDecimal(0);
+    BigDecimal expense = columnIndexExpense != -1 ?
+        QifUtils.parseMoney(saveGetFromRecord(record, columnIndexExpense), mCurrency).abs() :
+        new BigDecimal(0);
+    return income.subtract(expense);
+  }
+
+  private boolean isSplitParent(CSVRecord record) {
+    return columnIndexSplit != -1 &&
+        saveGetFromRecord(record, columnIndexSplit).equals(SplitTransaction.CSV_INDICATOR);
+  }
+
+  /**
+   * @return the id of the account the category of record refers to, or -1 if it is not a transfer to an
+   * existing account
+   */
+  private long readTransferAccount(CSVRecord record) {
+    if (columnIndexCategory == -1) {
+      return -1;
+    }
+    String category = saveGetFromRecord(record, columnIndexCategory);
+    if (category.equals("")) {
+      return -1;
+    }
+    String subCategory = readSubCategory(record);
+    if (category.equals(transferLabel) &&
+        !subCategory.equals("") &&
+        QifUtils.isTransferCategory(subCategory)) {
+      return findAccount(subCategory.substring(1, subCategory.length() - 1));
+    } else if (QifUtils.isTransferCategory(category)) {
+      return findAccount(category.substring(1, category.length() - 1));
+    }
+    return -1;
+  }
+
+  /**
+   * @return the category and sub category of record separated by ':'
+   */
+  private String readCategoryInfo(CSVRecord record) {
+    if (columnIndexCategory == -1) {
+      return null;
+    }
+    String category = saveGetFromRecord(record, columnIndexCategory);
+    if (category.equals("")) {
+      return null;
+    }
+    String subCategory = readSubCategory(record);
+    return subCategory.equals("") ? category : category + ":" + subCategory;
+  }
+
+  private String readSubCategory(CSVRecord record) {
+    return columnIndexSubcategory != -1 ? saveGetFromRecord(record, columnIndexSubcategory) : "";
+  }
+
+  private String readPayee(CSVRecord record) {
+    return columnIndexPayee != -1 ? saveGetFromRecord(record, columnIndexPayee) : "";
+  }
+
+  /**
+   * @return the label of the method as stored in the database, i.e. the name of predefined methods
+   */
+  private String readMethod(CSVRecord record) {
+    if (columnIndexMethod == -1) {
+      return "";
+    }
+    String method = saveGetFromRecord(record, columnIndexMethod);
+    String name = localizedMethodToName.get(method);
+    return name != null ? name : method;
+  }
+
+  private long findAccount(String label) {
+    Long id = accountToId.get(label);
+    if (id == null) {
+      id = Account.findAny(label);
+      accountToId.put(label, id);
+    }
+    return id;
+  }
+
+  private void insertPayees(Set<String> payees) {
+    if (payees.isEmpty()) {
+      return;
+    }
+    payeeToId.putAll(Payee.findByNames(payees));
+    List<String> missing = Stream.of(payees).filter(name -> !payeeToId.containsKey(name)).toList();
+    if (missing.isEmpty()) {
+      return;
+    }
+    long[] ids = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? Payee.bulkWrite(missing) : null;
+    if (ids != null) {
+      for (int i = 0; i < ids.length; i++) {
+        payeeToId.put(missing.get(i), ids[i]);
+      }
+    } else {
+      for (String payee : missing) {
+        Payee.extractPayeeId(payee, payeeToId);
+      }
+    }
+  }
+
+  private void insertCategories(Set<String> categories) {
+    if (categories.isEmpty()) {
+      return;
+    }
+    CategoryInfo.insertAll(categories, categoryToId);
+    for (String category : categories) {
+      if (!categoryToId.containsKey(category)) {
+        new CategoryInfo(category).insert(categoryToId, false);
+      }
+    }
+  }
+
   private int findColumnIndex(int field) {
     return Utils.indexOf(column2FieldMap, field);
   }
@@ -3,11 +3,21 @@ package org.totschnig.myexpenses.task;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
@@ -20,23 +30,33 @@ import org.totschnig.myexpenses.provider.DatabaseConstants;
 import org.totschnig.myexpenses.provider.DbUtils;
 import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
+import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.AppDirHelper;
 import org.totschnig.myexpenses.util.FileUtils;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.Utils;
 
+import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v4.provider.DocumentFile;
 
+import timber.log.Timber;
+
 public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   public static final String KEY_DECIMAL_SEPARATOR = "export_decimal_separator";
   public static final String KEY_NOT_YET_EXPORTED_P = "notYetExportedP";
   public static final String KEY_DELETE_P = "deleteP";
   public static final String KEY_EXPORT_HANDLE_DELETED = "export_handle_deleted";
   public static final String KEY_FILE_NAME = "file_name";
+  public static final String KEY_ZIP_P = "zipP";
+  /**
+   * exports share the database, hence more threads do not help much
+   */
+  private static final int MAX_PARALLEL_EXPORTS = 3;
   private final TaskExecutionFragment taskExecutionFragment;
   //we store the label of the account as progress
   private String progress ="";
@@ -44,6 +64,7 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
   private ExportFormat format;
   private boolean deleteP;
   private boolean notYetExportedP;
+  private boolean zipP;
   private String dateFormat;
   private char decimalSeparator;
   private long accountId;
@@ -62,6 +83,7 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
     this.taskExecutionFragment = taskExecutionFragment;
     deleteP = extras.getBoolean(KEY_DELETE_P);
     notYetExportedP = extras.getBoolean(KEY_NOT_YET_EXPORTED_P);
+    zipP = extras.getBoolean(KEY_ZIP_P);
     dateFormat = extras.getString(TaskExecutionFragment.KEY_DATE_FORMAT);
     decimalSeparator = extras.getChar(KEY_DECIMAL_SEPARATOR);
     encoding = extras.getString(TaskExecutionFragment.KEY_ENCODING);
@@ -132,51 +154,62 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
         c.close();
       }
     }
-    Account account;
     DocumentFile destDir;
     DocumentFile appDir = AppDirHelper.getAppDir();
     if (appDir == null) {
       publishProgress(MyApplication.getInstance().getString(R.string.external_storage_unavailable));
       return(null);
     }
-    if (accountIds.length > 1) {
+    boolean multipleP = accountIds.length > 1;
+    if (multipleP) {
       destDir = AppDirHelper.newDirectory(appDir, fileName);
     } else {
       destDir = appDir;
     }
-    ArrayList<Account> successfullyExported = new ArrayList<>();
+    List<Account> accounts = new ArrayList<>(accountIds.length);
     for (Long id : accountIds) {
-      account = Account.getInstanceFromDb(id);
-      if (account == null) continue;
-      publishProgress(account.label + " ...");
-      try {
-        String fileNameForAccount = accountIds.length > 1 ?
-            Utils.escapeForFileName(account.label) + "-" + new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
-                .format(new Date()) :
-            fileName;
-        Result result = new Exporter(account,filter, destDir, fileNameForAccount, format,
-            notYetExportedP, dateFormat, decimalSeparator, encoding).export();
-        String progressMsg;
-        if (result.success) {
-          progressMsg = MyApplication.getInstance().getString(result.getMessage(),
-              FileUtils.getPath(MyApplication.getInstance(), (Uri) result.extra[0]));
-        } else {
-          progressMsg = MyApplication.getInstance().getString(result.getMessage(),result.extra);
+      Account account = Account.getInstanceFromDb(id);
+      if (account != null) {
+        accounts.add(account);
+      }
+    }
+    if (multipleP) {
+      publishProgress(MyApplication.getInstance().getString(R.string.progress_dialog_export_accounts, accounts.size()));
+    }
+    ArrayList<Account> successfullyExported = new ArrayList<>();
+    ArrayList<Uri> exportedFiles = new ArrayList<>();
+    int parallelism = Math.min(accounts.size(), MAX_PARALLEL_EXPORTS);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelism, 1));
+    //results are handled on this thread in the order the exports finish, so that progress is reported right away
+    CompletionService<AccountExport> completionService = new ExecutorCompletionService<>(executor);
+    for (Account account : accounts) {
+      completionService.submit(() -> exportAccount(account, destDir, multipleP));
+    }
+    try {
+      for (int done = 1; done <= accounts.size(); done++) {
+        AccountExport accountExport;
+        try {
+          accountExport = completionService.take().get();
+        } catch (ExecutionException e) {
+          //exportAccount handles all failures of an account itself, so that they do not affect the others
+          AcraHelper.report(e);
+          continue;
         }
-        publishProgress("... " + progressMsg);
-        if (result.success) {
-          if (PrefKey.PERFORM_SHARE.getBoolean(false)) {
-            addResult((Uri) result.extra[0]);
-          }
-          successfullyExported.add(account);
+        String progressMsg = accountExport.account.label + " ... " + accountExport.message;
+        publishProgress(multipleP ? String.format(Locale.getDefault(), "(%d/%d) %s", done, accounts.size(),
+            progressMsg) : progressMsg);
+        if (accountExport.file != null) {
+          exportedFiles.add(accountExport.file);
+          successfullyExported.add(accountExport.account);
         }
-      } catch (IOException e) {
-        publishProgress("... " + MyApplication.getInstance().getString(
-            R.string.export_sdcard_failure,
-            appDir.getName(),
-            e.getMessage()));
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
     }
+    //resetting an account might touch transfer peers in other accounts, hence we only do it
+    //once all exports are done, one account after the other
     for (Account a : successfullyExported) {
       if (deleteP) {
         a.reset(filter,handleDelete, fileName);
@@ -185,12 +218,121 @@ public class ExportTask extends AsyncTask<Void, String, ArrayList<Uri>> {
         a.markAsExported(filter);
       }
     }
+    if (zipP && !exportedFiles.isEmpty()) {
+      Uri zipFile = zip(appDir, exportedFiles);
+      if (zipFile != null) {
+        exportedFiles.clear();
+        exportedFiles.add(zipFile);
+      }
+    }
+    if (PrefKey.PERFORM_SHARE.getBoolean(false)) {
+      for (Uri file : exportedFiles) {
+        addResult(file);
+      }
+    }
     return getResult();
   }
+
+  /**
+   * runs on a worker thread
+   */
+  private AccountExport exportAccount(Account account, DocumentFile destDir, boolean multipleP) {
+    MyApplication ctx = MyApplication.getInstance();
+    try {
+      String fileNameForAccount = multipleP ?
+          Utils.escapeForFileName(account.label) + "-" + new SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
+              .format(new Date()) :
+          fileName;
+      Result result = new Exporter(account,filter, destDir, fileNameForAccount, format,
+          notYetExportedP, dateFormat, decimalSeparator, encoding).export();
+      if (result.success) {
+        Uri file = (Uri) result.extra[0];
+        return new AccountExport(account, file, ctx.getString(result.getMessage(),
+            FileUtils.getPath(ctx, file)));
+      } else {
+        return new AccountExport(account, null, ctx.getString(result.getMessage(), result.extra));
+      }
+    } catch (IOException | RuntimeException e) {
+      Timber.e(e, "Export of account %d failed", account.getId());
+      return new AccountExport(account, null, ctx.getString(
+          R.string.export_sdcard_failure,
+          destDir.getName(),
+          e.getMessage()));
+    }
+  }
+
+  /**
+   * bundles the exported files into one archive next to the folder holding them
+   *
+   * @return the uri of the archive, or null if it could not be written
+   */
+  @Nullable
+  private Uri zip(DocumentFile appDir, List<Uri> files) {
+    MyApplication ctx = MyApplication.getInstance();
+    DocumentFile zipFile = AppDirHelper.newFile(appDir, fileName, "application/zip", true);
+    if (zipFile == null) {
+      publishProgress(ctx.getString(R.string.io_error_unable_to_create_file, fileName,
+          FileUtils.getPath(ctx, appDir.getUri())));
+      return null;
+    }
+    ContentResolver cr = ctx.getContentResolver();
+    byte[] buffer = new byte[8192];
+    try {
+      ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(cr.openOutputStream(zipFile.getUri())));
+      try {
+        for (Uri file : files) {
+          out.putNextEntry(new ZipEntry(getFileName(file)));
+          InputStream in = cr.openInputStream(file);
+          try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+              out.write(buffer, 0, read);
+            }
+          } finally {
+            in.close();
+          }
+          out.closeEntry();
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      Timber.e(e);
+      zipFile.delete();
+      publishProgress(ctx.getString(R.string.export_sdcard_failure, fileName, e.getMessage()));
+      return null;
+    }
+    publishProgress(ctx.getString(R.string.export_sdcard_success, FileUtils.getPath(ctx, zipFile.getUri())));
+    return zipFile.getUri();
+  }
+
+  /**
+   * works both for file uris and for document uris, whose last segment is the id of the document
+   */
+  private static String getFileName(Uri uri) {
+    String lastSegment = uri.getLastPathSegment();
+    return lastSegment.substring(lastSegment.lastIndexOf('/') + 1);
+  }
+
   public ArrayList<Uri> getResult() {
     return result;
   }
   public void addResult(Uri fileUri) {
     result.add(fileUri);
   }
+
+  private static class AccountExport {
+    final Account account;
+    /**
+     * null if the export failed
+     */
+    @Nullable final Uri file;
+    final String message;
+
+    AccountExport(Account account, @Nullable Uri file, String message) {
+      this.account = account;
+      this.file = file;
+      this.message = message;
+    }
+  }
 }
@@ -529,6 +529,9 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
         android.accounts.Account syncAccount = GenericAccountService.GetAccount(account.getSyncAccountName());
         accountManager.setUserData(syncAccount, SyncAdapter.KEY_LAST_SYNCED_LOCAL(account.getId()), null);
         accountManager.setUserData(syncAccount, SyncAdapter.KEY_LAST_SYNCED_REMOTE(account.getId()), null);
+        accountManager.setUserData(syncAccount, SyncAdapter.KEY_BACKOFF_UNTIL(account.getId()), null);
+        accountManager.setUserData(syncAccount, SyncAdapter.KEY_FAILURES(account.getId()), null);
+        accountManager.setUserData(syncAccount, SyncAdapter.KEY_PRUNED(account.getId()), null);
         account.setSyncAccountName(null);
         account.save();
         return Result.SUCCESS;
@@ -652,11 +655,17 @@ public class GenericTask<T> extends AsyncTask<T, Void, Object> {
           //on Gingerbread we just accept that db is initialized with first request
           cr.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_INIT, null, null);
         }
+        //settings or time zone might have changed while the app was not running
+        cr.update(TransactionProvider.TRANSACTIONS_REFRESH_PERIODS_URI, null, null, null);
         if (PrefKey.CURRENT_VERSION.getInt(-1) != -1) {
           application.getLicenceHandler().update();
         }
         Account.updateTransferShortcut();
+        break;
       }
+      case TaskExecutionFragment.TASK_REFRESH_PERIODS:
+        cr.update(TransactionProvider.TRANSACTIONS_REFRESH_PERIODS_URI, null, null, null);
+        break;
     }
     return null;
   }
@@ -16,11 +16,18 @@
 
 package org.totschnig.myexpenses.task;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
+import com.annimon.stream.Stream;
+
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
 import org.totschnig.myexpenses.dialog.DialogUtils;
@@ -30,24 +37,25 @@ import org.totschnig.myexpenses.export.qif.QifCategory;
 import org.totschnig.myexpenses.export.qif.QifDateFormat;
 import org.totschnig.myexpenses.export.qif.QifParser;
 import org.totschnig.myexpenses.export.qif.QifTransaction;
-import org.totschnig.myexpenses.export.qif.QifUtils;
+import org.totschnig.myexpenses.export.qif.QifTransferMatcher;
 import org.totschnig.myexpenses.model.Account;
 import org.totschnig.myexpenses.model.ContribFeature;
 import org.totschnig.myexpenses.model.Payee;
-import org.totschnig.myexpenses.model.SplitTransaction;
 import org.totschnig.myexpenses.model.Transaction;
 import org.totschnig.myexpenses.provider.DatabaseConstants;
+import org.totschnig.myexpenses.provider.TransactionProvider;
 import org.totschnig.myexpenses.util.AcraHelper;
 import org.totschnig.myexpenses.util.FileUtils;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Currency;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,12 +63,22 @@ import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
+/**
+ * Imports the QIF file while it is parsed. Transactions are written in batches as soon as it is known for each of
+ * their transfers whether the counterpart is part of the file, see {@link QifTransferMatcher}, hence only
+ * transactions with transfers that are not paired yet are held in memory.
+ */
 public class QifImportTask extends AsyncTask<Void, String, Void> {
+  /**
+   * number of transactions written in one batch
+   */
+  private static final int BATCH_SIZE = 500;
   private final TaskExecutionFragment taskExecutionFragment;
   private QifDateFormat dateFormat;
   private String encoding;
   private long accountId;
   private int totalCategories = 0;
+  private int totalParties = 0;
   private final Map<String, Long> payeeToId = new HashMap<>();
   private final Map<String, Long> categoryToId = new HashMap<>();
   private final Map<String, QifAccount> accountTitleToAccount = new HashMap<>();
@@ -71,6 +89,30 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
   boolean withPartiesP, withCategoriesP, withTransactionsP;
 
   private Currency mCurrency;
+  private ContentResolver cr;
+
+  /**
+   * the accounts found in the file, in their order
+   */
+  private final List<QifAccount> accounts = new ArrayList<>();
+  private final Set<QifCategory> parsedCategories = new HashSet<>();
+  private final Set<String> parsedPayees = new HashSet<>();
+  /**
+   * payees and categories not yet written, they are written before the batch that references them
+   */
+  private final Set<String> pendingPayees = new LinkedHashSet<>();
+  private final Set<QifCategory> pendingCategories = new LinkedHashSet<>();
+  /**
+   * number of transactions waiting in {@link QifAccount#transactions} of the accounts
+   */
+  private int pendingTransactions = 0;
+  private final Map<QifAccount, Integer> importedTransactions = new HashMap<>();
+  private final Map<QifAccount, Integer> failedTransactions = new HashMap<>();
+  private QifTransferMatcher transferMatcher;
+  private boolean importTransactions;
+  private int nrOfAccounts, importedAccounts;
+  private boolean accountLimitReached;
+  private Account targetAccount;
 
   public QifImportTask(TaskExecutionFragment taskExecutionFragment, Bundle b) {
     this.taskExecutionFragment = taskExecutionFragment;
@@ -104,15 +146,85 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
   @Override
   protected Void doInBackground(Void... params) {
     long t0 = System.currentTimeMillis();
-    QifBufferedReader r;
-    QifParser parser;
+    cr = MyApplication.getInstance().getContentResolver();
+    importTransactions = withTransactionsP;
+    boolean foundMultipleAccounts = false;
+    if (withTransactionsP && accountId != 0) {
+      //we must not import anything into the account, if the file turns out to contain more than one
+      int count = countAccounts();
+      if (count == -1) {
+        return null;
+      }
+      if (count > 1) {
+        foundMultipleAccounts = true;
+        importTransactions = false;
+      } else {
+        targetAccount = Account.getInstanceFromDb(accountId);
+        if (targetAccount == null) {
+          AcraHelper.report(new Exception(
+              "Exception during QIF import. Did not get instance from DB for id " + accountId));
+        }
+      }
+    }
+    QifBufferedReader r = openReader();
+    if (r == null) {
+      return null;
+    }
+    if (importTransactions && accountId == 0) {
+      nrOfAccounts = Account.count(null, null);
+      transferMatcher = new QifTransferMatcher(new QifTransferMatcher.Callback() {
+        @Override
+        public void convert(QifTransaction transfer) {
+          convertIntoRegularTransaction(transfer);
+        }
+
+        @Override
+        public void ready(QifAccount account, QifTransaction transaction) {
+          addToBatch(account, transaction);
+        }
+      });
+    }
+    int nrOfTransactions = 0;
+    //on Gingerbread, ContentResolver#call is not available, and notifications are dispatched per batch
+    boolean bulkSession = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    if (bulkSession) {
+      cr.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_START, null, null);
+    }
     try {
-      InputStream inputStream = MyApplication.getInstance().getContentResolver().openInputStream(fileUri);
-      r = new QifBufferedReader(
-          new BufferedReader(
-              new InputStreamReader(
-                  inputStream,
-                  encoding)));
+      nrOfTransactions = parse(r);
+      if (transferMatcher != null) {
+        transferMatcher.finish();
+      }
+      flush();
+    } catch (IOException e) {
+      //what has been written up to here, stays in the database
+      publishProgress(MyApplication.getInstance()
+          .getString(R.string.parse_error_other_exception, e.getMessage()));
+      return null;
+    } finally {
+      if (bulkSession) {
+        cr.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_BULK_END, null, null);
+      }
+      try {
+        r.close();
+      } catch (IOException e) {
+        Timber.w(e, "Error closing QIF file");
+      }
+    }
+    long t1 = System.currentTimeMillis();
+    Timber.i("QIF Import: %d transactions done in %d s", nrOfTransactions,
+        TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
+    publishResult(foundMultipleAccounts);
+    return null;
+  }
+
+  /**
+   * @return null if the file could not be opened, the error has been published
+   */
+  private QifBufferedReader openReader() {
+    try {
+      InputStream inputStream = cr.openInputStream(fileUri);
+      return new QifBufferedReader(new InputStreamReader(inputStream, encoding));
     } catch (FileNotFoundException e) {
       publishProgress(MyApplication.getInstance()
           .getString(R.string.parse_error_file_not_found, fileUri));
@@ -122,63 +234,155 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
           .getString(R.string.parse_error_other_exception, e.getMessage()));
       return null;
     }
-    parser = new QifParser(r, dateFormat, mCurrency);
+  }
+
+  /**
+   * @return the number of accounts in the file, -1 if it could not be read, the error has been published
+   */
+  private int countAccounts() {
+    QifBufferedReader r = openReader();
+    if (r == null) {
+      return -1;
+    }
+    final int[] count = {0};
     try {
-      parser.parse();
-      long t1 = System.currentTimeMillis();
-      Timber.i("QIF Import: Parsing done in %d s", TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
-      publishProgress(MyApplication.getInstance()
-          .getString(
-              R.string.qif_parse_result,
-              String.valueOf(parser.accounts.size()),
-              String.valueOf(parser.categories.size()),
-              String.valueOf(parser.payees.size())));
-      doImport(parser);
-      return (null);
+      new QifParser(r, dateFormat, mCurrency, new QifParser.Callback() {
+        @Override
+        public void onAccount(QifAccount account) {
+          count[0]++;
+        }
+
+        @Override
+        public void onCategory(QifCategory category) {
+        }
+
+        @Override
+        public void onTransaction(QifAccount account, QifTransaction transaction) {
+        }
+      }).parse();
+      return count[0];
     } catch (IOException e) {
       publishProgress(MyApplication.getInstance()
           .getString(R.string.parse_error_other_exception, e.getMessage()));
-      return null;
+      return -1;
     } finally {
       try {
         r.close();
       } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
+        Timber.w(e, "Error closing QIF file");
       }
     }
   }
 
-/*  private String detectEncoding(InputStream inputStream) throws IOException {
-    byte[] buf = new byte[4096];
+  /**
+   * @return the number of transactions in the file
+   */
+  private int parse(QifBufferedReader r) throws IOException {
+    final int[] count = {0};
+    new QifParser(r, dateFormat, mCurrency, new QifParser.Callback() {
+      @Override
+      public void onAccount(QifAccount account) {
+        accounts.add(account);
+        if (importTransactions) {
+          if (accountId == 0) {
+            insertAccount(account);
+          } else {
+            account.dbAccount = targetAccount;
+          }
+        }
+      }
 
-    // (1)
-    UniversalDetector detector = new UniversalDetector(null);
+      @Override
+      public void onCategory(QifCategory category) {
+        addCategory(category);
+      }
 
-    // (2)
-    int nread;
-    while ((nread = inputStream.read(buf)) > 0 && !detector.isDone()) {
-      detector.handleData(buf, 0, nread);
+      @Override
+      public void onTransaction(QifAccount account, QifTransaction transaction) {
+        count[0]++;
+        addReferences(transaction);
+        if (importTransactions && account.dbAccount != null) {
+          if (transferMatcher != null) {
+            transferMatcher.add(account, transaction);
+          } else {
+            //transfers can only be paired between accounts imported together
+            convertTransfers(transaction);
+            addToBatch(account, transaction);
+          }
+        }
+        if (pendingPayees.size() >= BATCH_SIZE) {
+          flush();
+        }
+      }
+    }).parse();
+    return count[0];
+  }
+
+  private void addReferences(QifTransaction transaction) {
+    if (!TextUtils.isEmpty(transaction.payee) && parsedPayees.add(transaction.payee) && withPartiesP) {
+      pendingPayees.add(transaction.payee);
     }
-    // (3)
-    detector.dataEnd();
+    if (transaction.isSplit()) {
+      for (QifTransaction split : transaction.splits) {
+        addReferences(split);
+      }
+    } else if (!TextUtils.isEmpty(transaction.category)) {
+      addCategory(new QifCategory(transaction.category, false));
+    }
+  }
 
-    // (4)
-    String encoding = detector.getDetectedCharset();
-    if (encoding != null) {
-      System.out.println("Detected encoding = " + encoding);
-    } else {
-      System.out.println("No encoding detected.");
+  private void addCategory(QifCategory category) {
+    if (parsedCategories.add(category) && withCategoriesP) {
+      pendingCategories.add(category);
     }
+  }
 
-    // (5)
-    detector.reset();
-    return encoding;
-  }*/
+  private void addToBatch(QifAccount account, QifTransaction transaction) {
+    account.transactions.add(transaction);
+    pendingTransactions++;
+    if (pendingTransactions >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * writes the pending payees and categories, and then the pending transactions
+   */
+  private void flush() {
+    if (!pendingPayees.isEmpty()) {
+      totalParties += insertPayees(pendingPayees);
+      pendingPayees.clear();
+    }
+    if (!pendingCategories.isEmpty()) {
+      insertCategories(pendingCategories);
+      pendingCategories.clear();
+    }
+    if (pendingTransactions > 0) {
+      for (QifAccount account : accounts) {
+        if (!account.transactions.isEmpty()) {
+          int count = insertTransactions(account.dbAccount, account.transactions);
+          Integer before = importedTransactions.get(account);
+          importedTransactions.put(account, before == null ? count : before + count);
+          int failed = account.transactions.size() - count;
+          if (failed > 0) {
+            before = failedTransactions.get(account);
+            failedTransactions.put(account, before == null ? failed : before + failed);
+          }
+          account.transactions.clear();
+        }
+      }
+      pendingTransactions = 0;
+    }
+  }
 
-  private void doImport(QifParser parser) {
+  private void publishResult(boolean foundMultipleAccounts) {
+    publishProgress(MyApplication.getInstance()
+        .getString(
+            R.string.qif_parse_result,
+            String.valueOf(accounts.size()),
+            String.valueOf(parsedCategories.size()),
+            String.valueOf(parsedPayees.size())));
     if (withPartiesP) {
-      int totalParties = insertPayees(parser.payees);
       publishProgress(totalParties == 0 ?
           MyApplication.getInstance().getString(R.string.import_parties_none) :
           MyApplication.getInstance().getString(R.string.import_parties_success,
@@ -190,7 +394,6 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
      * TimeUnit.MILLISECONDS.toSeconds(t2-t1)+"s");
      */
     if (withCategoriesP) {
-      insertCategories(parser.categories);
       publishProgress(totalCategories == 0 ?
           MyApplication.getInstance().getString(R.string.import_categories_none) :
           MyApplication.getInstance().getString(R.string.import_categories_success,
@@ -198,185 +401,144 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     }
     if (withTransactionsP) {
       if (accountId == 0) {
-        int importedAccounts = insertAccounts(parser.accounts);
+        if (accountLimitReached) {
+          publishProgress(
+              MyApplication.getInstance()
+                  .getString(R.string.qif_parse_failure_found_multiple_accounts) + " " +
+                  ContribFeature.ACCOUNTS_UNLIMITED.buildUsageLimitString(MyApplication.getInstance()) +
+                  ContribFeature.ACCOUNTS_UNLIMITED.buildRemoveLimitation(
+                      MyApplication.getInstance(), false));
+        }
         publishProgress(importedAccounts == 0 ?
             MyApplication.getInstance().getString(R.string.import_accounts_none) :
             MyApplication.getInstance().getString(R.string.import_accounts_success,
                 String.valueOf(importedAccounts)));
-      } else {
-        if (parser.accounts.size() > 1) {
-          publishProgress(
-              MyApplication.getInstance()
-                  .getString(R.string.qif_parse_failure_found_multiple_accounts)
-                  + " "
-                  + MyApplication.getInstance()
-                  .getString(R.string.qif_parse_failure_found_multiple_accounts_cannot_merge));
-          return;
-        }
-        if (parser.accounts.isEmpty()) {
-          return;
-        }
-        Account dbAccount = Account.getInstanceFromDb(accountId);
-        parser.accounts.get(0).dbAccount = dbAccount;
-        if (dbAccount == null) {
-          AcraHelper.report(new Exception(
-              "Exception during QIF import. Did not get instance from DB for id " + accountId));
+      } else if (foundMultipleAccounts) {
+        publishProgress(
+            MyApplication.getInstance()
+                .getString(R.string.qif_parse_failure_found_multiple_accounts)
+                + " "
+                + MyApplication.getInstance()
+                .getString(R.string.qif_parse_failure_found_multiple_accounts_cannot_merge));
+        return;
+      }
+      for (QifAccount account : accounts) {
+        Account a = account.dbAccount;
+        if (a != null) {
+          Integer countTransactions = importedTransactions.get(account);
+          publishProgress(countTransactions == null || countTransactions == 0 ?
+              MyApplication.getInstance().getString(R.string.import_transactions_none, a.label) :
+              MyApplication.getInstance().getString(R.string.import_transactions_success, countTransactions, a.label));
+          Integer failedTransactionCount = failedTransactions.get(account);
+          if (failedTransactionCount != null) {
+            publishProgress(MyApplication.getInstance().getString(R.string.csv_import_records_failed,
+                failedTransactionCount));
+          }
+        } else {
+          publishProgress("Unable to import into QIF account " + account.memo + ". No matching database account found");
         }
       }
-      insertTransactions(parser.accounts);
     }
   }
 
-  private int insertPayees(Set<String> payees) {
-    int count = 0;
-    for (String payee : payees) {
-      Long id = payeeToId.get(payee);
-      if (id == null) {
-        id = Payee.find(payee);
-        if (id == -1) {
-          id = Payee.maybeWrite(payee);
-          if (id != -1)
-            count++;
-        }
-        if (id != -1) {
-          payeeToId.put(payee, id);
-        }
-      }
+/*  private String detectEncoding(InputStream inputStream) throws IOException {
+    byte[] buf = new byte[4096];
+
+    // (1)
+    UniversalDetector detector = new UniversalDetector(null);
+
+    // (2)
+    int nread;
+    while ((nread = inputStream.read(buf)) > 0 && !detector.isDone()) {
+      detector.handleData(buf, 0, nread);
     }
-    return count;
-  }
+    // (3)
+    detector.dataEnd();
 
-  private void insertCategories(Set<QifCategory> categories) {
-    for (QifCategory category : categories) {
-      totalCategories += category.insert(categoryToId, true);
+    // (4)
+    String encoding = detector.getDetectedCharset();
+    if (encoding != null) {
+      System.out.println("Detected encoding = " + encoding);
+    } else {
+      System.out.println("No encoding detected.");
     }
-  }
 
-  private int insertAccounts(List<QifAccount> accounts) {
-    int nrOfAccounts = Account.count(null, null);
+    // (5)
+    detector.reset();
+    return encoding;
+  }*/
 
-    int importCount = 0;
-    for (QifAccount account : accounts) {
-      if (!ContribFeature.ACCOUNTS_UNLIMITED.hasAccess()
-          && nrOfAccounts + importCount > 5) {
-        publishProgress(
-            MyApplication.getInstance()
-                .getString(R.string.qif_parse_failure_found_multiple_accounts) + " " +
-                ContribFeature.ACCOUNTS_UNLIMITED.buildUsageLimitString(MyApplication.getInstance()) +
-                ContribFeature.ACCOUNTS_UNLIMITED.buildRemoveLimitation(
-                    MyApplication.getInstance(), false));
-        break;
-      }
-      long dbAccountId = TextUtils.isEmpty(account.memo) ? -1 : Account.findAny(account.memo);
-      if (dbAccountId != -1) {
-        Account dbAccount = Account.getInstanceFromDb(dbAccountId);
-        account.dbAccount = dbAccount;
-        if (dbAccount == null) {
-          AcraHelper.report(new Exception(
-              "Exception during QIF import. Did not get instance from DB for id " + dbAccountId));
+  private int insertPayees(Set<String> payees) {
+    int count = 0;
+    payeeToId.putAll(Payee.findByNames(payees));
+    List<String> missing = Stream.of(payees).filter(name -> !payeeToId.containsKey(name)).toList();
+    if (!missing.isEmpty()) {
+      long[] ids = Payee.bulkWrite(missing);
+      if (ids != null) {
+        for (int i = 0; i < ids.length; i++) {
+          payeeToId.put(missing.get(i), ids[i]);
         }
+        count += ids.length;
       } else {
-        Account a = account.toAccount(mCurrency);
-        if (TextUtils.isEmpty(a.label)) {
-          String displayName = DialogUtils.getDisplayName(fileUri);
-          if (FileUtils.getExtension(displayName).equalsIgnoreCase(".qif")) {
-            displayName = displayName.substring(0, displayName.lastIndexOf('.'));
+        for (String payee : missing) {
+          long id = Payee.maybeWrite(payee);
+          if (id != -1) {
+            payeeToId.put(payee, id);
+            count++;
           }
-          displayName = displayName.replace('-', ' ').replace('_', ' ');
-          a.label = displayName;
         }
-        if (a.save() != null)
-          importCount++;
-        account.dbAccount = a;
       }
-      accountTitleToAccount.put(account.memo, account);
     }
-    return importCount;
+    return count;
   }
 
-  private void insertTransactions(List<QifAccount> accounts) {
-    long t0 = System.currentTimeMillis();
-    reduceTransfers(accounts);
-    long t1 = System.currentTimeMillis();
-    Timber.i("QIF Import: Reducing transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t1 - t0));
-    convertUnknownTransfers(accounts);
-    long t2 = System.currentTimeMillis();
-    Timber.i("QIF Import: Converting transfers done in %d s", TimeUnit.MILLISECONDS.toSeconds(t2 - t1));
-    int count = accounts.size();
-    for (int i = 0; i < count; i++) {
-      long t3 = System.currentTimeMillis();
-      QifAccount account = accounts.get(i);
-      Account a = account.dbAccount;
-      if (a != null) {
-        int countTransactions = insertTransactions(a, account.transactions);
-        publishProgress(countTransactions == 0 ?
-            MyApplication.getInstance().getString(R.string.import_transactions_none, a.label) :
-            MyApplication.getInstance().getString(R.string.import_transactions_success, countTransactions, a.label));
-      } else {
-        publishProgress("Unable to import into QIF account " + account.memo + ". No matching database account found");
-      }
-      // this might help GC
-      account.transactions.clear();
-      long t4 = System.currentTimeMillis();
-      Timber.i("QIF Import: Inserting transactions for account %d/%d done in %d s",
-          i, count, TimeUnit.MILLISECONDS.toSeconds(t4 - t3));
+  private void insertCategories(Set<QifCategory> categories) {
+    for (QifCategory category : categories) {
+      totalCategories += category.insert(categoryToId, true);
     }
   }
 
-  private void reduceTransfers(List<QifAccount> accounts) {
-    for (QifAccount fromAccount : accounts) {
-      List<QifTransaction> transactions = fromAccount.transactions;
-      reduceTransfers(fromAccount, transactions);
+  private void insertAccount(QifAccount account) {
+    if (accountLimitReached) {
+      return;
     }
-  }
-
-  private void reduceTransfers(QifAccount fromAccount,
-                               List<QifTransaction> transactions) {
-    for (QifTransaction fromTransaction : transactions) {
-      if (fromTransaction.isTransfer() && fromTransaction.amount.signum() == -1) {
-        boolean found = false;
-        if (!fromTransaction.toAccount.equals(fromAccount.memo)) {
-          QifAccount toAccount = accountTitleToAccount
-              .get(fromTransaction.toAccount);
-          if (toAccount != null) {
-            Iterator<QifTransaction> iterator = toAccount.transactions
-                .iterator();
-            while (iterator.hasNext()) {
-              QifTransaction toTransaction = iterator.next();
-              if (QifUtils.twoSidesOfTheSameTransfer(fromAccount, fromTransaction,
-                  toAccount, toTransaction)) {
-                iterator.remove();
-                found = true;
-                break;
-              }
-            }
-          }
-        }
-        if (!found) {
-          convertIntoRegularTransaction(fromTransaction);
-        }
+    if (!ContribFeature.ACCOUNTS_UNLIMITED.hasAccess()
+        && nrOfAccounts + importedAccounts > 5) {
+      accountLimitReached = true;
+      return;
+    }
+    long dbAccountId = TextUtils.isEmpty(account.memo) ? -1 : Account.findAny(account.memo);
+    if (dbAccountId != -1) {
+      Account dbAccount = Account.getInstanceFromDb(dbAccountId);
+      account.dbAccount = dbAccount;
+      if (dbAccount == null) {
+        AcraHelper.report(new Exception(
+            "Exception during QIF import. Did not get instance from DB for id " + dbAccountId));
       }
-      if (fromTransaction.splits != null) {
-        reduceTransfers(fromAccount, fromTransaction.splits);
+    } else {
+      Account a = account.toAccount(mCurrency);
+      if (TextUtils.isEmpty(a.label)) {
+        String displayName = DialogUtils.getDisplayName(fileUri);
+        if (FileUtils.getExtension(displayName).equalsIgnoreCase(".qif")) {
+          displayName = displayName.substring(0, displayName.lastIndexOf('.'));
+        }
+        displayName = displayName.replace('-', ' ').replace('_', ' ');
+        a.label = displayName;
       }
+      if (a.save() != null)
+        importedAccounts++;
+      account.dbAccount = a;
     }
+    accountTitleToAccount.put(account.memo, account);
   }
 
-  private void convertUnknownTransfers(List<QifAccount> accounts) {
-    for (QifAccount fromAccount : accounts) {
-      List<QifTransaction> transactions = fromAccount.transactions;
-      convertUnknownTransfers(fromAccount, transactions);
+  private void convertTransfers(QifTransaction transaction) {
+    if (transaction.isTransfer()) {
+      convertIntoRegularTransaction(transaction);
     }
-  }
-
-  private void convertUnknownTransfers(QifAccount fromAccount,
-                                       List<QifTransaction> transactions) {
-    for (QifTransaction transaction : transactions) {
-      if (transaction.isTransfer() && transaction.amount.signum() >= 0) {
-        convertIntoRegularTransaction(transaction);
-      }
-      if (transaction.splits != null) {
-        convertUnknownTransfers(fromAccount, transaction.splits);
+    if (transaction.splits != null) {
+      for (QifTransaction split : transaction.splits) {
+        convertTransfers(split);
       }
     }
   }
@@ -395,33 +557,57 @@ public class QifImportTask extends AsyncTask<Void, String, Void> {
     fromTransaction.toAccount = null;
   }
 
+  /**
+   * writes the transactions in one batch, if that fails, they are retried one by one, so that a single
+   * transaction that can not be written does not cost the others
+   *
+   * @return the number of transactions written
+   */
   private int insertTransactions(Account a, List<QifTransaction> transactions) {
+    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    for (QifTransaction transaction : transactions) {
+      addSaveOperations(a, transaction, ops);
+    }
+    try {
+      cr.applyBatch(TransactionProvider.AUTHORITY, ops);
+      return transactions.size();
+    } catch (RemoteException | OperationApplicationException e) {
+      Timber.w(e, "Batch of %d transactions failed, retrying one by one", transactions.size());
+    }
     int count = 0;
     for (QifTransaction transaction : transactions) {
-      Transaction t = transaction.toTransaction(a);
-      t.payeeId = findPayee(transaction.payee);
-      // t.projectId = findProject(transaction.categoryClass);
-      findToAccount(transaction, t);
-
-      if (transaction.splits != null) {
-        ((SplitTransaction) t).persistForEdit();
-        for (QifTransaction split : transaction.splits) {
-          Transaction s = split.toTransaction(a);
-          s.parentId = t.getId();
-          s.status = org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED;
-          findToAccount(split, s);
-          findCategory(split, s);
-          s.save();
-        }
-      } else {
-        findCategory(transaction, t);
-      }
-      if (t.save() != null)
+      ops.clear();
+      addSaveOperations(a, transaction, ops);
+      try {
+        cr.applyBatch(TransactionProvider.AUTHORITY, ops);
         count++;
+      } catch (RemoteException | OperationApplicationException e) {
+        AcraHelper.report(e);
+      }
     }
     return count;
   }
 
+  private void addSaveOperations(Account a, QifTransaction transaction, ArrayList<ContentProviderOperation> ops) {
+    Transaction t = transaction.toTransaction(a);
+    t.payeeId = findPayee(transaction.payee);
+    // t.projectId = findProject(transaction.categoryClass);
+    findToAccount(transaction, t);
+    int offset = ops.size();
+    if (transaction.splits != null) {
+      ops.addAll(t.buildSaveOperations(offset, -1, false));
+      for (QifTransaction split : transaction.splits) {
+        Transaction s = split.toTransaction(a);
+        findToAccount(split, s);
+        findCategory(split, s);
+        ops.addAll(s.buildSaveOperations(ops.size(), offset, false));
+      }
+    } else {
+      findCategory(transaction, t);
+      ops.addAll(t.buildSaveOperations(offset, -1, false));
+    }
+  }
+
   private void findToAccount(QifTransaction transaction, Transaction t) {
     if (transaction.isTransfer()) {
       Account toAccount = findAccount(transaction.toAccount);
@@ -114,6 +114,7 @@ public class TaskExecutionFragment<T> extends Fragment {
   public static final int TASK_SYNC_CHECK = 49;
 
   public static final int TASK_INIT = 50;
+  public static final int TASK_REFRESH_PERIODS = 51;
 
   /**
    * Callback interface through which the fragment will report the task's
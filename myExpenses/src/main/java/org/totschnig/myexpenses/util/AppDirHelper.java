@@ -80,7 +80,10 @@ public class AppDirHelper {
     return newFile(parentDir, prefix + "-" + now, mimeType, addExtension);
   }
 
-  public static DocumentFile newFile(DocumentFile parentDir, String base,
+  /**
+   * synchronized, since concurrent exports must not pick the same name
+   */
+  public static synchronized DocumentFile newFile(DocumentFile parentDir, String base,
                                      String mimeType, boolean addExtension) {
     int postfix = 0;
     do {
@@ -0,0 +1,91 @@
+package org.totschnig.myexpenses.util;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DELTA;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INTERIM_BALANCE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR;
+
+/**
+ * Fills in the interim balance of the groups returned for
+ * {@link org.totschnig.myexpenses.provider.TransactionProvider#TRANSACTIONS_URI} with path segment
+ * {@link org.totschnig.myexpenses.provider.TransactionProvider#URI_SEGMENT_GROUPS}, with a running sum
+ * over the deltas of each group, calculated in one pass when the cursor is wrapped. Works for both ascending
+ * and descending sort order.
+ */
+public class InterimBalanceCursorWrapper extends CursorWrapper {
+  private final int columnIndexInterimBalance;
+  private final long[] interimBalances;
+
+  public InterimBalanceCursorWrapper(Cursor cursor, long openingBalance) {
+    super(cursor);
+    columnIndexInterimBalance = cursor.getColumnIndex(KEY_INTERIM_BALANCE);
+    int count = cursor.getCount();
+    interimBalances = new long[count];
+    if (count == 0) {
+      return;
+    }
+    int columnIndexDelta = cursor.getColumnIndex(KEY_DELTA);
+    int columnIndexYear = cursor.getColumnIndex(KEY_YEAR);
+    int columnIndexSecond = cursor.getColumnIndex(KEY_SECOND_GROUP);
+    long[] deltas = new long[count];
+    long total = 0;
+    cursor.moveToFirst();
+    long firstGroup = groupKey(cursor, columnIndexYear, columnIndexSecond);
+    for (int i = 0; i < count; i++) {
+      cursor.moveToPosition(i);
+      deltas[i] = cursor.getLong(columnIndexDelta);
+      total += deltas[i];
+    }
+    boolean ascending = firstGroup <= groupKey(cursor, columnIndexYear, columnIndexSecond);
+    long balance = ascending ? openingBalance : openingBalance + total;
+    for (int i = 0; i < count; i++) {
+      if (ascending) {
+        balance += deltas[i];
+        interimBalances[i] = balance;
+      } else {
+        interimBalances[i] = balance;
+        balance -= deltas[i];
+      }
+    }
+    cursor.moveToPosition(-1);
+  }
+
+  private static long groupKey(Cursor cursor, int columnIndexYear, int columnIndexSecond) {
+    return cursor.getLong(columnIndexYear) * 1000 + cursor.getLong(columnIndexSecond);
+  }
+
+  @Override
+  public long getLong(int columnIndex) {
+    if (columnIndex == columnIndexInterimBalance) {
+      return interimBalances[getPosition()];
+    }
+    return super.getLong(columnIndex);
+  }
+
+  @Override
+  public int getInt(int columnIndex) {
+    if (columnIndex == columnIndexInterimBalance) {
+      return (int) interimBalances[getPosition()];
+    }
+    return super.getInt(columnIndex);
+  }
+
+  @Override
+  public double getDouble(int columnIndex) {
+    if (columnIndex == columnIndexInterimBalance) {
+      return interimBalances[getPosition()];
+    }
+    return super.getDouble(columnIndex);
+  }
+
+  @Override
+  public String getString(int columnIndex) {
+    if (columnIndex == columnIndexInterimBalance) {
+      return String.valueOf(interimBalances[getPosition()]);
+    }
+    return super.getString(columnIndex);
+  }
+}
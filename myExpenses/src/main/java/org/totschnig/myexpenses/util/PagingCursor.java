@@ -0,0 +1,208 @@
+package org.totschnig.myexpenses.util;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import org.totschnig.myexpenses.provider.TransactionProvider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
+
+/**
+ * Presents the transactions returned for {@link TransactionProvider#TRANSACTIONS_URI} as one cursor, while
+ * fetching them page by page on demand, using the keyset on date and id supported by
+ * {@link TransactionProvider#QUERY_PARAMETER_PAGE_SIZE}. A page whose predecessor has not been fetched yet,
+ * e.g. after a jump, is fetched directly by {@link TransactionProvider#QUERY_PARAMETER_OFFSET}.
+ * Only the most recently used pages are kept open,
+ * so that memory stays bounded regardless of the number of transactions. Rows are ordered by date and id
+ * descending. If rows are deleted after the count has been determined, pages come back short, the positions
+ * missing from them are presented as rows with null values, until the loader has reloaded.
+ */
+public class PagingCursor extends AbstractCursor {
+  private static final int MAX_CACHED_PAGES = 3;
+
+  private final ContentResolver contentResolver;
+  private final Uri uri;
+  private final String[] projection;
+  private final String selection;
+  private final String[] selectionArgs;
+  private final int pageSize;
+  private final int count;
+  private String[] columnNames;
+  private int columnIndexDate, columnIndexRowId;
+  /**
+   * date and id of the last row of each page fetched so far, from which the following page is fetched
+   */
+  private final long[] lastDate, lastRowId;
+  private final boolean[] lastKnown;
+  private final LinkedHashMap<Integer, Cursor> pages =
+      new LinkedHashMap<Integer, Cursor>(MAX_CACHED_PAGES + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Cursor> eldest) {
+          if (size() > MAX_CACHED_PAGES) {
+            eldest.getValue().close();
+            return true;
+          }
+          return false;
+        }
+      };
+  private Cursor currentPage;
+  /**
+   * the current position lies beyond the rows of its page
+   */
+  private boolean placeholder;
+
+  /**
+   * @param projection must contain {@link org.totschnig.myexpenses.provider.DatabaseConstants#KEY_DATE}
+   *                   and {@link org.totschnig.myexpenses.provider.DatabaseConstants#KEY_ROWID}
+   */
+  public PagingCursor(ContentResolver contentResolver, Uri uri, String[] projection, String selection,
+                      String[] selectionArgs, int pageSize) {
+    this.contentResolver = contentResolver;
+    this.uri = uri;
+    this.projection = projection;
+    this.selection = selection;
+    this.selectionArgs = selectionArgs;
+    this.pageSize = pageSize;
+    Cursor c = contentResolver.query(uri, new String[]{"count(*)"}, selection, selectionArgs, null);
+    int count = 0;
+    if (c != null) {
+      if (c.moveToFirst()) {
+        count = c.getInt(0);
+      }
+      c.close();
+    }
+    this.count = count;
+    int pageCount = (count + pageSize - 1) / pageSize;
+    lastDate = new long[pageCount];
+    lastRowId = new long[pageCount];
+    lastKnown = new boolean[pageCount];
+    //we need the column names also for an empty result
+    Cursor first = fetchPage(0);
+    columnNames = first.getColumnNames();
+    if (count > 0) {
+      pages.put(0, first);
+    } else {
+      first.close();
+    }
+  }
+
+  private Cursor fetchPage(int page) {
+    Uri.Builder builder = uri.buildUpon().appendQueryParameter(TransactionProvider.QUERY_PARAMETER_PAGE_SIZE,
+        String.valueOf(pageSize));
+    if (page > 0) {
+      if (lastKnown[page - 1]) {
+        builder.appendQueryParameter(TransactionProvider.QUERY_PARAMETER_AFTER_DATE, String.valueOf(lastDate[page - 1]))
+            .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_AFTER_ID, String.valueOf(lastRowId[page - 1]));
+      } else {
+        builder.appendQueryParameter(TransactionProvider.QUERY_PARAMETER_OFFSET, String.valueOf(page * pageSize));
+      }
+    }
+    Cursor c = contentResolver.query(builder.build(), projection, selection, selectionArgs, null);
+    if (c == null) {
+      throw new IllegalStateException("Query for page " + page + " of " + uri + " failed");
+    }
+    if (columnNames == null) {
+      columnIndexDate = c.getColumnIndexOrThrow(KEY_DATE);
+      columnIndexRowId = c.getColumnIndexOrThrow(KEY_ROWID);
+    }
+    if (page < lastKnown.length && c.moveToLast()) {
+      lastDate[page] = c.getLong(columnIndexDate);
+      lastRowId[page] = c.getLong(columnIndexRowId);
+      lastKnown[page] = true;
+    }
+    return c;
+  }
+
+  private Cursor getPage(int page) {
+    Cursor c = pages.get(page);
+    if (c == null) {
+      c = fetchPage(page);
+      pages.put(page, c);
+    }
+    return c;
+  }
+
+  @Override
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return columnNames;
+  }
+
+  @Override
+  public boolean onMove(int oldPosition, int newPosition) {
+    currentPage = getPage(newPosition / pageSize);
+    //the count must not change while the list shows the cursor, the position has to be valid regardless
+    placeholder = !currentPage.moveToPosition(newPosition % pageSize);
+    return true;
+  }
+
+  @Override
+  public String getString(int column) {
+    return placeholder ? null : currentPage.getString(column);
+  }
+
+  @Override
+  public short getShort(int column) {
+    return placeholder ? 0 : currentPage.getShort(column);
+  }
+
+  @Override
+  public int getInt(int column) {
+    return placeholder ? 0 : currentPage.getInt(column);
+  }
+
+  @Override
+  public long getLong(int column) {
+    return placeholder ? 0 : currentPage.getLong(column);
+  }
+
+  @Override
+  public float getFloat(int column) {
+    return placeholder ? 0 : currentPage.getFloat(column);
+  }
+
+  @Override
+  public double getDouble(int column) {
+    return placeholder ? 0 : currentPage.getDouble(column);
+  }
+
+  @Override
+  public byte[] getBlob(int column) {
+    return placeholder ? null : currentPage.getBlob(column);
+  }
+
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  @Override
+  public int getType(int column) {
+    return placeholder ? FIELD_TYPE_NULL : currentPage.getType(column);
+  }
+
+  @Override
+  public boolean isNull(int column) {
+    return placeholder || currentPage.isNull(column);
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    Iterator<Cursor> iterator = pages.values().iterator();
+    while (iterator.hasNext()) {
+      iterator.next().close();
+      iterator.remove();
+    }
+    currentPage = null;
+  }
+}
@@ -0,0 +1,32 @@
+package org.totschnig.myexpenses.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * Loads a {@link PagingCursor}, so that only the first page is fetched in the background, and further
+ * pages while the list is scrolled.
+ */
+public class PagingCursorLoader extends CursorLoader {
+  private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+  private final int pageSize;
+
+  public PagingCursorLoader(Context context, Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, int pageSize) {
+    super(context, uri, projection, selection, selectionArgs, null);
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public Cursor loadInBackground() {
+    ContentResolver contentResolver = getContext().getContentResolver();
+    PagingCursor cursor = new PagingCursor(contentResolver, getUri(), getProjection(), getSelection(),
+        getSelectionArgs(), pageSize);
+    cursor.setNotificationUri(contentResolver, getUri());
+    cursor.registerContentObserver(observer);
+    return cursor;
+  }
+}
@@ -0,0 +1,67 @@
+package org.totschnig.myexpenses.export.qif;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QifBufferedReaderTest {
+
+  /**
+   * hands out at most one character per read, so that lines and line terminators are split across reads
+   */
+  private static class TrickleReader extends StringReader {
+    TrickleReader(String s) {
+      super(s);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      return super.read(cbuf, off, Math.min(len, 1));
+    }
+  }
+
+  private void assertLines(Reader reader, String... expected) throws IOException {
+    QifBufferedReader r = new QifBufferedReader(reader);
+    for (String line : expected) {
+      assertEquals(line, r.peekLine());
+      assertEquals(line, r.peekLine());
+      assertEquals(line, r.readLine());
+    }
+    assertNull(r.peekLine());
+    assertNull(r.readLine());
+  }
+
+  @Test
+  public void shouldSkipEmptyLinesAndTrim() throws IOException {
+    String content = "!Type:Bank\n\n  D01/02/2017 \n\t\nT-10.00\n^";
+    assertLines(new StringReader(content), "!Type:Bank", "D01/02/2017", "T-10.00", "^");
+    assertLines(new TrickleReader(content), "!Type:Bank", "D01/02/2017", "T-10.00", "^");
+  }
+
+  @Test
+  public void shouldHandleAllLineTerminators() throws IOException {
+    String content = "N1\r\nN2\rN3\nN4\r\n\r\nN5\r";
+    assertLines(new StringReader(content), "N1", "N2", "N3", "N4", "N5");
+    assertLines(new TrickleReader(content), "N1", "N2", "N3", "N4", "N5");
+  }
+
+  @Test
+  public void shouldReadLinesLongerThanBuffer() throws IOException {
+    StringBuilder memo = new StringBuilder("M");
+    for (int i = 0; i < 20000; i++) {
+      memo.append((char) ('a' + i % 26));
+    }
+    assertLines(new StringReader("P" + "\n" + memo + "\n^\n"), "P", memo.toString(), "^");
+  }
+
+  @Test
+  public void shouldHandleEmptyInput() throws IOException {
+    assertLines(new StringReader(""));
+    assertLines(new StringReader(" \r\n\n"));
+  }
+}
@@ -0,0 +1,218 @@
+package org.totschnig.myexpenses.export.qif;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link QifTransferMatcher} pairs transfers like the linear scan on the fully parsed file did, and
+ * measures it on a file with many accounts and transactions.
+ */
+public class QifTransferMatcherTest {
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  /**
+   * Transfers in both directions between random accounts. Dates and amounts are drawn from small ranges, so
+   * that many transfers can not be told apart, and some transfers lack their counterpart or are part of a split.
+   */
+  private List<QifAccount> generate(int accountCount, int transactionCount, long seed) {
+    Random random = new Random(seed);
+    List<QifAccount> accounts = new ArrayList<>(accountCount);
+    for (int i = 0; i < accountCount; i++) {
+      QifAccount account = new QifAccount();
+      account.memo = "Account " + i;
+      accounts.add(account);
+    }
+    long id = 0;
+    while (id < transactionCount) {
+      QifAccount from = accounts.get(random.nextInt(accountCount));
+      QifAccount to = accounts.get(random.nextInt(accountCount));
+      Date date = new Date(random.nextInt(30) * DAY);
+      BigDecimal amount = new BigDecimal(random.nextInt(20) + 1);
+      QifTransaction outgoing = newTransaction(id++, to.memo, date, amount.negate());
+      if (random.nextInt(10) == 0) {
+        QifTransaction split = newTransaction(id++, null, date, amount.negate());
+        split.splits = new ArrayList<>();
+        split.splits.add(outgoing);
+        from.transactions.add(split);
+      } else {
+        from.transactions.add(outgoing);
+      }
+      if (random.nextInt(20) != 0) {
+        to.transactions.add(newTransaction(id++, from.memo, date, amount));
+      }
+      if (random.nextInt(4) == 0) {
+        from.transactions.add(newTransaction(id++, null, date, amount));
+      }
+    }
+    return accounts;
+  }
+
+  private QifTransaction newTransaction(long id, String toAccount, Date date, BigDecimal amount) {
+    QifTransaction transaction = new QifTransaction();
+    transaction.id = id;
+    transaction.toAccount = toAccount;
+    transaction.date = date;
+    transaction.amount = amount;
+    return transaction;
+  }
+
+  private Map<String, QifAccount> byTitle(List<QifAccount> accounts) {
+    Map<String, QifAccount> accountTitleToAccount = new HashMap<>();
+    for (QifAccount account : accounts) {
+      accountTitleToAccount.put(account.memo, account);
+    }
+    return accountTitleToAccount;
+  }
+
+  private static void convertIntoRegularTransaction(QifTransaction transaction, List<Long> converted) {
+    converted.add(transaction.id);
+    transaction.toAccount = null;
+  }
+
+  /**
+   * the implementation QifImportTask used before, on the fully parsed file
+   */
+  private void reduceTransfersByScanning(List<QifAccount> accounts, Map<String, QifAccount> accountTitleToAccount,
+                                         List<Long> converted) {
+    for (QifAccount fromAccount : accounts) {
+      reduceTransfersByScanning(fromAccount, fromAccount.transactions, accountTitleToAccount, converted);
+    }
+    for (QifAccount account : accounts) {
+      convertUnknownTransfers(account.transactions, converted);
+    }
+  }
+
+  private void reduceTransfersByScanning(QifAccount fromAccount, List<QifTransaction> transactions,
+                                         Map<String, QifAccount> accountTitleToAccount, List<Long> converted) {
+    for (QifTransaction fromTransaction : transactions) {
+      if (fromTransaction.isTransfer() && fromTransaction.amount.signum() == -1) {
+        boolean found = false;
+        if (!fromTransaction.toAccount.equals(fromAccount.memo)) {
+          QifAccount toAccount = accountTitleToAccount.get(fromTransaction.toAccount);
+          if (toAccount != null) {
+            Iterator<QifTransaction> iterator = toAccount.transactions.iterator();
+            while (iterator.hasNext()) {
+              QifTransaction toTransaction = iterator.next();
+              if (QifUtils.twoSidesOfTheSameTransfer(fromAccount, fromTransaction, toAccount, toTransaction)) {
+                iterator.remove();
+                found = true;
+                break;
+              }
+            }
+          }
+        }
+        if (!found) {
+          convertIntoRegularTransaction(fromTransaction, converted);
+        }
+      }
+      if (fromTransaction.splits != null) {
+        reduceTransfersByScanning(fromAccount, fromTransaction.splits, accountTitleToAccount, converted);
+      }
+    }
+  }
+
+  private void convertUnknownTransfers(List<QifTransaction> transactions, List<Long> converted) {
+    for (QifTransaction transaction : transactions) {
+      if (transaction.isTransfer() && transaction.amount.signum() >= 0) {
+        convertIntoRegularTransaction(transaction, converted);
+      }
+      if (transaction.splits != null) {
+        convertUnknownTransfers(transaction.splits, converted);
+      }
+    }
+  }
+
+  /**
+   * hands the transactions to the matcher in the order of the file
+   * @return the ids of the transactions handed back for each account
+   */
+  private Map<QifAccount, List<Long>> reduceTransfersWhileStreaming(List<QifAccount> accounts,
+                                                                    List<Long> converted) {
+    Map<QifAccount, List<Long>> imported = new HashMap<>();
+    for (QifAccount account : accounts) {
+      imported.put(account, new ArrayList<>());
+    }
+    QifTransferMatcher matcher = new QifTransferMatcher(new QifTransferMatcher.Callback() {
+      @Override
+      public void convert(QifTransaction transfer) {
+        convertIntoRegularTransaction(transfer, converted);
+      }
+
+      @Override
+      public void ready(QifAccount account, QifTransaction transaction) {
+        imported.get(account).add(transaction.id);
+      }
+    });
+    for (QifAccount account : accounts) {
+      for (QifTransaction transaction : account.transactions) {
+        matcher.add(account, transaction);
+      }
+    }
+    matcher.finish();
+    return imported;
+  }
+
+  private static List<Long> sortedIds(List<QifTransaction> transactions) {
+    List<Long> ids = new ArrayList<>(transactions.size());
+    for (QifTransaction transaction : transactions) {
+      ids.add(transaction.id);
+    }
+    return sorted(ids);
+  }
+
+  private static List<Long> sorted(List<Long> ids) {
+    List<Long> result = new ArrayList<>(ids);
+    Collections.sort(result);
+    return result;
+  }
+
+  @Test
+  public void shouldPairLikeLinearScan() {
+    for (long seed = 0; seed < 10; seed++) {
+      List<QifAccount> expected = generate(5, 3000, seed);
+      List<Long> expectedConverted = new ArrayList<>();
+      reduceTransfersByScanning(expected, byTitle(expected), expectedConverted);
+
+      List<QifAccount> actual = generate(5, 3000, seed);
+      List<Long> actualConverted = new ArrayList<>();
+      Map<QifAccount, List<Long>> imported = reduceTransfersWhileStreaming(actual, actualConverted);
+
+      assertEquals(sorted(expectedConverted), sorted(actualConverted));
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(sortedIds(expected.get(i).transactions), sorted(imported.get(actual.get(i))));
+      }
+    }
+  }
+
+  @Test
+  public void reduceLargeFile() {
+    List<QifAccount> accounts = generate(20, 300000, 42);
+    int before = 0;
+    for (QifAccount account : accounts) {
+      before += account.transactions.size();
+    }
+    List<Long> converted = new ArrayList<>();
+    long start = System.nanoTime();
+    Map<QifAccount, List<Long>> imported = reduceTransfersWhileStreaming(accounts, converted);
+    long millis = (System.nanoTime() - start) / 1000000;
+    int after = 0;
+    for (List<Long> ids : imported.values()) {
+      after += ids.size();
+    }
+    System.out.println(String.format("Reduced transfers of %d transactions in 20 accounts in %d ms, " +
+        "%d pairs, %d without counterpart", before, millis, before - after, converted.size()));
+    assertTrue(before - after > 0);
+  }
+}
@@ -0,0 +1,26 @@
+package org.totschnig.myexpenses.provider.filter;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class TextCriteriaTest extends TestCase {
+
+  public void testBuildMatchQuery() throws Exception {
+    Assert.assertEquals("comment:rent*", TextCriteria.buildMatchQuery("comment", "Rent"));
+    Assert.assertEquals("comment:super* comment:market*", TextCriteria.buildMatchQuery("comment", " super-Market "));
+    Assert.assertEquals("comment:or* comment:not*", TextCriteria.buildMatchQuery("comment", "OR \"NOT\""));
+    Assert.assertEquals("comment:\u00c4pfel*", TextCriteria.buildMatchQuery("comment", "\u00c4pfel"));
+    Assert.assertNull(TextCriteria.buildMatchQuery("comment", "%*:"));
+  }
+
+  public void testStringExtra() throws Exception {
+    Assert.assertFalse(TextCriteria.isWordPrefixExtra("market"));
+    Assert.assertEquals("market", TextCriteria.searchStringFromExtra("market"));
+    Assert.assertFalse(TextCriteria.isWordPrefixExtra("a;b"));
+    Assert.assertEquals("a;b", TextCriteria.searchStringFromExtra("a;b"));
+    Assert.assertTrue(TextCriteria.isWordPrefixExtra("market;wordPrefix"));
+    Assert.assertEquals("market", TextCriteria.searchStringFromExtra("market;wordPrefix"));
+    Assert.assertTrue(TextCriteria.isWordPrefixExtra("a\\;b;wordPrefix"));
+    Assert.assertEquals("a;b", TextCriteria.searchStringFromExtra("a\\;b;wordPrefix"));
+  }
+}
@@ -0,0 +1,117 @@
+package org.totschnig.myexpenses.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.totschnig.myexpenses.sync.json.AdapterFactory;
+import org.totschnig.myexpenses.sync.json.ChangeSetEncoding;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.sync.json.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeSetEncodingTest {
+  private static final int CHANGE_SET_SIZE = 5000;
+  private static final String[] PAYEES = {"Supermarket", "Bakery", "Gas station", "Pharmacy", "Landlord"};
+  private static final String[] CATEGORIES = {"Food", "Transport", "Health", "Housing"};
+
+  private Gson gson;
+
+  @Before
+  public void setup() {
+    gson = new GsonBuilder()
+        .registerTypeAdapterFactory(AdapterFactory.create())
+        .create();
+  }
+
+  /**
+   * changes as they are produced by a user who enters a few transactions a day
+   */
+  private List<TransactionChange> buildRealisticChanges(int count) {
+    Random random = new Random(0);
+    List<TransactionChange> changes = new ArrayList<>(count);
+    long date = 1475559751L;
+    for (int i = 0; i < count; i++) {
+      date += random.nextInt(86400);
+      changes.add(TransactionChange.builder()
+          .setType(TransactionChange.Type.created)
+          .setUuid(UUID.nameUUIDFromBytes(new byte[]{(byte) i, (byte) (i >> 8)}).toString())
+          .setTimeStamp(date + 60)
+          .setDate(date)
+          .setAmount(-(long) random.nextInt(20000))
+          .setPayeeName(PAYEES[random.nextInt(PAYEES.length)])
+          .setLabel(CATEGORIES[random.nextInt(CATEGORIES.length)])
+          .setComment(random.nextInt(4) == 0 ? "Comment " + i : null)
+          .setCrStatus("UNRECONCILED")
+          .build());
+    }
+    return changes;
+  }
+
+  private byte[] encode(List<TransactionChange> changes, ChangeSetEncoding encoding) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream encoded = encoding.wrap(out);
+    Writer writer = new OutputStreamWriter(encoded, "UTF-8");
+    Utils.writeChanges(gson, writer, changes.iterator());
+    encoding.finish(encoded);
+    return out.toByteArray();
+  }
+
+  private List<TransactionChange> decode(byte[] bytes) throws IOException {
+    return Utils.getChanges(gson, new InputStreamReader(
+        ChangeSetEncoding.decode(new ByteArrayInputStream(bytes)), "UTF-8"));
+  }
+
+  @Test
+  public void shouldDetectEncodingWhenDecoding() throws IOException {
+    List<TransactionChange> changes = buildRealisticChanges(10);
+    for (ChangeSetEncoding encoding : ChangeSetEncoding.values()) {
+      assertEquals(changes, decode(encode(changes, encoding)));
+    }
+  }
+
+  @Test
+  public void shouldDefaultToJsonForMissingEncoding() {
+    assertEquals(ChangeSetEncoding.json, ChangeSetEncoding.fromName(null));
+    assertEquals(ChangeSetEncoding.gzip, ChangeSetEncoding.fromName("gzip"));
+  }
+
+  @Test
+  public void compareEncodings() throws IOException {
+    List<TransactionChange> changes = buildRealisticChanges(CHANGE_SET_SIZE);
+    long jsonSize = 0;
+    for (ChangeSetEncoding encoding : ChangeSetEncoding.values()) {
+      //warm up
+      decode(encode(changes, encoding));
+      long start = System.nanoTime();
+      byte[] encoded = encode(changes, encoding);
+      long encodeTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      List<TransactionChange> decoded = decode(encoded);
+      long decodeTime = System.nanoTime() - start;
+      assertEquals(changes, decoded);
+      if (encoding == ChangeSetEncoding.json) {
+        jsonSize = encoded.length;
+      } else {
+        assertTrue(encoded.length < jsonSize);
+      }
+      System.out.println(String.format("%s: %d changes, %d bytes, encoded in %d ms, decoded in %d ms",
+          encoding, CHANGE_SET_SIZE, encoded.length, encodeTime / 1000000, decodeTime / 1000000));
+    }
+  }
+}
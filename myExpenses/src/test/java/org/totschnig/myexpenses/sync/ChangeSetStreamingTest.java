@@ -0,0 +1,131 @@
+package org.totschnig.myexpenses.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.totschnig.myexpenses.sync.json.AdapterFactory;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+import org.totschnig.myexpenses.sync.json.TransactionChangeReader;
+import org.totschnig.myexpenses.sync.json.Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChangeSetStreamingTest {
+  private static final int LARGE_CHANGE_SET_SIZE = 50000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Gson gson;
+
+  @Before
+  public void setup() {
+    gson = new GsonBuilder()
+        .registerTypeAdapterFactory(AdapterFactory.create())
+        .create();
+  }
+
+  private TransactionChange buildChange(int i) {
+    return TransactionChange.builder()
+        .setType(TransactionChange.Type.created)
+        .setUuid("825ec542-a434-4954-b59e-" + String.format("%012d", i))
+        .setTimeStamp(1475560175L + i)
+        .setDate(1475559751L + i)
+        .setAmount(-12300L - i)
+        .setComment(i % 2 == 0 ? "Comment " + i : null)
+        .setCrStatus("UNRECONCILED")
+        .build();
+  }
+
+  /**
+   * generates the changes on the fly, as the cursor of the changes table would, and samples the used heap
+   */
+  private Iterator<TransactionChange> generateChanges(int count, long[] peakHeap) {
+    return new Iterator<TransactionChange>() {
+      int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < count;
+      }
+
+      @Override
+      public TransactionChange next() {
+        if (i % 1000 == 0) {
+          peakHeap[0] = Math.max(peakHeap[0], usedHeap());
+        }
+        return buildChange(i++);
+      }
+    };
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Test
+  public void shouldWriteSameJsonAsGson() throws IOException {
+    List<TransactionChange> changes = Arrays.asList(buildChange(0), buildChange(1));
+    StringWriter writer = new StringWriter();
+    Utils.writeChanges(gson, writer, changes.iterator());
+    assertEquals(gson.toJson(changes), writer.toString());
+  }
+
+  @Test
+  public void shouldReadBackWhatWasWritten() throws IOException {
+    List<TransactionChange> changes = Arrays.asList(buildChange(0), buildChange(1));
+    StringWriter writer = new StringWriter();
+    Utils.writeChanges(gson, writer, changes.iterator());
+    assertEquals(changes, Utils.getChanges(gson, new StringReader(writer.toString())));
+  }
+
+  @Test
+  public void shouldStreamLargeChangeSetThroughFile() throws IOException {
+    File file = folder.newFile("_1.json");
+    System.gc();
+    long heapBefore = usedHeap();
+    long[] peakWrite = {0};
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+      Utils.writeChanges(gson, writer, generateChanges(LARGE_CHANGE_SET_SIZE, peakWrite));
+    }
+    int count = 0;
+    long peakRead = 0;
+    try (TransactionChangeReader reader = new TransactionChangeReader(gson,
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")))) {
+      TransactionChange change;
+      while ((change = reader.next()) != null) {
+        assertEquals(buildChange(count), change);
+        if (count % 1000 == 0) {
+          peakRead = Math.max(peakRead, usedHeap());
+        }
+        count++;
+      }
+      assertNull(reader.next());
+    }
+    assertEquals(LARGE_CHANGE_SET_SIZE, count);
+    System.out.println(String.format("%d changes, %d bytes on disk, peak heap growth while writing %d KB, " +
+            "while reading %d KB", LARGE_CHANGE_SET_SIZE, file.length(), (peakWrite[0] - heapBefore) / 1024,
+        (peakRead - heapBefore) / 1024));
+  }
+}
@@ -0,0 +1,144 @@
+package org.totschnig.myexpenses.sync;
+
+import com.annimon.stream.Optional;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.totschnig.myexpenses.sync.json.AccountMetaData;
+import org.totschnig.myexpenses.sync.json.AdapterFactory;
+import org.totschnig.myexpenses.sync.json.ChangeSetEncoding;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A device with the current version and a device with a version from before {@link ChangeSetEncoding#gzip}
+ * share one sync folder. The behaviour of the older version is reproduced as it reads the folder.
+ */
+public class MetadataCompatibilityTest {
+  private static final Pattern OLD_FILE_PATTERN = Pattern.compile("_\\d+");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Gson gson;
+
+  @Before
+  public void setup() {
+    gson = new GsonBuilder()
+        .registerTypeAdapterFactory(AdapterFactory.create())
+        .create();
+  }
+
+  private AccountMetaData buildMetaData(String uuid, ChangeSetEncoding encoding) {
+    return AccountMetaData.builder().setLabel("Account " + uuid).setCurrency("EUR").setColor(-1)
+        .setUuid(uuid).setOpeningBalance(0).setDescription("").setType("CASH")
+        .setEncoding(encoding == ChangeSetEncoding.json ? null : encoding.name())
+        .build();
+  }
+
+  /**
+   * the new device sets up the account folder with metadata and a first change set
+   */
+  private File writeAccount(String uuid, ChangeSetEncoding encoding) throws IOException {
+    File accountDir = folder.newFolder(uuid);
+    write(new File(accountDir, AbstractSyncBackendProvider.ACCOUNT_METADATA_FILENAME),
+        AbstractSyncBackendProvider.serializeMetadata(gson, buildMetaData(uuid, encoding)));
+    write(new File(accountDir, "_1." + encoding.fileExtension), "[]");
+    return accountDir;
+  }
+
+  private void write(File file, String contents) throws IOException {
+    try (Writer writer = new FileWriter(file)) {
+      writer.write(contents);
+    }
+  }
+
+  /**
+   * the accounts an older version offers for linking
+   */
+  private List<String> oldClientRemoteAccountList() {
+    List<String> result = new ArrayList<>();
+    File[] accountDirs = folder.getRoot().listFiles();
+    assert accountDirs != null;
+    for (File accountDir : accountDirs) {
+      try (Reader reader = new FileReader(new File(accountDir, AbstractSyncBackendProvider.ACCOUNT_METADATA_FILENAME))) {
+        result.add(gson.fromJson(reader, AccountMetaData.class).uuid());
+      } catch (Exception e) {
+        //older versions report and skip metadata they can not read
+      }
+    }
+    return result;
+  }
+
+  /**
+   * the sequence number an older version writes its next change set under
+   */
+  private long oldClientNextSequence(File accountDir) {
+    long last = 0;
+    String[] names = accountDir.list();
+    assert names != null;
+    for (String name : names) {
+      int dotIndex = name.lastIndexOf('.');
+      if (dotIndex != -1 && name.substring(dotIndex + 1).equals("json")) {
+        String baseName = name.substring(0, dotIndex);
+        if (OLD_FILE_PATTERN.matcher(baseName).matches()) {
+          last = Math.max(last, Long.parseLong(baseName.substring(1)));
+        }
+      }
+    }
+    return last + 1;
+  }
+
+  private AccountMetaData newClientRead(File accountDir) throws IOException {
+    try (Reader reader = new FileReader(new File(accountDir, AbstractSyncBackendProvider.ACCOUNT_METADATA_FILENAME))) {
+      Optional<AccountMetaData> metaData = AbstractSyncBackendProvider.parseMetadata(gson, reader);
+      assertTrue(metaData.isPresent());
+      return metaData.get();
+    }
+  }
+
+  @Test
+  public void plainAccountIsSharedWithOldClient() throws IOException {
+    File accountDir = writeAccount("plain", ChangeSetEncoding.json);
+    assertTrue(oldClientRemoteAccountList().contains("plain"));
+    //the old client continues the sequence of the new one
+    assertEquals(2, oldClientNextSequence(accountDir));
+    assertEquals(ChangeSetEncoding.json, ChangeSetEncoding.fromName(newClientRead(accountDir).encoding()));
+  }
+
+  @Test
+  public void compressedAccountIsNotOfferedToOldClient() throws IOException {
+    File accountDir = writeAccount("compressed", ChangeSetEncoding.gzip);
+    writeAccount("plain", ChangeSetEncoding.json);
+    List<String> oldClientAccounts = oldClientRemoteAccountList();
+    assertFalse(oldClientAccounts.contains("compressed"));
+    assertTrue(oldClientAccounts.contains("plain"));
+    AccountMetaData metaData = newClientRead(accountDir);
+    assertEquals("compressed", metaData.uuid());
+    assertEquals(ChangeSetEncoding.gzip, ChangeSetEncoding.fromName(metaData.encoding()));
+  }
+
+  @Test
+  public void newerFormatIsIgnored() {
+    String json = "{\"formatVersion\":" + (AbstractSyncBackendProvider.METADATA_FORMAT_VERSION + 1)
+        + ",\"account\":" + gson.toJson(buildMetaData("future", ChangeSetEncoding.gzip)) + "}";
+    assertFalse(AbstractSyncBackendProvider.parseMetadata(gson, new StringReader(json)).isPresent());
+  }
+}
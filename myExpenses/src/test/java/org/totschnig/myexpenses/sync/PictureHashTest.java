@@ -0,0 +1,81 @@
+package org.totschnig.myexpenses.sync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.totschnig.myexpenses.util.FileCopyUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PictureHashTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void shouldMatchKnownDigests() throws IOException {
+    assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+        AbstractSyncBackendProvider.sha256(new ByteArrayInputStream(new byte[0])));
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+        AbstractSyncBackendProvider.sha256(new ByteArrayInputStream("abc".getBytes("UTF-8"))));
+  }
+
+  @Test
+  public void shouldDependOnContentOnly() throws IOException {
+    //larger than the buffer used for reading
+    byte[] picture = new byte[100000];
+    new Random(0).nextBytes(picture);
+    String hash = AbstractSyncBackendProvider.sha256(new ByteArrayInputStream(picture));
+    assertEquals(hash, AbstractSyncBackendProvider.sha256(new ByteArrayInputStream(picture.clone())));
+    picture[picture.length - 1]++;
+    assertNotEquals(hash, AbstractSyncBackendProvider.sha256(new ByteArrayInputStream(picture)));
+  }
+
+  @Test
+  public void shouldIngestMatchingPicture() throws IOException {
+    byte[] picture = new byte[100000];
+    new Random(0).nextBytes(picture);
+    String hash = AbstractSyncBackendProvider.sha256(new ByteArrayInputStream(picture));
+    File target = new File(folder.getRoot(), hash + ".jpg");
+    AbstractSyncBackendProvider.ingestVerified(new ByteArrayInputStream(picture), target, hash);
+    try (FileInputStream in = new FileInputStream(target)) {
+      assertArrayEquals(picture, FileCopyUtils.toByteArray(in));
+    }
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void shouldRejectPictureNotMatchingHash() throws IOException {
+    String hash = AbstractSyncBackendProvider.sha256(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+    File target = new File(folder.getRoot(), hash + ".jpg");
+    try {
+      AbstractSyncBackendProvider.ingestVerified(new ByteArrayInputStream("abd".getBytes("UTF-8")), target, hash);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      //no partial copy is left behind
+      assertFalse(target.exists());
+      assertEquals(0, folder.getRoot().list().length);
+    }
+  }
+
+  @Test
+  public void shouldAcceptPictureIngestedConcurrently() throws IOException {
+    byte[] picture = "abc".getBytes("UTF-8");
+    String hash = AbstractSyncBackendProvider.sha256(new ByteArrayInputStream(picture));
+    File target = new File(folder.getRoot(), hash);
+    assertTrue(target.createNewFile());
+    AbstractSyncBackendProvider.ingestVerified(new ByteArrayInputStream(picture), target, hash);
+    assertEquals(1, folder.getRoot().list().length);
+  }
+}
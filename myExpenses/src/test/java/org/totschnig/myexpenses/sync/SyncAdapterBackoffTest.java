@@ -0,0 +1,29 @@
+package org.totschnig.myexpenses.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncAdapterBackoffTest {
+
+  @Test
+  public void backoffShouldDoubleWithEachFailure() {
+    long first = SyncAdapter.getBackoffSeconds(1);
+    assertTrue(first > 0);
+    assertEquals(2 * first, SyncAdapter.getBackoffSeconds(2));
+    assertEquals(4 * first, SyncAdapter.getBackoffSeconds(3));
+  }
+
+  @Test
+  public void backoffShouldBeCapped() {
+    long capped = SyncAdapter.getBackoffSeconds(100);
+    assertEquals(capped, SyncAdapter.getBackoffSeconds(1000));
+    assertTrue(capped <= 24 * 60 * 60);
+  }
+
+  @Test
+  public void noFailuresShouldNotBackOff() {
+    assertEquals(0, SyncAdapter.getBackoffSeconds(0));
+  }
+}
@@ -0,0 +1,78 @@
+package org.totschnig.myexpenses.sync;
+
+import org.junit.Test;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncAdapterCompactChangeLogTest extends SyncAdapterBaseTest {
+
+  @Test
+  public void createsShouldBeKept() {
+    List<TransactionChange> changeLog = new ArrayList<>();
+    changeLog.add(buildCreated().setUuid("random1").build());
+    changeLog.add(buildCreated().setUuid("random2").build());
+    assertEquals(changeLog, syncAdapter.compactChangeLog(changeLog));
+  }
+
+  @Test
+  public void deletedTransactionsShouldBeRemoved() {
+    List<TransactionChange> changeLog = new ArrayList<>();
+    changeLog.add(buildCreated().setUuid("random1").build());
+    changeLog.add(buildCreated().setUuid("random2").build());
+    changeLog.add(buildUpdated().setUuid("random1").setAmount(123L).build());
+    changeLog.add(buildDeleted().setUuid("random1").build());
+    List<TransactionChange> result = syncAdapter.compactChangeLog(changeLog);
+    assertEquals(1, result.size());
+    assertEquals("random2", result.get(0).uuid());
+  }
+
+  @Test
+  public void updatesShouldBeMergedIntoCreate() {
+    List<TransactionChange> changeLog = new ArrayList<>();
+    changeLog.add(buildCreated().setUuid("random").setAmount(123L).setComment("first").build());
+    changeLog.add(buildUpdated().setUuid("random").setAmount(456L).build());
+    List<TransactionChange> result = syncAdapter.compactChangeLog(changeLog);
+    assertEquals(1, result.size());
+    TransactionChange compacted = result.get(0);
+    assertTrue(compacted.isCreate());
+    assertEquals(Long.valueOf(456L), compacted.amount());
+    assertEquals("first", compacted.comment());
+  }
+
+  @Test
+  public void compactedChangeShouldBeCreateUnderClockSkew() {
+    List<TransactionChange> changeLog = new ArrayList<>();
+    TransactionChange created = buildCreated().setUuid("random").setAmount(123L).build();
+    changeLog.add(created);
+    //written by a device whose clock is behind
+    changeLog.add(buildUpdated().setUuid("random").setAmount(456L).setTimeStamp(created.timeStamp() - 3600).build());
+    List<TransactionChange> result = syncAdapter.compactChangeLog(changeLog);
+    assertEquals(1, result.size());
+    assertTrue(result.get(0).isCreate());
+  }
+
+  @Test
+  public void splitPartsShouldBeCompacted() {
+    List<TransactionChange> firstParts = new ArrayList<>();
+    firstParts.add(buildCreated().setUuid("part1").setParentUuid("split").setAmount(1L).build());
+    firstParts.add(buildCreated().setUuid("part2").setParentUuid("split").setAmount(2L).build());
+    List<TransactionChange> secondParts = new ArrayList<>();
+    secondParts.add(buildDeleted().setUuid("part2").setParentUuid("split").build());
+    secondParts.add(buildCreated().setUuid("part3").setParentUuid("split").setAmount(3L).build());
+    List<TransactionChange> changeLog = new ArrayList<>();
+    changeLog.add(buildCreated().setUuid("split").setAmount(3L).setSplitParts(firstParts).build());
+    changeLog.add(buildUpdated().setUuid("split").setAmount(4L).setSplitParts(secondParts).build());
+    List<TransactionChange> result = syncAdapter.compactChangeLog(changeLog);
+    assertEquals(1, result.size());
+    List<TransactionChange> parts = result.get(0).splitParts();
+    assertEquals(2, parts.size());
+    assertTrue(parts.get(0).isCreate());
+    assertEquals("part1", parts.get(0).uuid());
+    assertEquals("part3", parts.get(1).uuid());
+  }
+}
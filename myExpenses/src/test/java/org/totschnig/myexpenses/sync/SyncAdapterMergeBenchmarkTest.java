@@ -0,0 +1,62 @@
+package org.totschnig.myexpenses.sync;
+
+import android.support.v4.util.Pair;
+
+import org.junit.Test;
+import org.totschnig.myexpenses.sync.json.TransactionChange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merges local and remote change sets of growing size and checks that the time grows linearly.
+ */
+public class SyncAdapterMergeBenchmarkTest extends SyncAdapterBaseTest {
+  private static final int[] SIZES = {10000, 50000, 100000};
+
+  /**
+   * every tenth transaction is changed on both sides, with every hundredth deleted remotely
+   */
+  private List<TransactionChange> buildChanges(int count, boolean local) {
+    List<TransactionChange> changes = new ArrayList<>(count);
+    String prefix = local ? "local" : "remote";
+    for (int i = 0; i < count; i++) {
+      String uuid = i % 10 == 0 ? "shared" + i : prefix + i;
+      if (!local && i % 100 == 0) {
+        changes.add(buildDeleted().setUuid(uuid).setTimeStamp((long) i).build());
+      } else {
+        changes.add(buildUpdated().setUuid(uuid).setTimeStamp((long) i).setAmount((long) i).build());
+      }
+    }
+    return changes;
+  }
+
+  private long merge(int size) {
+    List<TransactionChange> local = buildChanges(size, true);
+    List<TransactionChange> remote = buildChanges(size, false);
+    long start = System.nanoTime();
+    Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(local, remote);
+    long nanos = System.nanoTime() - start;
+    //shared uuids deleted remotely are dropped locally
+    assertEquals(size - size / 100, result.first.size());
+    assertEquals(size, result.second.size());
+    return nanos;
+  }
+
+  @Test
+  public void mergeShouldScaleLinearly() {
+    //warm up
+    merge(SIZES[0]);
+    long[] millis = new long[SIZES.length];
+    for (int i = 0; i < SIZES.length; i++) {
+      millis[i] = Math.max(1, merge(SIZES[i]) / 1000000);
+      System.out.println(String.format("Merged %d local and %d remote changes in %d ms",
+          SIZES[i], SIZES[i], millis[i]));
+    }
+    //ten times the changes, with a generous allowance for noise, while quadratic growth would be a hundredfold
+    assertTrue(millis[SIZES.length - 1] < 30 * millis[0] + 100);
+  }
+}
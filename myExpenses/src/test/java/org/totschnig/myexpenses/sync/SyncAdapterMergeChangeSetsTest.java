@@ -69,4 +69,53 @@ public class SyncAdapterMergeChangeSetsTest extends SyncAdapterBaseTest {
     Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(first, second);
     assertEquals(1, result.first.size());
   }
+
+  @Test
+  public void updatesInBothSetsShouldBeReplacedByTheSameMerge() {
+    String uuid = "random";
+    List<TransactionChange> first = new ArrayList<>();
+    first.add(buildUpdated().setUuid(uuid).setAmount(123L).build());
+    first.add(buildUpdated().setUuid(uuid).setComment("comment").build());
+    List<TransactionChange> second = new ArrayList<>();
+    second.add(buildUpdated().setUuid(uuid).setAmount(456L).build());
+    Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(first, second);
+    assertEquals(1, result.first.size());
+    assertEquals(1, result.second.size());
+    assertEquals(result.first.get(0), result.second.get(0));
+    assertEquals("comment", result.first.get(0).comment());
+  }
+
+  @Test
+  public void duplicateDeletesShouldBeCollapsed() {
+    List<TransactionChange> first = new ArrayList<>();
+    TransactionChange delete = buildDeleted().setUuid("random").setTimeStamp(1475560175L).build();
+    first.add(delete);
+    first.add(delete.toBuilder().build());
+    List<TransactionChange> second = new ArrayList<>();
+    second.add(delete.toBuilder().build());
+    Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(first, second);
+    assertEquals(1, result.first.size());
+    assertEquals(1, result.second.size());
+  }
+
+  @Test
+  public void orderOfUnrelatedChangesShouldBePreserved() {
+    List<TransactionChange> first = new ArrayList<>();
+    first.add(buildCreated().setUuid("random1").build());
+    first.add(buildUpdated().setUuid("random2").build());
+    first.add(buildCreated().setUuid("random3").build());
+    first.add(buildUpdated().setUuid("random2").build());
+    first.add(buildDeleted().setUuid("random4").build());
+    List<TransactionChange> second = new ArrayList<>();
+    second.add(buildUpdated().setUuid("random4").build());
+    second.add(buildCreated().setUuid("random5").build());
+    Pair<List<TransactionChange>, List<TransactionChange>> result = syncAdapter.mergeChangeSets(first, second);
+    assertEquals(4, result.first.size());
+    assertEquals("random1", result.first.get(0).uuid());
+    assertEquals("random2", result.first.get(1).uuid());
+    assertEquals("random3", result.first.get(2).uuid());
+    assertEquals("random4", result.first.get(3).uuid());
+    assertEquals(1, result.second.size());
+    assertEquals("random5", result.second.get(0).uuid());
+  }
 }